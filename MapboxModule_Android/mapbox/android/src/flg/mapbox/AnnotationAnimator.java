@@ -0,0 +1,289 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import org.appcelerator.kroll.KrollDict;
+
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Moves the annotations of a map view smoothly to new positions.
+ *
+ * All running animations are advanced by a single frame callback, which
+ * interpolates every moving marker and invalidates the map once per frame.
+ * Markers are moved without invalidating the map each. The spatial index of
+ * the annotations is brought up to date every REINDEX_INTERVAL_MS while
+ * moving, and when an animation ends; the listener is told which is which.
+ *
+ * Used on the UI thread.
+ */
+public class AnnotationAnimator {
+
+    public static final long DEFAULT_DURATION_MS = 1000;
+
+    private static final long REINDEX_INTERVAL_MS = 250;
+
+    public interface Listener {
+
+        /**
+         * Called when the position of an animated annotation should be
+         * indexed, while it moves and once it arrived.
+         *
+         * @param arrived true once the annotation reached its destination
+         */
+        void onAnnotationMoved(MapboxMarker mapboxMarker, boolean arrived);
+    }
+
+    private final MapView map;
+    private final Listener listener;
+
+    private final ArrayList<Animation> running = new ArrayList<Animation>();
+    private final IdentityHashMap<MapboxMarker, Animation> byMarker = new IdentityHashMap<MapboxMarker, Animation>();
+    private final ArrayList<Animation> idle = new ArrayList<Animation>();
+
+    private final FrameScheduler frameScheduler;
+
+    private long lastReindexNanos = 0;
+
+    private long frames = 0;
+    private long frameNanos = 0;
+    private long completed = 0;
+
+    public AnnotationAnimator(MapView map, Listener listener) {
+
+        this.map = map;
+        this.listener = listener;
+
+        frameScheduler = new FrameScheduler(new FrameScheduler.Callback() {
+
+            @Override
+            public void doFrame(long frameTimeNanos) {
+
+                AnnotationAnimator.this.doFrame(frameTimeNanos);
+            }
+        });
+    }
+
+    /**
+     * Starts moving an annotation from where it is now, also if it is being
+     * animated, to the given position.
+     */
+    public void animate(MapboxMarker mapboxMarker, double latitude, double longitude, long durationMs) {
+
+        Animation animation = byMarker.get(mapboxMarker);
+
+        if (animation == null) {
+
+            animation = idle.isEmpty() ? new Animation() : idle.remove(idle.size() - 1);
+
+            animation.mapboxMarker = mapboxMarker;
+
+            byMarker.put(mapboxMarker, animation);
+            running.add(animation);
+
+        } else {
+
+            // the index follows the position reached so far
+            listener.onAnnotationMoved(mapboxMarker, false);
+        }
+
+        animation.fromLatitude = mapboxMarker.getLatitude();
+        animation.fromLongitude = mapboxMarker.getLongitude();
+        animation.toLatitude = latitude;
+        animation.toLongitude = longitude;
+        animation.deltaLongitude = shortestDelta(animation.fromLongitude, longitude);
+        animation.startNanos = System.nanoTime();
+        animation.durationNanos = Math.max(1, durationMs) * 1000000L;
+
+        frameScheduler.schedule();
+    }
+
+    /**
+     * Stops the animation of an annotation where it is, for example because
+     * it was moved directly or removed.
+     */
+    public void cancel(MapboxMarker mapboxMarker) {
+
+        Animation animation = byMarker.remove(mapboxMarker);
+
+        if (animation != null) {
+
+            running.remove(animation);
+
+            recycle(animation);
+        }
+    }
+
+    public void cancelAll() {
+
+        for (int i = 0; i < running.size(); i++) {
+
+            recycle(running.get(i));
+        }
+
+        running.clear();
+        byMarker.clear();
+    }
+
+    public boolean isAnimating(MapboxMarker mapboxMarker) {
+
+        return byMarker.containsKey(mapboxMarker);
+    }
+
+    /**
+     * Returns whether an annotation is being moved to the given position.
+     */
+    public boolean isAnimatingTo(MapboxMarker mapboxMarker, double latitude, double longitude) {
+
+        Animation animation = byMarker.get(mapboxMarker);
+
+        return animation != null && animation.toLatitude == latitude && animation.toLongitude == longitude;
+    }
+
+    public void release() {
+
+        cancelAll();
+
+        frameScheduler.cancel();
+    }
+
+    /**
+     * Returns the counters, times in milliseconds.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("running", running.size());
+        stats.put("completed", completed);
+        stats.put("frames", frames);
+        stats.put("averageFrameTime", frames > 0 ? frameNanos / 1e6 / frames : 0);
+
+        return stats;
+    }
+
+    private void doFrame(long nowNanos) {
+
+        long start = System.nanoTime();
+
+        boolean reindex = nowNanos - lastReindexNanos >= REINDEX_INTERVAL_MS * 1000000L;
+
+        if (reindex) {
+
+            lastReindexNanos = nowNanos;
+        }
+
+        for (int i = running.size() - 1; i >= 0; i--) {
+
+            Animation animation = running.get(i);
+
+            double t = Math.min(1, Math.max(0, (double) (nowNanos - animation.startNanos) / animation.durationNanos));
+
+            double latitude = t < 1 ? animation.fromLatitude + (animation.toLatitude - animation.fromLatitude) * t : animation.toLatitude;
+            double longitude = t < 1 ? wrap(animation.fromLongitude + animation.deltaLongitude * t) : animation.toLongitude;
+
+            MapboxMarker mapboxMarker = animation.mapboxMarker;
+
+            mapboxMarker.setPosition(latitude, longitude);
+
+            Marker marker = mapboxMarker.getMarker();
+
+            if (marker instanceof AnnotationMarker) {
+
+                ((AnnotationMarker) marker).setPointDeferred(new LatLng(latitude, longitude));
+
+            } else if (marker != null) {
+
+                marker.setPoint(new LatLng(latitude, longitude));
+            }
+
+            if (t >= 1) {
+
+                // removed by swapping in the last one, which was advanced already
+                running.set(i, running.get(running.size() - 1));
+                running.remove(running.size() - 1);
+
+                byMarker.remove(mapboxMarker);
+
+                recycle(animation);
+
+                completed++;
+
+                listener.onAnnotationMoved(mapboxMarker, true);
+
+            } else if (reindex) {
+
+                listener.onAnnotationMoved(mapboxMarker, false);
+            }
+        }
+
+        map.invalidate();
+
+        frames++;
+        frameNanos += System.nanoTime() - start;
+
+        if (!running.isEmpty()) {
+
+            frameScheduler.schedule();
+        }
+    }
+
+    private void recycle(Animation animation) {
+
+        animation.mapboxMarker = null;
+
+        idle.add(animation);
+    }
+
+    /**
+     * Returns the change of longitude of the shorter way, across the
+     * antimeridian if that is shorter.
+     */
+    private static double shortestDelta(double from, double to) {
+
+        double delta = to - from;
+
+        if (delta > 180) {
+
+            delta -= 360;
+
+        } else if (delta < -180) {
+
+            delta += 360;
+        }
+
+        return delta;
+    }
+
+    private static double wrap(double longitude) {
+
+        if (longitude > 180) {
+
+            return longitude - 360;
+        }
+
+        if (longitude < -180) {
+
+            return longitude + 360;
+        }
+
+        return longitude;
+    }
+
+    private static class Animation {
+
+        MapboxMarker mapboxMarker;
+
+        double fromLatitude;
+        double fromLongitude;
+        double toLatitude;
+        double toLongitude;
+        double deltaLongitude;
+
+        long startNanos;
+        long durationNanos;
+    }
+}
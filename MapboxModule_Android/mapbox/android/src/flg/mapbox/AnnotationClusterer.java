@@ -0,0 +1,512 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.appcelerator.kroll.common.Log;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Shows the annotations of a MapboxMapView as clusters for the current zoom.
+ *
+ * The ClusterIndex is rebuilt on a background thread whenever the annotation
+ * set changes. On every zoom or scroll the clusters of the viewport are read
+ * from the index and only the markers that appear or disappear are added to
+ * or removed from the map. All other methods must be called on the UI thread.
+ */
+public class AnnotationClusterer {
+
+    private static final String LCAT = "MapboxModule";
+
+    public static final float DEFAULT_CLUSTER_RADIUS = 60;
+    public static final int DEFAULT_CLUSTER_MAX_ZOOM = 16;
+
+    private static final int CLUSTER_ICON_SIZE_DP = 40;
+
+    private final MapView map;
+    private final AnnotationRegistry registry;
+    private final Context context;
+
+    private final Handler mainHandler;
+    private final ExecutorService executor;
+
+    private float radius = DEFAULT_CLUSTER_RADIUS;
+    private int maxZoom = DEFAULT_CLUSTER_MAX_ZOOM;
+
+    private volatile int generation = 0;
+
+    private ClusterIndex index;
+    private MapboxMarker[] indexedEntries;
+
+    private final IdentityHashMap<MapboxMarker, Boolean> shownAnnotations = new IdentityHashMap<MapboxMarker, Boolean>();
+    private final HashMap<Long, Marker> shownClusters = new HashMap<Long, Marker>();
+    private final IdentityHashMap<Marker, ClusterIndex.Cluster> clustersByMarker = new IdentityHashMap<Marker, ClusterIndex.Cluster>();
+
+    private final HashMap<String, Bitmap> clusterBitmaps = new HashMap<String, Bitmap>();
+
+    private boolean rebuildPending = false;
+    private boolean refreshPending = false;
+
+    private final Runnable rebuildRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            rebuildPending = false;
+
+            rebuildIndex();
+        }
+    };
+
+    private final Runnable refreshRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            refreshPending = false;
+
+            refresh();
+        }
+    };
+
+    public AnnotationClusterer(MapView map, AnnotationRegistry registry, Context context) {
+
+        this.map = map;
+        this.registry = registry;
+        this.context = context;
+
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "MapboxModule-Clusterer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public void setRadius(float radius) {
+
+        if (radius > 0 && radius != this.radius) {
+
+            this.radius = radius;
+
+            invalidateIndex();
+        }
+    }
+
+    public float getRadius() {
+
+        return radius;
+    }
+
+    public void setMaxZoom(int maxZoom) {
+
+        if (maxZoom != this.maxZoom) {
+
+            this.maxZoom = maxZoom;
+
+            invalidateIndex();
+        }
+    }
+
+    /**
+     * Schedules a rebuild of the index. Several calls within the same UI loop
+     * iteration result in a single rebuild.
+     */
+    public void invalidateIndex() {
+
+        if (!rebuildPending) {
+
+            rebuildPending = true;
+
+            mainHandler.post(rebuildRunnable);
+        }
+    }
+
+    /**
+     * Schedules an update of the shown markers for the current viewport.
+     */
+    public void scheduleRefresh() {
+
+        if (!refreshPending) {
+
+            refreshPending = true;
+
+            mainHandler.post(refreshRunnable);
+        }
+    }
+
+    /**
+     * Returns true if the annotation is shown on its own, not as part of a
+     * cluster.
+     */
+    public boolean isShown(MapboxMarker mapboxMarker) {
+
+        return shownAnnotations.containsKey(mapboxMarker);
+    }
+
+    public boolean isClusterMarker(Marker marker) {
+
+        return clustersByMarker.containsKey(marker);
+    }
+
+    public ClusterIndex.Cluster getCluster(Marker marker) {
+
+        return clustersByMarker.get(marker);
+    }
+
+    /**
+     * Returns the cluster markers currently on the map.
+     */
+    public Collection<Marker> getClusterMarkers() {
+
+        return shownClusters.values();
+    }
+
+    /**
+     * Returns the annotations of a cluster, at most limit of them.
+     */
+    public ArrayList<AnnotationProxy> getClusterAnnotations(ClusterIndex.Cluster cluster, int limit) {
+
+        ArrayList<AnnotationProxy> annotations = new ArrayList<AnnotationProxy>();
+
+        if (index == null) {
+
+            return annotations;
+        }
+
+        int[] leaves = index.getLeaves(cluster, limit);
+
+        for (int i = 0; i < leaves.length; i++) {
+
+            AnnotationProxy proxy = indexedEntries[leaves[i]].getProxy();
+
+            if (proxy != null) {
+
+                annotations.add(proxy);
+            }
+        }
+
+        return annotations;
+    }
+
+    public int getExpansionZoom(ClusterIndex.Cluster cluster) {
+
+        return index != null ? index.getExpansionZoom(cluster) : maxZoom + 1;
+    }
+
+    /**
+     * Called when an annotation was removed from the map by the map view.
+     */
+    public void forget(MapboxMarker mapboxMarker) {
+
+        shownAnnotations.remove(mapboxMarker);
+
+        invalidateIndex();
+    }
+
+    /**
+     * Called after the map view cleared all markers from the map.
+     */
+    public void clearShown() {
+
+        shownAnnotations.clear();
+        shownClusters.clear();
+        clustersByMarker.clear();
+    }
+
+    /**
+     * Removes every marker shown by the clusterer from the map.
+     */
+    public void detach() {
+
+        ArrayList<Marker> removed = new ArrayList<Marker>(shownAnnotations.size() + shownClusters.size());
+
+        for (MapboxMarker mapboxMarker : shownAnnotations.keySet()) {
+
+            removed.add(mapboxMarker.getMarker());
+        }
+
+        removed.addAll(shownClusters.values());
+
+        if (!removed.isEmpty()) {
+
+            map.removeMarkers(removed);
+        }
+
+        clearShown();
+    }
+
+    public void release() {
+
+        generation++;
+
+        mainHandler.removeCallbacks(rebuildRunnable);
+        mainHandler.removeCallbacks(refreshRunnable);
+
+        executor.shutdownNow();
+
+        clearShown();
+        clusterBitmaps.clear();
+
+        index = null;
+        indexedEntries = null;
+    }
+
+    private void rebuildIndex() {
+
+        // snapshot the positions on the UI thread, cluster them in the background
+        final ArrayList<MapboxMarker> entries = registry.getEntries();
+
+        final int count = entries.size();
+
+        final double[] latitudes = new double[count];
+        final double[] longitudes = new double[count];
+
+        for (int i = 0; i < count; i++) {
+
+            latitudes[i] = entries.get(i).getLatitude();
+            longitudes[i] = entries.get(i).getLongitude();
+        }
+
+        final int buildGeneration = ++generation;
+        final int minZoom = Math.max(0, (int) Math.floor(map.getMinZoomLevel()));
+        final int buildMaxZoom = Math.max(minZoom, maxZoom);
+        final float buildRadius = radius;
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                final ClusterIndex built = new ClusterIndex(minZoom, buildMaxZoom, buildRadius).build(latitudes, longitudes, count);
+
+                mainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        if (buildGeneration != generation) {
+
+                            return;
+                        }
+
+                        // cluster ids only hold within one index, the shown cluster markers go with the old one
+                        ArrayList<Marker> stale = new ArrayList<Marker>(shownClusters.values());
+
+                        shownClusters.clear();
+                        clustersByMarker.clear();
+
+                        index = built;
+                        indexedEntries = entries.toArray(new MapboxMarker[count]);
+
+                        if (Log.isDebugModeEnabled()) {
+
+                            Log.d(LCAT, "Built cluster index for " + count + " annotations");
+                        }
+
+                        refresh(stale);
+                    }
+                });
+            }
+        });
+    }
+
+    private void refresh() {
+
+        refresh(new ArrayList<Marker>());
+    }
+
+    /**
+     * Updates the shown markers for the current viewport and removes the
+     * given markers in the same pass.
+     */
+    private void refresh(ArrayList<Marker> removed) {
+
+        BoundingBox box = index != null ? map.getBoundingBox() : null;
+
+        if (box == null) {
+
+            if (!removed.isEmpty()) {
+
+                map.removeMarkers(removed);
+                map.invalidate();
+            }
+
+            return;
+        }
+
+        ArrayList<ClusterIndex.Cluster> clusters = index.getClusters(box.getLonWest(), box.getLatSouth(), box.getLonEast(), box.getLatNorth(), map.getZoomLevel());
+
+        IdentityHashMap<MapboxMarker, Boolean> visibleAnnotations = new IdentityHashMap<MapboxMarker, Boolean>();
+        HashMap<Long, ClusterIndex.Cluster> visibleClusters = new HashMap<Long, ClusterIndex.Cluster>();
+
+        for (int i = 0; i < clusters.size(); i++) {
+
+            ClusterIndex.Cluster cluster = clusters.get(i);
+
+            if (cluster.isPoint()) {
+
+                MapboxMarker mapboxMarker = indexedEntries[index.getLeaves(cluster, 1)[0]];
+
+                // the snapshot may contain annotations removed since the last build
+                if (registry.contains(mapboxMarker)) {
+
+                    visibleAnnotations.put(mapboxMarker, Boolean.TRUE);
+                }
+
+            } else {
+
+                visibleClusters.put(clusterKey(cluster), cluster);
+            }
+        }
+
+        ArrayList<Marker> added = new ArrayList<Marker>();
+
+        ArrayList<MapboxMarker> hiddenAnnotations = new ArrayList<MapboxMarker>();
+
+        for (MapboxMarker mapboxMarker : shownAnnotations.keySet()) {
+
+            if (!visibleAnnotations.containsKey(mapboxMarker)) {
+
+                hiddenAnnotations.add(mapboxMarker);
+            }
+        }
+
+        for (int i = 0; i < hiddenAnnotations.size(); i++) {
+
+            shownAnnotations.remove(hiddenAnnotations.get(i));
+
+            removed.add(hiddenAnnotations.get(i).getMarker());
+        }
+
+        for (MapboxMarker mapboxMarker : visibleAnnotations.keySet()) {
+
+            if (shownAnnotations.put(mapboxMarker, Boolean.TRUE) == null) {
+
+                added.add(mapboxMarker.getMarker());
+            }
+        }
+
+        ArrayList<Long> hiddenClusters = new ArrayList<Long>();
+
+        for (Long key : shownClusters.keySet()) {
+
+            if (!visibleClusters.containsKey(key)) {
+
+                hiddenClusters.add(key);
+            }
+        }
+
+        for (int i = 0; i < hiddenClusters.size(); i++) {
+
+            Marker marker = shownClusters.remove(hiddenClusters.get(i));
+
+            clustersByMarker.remove(marker);
+
+            removed.add(marker);
+        }
+
+        for (Long key : visibleClusters.keySet()) {
+
+            if (!shownClusters.containsKey(key)) {
+
+                ClusterIndex.Cluster cluster = visibleClusters.get(key);
+
+                Marker marker = createClusterMarker(cluster);
+
+                shownClusters.put(key, marker);
+                clustersByMarker.put(marker, cluster);
+
+                added.add(marker);
+            }
+        }
+
+        if (!removed.isEmpty()) {
+
+            map.removeMarkers(removed);
+        }
+
+        if (!added.isEmpty()) {
+
+            map.addMarkers(added);
+        }
+
+        if (!removed.isEmpty() || !added.isEmpty()) {
+
+            map.invalidate();
+        }
+    }
+
+    private static Long clusterKey(ClusterIndex.Cluster cluster) {
+
+        return ((long) cluster.zoom << 32) | cluster.id;
+    }
+
+    private Marker createClusterMarker(ClusterIndex.Cluster cluster) {
+
+        Marker marker = new Marker(map, "", "", new LatLng(cluster.latitude, cluster.longitude));
+
+        marker.setMarker(getClusterDrawable(cluster.count));
+        marker.setHotspot(Marker.HotspotPlace.CENTER);
+
+        return marker;
+    }
+
+    private Drawable getClusterDrawable(int count) {
+
+        String label = count < 1000 ? String.valueOf(count) : (count / 1000) + "k";
+
+        Bitmap bitmap = clusterBitmaps.get(label);
+
+        if (bitmap == null) {
+
+            float density = context.getResources().getDisplayMetrics().density;
+
+            int size = (int) (CLUSTER_ICON_SIZE_DP * density);
+
+            bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+
+            Canvas canvas = new Canvas(bitmap);
+
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+            paint.setColor(Color.argb(200, 51, 136, 204));
+            canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+
+            paint.setColor(Color.WHITE);
+            paint.setTextAlign(Paint.Align.CENTER);
+            paint.setTextSize(size / 3f);
+            canvas.drawText(label, size / 2f, size / 2f + paint.getTextSize() / 3f, paint);
+
+            clusterBitmaps.put(label, bitmap);
+        }
+
+        return new BitmapDrawable(context.getResources(), bitmap);
+    }
+}
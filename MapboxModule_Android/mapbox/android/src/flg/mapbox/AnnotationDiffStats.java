@@ -0,0 +1,28 @@
+package flg.mapbox;
+
+import org.appcelerator.kroll.KrollDict;
+
+/**
+ * Counters of the last keyed diff applied by MapboxMapView.updateAnnotations().
+ */
+public class AnnotationDiffStats {
+
+    public int added;
+    public int removed;
+    public int reused;
+    public int moved;
+    public int restyled;
+
+    public KrollDict toKrollDict() {
+
+        KrollDict dict = new KrollDict();
+
+        dict.put("added", added);
+        dict.put("removed", removed);
+        dict.put("reused", reused);
+        dict.put("moved", moved);
+        dict.put("restyled", restyled);
+
+        return dict;
+    }
+}
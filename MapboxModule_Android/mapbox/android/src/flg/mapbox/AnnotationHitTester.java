@@ -0,0 +1,222 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.graphics.Point;
+import android.graphics.PointF;
+
+import com.mapbox.mapboxsdk.api.ILatLng;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.views.MapView;
+import com.mapbox.mapboxsdk.views.util.Projection;
+
+/**
+ * Resolves a screen position to the annotations under the finger.
+ *
+ * The touch area is converted to a geographic box through the map Projection
+ * and looked up in the spatial index of the AnnotationRegistry; only the few
+ * candidates found are projected back to screen pixels and tested against the
+ * bounds of their marker icon. Markers outside the index, like cluster
+ * markers and the markers of a point layer, are only ever shown for the
+ * viewport and are tested one by one. Positions are given in the un-rotated
+ * pixels of the Projection; a position on screen is converted with
+ * unrotate() first. Must be called on the UI thread.
+ */
+public class AnnotationHitTester {
+
+    // used for annotations without a marker or icon, roughly a medium pin
+    private static final int DEFAULT_HIT_WIDTH_DP = 32;
+    private static final int DEFAULT_HIT_HEIGHT_DP = 48;
+
+    // largest icon the search box is guaranteed to cover
+    private static final int MAX_HIT_SIZE_DP = 96;
+
+    private static final int TOUCH_SLOP_DP = 8;
+
+    private final MapView map;
+    private final AnnotationRegistry registry;
+
+    private final float density;
+
+    public AnnotationHitTester(MapView map, AnnotationRegistry registry, Context context) {
+
+        this.map = map;
+        this.registry = registry;
+
+        density = context.getResources().getDisplayMetrics().density;
+    }
+
+    /**
+     * Converts a position as drawn on screen into the un-rotated pixels the
+     * Projection and the hit tests work in, in place. Does nothing while the
+     * map is not rotated.
+     */
+    public void unrotate(float[] point) {
+
+        if (map.getMapOrientation() != 0) {
+
+            map.getProjection().rotatePoints(point);
+        }
+    }
+
+    /**
+     * Returns the entries whose marker icon contains the given position,
+     * nearest to the finger first.
+     *
+     * @param clusterer when set, annotations hidden in a cluster are skipped
+     */
+    public ArrayList<MapboxMarker> hitTest(float x, float y, AnnotationClusterer clusterer) {
+
+        ArrayList<MapboxMarker> hits = new ArrayList<MapboxMarker>();
+
+        Projection projection = map.getProjection();
+
+        float slop = TOUCH_SLOP_DP * density;
+        float maxSize = MAX_HIT_SIZE_DP * density;
+
+        // a marker is drawn above its position, so the position is below the finger
+        double south = 90;
+        double north = -90;
+        double west = 180;
+        double east = -180;
+
+        float[][] corners = {
+                {x - maxSize / 2 - slop, y - slop},
+                {x + maxSize / 2 + slop, y - slop},
+                {x - maxSize / 2 - slop, y + maxSize + slop},
+                {x + maxSize / 2 + slop, y + maxSize + slop}
+        };
+
+        for (int i = 0; i < corners.length; i++) {
+
+            ILatLng corner = projection.fromPixels(corners[i][0], corners[i][1]);
+
+            south = Math.min(south, corner.getLatitude());
+            north = Math.max(north, corner.getLatitude());
+            west = Math.min(west, corner.getLongitude());
+            east = Math.max(east, corner.getLongitude());
+        }
+
+        if (east - west > 180) {
+
+            // the touch area crosses the antimeridian
+            double swap = west;
+            west = east;
+            east = swap;
+        }
+
+        ArrayList<MapboxMarker> candidates = registry.queryEntries(south, west, north, east);
+
+        ArrayList<Hit> found = new ArrayList<Hit>();
+
+        for (int i = 0; i < candidates.size(); i++) {
+
+            MapboxMarker mapboxMarker = candidates.get(i);
+
+            if (clusterer != null && !clusterer.isShown(mapboxMarker)) {
+
+                continue;
+            }
+
+            PointF position = projection.toPixels(new LatLng(mapboxMarker.getLatitude(), mapboxMarker.getLongitude()), null);
+
+            Marker marker = mapboxMarker.getMarker();
+
+            float width = marker != null && marker.getWidth() > 0 ? marker.getWidth() : DEFAULT_HIT_WIDTH_DP * density;
+            float height = marker != null && marker.getHeight() > 0 ? marker.getHeight() : DEFAULT_HIT_HEIGHT_DP * density;
+
+            if (x >= position.x - width / 2 - slop && x <= position.x + width / 2 + slop && y >= position.y - height - slop && y <= position.y + slop) {
+
+                // distance is measured to the middle of the icon
+                float dx = position.x - x;
+                float dy = position.y - height / 2 - y;
+
+                found.add(new Hit(mapboxMarker, dx * dx + dy * dy));
+            }
+        }
+
+        Collections.sort(found, new Comparator<Hit>() {
+
+            @Override
+            public int compare(Hit a, Hit b) {
+
+                return Float.compare(a.distance, b.distance);
+            }
+        });
+
+        for (int i = 0; i < found.size(); i++) {
+
+            hits.add(found.get(i).mapboxMarker);
+        }
+
+        return hits;
+    }
+
+    /**
+     * Returns the marker of the given ones whose icon contains the given
+     * position nearest to the finger, or null.
+     */
+    public Marker hitTestMarkers(float x, float y, Collection<Marker> markers) {
+
+        Projection projection = map.getProjection();
+
+        float slop = TOUCH_SLOP_DP * density;
+
+        Marker nearest = null;
+        float nearestDistance = Float.MAX_VALUE;
+
+        for (Marker marker : markers) {
+
+            int width = marker.getWidth();
+            int height = marker.getHeight();
+
+            if (width <= 0 || height <= 0) {
+
+                continue;
+            }
+
+            PointF position = projection.toPixels(marker.getPoint(), null);
+
+            // offset of the top left corner of the icon, as given by its hotspot
+            Point anchor = marker.getAnchor();
+
+            float left = position.x + anchor.x;
+            float top = position.y + anchor.y;
+
+            if (x < left - slop || x > left + width + slop || y < top - slop || y > top + height + slop) {
+
+                continue;
+            }
+
+            float dx = left + width / 2f - x;
+            float dy = top + height / 2f - y;
+
+            float distance = dx * dx + dy * dy;
+
+            if (distance < nearestDistance) {
+
+                nearest = marker;
+                nearestDistance = distance;
+            }
+        }
+
+        return nearest;
+    }
+
+    private static class Hit {
+
+        final MapboxMarker mapboxMarker;
+        final float distance;
+
+        Hit(MapboxMarker mapboxMarker, float distance) {
+
+            this.mapboxMarker = mapboxMarker;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package flg.mapbox;
+
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Marker created for annotations of a MapboxMapView.
+ *
+ * Marker.setPoint() posts an invalidation of the map for every call. When many
+ * markers are moved at once, setPointDeferred() only updates the position and
+ * leaves it to the caller to invalidate the map once afterwards.
+ */
+public class AnnotationMarker extends Marker {
+
+    public AnnotationMarker(MapView mapView, String title, String description, LatLng latLng) {
+
+        super(mapView, title, description, latLng);
+    }
+
+    public void setPointDeferred(LatLng point) {
+
+        mLatLng = point;
+
+        updateDrawingPosition();
+    }
+}
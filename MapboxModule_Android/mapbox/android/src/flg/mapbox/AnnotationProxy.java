@@ -25,7 +25,6 @@ import org.appcelerator.titanium.proxy.TiViewProxy;
 import org.appcelerator.titanium.util.TiConvert;
 import org.appcelerator.titanium.view.TiDrawableReference;
 
-import android.graphics.Bitmap;
 import android.os.Message;
 import android.view.View;
 
@@ -40,6 +39,7 @@ import com.mapbox.mapboxsdk.overlay.Marker;
         TiC.PROPERTY_LATITUDE,
         TiC.PROPERTY_LONGITUDE,
         TiC.PROPERTY_IMAGE,
+        TiC.PROPERTY_ID,
         "showInfoWindow",
         "position",
         "icon",
@@ -50,11 +50,21 @@ public class AnnotationProxy extends KrollProxy {
     public interface AnnotationDelegate {
 
         public void refreshAnnotation(AnnotationProxy annotation);
+
+        public void annotationTitleChanged(AnnotationProxy annotation);
+
+        public void annotationMoved(AnnotationProxy annotation);
+
+        public void animateAnnotation(AnnotationProxy annotation, double latitude, double longitude, long duration);
+
+        public boolean queueAnnotationUpdate(AnnotationProxy annotation, String name, Object value);
     }
 
     private static final String TAG = "AnnotationProxy";
 
     private Icon icon;
+    private TiDrawableReference image;
+    private String imageKey;
     private MapboxMarker marker;
     private String annoTitle;
     private String annoSubtitle;
@@ -71,6 +81,7 @@ public class AnnotationProxy extends KrollProxy {
     public static final String PROPERTY_USER_INFO = "userInfo";
     public static final String PROPERTY_ICON = "icon";
     public static final String PROPERTY_PINCOLOR = "pinColor";
+    public static final String PROPERTY_IMAGE_KEY = "imageKey";
 
     public AnnotationProxy() {
 
@@ -106,6 +117,13 @@ public class AnnotationProxy extends KrollProxy {
         return annoSubtitle;
     }
 
+    public String getAnnotationId() {
+
+        Object id = getProperty(TiC.PROPERTY_ID);
+
+        return id != null ? TiConvert.toString(id) : null;
+    }
+
     public HashMap getUserInfo() {
 
         return (HashMap) getProperty(PROPERTY_USER_INFO);
@@ -181,20 +199,128 @@ public class AnnotationProxy extends KrollProxy {
         }
 
         // image, icon and pincolor must be defined before adding to mapview. Once added, their values are final.
-        /*if (hasProperty(TiC.PROPERTY_IMAGE)) {
+        image = null;
+        imageKey = null;
+
+        if (hasProperty(TiC.PROPERTY_IMAGE)) {
 
             handleImage(getProperty(TiC.PROPERTY_IMAGE));
-        }*/
+        }
     }
 
     public void setPosition(double latitude, double longitude) {
 
         LatLng position = new LatLng(latitude, longitude);
 
-        marker.getMarker().setPoint(position);
+        // a virtualized annotation out of view has no native marker
+        if (marker.getMarker() != null) {
+
+            marker.getMarker().setPoint(position);
+        }
+
+        marker.setPosition(latitude, longitude);
 
         setProperty(TiC.PROPERTY_LATITUDE, latitude, true);
         setProperty(TiC.PROPERTY_LONGITUDE, longitude, true);
+
+        if (this.delegate != null) {
+
+            this.delegate.annotationMoved(this);
+        }
+    }
+
+    /**
+     * Applies a batched update on the UI thread. The marker position is changed
+     * without invalidating the map, the caller invalidates it once per batch.
+     */
+    public void applyUpdate(AnnotationUpdate update) {
+
+        Marker m = marker != null ? marker.getMarker() : null;
+
+        if (update.hasPosition()) {
+
+            double latitude = update.hasLatitude ? update.latitude : TiConvert.toDouble(getProperty(TiC.PROPERTY_LATITUDE));
+            double longitude = update.hasLongitude ? update.longitude : TiConvert.toDouble(getProperty(TiC.PROPERTY_LONGITUDE));
+
+            LatLng position = new LatLng(latitude, longitude);
+
+            if (m instanceof AnnotationMarker) {
+
+                ((AnnotationMarker) m).setPointDeferred(position);
+
+            } else if (m != null) {
+
+                m.setPoint(position);
+            }
+
+            if (marker != null) {
+
+                marker.setPosition(latitude, longitude);
+            }
+
+            setProperty(TiC.PROPERTY_LATITUDE, latitude, true);
+            setProperty(TiC.PROPERTY_LONGITUDE, longitude, true);
+        }
+
+        if (update.title != null) {
+
+            annoTitle = update.title;
+
+            setProperty(TiC.PROPERTY_TITLE, update.title, true);
+
+            if (m != null) {
+
+                m.setTitle(update.title);
+            }
+        }
+
+        if (update.subtitle != null) {
+
+            annoSubtitle = update.subtitle;
+
+            setProperty(TiC.PROPERTY_SUBTITLE, update.subtitle, true);
+
+            if (m != null) {
+
+                m.setDescription(update.subtitle);
+            }
+        }
+
+        if (update.hasPosition() && this.delegate != null) {
+
+            this.delegate.annotationMoved(this);
+        }
+    }
+
+    /**
+     * Moves the annotation smoothly to a new position, given by a dictionary
+     * with latitude, longitude and an optional duration in milliseconds. The
+     * latitude and longitude properties are the new position at once.
+     */
+    @Kroll.method
+    public void animateTo(HashMap options) {
+
+        if (options == null || options.get(TiC.PROPERTY_LATITUDE) == null || options.get(TiC.PROPERTY_LONGITUDE) == null) {
+
+            Log.e(TAG, "animateTo needs a latitude and a longitude.");
+
+            return;
+        }
+
+        double latitude = TiConvert.toDouble(options.get(TiC.PROPERTY_LATITUDE));
+        double longitude = TiConvert.toDouble(options.get(TiC.PROPERTY_LONGITUDE));
+
+        long duration = options.get(TiC.PROPERTY_DURATION) != null ? (long) TiConvert.toDouble(options.get(TiC.PROPERTY_DURATION)) : AnnotationAnimator.DEFAULT_DURATION_MS;
+
+        setProperty(TiC.PROPERTY_LATITUDE, latitude);
+        setProperty(TiC.PROPERTY_LONGITUDE, longitude);
+
+        AnnotationDelegate current = delegate;
+
+        if (current != null) {
+
+            current.animateAnnotation(this, latitude, longitude, duration);
+        }
     }
 
     public void setUserInfo(HashMap userInfo) {
@@ -205,37 +331,53 @@ public class AnnotationProxy extends KrollProxy {
         }
     }
 
-    private void handleImage(Object image) {
+    /**
+     * Resolves the image of the annotation. It is decoded later by the
+     * ImagePool, once for all annotations using it.
+     */
+    private void handleImage(Object source) {
+
+        TiDrawableReference reference = null;
 
         // Image path
-        if (image instanceof String) {
+        if (source instanceof String) {
 
-            TiDrawableReference imageref = TiDrawableReference.fromUrl(this, (String) image);
+            reference = TiDrawableReference.fromUrl(this, (String) source);
+        }
 
-            Bitmap bitmap = imageref.getBitmap();
+        // Image blob
+        if (source instanceof TiBlob) {
 
-            if (bitmap != null) {
+            reference = TiDrawableReference.fromBlob(getActivity(), (TiBlob) source);
+        }
 
-//                markerOptions.icon(BitmapDescriptorFactory.fromBitmap(bitmap));
+        String key = ImagePool.keyOf(source, reference, TiApplication.getInstance());
 
-                return;
-            }
-        }
+        if (key == null) {
 
-        // Image blob
-        if (image instanceof TiBlob) {
+            Log.w(TAG, "Unable to get the image from the path: " + source);
 
-            Bitmap bitmap = ((TiBlob) image).getImage();
+            return;
+        }
 
-            if (bitmap != null) {
+        image = reference;
+        imageKey = key;
+    }
 
-//                markerOptions.icon(BitmapDescriptorFactory.fromBitmap(bitmap));
+    /**
+     * Returns the resolved image of the annotation, or null.
+     */
+    public TiDrawableReference getImage() {
 
-                return;
-            }
-        }
+        return image;
+    }
+
+    /**
+     * Returns the key the image of the annotation is pooled under, or null.
+     */
+    public String getImageKey() {
 
-        Log.w(TAG, "Unable to get the image from the path: " + image);
+        return imageKey;
     }
 
     public HashMap getMarkerOptions() {
@@ -248,6 +390,8 @@ public class AnnotationProxy extends KrollProxy {
         markerOptions.put(TiC.PROPERTY_LONGITUDE, getProperty(TiC.PROPERTY_LONGITUDE));
         markerOptions.put(PROPERTY_PINCOLOR, getProperty(PROPERTY_PINCOLOR));
         markerOptions.put(PROPERTY_ICON, getProperty(PROPERTY_ICON));
+        markerOptions.put(TiC.PROPERTY_IMAGE, image);
+        markerOptions.put(PROPERTY_IMAGE_KEY, imageKey);
 
         return markerOptions;
     }
@@ -277,6 +421,14 @@ public class AnnotationProxy extends KrollProxy {
             return;
         }
 
+        AnnotationDelegate current = delegate;
+
+        // merged with other changes and applied on the next frame, without blocking
+        if (current != null && current.queueAnnotationUpdate(this, name, value)) {
+
+            return;
+        }
+
         if (name.equals(TiC.PROPERTY_LONGITUDE)) {
 
             TiMessenger.sendBlockingMainMessage(getMainHandler().obtainMessage(MSG_SET_LON), TiConvert.toDouble(value));
@@ -292,6 +444,11 @@ public class AnnotationProxy extends KrollProxy {
 
             handleSetTitle(title);
 
+            if (this.delegate != null) {
+
+                this.delegate.annotationTitleChanged(this);
+            }
+
         } else if (name.equals(TiC.PROPERTY_SUBTITLE)) {
 
             String subtitle = TiConvert.toString(value);
@@ -0,0 +1,363 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+
+import com.mapbox.mapboxsdk.overlay.Marker;
+
+/**
+ * Indexes the annotations of a map view so that lookups by native marker, by
+ * annotation proxy and by title, as well as removal, do not need to walk the
+ * whole annotation list.
+ *
+ * Entries are kept in insertion order, so title lookups return the annotation
+ * that was added first, like the former linear scan did. Positions are kept in
+ * an AnnotationSpatialIndex, which can be queried from any thread.
+ */
+public class AnnotationRegistry {
+
+    private final LinkedHashSet<MapboxMarker> entries;
+    private final IdentityHashMap<Marker, MapboxMarker> entriesByMarker;
+    private final IdentityHashMap<AnnotationProxy, MapboxMarker> entriesByProxy;
+    private final HashMap<String, LinkedHashSet<MapboxMarker>> entriesByTitle;
+    private final HashMap<String, MapboxMarker> entriesById;
+    private final AnnotationSpatialIndex spatialIndex;
+
+    public AnnotationRegistry() {
+
+        entries = new LinkedHashSet<MapboxMarker>();
+        entriesByMarker = new IdentityHashMap<Marker, MapboxMarker>();
+        entriesByProxy = new IdentityHashMap<AnnotationProxy, MapboxMarker>();
+        entriesByTitle = new HashMap<String, LinkedHashSet<MapboxMarker>>();
+        entriesById = new HashMap<String, MapboxMarker>();
+        spatialIndex = new AnnotationSpatialIndex();
+    }
+
+    public synchronized void add(MapboxMarker mapboxMarker) {
+
+        if (!entries.add(mapboxMarker)) {
+
+            return;
+        }
+
+        if (mapboxMarker.getMarker() != null) {
+
+            entriesByMarker.put(mapboxMarker.getMarker(), mapboxMarker);
+        }
+
+        spatialIndex.insert(mapboxMarker);
+
+        AnnotationProxy proxy = mapboxMarker.getProxy();
+
+        if (proxy != null) {
+
+            entriesByProxy.put(proxy, mapboxMarker);
+
+            indexTitle(mapboxMarker, proxy.getTitle());
+
+            String id = proxy.getAnnotationId();
+
+            if (id != null) {
+
+                entriesById.put(id, mapboxMarker);
+            }
+        }
+    }
+
+    public synchronized boolean remove(MapboxMarker mapboxMarker) {
+
+        if (mapboxMarker == null || !entries.remove(mapboxMarker)) {
+
+            return false;
+        }
+
+        if (mapboxMarker.getMarker() != null) {
+
+            entriesByMarker.remove(mapboxMarker.getMarker());
+        }
+
+        spatialIndex.remove(mapboxMarker);
+
+        AnnotationProxy proxy = mapboxMarker.getProxy();
+
+        if (proxy != null) {
+
+            entriesByProxy.remove(proxy);
+
+            String id = proxy.getAnnotationId();
+
+            if (id != null && entriesById.get(id) == mapboxMarker) {
+
+                entriesById.remove(id);
+            }
+        }
+
+        unindexTitle(mapboxMarker);
+
+        return true;
+    }
+
+    public synchronized boolean contains(MapboxMarker mapboxMarker) {
+
+        return entries.contains(mapboxMarker);
+    }
+
+    public synchronized MapboxMarker getByMarker(Marker marker) {
+
+        if (marker == null) {
+
+            return null;
+        }
+
+        return entriesByMarker.get(marker);
+    }
+
+    public synchronized MapboxMarker getByProxy(AnnotationProxy proxy) {
+
+        if (proxy == null) {
+
+            return null;
+        }
+
+        return entriesByProxy.get(proxy);
+    }
+
+    /**
+     * Looks up an annotation by the id it had when it was added to the map.
+     */
+    public synchronized MapboxMarker getById(String id) {
+
+        if (id == null) {
+
+            return null;
+        }
+
+        return entriesById.get(id);
+    }
+
+    public synchronized MapboxMarker findByTitle(String title) {
+
+        if (title == null) {
+
+            return null;
+        }
+
+        LinkedHashSet<MapboxMarker> titled = entriesByTitle.get(title);
+
+        if (titled == null || titled.isEmpty()) {
+
+            return null;
+        }
+
+        return titled.iterator().next();
+    }
+
+    /**
+     * Moves the entry to the bucket of its proxy's current title. Must be called
+     * whenever the title of a registered annotation changes.
+     */
+    public synchronized void retitle(MapboxMarker mapboxMarker) {
+
+        if (mapboxMarker == null || !entries.contains(mapboxMarker) || mapboxMarker.getProxy() == null) {
+
+            return;
+        }
+
+        unindexTitle(mapboxMarker);
+        indexTitle(mapboxMarker, mapboxMarker.getProxy().getTitle());
+    }
+
+    /**
+     * Attaches an existing entry, and its native marker, to another annotation
+     * proxy. Used when an annotation set is diffed and a new proxy carries the
+     * id of an annotation that is already on the map.
+     */
+    public synchronized void rebind(MapboxMarker mapboxMarker, AnnotationProxy proxy) {
+
+        if (!entries.contains(mapboxMarker)) {
+
+            mapboxMarker.setProxy(proxy);
+            return;
+        }
+
+        AnnotationProxy previous = mapboxMarker.getProxy();
+
+        if (previous != null) {
+
+            entriesByProxy.remove(previous);
+
+            String id = previous.getAnnotationId();
+
+            if (id != null && entriesById.get(id) == mapboxMarker) {
+
+                entriesById.remove(id);
+            }
+        }
+
+        unindexTitle(mapboxMarker);
+
+        mapboxMarker.setProxy(proxy);
+
+        if (proxy != null) {
+
+            entriesByProxy.put(proxy, mapboxMarker);
+
+            indexTitle(mapboxMarker, proxy.getTitle());
+
+            String id = proxy.getAnnotationId();
+
+            if (id != null) {
+
+                entriesById.put(id, mapboxMarker);
+            }
+        }
+    }
+
+    /**
+     * Re-keys the entry after its native marker has been replaced.
+     */
+    public synchronized void replaceMarker(MapboxMarker mapboxMarker, Marker marker) {
+
+        if (!entries.contains(mapboxMarker)) {
+
+            mapboxMarker.setMarker(marker);
+            return;
+        }
+
+        if (mapboxMarker.getMarker() != null) {
+
+            entriesByMarker.remove(mapboxMarker.getMarker());
+        }
+
+        mapboxMarker.setMarker(marker);
+
+        if (marker != null) {
+
+            entriesByMarker.put(marker, mapboxMarker);
+        }
+    }
+
+    /**
+     * Moves the entry in the spatial index to its current position. Must be
+     * called whenever a registered annotation is moved.
+     */
+    public synchronized void reindex(MapboxMarker mapboxMarker) {
+
+        if (mapboxMarker != null && entries.contains(mapboxMarker)) {
+
+            spatialIndex.update(mapboxMarker);
+        }
+    }
+
+    /**
+     * Returns the entries of the annotations within the given bounds.
+     */
+    public synchronized ArrayList<MapboxMarker> queryEntries(double south, double west, double north, double east) {
+
+        return spatialIndex.query(south, west, north, east);
+    }
+
+    /**
+     * Returns the proxies of the annotations within the given bounds.
+     */
+    public synchronized ArrayList<AnnotationProxy> queryAnnotations(double south, double west, double north, double east) {
+
+        return toProxies(spatialIndex.query(south, west, north, east));
+    }
+
+    /**
+     * Returns the proxies of at most count annotations nearest to the given
+     * position, nearest first.
+     */
+    public synchronized ArrayList<AnnotationProxy> nearestAnnotations(double latitude, double longitude, int count) {
+
+        return toProxies(spatialIndex.nearest(latitude, longitude, count));
+    }
+
+    public synchronized int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * Returns a snapshot of the registered entries in insertion order, safe to
+     * iterate while the registry is modified.
+     */
+    public synchronized ArrayList<MapboxMarker> getEntries() {
+
+        return new ArrayList<MapboxMarker>(entries);
+    }
+
+    public synchronized void clear() {
+
+        entries.clear();
+        entriesByMarker.clear();
+        entriesByProxy.clear();
+        entriesByTitle.clear();
+        entriesById.clear();
+        spatialIndex.clear();
+    }
+
+    private static ArrayList<AnnotationProxy> toProxies(ArrayList<MapboxMarker> found) {
+
+        ArrayList<AnnotationProxy> proxies = new ArrayList<AnnotationProxy>(found.size());
+
+        for (int i = 0; i < found.size(); i++) {
+
+            AnnotationProxy proxy = found.get(i).getProxy();
+
+            if (proxy != null) {
+
+                proxies.add(proxy);
+            }
+        }
+
+        return proxies;
+    }
+
+    private void indexTitle(MapboxMarker mapboxMarker, String title) {
+
+        if (title == null) {
+
+            title = "";
+        }
+
+        LinkedHashSet<MapboxMarker> titled = entriesByTitle.get(title);
+
+        if (titled == null) {
+
+            titled = new LinkedHashSet<MapboxMarker>();
+            entriesByTitle.put(title, titled);
+        }
+
+        titled.add(mapboxMarker);
+
+        mapboxMarker.setIndexedTitle(title);
+    }
+
+    private void unindexTitle(MapboxMarker mapboxMarker) {
+
+        String title = mapboxMarker.getIndexedTitle();
+
+        if (title == null) {
+
+            return;
+        }
+
+        LinkedHashSet<MapboxMarker> titled = entriesByTitle.get(title);
+
+        if (titled != null) {
+
+            titled.remove(mapboxMarker);
+
+            if (titled.isEmpty()) {
+
+                entriesByTitle.remove(title);
+            }
+        }
+
+        mapboxMarker.setIndexedTitle(null);
+    }
+}
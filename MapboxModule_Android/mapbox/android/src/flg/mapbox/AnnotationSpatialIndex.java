@@ -0,0 +1,235 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+
+/**
+ * Quadtree over the positions of the annotations of a map view, used for
+ * bounding box and nearest neighbour queries.
+ *
+ * The envelope an annotation was inserted with is kept, so it can be removed
+ * or moved even though its MapboxMarker position has already changed. The
+ * index is not synchronized, AnnotationRegistry guards it with its own lock.
+ */
+public class AnnotationSpatialIndex {
+
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    private static final double INITIAL_SEARCH_DEGREES = 0.01;
+
+    private Quadtree tree = new Quadtree();
+
+    private final IdentityHashMap<MapboxMarker, Envelope> envelopes = new IdentityHashMap<MapboxMarker, Envelope>();
+
+    public void insert(MapboxMarker mapboxMarker) {
+
+        if (envelopes.containsKey(mapboxMarker)) {
+
+            return;
+        }
+
+        Envelope envelope = new Envelope(mapboxMarker.getLongitude(), mapboxMarker.getLongitude(), mapboxMarker.getLatitude(), mapboxMarker.getLatitude());
+
+        envelopes.put(mapboxMarker, envelope);
+
+        tree.insert(envelope, mapboxMarker);
+    }
+
+    public void remove(MapboxMarker mapboxMarker) {
+
+        Envelope envelope = envelopes.remove(mapboxMarker);
+
+        if (envelope != null) {
+
+            tree.remove(envelope, mapboxMarker);
+        }
+    }
+
+    /**
+     * Moves an annotation to its current MapboxMarker position.
+     */
+    public void update(MapboxMarker mapboxMarker) {
+
+        Envelope envelope = envelopes.get(mapboxMarker);
+
+        if (envelope == null) {
+
+            return;
+        }
+
+        if (envelope.getMinY() == mapboxMarker.getLatitude() && envelope.getMinX() == mapboxMarker.getLongitude()) {
+
+            return;
+        }
+
+        remove(mapboxMarker);
+        insert(mapboxMarker);
+    }
+
+    public int size() {
+
+        return envelopes.size();
+    }
+
+    public void clear() {
+
+        tree = new Quadtree();
+
+        envelopes.clear();
+    }
+
+    /**
+     * Returns the annotations within the given bounds. A west longitude greater
+     * than the east one describes bounds crossing the antimeridian.
+     */
+    public ArrayList<MapboxMarker> query(double south, double west, double north, double east) {
+
+        ArrayList<MapboxMarker> results = new ArrayList<MapboxMarker>();
+
+        if (west <= east) {
+
+            collect(new Envelope(west, east, south, north), results);
+
+        } else {
+
+            collect(new Envelope(west, 180, south, north), results);
+            collect(new Envelope(-180, east, south, north), results);
+        }
+
+        return results;
+    }
+
+    /**
+     * Returns at most count annotations closest to the given position, nearest
+     * first. The search box grows until it is known to contain the nearest ones.
+     */
+    public ArrayList<MapboxMarker> nearest(final double latitude, final double longitude, int count) {
+
+        ArrayList<MapboxMarker> results = new ArrayList<MapboxMarker>();
+
+        if (count <= 0 || envelopes.isEmpty()) {
+
+            return results;
+        }
+
+        count = Math.min(count, envelopes.size());
+
+        double radius = INITIAL_SEARCH_DEGREES;
+
+        while (true) {
+
+            results.clear();
+
+            double south = Math.max(-90, latitude - radius);
+            double north = Math.min(90, latitude + radius);
+
+            double cos = Math.cos(Math.toRadians(Math.min(89.9, Math.abs(latitude) + radius)));
+            double lonRadius = radius / Math.max(cos, 1e-6);
+
+            if (lonRadius >= 180 || north - south >= 180) {
+
+                collect(new Envelope(-180, 180, south, north), results);
+
+            } else {
+
+                ArrayList<MapboxMarker> box = query(south, wrapLongitude(longitude - lonRadius), north, wrapLongitude(longitude + lonRadius));
+
+                results.addAll(box);
+            }
+
+            boolean complete = radius >= 180;
+
+            if (results.size() >= count || complete) {
+
+                sortByDistance(results, latitude, longitude);
+
+                // everything within the inscribed circle of the box has been seen
+                if (complete || distance(latitude, longitude, results.get(count - 1)) <= radius * METERS_PER_DEGREE) {
+
+                    break;
+                }
+            }
+
+            radius *= 2;
+        }
+
+        while (results.size() > count) {
+
+            results.remove(results.size() - 1);
+        }
+
+        return results;
+    }
+
+    private void collect(Envelope search, ArrayList<MapboxMarker> results) {
+
+        List candidates = tree.query(search);
+
+        for (int i = 0; i < candidates.size(); i++) {
+
+            MapboxMarker mapboxMarker = (MapboxMarker) candidates.get(i);
+
+            Envelope envelope = envelopes.get(mapboxMarker);
+
+            // the quadtree returns every item of the nodes touching the search box
+            if (envelope != null && search.contains(envelope)) {
+
+                results.add(mapboxMarker);
+            }
+        }
+    }
+
+    private void sortByDistance(ArrayList<MapboxMarker> results, final double latitude, final double longitude) {
+
+        Collections.sort(results, new Comparator<MapboxMarker>() {
+
+            @Override
+            public int compare(MapboxMarker a, MapboxMarker b) {
+
+                return Double.compare(distance(latitude, longitude, a), distance(latitude, longitude, b));
+            }
+        });
+    }
+
+    private double distance(double latitude, double longitude, MapboxMarker mapboxMarker) {
+
+        Envelope envelope = envelopes.get(mapboxMarker);
+
+        return distance(latitude, longitude, envelope.getMinY(), envelope.getMinX());
+    }
+
+    /**
+     * Great circle distance in meters.
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static double wrapLongitude(double longitude) {
+
+        while (longitude > 180) {
+
+            longitude -= 360;
+        }
+
+        while (longitude < -180) {
+
+            longitude += 360;
+        }
+
+        return longitude;
+    }
+}
@@ -0,0 +1,80 @@
+package flg.mapbox;
+
+import android.graphics.Canvas;
+import android.view.MotionEvent;
+
+import com.mapbox.mapboxsdk.overlay.Overlay;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Draws nothing, but answers single taps and long presses before the marker
+ * overlay of the SDK does.
+ *
+ * The SDK tests every marker on the map against a tap; this overlay hands the
+ * touch position to a listener that resolves it through the spatial index
+ * instead and consumes the gesture, so the linear scan of the SDK never runs.
+ * The position is given as drawn on screen, also on a rotated map; the map
+ * view hands overlays events it may or may not have un-rotated itself, so the
+ * raw position of the event is used and the listener un-rotates it once.
+ *
+ * Used on the UI thread.
+ */
+public class AnnotationTapOverlay extends Overlay {
+
+    // above the marker overlay of the SDK, which is asked after this one
+    private static final int TAP_OVERLAY_INDEX = 100;
+
+    public interface Listener {
+
+        /**
+         * Handles a single tap at the given position on screen, relative to
+         * the map view.
+         */
+        void onTap(float x, float y);
+
+        /**
+         * Handles a long press at the given position on screen, relative to
+         * the map view.
+         */
+        void onLongPress(float x, float y);
+    }
+
+    private final Listener listener;
+
+    private final int[] location = new int[2];
+
+    public AnnotationTapOverlay(Listener listener) {
+
+        super();
+
+        this.listener = listener;
+
+        setOverlayIndex(TAP_OVERLAY_INDEX);
+    }
+
+    @Override
+    protected void draw(Canvas canvas, MapView mapView, boolean shadow) {
+
+        // nothing to draw
+    }
+
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent event, MapView mapView) {
+
+        mapView.getLocationOnScreen(location);
+
+        listener.onTap(event.getRawX() - location[0], event.getRawY() - location[1]);
+
+        return true;
+    }
+
+    @Override
+    public boolean onLongPress(MotionEvent event, MapView mapView) {
+
+        mapView.getLocationOnScreen(location);
+
+        listener.onLongPress(event.getRawX() - location[0], event.getRawY() - location[1]);
+
+        return true;
+    }
+}
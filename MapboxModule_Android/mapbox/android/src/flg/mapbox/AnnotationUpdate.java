@@ -0,0 +1,71 @@
+package flg.mapbox;
+
+import java.util.HashMap;
+
+import org.appcelerator.titanium.TiC;
+import org.appcelerator.titanium.util.TiConvert;
+
+/**
+ * Plain record of the changes for one annotation, collected on the JS thread
+ * by MapViewProxy.updateAnnotations() or the AnnotationUpdateQueue and applied
+ * on the UI thread. Queued updates have no id.
+ */
+public class AnnotationUpdate {
+
+    public final String id;
+
+    public boolean hasLatitude;
+    public double latitude;
+
+    public boolean hasLongitude;
+    public double longitude;
+
+    public String title;
+    public String subtitle;
+
+    public AnnotationUpdate(String id) {
+
+        this.id = id;
+    }
+
+    public boolean hasPosition() {
+
+        return hasLatitude || hasLongitude;
+    }
+
+    public static AnnotationUpdate fromDictionary(HashMap dict) {
+
+        Object id = dict.get(TiC.PROPERTY_ID);
+
+        if (id == null) {
+
+            return null;
+        }
+
+        AnnotationUpdate update = new AnnotationUpdate(TiConvert.toString(id));
+
+        if (dict.get(TiC.PROPERTY_LATITUDE) != null) {
+
+            update.hasLatitude = true;
+            update.latitude = TiConvert.toDouble(dict, TiC.PROPERTY_LATITUDE);
+        }
+
+        if (dict.get(TiC.PROPERTY_LONGITUDE) != null) {
+
+            update.hasLongitude = true;
+            update.longitude = TiConvert.toDouble(dict, TiC.PROPERTY_LONGITUDE);
+        }
+
+        if (dict.containsKey(TiC.PROPERTY_TITLE)) {
+
+            update.title = TiConvert.toString(dict, TiC.PROPERTY_TITLE);
+        }
+
+        if (dict.containsKey(TiC.PROPERTY_SUBTITLE)) {
+
+            update.subtitle = TiConvert.toString(dict, TiC.PROPERTY_SUBTITLE);
+        }
+
+        return update;
+    }
+}
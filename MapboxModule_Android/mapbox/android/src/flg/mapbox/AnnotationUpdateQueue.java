@@ -0,0 +1,209 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.titanium.TiC;
+import org.appcelerator.titanium.util.TiConvert;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Collects the property changes of annotations made on the JS thread without
+ * blocking it. Changes of the same annotation are merged into one
+ * AnnotationUpdate, and all pending updates are applied together on the next
+ * UI frame.
+ */
+public class AnnotationUpdateQueue {
+
+    public interface Target {
+
+        /**
+         * Applies the updates on the UI thread, invalidating the map once.
+         */
+        void applyQueuedUpdates(ArrayList<AnnotationProxy> annotations, ArrayList<AnnotationUpdate> updates);
+    }
+
+    private final Target target;
+
+    private final Handler mainHandler;
+    private final FrameScheduler frameScheduler;
+
+    // guarded by this
+    private IdentityHashMap<AnnotationProxy, AnnotationUpdate> pending = new IdentityHashMap<AnnotationProxy, AnnotationUpdate>();
+    private boolean flushRequested = false;
+
+    // only used on the UI thread
+    private final ArrayList<AnnotationProxy> flushAnnotations = new ArrayList<AnnotationProxy>();
+    private final ArrayList<AnnotationUpdate> flushUpdates = new ArrayList<AnnotationUpdate>();
+    private IdentityHashMap<AnnotationProxy, AnnotationUpdate> spare = new IdentityHashMap<AnnotationProxy, AnnotationUpdate>();
+
+    private long changes = 0;
+    private long updates = 0;
+    private long flushes = 0;
+
+    private final Runnable scheduleRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            frameScheduler.schedule();
+        }
+    };
+
+    public AnnotationUpdateQueue(Target target) {
+
+        this.target = target;
+
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        frameScheduler = new FrameScheduler(new FrameScheduler.Callback() {
+
+            @Override
+            public void doFrame(long frameTimeNanos) {
+
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Queues a changed property of an annotation.
+     *
+     * @return false if the property is not one that is queued
+     */
+    public boolean enqueue(AnnotationProxy annotation, String name, Object value) {
+
+        boolean latitude = name.equals(TiC.PROPERTY_LATITUDE);
+        boolean longitude = name.equals(TiC.PROPERTY_LONGITUDE);
+        boolean title = name.equals(TiC.PROPERTY_TITLE);
+        boolean subtitle = name.equals(TiC.PROPERTY_SUBTITLE);
+
+        if (!latitude && !longitude && !title && !subtitle) {
+
+            return false;
+        }
+
+        boolean post = false;
+
+        synchronized (this) {
+
+            AnnotationUpdate update = pending.get(annotation);
+
+            if (update == null) {
+
+                update = new AnnotationUpdate(null);
+
+                pending.put(annotation, update);
+
+                updates++;
+            }
+
+            if (latitude) {
+
+                update.hasLatitude = true;
+                update.latitude = TiConvert.toDouble(value);
+
+            } else if (longitude) {
+
+                update.hasLongitude = true;
+                update.longitude = TiConvert.toDouble(value);
+
+            } else if (title) {
+
+                update.title = TiConvert.toString(value);
+
+            } else {
+
+                update.subtitle = TiConvert.toString(value);
+            }
+
+            changes++;
+
+            if (!flushRequested) {
+
+                flushRequested = true;
+                post = true;
+            }
+        }
+
+        if (post) {
+
+            // Choreographer belongs to the UI thread, the frame is requested from there
+            mainHandler.post(scheduleRunnable);
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops the pending updates. Called on the UI thread.
+     */
+    public void clear() {
+
+        synchronized (this) {
+
+            pending.clear();
+        }
+    }
+
+    public void release() {
+
+        clear();
+
+        mainHandler.removeCallbacks(scheduleRunnable);
+
+        frameScheduler.cancel();
+    }
+
+    public synchronized KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("changes", changes);
+        stats.put("updates", updates);
+        stats.put("flushes", flushes);
+        stats.put("pending", pending.size());
+
+        return stats;
+    }
+
+    private void flush() {
+
+        IdentityHashMap<AnnotationProxy, AnnotationUpdate> batch;
+
+        synchronized (this) {
+
+            flushRequested = false;
+
+            if (pending.isEmpty()) {
+
+                return;
+            }
+
+            batch = pending;
+
+            pending = spare;
+
+            flushes++;
+        }
+
+        for (Map.Entry<AnnotationProxy, AnnotationUpdate> entry : batch.entrySet()) {
+
+            flushAnnotations.add(entry.getKey());
+            flushUpdates.add(entry.getValue());
+        }
+
+        batch.clear();
+
+        spare = batch;
+
+        target.applyQueuedUpdates(flushAnnotations, flushUpdates);
+
+        flushAnnotations.clear();
+        flushUpdates.clear();
+    }
+}
@@ -0,0 +1,489 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Keeps only the annotations inside the visible bounds of the map, plus a
+ * margin, as native markers.
+ *
+ * Annotations are kept as MapboxMarker records with a primitive position in a
+ * grid of cells. On every scroll or zoom the cells of the viewport are visited,
+ * markers are created for annotations that came into view and the markers of
+ * annotations that left it are removed from the map and kept in a pool, per
+ * icon, for reuse. All methods must be called on the UI thread.
+ */
+public class AnnotationVirtualizer {
+
+    public interface MarkerFactory {
+
+        public Marker createAnnotationMarker(MapboxMarker mapboxMarker);
+
+        public void bindAnnotationMarker(Marker marker, MapboxMarker mapboxMarker);
+    }
+
+    public static final float DEFAULT_MARGIN = 0.5f;
+
+    static final double CELL_DEGREES = 1.0;
+    static final int CELLS_PER_ROW = (int) (360 / CELL_DEGREES) + 1;
+    private static final int MAX_POOLED_MARKERS_PER_STYLE = 128;
+
+    private final MapView map;
+    private final AnnotationRegistry registry;
+    private final MarkerFactory factory;
+
+    private final Handler mainHandler;
+
+    private float margin = DEFAULT_MARGIN;
+
+    private final HashMap<Integer, ArrayList<MapboxMarker>> cells = new HashMap<Integer, ArrayList<MapboxMarker>>();
+    private final IdentityHashMap<MapboxMarker, Integer> cellOf = new IdentityHashMap<MapboxMarker, Integer>();
+
+    private final IdentityHashMap<MapboxMarker, Boolean> materialized = new IdentityHashMap<MapboxMarker, Boolean>();
+    private final HashMap<String, ArrayList<Marker>> pool = new HashMap<String, ArrayList<Marker>>();
+
+    private MapboxMarker pinned;
+
+    private boolean refreshPending = false;
+
+    private final Runnable refreshRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            refreshPending = false;
+
+            refresh();
+        }
+    };
+
+    public AnnotationVirtualizer(MapView map, AnnotationRegistry registry, MarkerFactory factory) {
+
+        this.map = map;
+        this.registry = registry;
+        this.factory = factory;
+
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Sets the margin around the visible bounds, as a fraction of their size,
+     * within which annotations are kept as markers.
+     */
+    public void setMargin(float margin) {
+
+        this.margin = Math.max(0, margin);
+    }
+
+    public int getMaterializedCount() {
+
+        return materialized.size();
+    }
+
+    public void add(MapboxMarker mapboxMarker) {
+
+        if (mapboxMarker.getMarker() != null && !materialized.containsKey(mapboxMarker)) {
+
+            // a marker created before virtualization was turned on, not on the map
+            recycle(mapboxMarker, mapboxMarker.getMarker());
+
+            registry.replaceMarker(mapboxMarker, null);
+        }
+
+        index(mapboxMarker);
+
+        scheduleRefresh();
+    }
+
+    /**
+     * Must be called after the position of an annotation changed.
+     */
+    public void move(MapboxMarker mapboxMarker) {
+
+        Integer cell = cellOf.get(mapboxMarker);
+
+        if (cell == null || cell != cellKey(mapboxMarker.getLatitude(), mapboxMarker.getLongitude())) {
+
+            unindex(mapboxMarker);
+            index(mapboxMarker);
+        }
+
+        scheduleRefresh();
+    }
+
+    /**
+     * Forgets an annotation. Its marker, if any, must already have been removed
+     * from the map and is recycled.
+     */
+    public void remove(MapboxMarker mapboxMarker) {
+
+        unindex(mapboxMarker);
+
+        if (materialized.remove(mapboxMarker) != null) {
+
+            recycle(mapboxMarker, mapboxMarker.getMarker());
+
+            registry.replaceMarker(mapboxMarker, null);
+        }
+
+        if (pinned == mapboxMarker) {
+
+            pinned = null;
+        }
+    }
+
+    /**
+     * Keeps the marker of the given annotation, for example the selected one,
+     * even when it is out of view.
+     */
+    public void pin(MapboxMarker mapboxMarker) {
+
+        pinned = mapboxMarker;
+
+        if (mapboxMarker != null) {
+
+            materialize(mapboxMarker);
+        }
+    }
+
+    /**
+     * Creates the marker of an annotation and adds it to the map right away.
+     */
+    public Marker materialize(MapboxMarker mapboxMarker) {
+
+        if (materialized.containsKey(mapboxMarker) || !cellOf.containsKey(mapboxMarker)) {
+
+            return mapboxMarker.getMarker();
+        }
+
+        Marker marker = obtainMarker(mapboxMarker);
+
+        materialized.put(mapboxMarker, Boolean.TRUE);
+
+        registry.replaceMarker(mapboxMarker, marker);
+
+        map.addMarker(marker);
+
+        return marker;
+    }
+
+    /**
+     * Removes every marker created by the virtualizer from the map and detaches
+     * them from their annotations.
+     */
+    public void detach() {
+
+        ArrayList<Marker> removed = new ArrayList<Marker>(materialized.size());
+
+        for (MapboxMarker mapboxMarker : materialized.keySet()) {
+
+            removed.add(mapboxMarker.getMarker());
+
+            registry.replaceMarker(mapboxMarker, null);
+        }
+
+        if (!removed.isEmpty()) {
+
+            map.removeMarkers(removed);
+        }
+
+        materialized.clear();
+    }
+
+    /**
+     * Forgets all annotations, after the map view cleared the map.
+     */
+    public void clear() {
+
+        cells.clear();
+        cellOf.clear();
+        materialized.clear();
+        pool.clear();
+
+        pinned = null;
+    }
+
+    public void release() {
+
+        mainHandler.removeCallbacks(refreshRunnable);
+
+        clear();
+    }
+
+    public void scheduleRefresh() {
+
+        if (!refreshPending) {
+
+            refreshPending = true;
+
+            mainHandler.post(refreshRunnable);
+        }
+    }
+
+    private void refresh() {
+
+        BoundingBox box = map.getBoundingBox();
+
+        if (box == null) {
+
+            return;
+        }
+
+        double latMargin = box.getLatitudeSpan() * margin;
+        double lonMargin = box.getLongitudeSpan() * margin;
+
+        double south = Math.max(-90, box.getLatSouth() - latMargin);
+        double north = Math.min(90, box.getLatNorth() + latMargin);
+        double west = box.getLonWest() - lonMargin;
+        double east = box.getLonEast() + lonMargin;
+
+        if (east - west >= 360) {
+
+            west = -180;
+            east = 180;
+        }
+
+        IdentityHashMap<MapboxMarker, Boolean> visible = new IdentityHashMap<MapboxMarker, Boolean>();
+
+        int minRow = row(south);
+        int maxRow = row(north);
+
+        int minColumn = column(west);
+        int maxColumn = column(east);
+
+        long cellsInView = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+
+        if (cellsInView > cells.size()) {
+
+            // the viewport covers more cells than there are occupied ones
+            for (ArrayList<MapboxMarker> cell : cells.values()) {
+
+                collect(cell, south, north, west, east, visible);
+            }
+
+        } else {
+
+            for (int r = minRow; r <= maxRow; r++) {
+
+                for (int c = minColumn; c <= maxColumn; c++) {
+
+                    ArrayList<MapboxMarker> cell = cells.get(r * CELLS_PER_ROW + wrapColumn(c));
+
+                    if (cell != null) {
+
+                        collect(cell, south, north, west, east, visible);
+                    }
+                }
+            }
+        }
+
+        if (pinned != null && cellOf.containsKey(pinned)) {
+
+            visible.put(pinned, Boolean.TRUE);
+        }
+
+        ArrayList<Marker> removed = new ArrayList<Marker>();
+        ArrayList<Marker> added = new ArrayList<Marker>();
+
+        ArrayList<MapboxMarker> hidden = new ArrayList<MapboxMarker>();
+
+        for (MapboxMarker mapboxMarker : materialized.keySet()) {
+
+            if (!visible.containsKey(mapboxMarker)) {
+
+                hidden.add(mapboxMarker);
+            }
+        }
+
+        for (int i = 0; i < hidden.size(); i++) {
+
+            MapboxMarker mapboxMarker = hidden.get(i);
+
+            Marker marker = mapboxMarker.getMarker();
+
+            materialized.remove(mapboxMarker);
+
+            registry.replaceMarker(mapboxMarker, null);
+
+            removed.add(marker);
+
+            recycle(mapboxMarker, marker);
+        }
+
+        if (!removed.isEmpty()) {
+
+            map.removeMarkers(removed);
+        }
+
+        for (MapboxMarker mapboxMarker : visible.keySet()) {
+
+            if (materialized.containsKey(mapboxMarker)) {
+
+                continue;
+            }
+
+            Marker marker = obtainMarker(mapboxMarker);
+
+            materialized.put(mapboxMarker, Boolean.TRUE);
+
+            registry.replaceMarker(mapboxMarker, marker);
+
+            added.add(marker);
+        }
+
+        if (!added.isEmpty()) {
+
+            map.addMarkers(added);
+        }
+
+        if (!removed.isEmpty() || !added.isEmpty()) {
+
+            map.invalidate();
+        }
+    }
+
+    private static void collect(ArrayList<MapboxMarker> cell, double south, double north, double west, double east, IdentityHashMap<MapboxMarker, Boolean> visible) {
+
+        for (int i = 0; i < cell.size(); i++) {
+
+            MapboxMarker mapboxMarker = cell.get(i);
+
+            double latitude = mapboxMarker.getLatitude();
+            double longitude = mapboxMarker.getLongitude();
+
+            if (latitude < south || latitude > north) {
+
+                continue;
+            }
+
+            if ((longitude >= west && longitude <= east) || (longitude + 360 >= west && longitude + 360 <= east) || (longitude - 360 >= west && longitude - 360 <= east)) {
+
+                visible.put(mapboxMarker, Boolean.TRUE);
+            }
+        }
+    }
+
+    private Marker obtainMarker(MapboxMarker mapboxMarker) {
+
+        ArrayList<Marker> pooled = pool.get(styleKey(mapboxMarker));
+
+        if (pooled != null && !pooled.isEmpty()) {
+
+            Marker marker = pooled.remove(pooled.size() - 1);
+
+            factory.bindAnnotationMarker(marker, mapboxMarker);
+
+            return marker;
+        }
+
+        return factory.createAnnotationMarker(mapboxMarker);
+    }
+
+    private void recycle(MapboxMarker mapboxMarker, Marker marker) {
+
+        if (marker == null) {
+
+            return;
+        }
+
+        marker.closeToolTip();
+
+        String key = styleKey(mapboxMarker);
+
+        ArrayList<Marker> pooled = pool.get(key);
+
+        if (pooled == null) {
+
+            pooled = new ArrayList<Marker>();
+            pool.put(key, pooled);
+        }
+
+        if (pooled.size() < MAX_POOLED_MARKERS_PER_STYLE) {
+
+            pooled.add(marker);
+        }
+    }
+
+    private static String styleKey(MapboxMarker mapboxMarker) {
+
+        String key = mapboxMarker.getStyleKey();
+
+        return key != null ? key : "";
+    }
+
+    private void index(MapboxMarker mapboxMarker) {
+
+        Integer key = cellKey(mapboxMarker.getLatitude(), mapboxMarker.getLongitude());
+
+        ArrayList<MapboxMarker> cell = cells.get(key);
+
+        if (cell == null) {
+
+            cell = new ArrayList<MapboxMarker>();
+            cells.put(key, cell);
+        }
+
+        cell.add(mapboxMarker);
+
+        cellOf.put(mapboxMarker, key);
+    }
+
+    private void unindex(MapboxMarker mapboxMarker) {
+
+        Integer key = cellOf.remove(mapboxMarker);
+
+        if (key == null) {
+
+            return;
+        }
+
+        ArrayList<MapboxMarker> cell = cells.get(key);
+
+        if (cell != null) {
+
+            int i = cell.indexOf(mapboxMarker);
+
+            if (i >= 0) {
+
+                // order within a cell does not matter, swap with the last one
+                cell.set(i, cell.get(cell.size() - 1));
+                cell.remove(cell.size() - 1);
+            }
+
+            if (cell.isEmpty()) {
+
+                cells.remove(key);
+            }
+        }
+    }
+
+    static int row(double latitude) {
+
+        return (int) Math.floor((Math.max(-90, Math.min(90, latitude)) + 90) / CELL_DEGREES);
+    }
+
+    static int column(double longitude) {
+
+        return (int) Math.floor((longitude + 180) / CELL_DEGREES);
+    }
+
+    static int wrapColumn(int column) {
+
+        int columns = CELLS_PER_ROW - 1;
+
+        return ((column % columns) + columns) % columns;
+    }
+
+    static int cellKey(double latitude, double longitude) {
+
+        return row(latitude) * CELLS_PER_ROW + wrapColumn(column(longitude));
+    }
+}
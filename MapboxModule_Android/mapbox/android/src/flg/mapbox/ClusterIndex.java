@@ -0,0 +1,605 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+
+/**
+ * Hierarchical point clustering index, in the spirit of supercluster.
+ *
+ * Points are projected to spherical mercator coordinates in the [0, 1] range.
+ * Starting with the points themselves at level maxZoom + 1, every level is
+ * clustered greedily into the level below it, merging all points closer than
+ * the cluster radius (in screen pixels at that zoom). Each level keeps its
+ * clusters sorted by x, so the clusters of a viewport are found with a binary
+ * search instead of a scan.
+ *
+ * The index is immutable once built and has no Android dependencies, so it can
+ * be built on a background thread and queried from the UI thread.
+ */
+public class ClusterIndex {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private final int minZoom;
+    private final int maxZoom;
+    private final double radius;
+    private final int tileSize;
+
+    // levels[z - minZoom], for z in [minZoom, maxZoom + 1]
+    private final Level[] levels;
+
+    private int pointCount;
+
+    public static class Cluster {
+
+        public final int zoom;
+        public final int id;
+        public final int count;
+        public final double latitude;
+        public final double longitude;
+
+        Cluster(int zoom, int id, int count, double latitude, double longitude) {
+
+            this.zoom = zoom;
+            this.id = id;
+            this.count = count;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public boolean isPoint() {
+
+            return count == 1;
+        }
+    }
+
+    private static class Level {
+
+        double[] xs;
+        double[] ys;
+        int[] counts;
+
+        // children of cluster i in the level below are children[childStart[i] .. childStart[i + 1] - 1]
+        int[] childStart;
+        int[] children;
+
+        // cluster ids sorted by x, and the matching x values
+        int[] order;
+        double[] sortedXs;
+    }
+
+    public ClusterIndex(int minZoom, int maxZoom, double radius) {
+
+        this(minZoom, maxZoom, radius, DEFAULT_TILE_SIZE);
+    }
+
+    public ClusterIndex(int minZoom, int maxZoom, double radius, int tileSize) {
+
+        this.minZoom = minZoom;
+        this.maxZoom = Math.max(minZoom, maxZoom);
+        this.radius = radius;
+        this.tileSize = tileSize;
+
+        levels = new Level[this.maxZoom - minZoom + 2];
+    }
+
+    public int getMinZoom() {
+
+        return minZoom;
+    }
+
+    public int getMaxZoom() {
+
+        return maxZoom;
+    }
+
+    public int getPointCount() {
+
+        return pointCount;
+    }
+
+    /**
+     * Builds the index over the given points. The position of a point in the
+     * arrays is its id, as returned by getLeaves() and in point clusters.
+     */
+    public ClusterIndex build(double[] latitudes, double[] longitudes, int count) {
+
+        pointCount = count;
+
+        Level points = new Level();
+
+        points.xs = new double[count];
+        points.ys = new double[count];
+        points.counts = new int[count];
+
+        for (int i = 0; i < count; i++) {
+
+            points.xs[i] = lngX(longitudes[i]);
+            points.ys[i] = latY(latitudes[i]);
+            points.counts[i] = 1;
+        }
+
+        sortLevel(points);
+
+        levels[levels.length - 1] = points;
+
+        for (int z = maxZoom; z >= minZoom; z--) {
+
+            Level below = levels[z - minZoom + 1];
+
+            levels[z - minZoom] = clusterLevel(below, z);
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns the clusters, and single points, visible in the given bounds at
+     * the given zoom level.
+     */
+    public ArrayList<Cluster> getClusters(double west, double south, double east, double north, float zoom) {
+
+        ArrayList<Cluster> result = new ArrayList<Cluster>();
+
+        if (pointCount == 0) {
+
+            return result;
+        }
+
+        int z = clampZoom(zoom);
+
+        Level level = levels[z - minZoom];
+
+        double minY = latY(north);
+        double maxY = latY(south);
+
+        if (west <= east) {
+
+            collect(level, z, lngX(west), lngX(east), minY, maxY, result);
+
+        } else {
+
+            // bounds crossing the antimeridian
+            collect(level, z, lngX(west), 1, minY, maxY, result);
+            collect(level, z, 0, lngX(east), minY, maxY, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the ids of the points contained in a cluster, at most limit of them.
+     */
+    public int[] getLeaves(Cluster cluster, int limit) {
+
+        IntList leaves = new IntList(Math.min(cluster.count, limit));
+
+        collectLeaves(cluster.zoom, cluster.id, limit, leaves);
+
+        return leaves.toArray();
+    }
+
+    /**
+     * Returns the zoom level at which a cluster splits into several clusters.
+     */
+    public int getExpansionZoom(Cluster cluster) {
+
+        int z = cluster.zoom;
+        int id = cluster.id;
+
+        while (z <= maxZoom) {
+
+            Level level = levels[z - minZoom];
+
+            int start = level.childStart[id];
+            int end = level.childStart[id + 1];
+
+            if (end - start != 1) {
+
+                return z + 1;
+            }
+
+            id = level.children[start];
+            z++;
+        }
+
+        return maxZoom + 1;
+    }
+
+    private int clampZoom(float zoom) {
+
+        int z = (int) Math.floor(zoom);
+
+        return Math.max(minZoom, Math.min(maxZoom + 1, z));
+    }
+
+    private void collect(Level level, int z, double minX, double maxX, double minY, double maxY, ArrayList<Cluster> result) {
+
+        int i = lowerBound(level.sortedXs, minX);
+
+        for (; i < level.order.length && level.sortedXs[i] <= maxX; i++) {
+
+            int id = level.order[i];
+
+            double y = level.ys[id];
+
+            if (y < minY || y > maxY) {
+
+                continue;
+            }
+
+            result.add(new Cluster(z, id, level.counts[id], yLat(y), xLng(level.xs[id])));
+        }
+    }
+
+    private void collectLeaves(int z, int id, int limit, IntList leaves) {
+
+        if (leaves.size() >= limit) {
+
+            return;
+        }
+
+        if (z == maxZoom + 1) {
+
+            leaves.add(id);
+            return;
+        }
+
+        Level level = levels[z - minZoom];
+
+        for (int c = level.childStart[id]; c < level.childStart[id + 1] && leaves.size() < limit; c++) {
+
+            collectLeaves(z + 1, level.children[c], limit, leaves);
+        }
+    }
+
+    private Level clusterLevel(Level below, int zoom) {
+
+        int n = below.xs.length;
+
+        double r = radius / (tileSize * Math.pow(2, zoom));
+
+        // bucket the points of the level below into a grid of cells of the cluster
+        // radius, sorted by cell so that a cell is found with a binary search
+        long cellsPerAxis = (long) Math.ceil(1 / r) + 2;
+
+        double[] keys = new double[n];
+        int[] cellOrder = new int[n];
+
+        for (int i = 0; i < n; i++) {
+
+            keys[i] = cellKey(below.xs[i], below.ys[i], r, cellsPerAxis);
+            cellOrder[i] = i;
+        }
+
+        sortByKey(cellOrder, keys, 0, n - 1);
+
+        double[] cellKeys = new double[n];
+
+        for (int i = 0; i < n; i++) {
+
+            cellKeys[i] = keys[cellOrder[i]];
+        }
+
+        int[] parent = new int[n];
+
+        for (int i = 0; i < n; i++) {
+
+            parent[i] = -1;
+        }
+
+        DoubleList xs = new DoubleList(n);
+        DoubleList ys = new DoubleList(n);
+        IntList counts = new IntList(n);
+
+        IntList members = new IntList(16);
+
+        double r2 = r * r;
+
+        // visit points in x order, so the result does not depend on insertion order
+        for (int o = 0; o < n; o++) {
+
+            int i = below.order[o];
+
+            if (parent[i] != -1) {
+
+                continue;
+            }
+
+            int clusterId = counts.size();
+
+            double x = below.xs[i];
+            double y = below.ys[i];
+
+            long cx = (long) (x / r);
+            long cy = (long) (y / r);
+
+            members.clear();
+
+            for (long gx = cx - 1; gx <= cx + 1; gx++) {
+
+                for (long gy = cy - 1; gy <= cy + 1; gy++) {
+
+                    if (gx < 0 || gy < 0) {
+
+                        continue;
+                    }
+
+                    double key = gx * cellsPerAxis + gy;
+
+                    for (int k = lowerBound(cellKeys, key); k < n && cellKeys[k] == key; k++) {
+
+                        int j = cellOrder[k];
+
+                        if (parent[j] != -1) {
+
+                            continue;
+                        }
+
+                        double dx = below.xs[j] - x;
+                        double dy = below.ys[j] - y;
+
+                        if (dx * dx + dy * dy <= r2) {
+
+                            parent[j] = clusterId;
+                            members.add(j);
+                        }
+                    }
+                }
+            }
+
+            double wx = 0;
+            double wy = 0;
+            int count = 0;
+
+            for (int m = 0; m < members.size(); m++) {
+
+                int j = members.get(m);
+
+                wx += below.xs[j] * below.counts[j];
+                wy += below.ys[j] * below.counts[j];
+                count += below.counts[j];
+            }
+
+            xs.add(wx / count);
+            ys.add(wy / count);
+            counts.add(count);
+        }
+
+        Level level = new Level();
+
+        level.xs = xs.toArray();
+        level.ys = ys.toArray();
+        level.counts = counts.toArray();
+
+        // group the children of every cluster
+        int clusters = level.counts.length;
+
+        level.childStart = new int[clusters + 1];
+
+        for (int i = 0; i < n; i++) {
+
+            level.childStart[parent[i] + 1]++;
+        }
+
+        for (int c = 0; c < clusters; c++) {
+
+            level.childStart[c + 1] += level.childStart[c];
+        }
+
+        level.children = new int[n];
+
+        int[] fill = new int[clusters];
+
+        for (int i = 0; i < n; i++) {
+
+            int p = parent[i];
+
+            level.children[level.childStart[p] + fill[p]++] = i;
+        }
+
+        sortLevel(level);
+
+        return level;
+    }
+
+    private static double cellKey(double x, double y, double r, long cellsPerAxis) {
+
+        return (long) (x / r) * cellsPerAxis + (long) (y / r);
+    }
+
+    private static void sortLevel(Level level) {
+
+        int n = level.xs.length;
+
+        level.order = new int[n];
+
+        for (int i = 0; i < n; i++) {
+
+            level.order[i] = i;
+        }
+
+        sortByKey(level.order, level.xs, 0, n - 1);
+
+        level.sortedXs = new double[n];
+
+        for (int i = 0; i < n; i++) {
+
+            level.sortedXs[i] = level.xs[level.order[i]];
+        }
+    }
+
+    // quicksort of ids by key, without boxing
+    private static void sortByKey(int[] ids, double[] keys, int lo, int hi) {
+
+        while (lo < hi) {
+
+            double pivot = keys[ids[(lo + hi) >>> 1]];
+
+            int i = lo;
+            int j = hi;
+
+            while (i <= j) {
+
+                while (keys[ids[i]] < pivot) {
+
+                    i++;
+                }
+
+                while (keys[ids[j]] > pivot) {
+
+                    j--;
+                }
+
+                if (i <= j) {
+
+                    int tmp = ids[i];
+                    ids[i] = ids[j];
+                    ids[j] = tmp;
+
+                    i++;
+                    j--;
+                }
+            }
+
+            // recurse into the smaller part to bound the stack depth
+            if (j - lo < hi - i) {
+
+                sortByKey(ids, keys, lo, j);
+                lo = i;
+
+            } else {
+
+                sortByKey(ids, keys, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static int lowerBound(double[] values, double key) {
+
+        int lo = 0;
+        int hi = values.length;
+
+        while (lo < hi) {
+
+            int mid = (lo + hi) >>> 1;
+
+            if (values[mid] < key) {
+
+                lo = mid + 1;
+
+            } else {
+
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    public static double lngX(double lng) {
+
+        return lng / 360 + 0.5;
+    }
+
+    public static double latY(double lat) {
+
+        double sin = Math.sin(lat * Math.PI / 180);
+
+        double y = 0.5 - 0.25 * Math.log((1 + sin) / (1 - sin)) / Math.PI;
+
+        return y < 0 ? 0 : y > 1 ? 1 : y;
+    }
+
+    public static double xLng(double x) {
+
+        return (x - 0.5) * 360;
+    }
+
+    public static double yLat(double y) {
+
+        double y2 = (180 - y * 360) * Math.PI / 180;
+
+        return 360 * Math.atan(Math.exp(y2)) / Math.PI - 90;
+    }
+
+    static class IntList {
+
+        private int[] values;
+        private int size;
+
+        IntList(int capacity) {
+
+            values = new int[Math.max(4, capacity)];
+        }
+
+        void add(int value) {
+
+            if (size == values.length) {
+
+                int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+
+            values[size++] = value;
+        }
+
+        int get(int i) {
+
+            return values[i];
+        }
+
+        int size() {
+
+            return size;
+        }
+
+        void clear() {
+
+            size = 0;
+        }
+
+        int[] toArray() {
+
+            int[] result = new int[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+
+    static class DoubleList {
+
+        private double[] values;
+        private int size;
+
+        DoubleList(int capacity) {
+
+            values = new double[Math.max(4, capacity)];
+        }
+
+        void add(double value) {
+
+            if (size == values.length) {
+
+                double[] grown = new double[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+
+            values[size++] = value;
+        }
+
+        int size() {
+
+            return size;
+        }
+
+        double[] toArray() {
+
+            double[] result = new double[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+}
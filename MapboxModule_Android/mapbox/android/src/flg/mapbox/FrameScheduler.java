@@ -0,0 +1,125 @@
+package flg.mapbox;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Runs a callback once on the next UI frame, through Choreographer where
+ * available and a 16 ms handler delay before Jelly Bean. Scheduling again
+ * before the frame has no effect.
+ *
+ * Used on the UI thread.
+ */
+public class FrameScheduler {
+
+    private static final long FALLBACK_FRAME_MS = 16;
+
+    public interface Callback {
+
+        void doFrame(long frameTimeNanos);
+    }
+
+    private final Callback callback;
+
+    private boolean scheduled = false;
+
+    private Object frameCallback;
+    private Handler fallbackHandler;
+    private Runnable fallbackRunnable;
+
+    public FrameScheduler(Callback callback) {
+
+        this.callback = callback;
+    }
+
+    public void schedule() {
+
+        if (scheduled) {
+
+            return;
+        }
+
+        scheduled = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+
+            postFrameCallback();
+
+            return;
+        }
+
+        if (fallbackHandler == null) {
+
+            fallbackHandler = new Handler(Looper.getMainLooper());
+
+            fallbackRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+
+                    frame(System.nanoTime());
+                }
+            };
+        }
+
+        fallbackHandler.postDelayed(fallbackRunnable, FALLBACK_FRAME_MS);
+    }
+
+    public void cancel() {
+
+        if (!scheduled) {
+
+            return;
+        }
+
+        scheduled = false;
+
+        if (frameCallback != null) {
+
+            removeFrameCallback();
+
+        } else if (fallbackHandler != null) {
+
+            fallbackHandler.removeCallbacks(fallbackRunnable);
+        }
+    }
+
+    public boolean isScheduled() {
+
+        return scheduled;
+    }
+
+    private void frame(long frameTimeNanos) {
+
+        scheduled = false;
+
+        callback.doFrame(frameTimeNanos);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+
+        if (frameCallback == null) {
+
+            frameCallback = new Choreographer.FrameCallback() {
+
+                @Override
+                public void doFrame(long frameTimeNanos) {
+
+                    frame(frameTimeNanos);
+                }
+            };
+        }
+
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameCallback() {
+
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+}
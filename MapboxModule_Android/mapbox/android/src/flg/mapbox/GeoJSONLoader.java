@@ -0,0 +1,1139 @@
+package flg.mapbox;
+
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.kroll.KrollProxy;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.kroll.common.TiMessenger;
+import org.appcelerator.titanium.io.TiBaseFile;
+import org.appcelerator.titanium.io.TiFileFactory;
+import org.appcelerator.titanium.util.TiConvert;
+
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.mapbox.mapboxsdk.util.NetworkUtils;
+
+/**
+ * Reads a GeoJSON document from a file, a URL or a string on a background
+ * thread, one feature at a time, without building the document in memory.
+ *
+ * Points become PointBatches for the point store of the map view, lines and
+ * polygon rings become shapes with their levels of detail built. They are
+ * handed to the listener in chunks on the UI thread; at most
+ * MAX_PENDING_CHUNKS wait there, so a large document is read no faster than
+ * the map takes it.
+ *
+ * Created with the arguments of MapViewProxy.loadGeoJSON() on the JS thread.
+ * The listener is not called anymore once the load was cancelled.
+ */
+public class GeoJSONLoader implements Runnable {
+
+    private static final String LCAT = "MapboxModule";
+
+    public static final String PROPERTY_ID = "id";
+    public static final String PROPERTY_FILE = "file";
+    public static final String PROPERTY_URL = "url";
+    public static final String PROPERTY_STRING = "string";
+    public static final String PROPERTY_CHUNK_SIZE = "chunkSize";
+    public static final String PROPERTY_TITLE_PROPERTY = "titleProperty";
+    public static final String PROPERTY_SUBTITLE_PROPERTY = "subtitleProperty";
+    public static final String PROPERTY_STROKE_COLOR = "strokeColor";
+    public static final String PROPERTY_STROKE_WIDTH = "strokeWidth";
+
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    public static final String DEFAULT_STROKE_COLOR = "#555555";
+    public static final float DEFAULT_STROKE_WIDTH = 2;
+
+    private static final String STROKE = "stroke";
+    private static final String STROKE_WIDTH = "stroke-width";
+
+    private static final int MAX_PENDING_CHUNKS = 2;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    private static final int PART_NONE = 0;
+    private static final int PART_POINTS = 1;
+    private static final int PART_LINE = 2;
+    private static final int PART_RING = 3;
+
+    public interface Listener {
+
+        /**
+         * Called with the points and shapes of a chunk, either may be empty.
+         */
+        void onGeoJSONChunk(GeoJSONLoader loader, PointBatch points, ArrayList<Shape> shapes);
+
+        void onGeoJSONProgress(GeoJSONLoader loader, Progress progress);
+
+        /**
+         * Called after the last chunk was handed over.
+         */
+        void onGeoJSONComplete(GeoJSONLoader loader, Progress progress);
+
+        void onGeoJSONError(GeoJSONLoader loader, String message, Progress progress);
+    }
+
+    /**
+     * A line or a polygon ring with its levels of detail built, and the
+     * simplestyle stroke of its feature if it had one.
+     */
+    public static class Shape {
+
+        public final ShapeGeometry geometry;
+
+        public String stroke;
+        public float strokeWidth = Float.NaN;
+
+        Shape(ShapeGeometry geometry) {
+
+            this.geometry = geometry;
+        }
+    }
+
+    /**
+     * Counts of the features read so far. Read and total are in bytes for
+     * files and URLs and in characters for strings, total is -1 if unknown.
+     */
+    public static class Progress {
+
+        public long features;
+        public long points;
+        public long lines;
+        public long polygons;
+        public long shapes;
+        public long skipped;
+        public long read;
+        public long total = -1;
+        public long duration;
+
+        Progress copy() {
+
+            Progress copy = new Progress();
+
+            copy.features = features;
+            copy.points = points;
+            copy.lines = lines;
+            copy.polygons = polygons;
+            copy.shapes = shapes;
+            copy.skipped = skipped;
+            copy.read = read;
+            copy.total = total;
+            copy.duration = duration;
+
+            return copy;
+        }
+    }
+
+    private final String id;
+
+    private final TiBaseFile file;
+    private final String url;
+    private final String string;
+
+    private final int chunkSize;
+    private final String titleProperty;
+    private final String subtitleProperty;
+    private final String icon;
+    private final String pinColor;
+    private final String strokeColor;
+    private final float strokeWidth;
+
+    private volatile Listener listener;
+    private volatile boolean cancelled = false;
+
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+
+    // only used on the loader thread
+    private final Feature rootFeature = new Feature();
+    private final Feature feature = new Feature();
+
+    private double[] chunkLatitudes;
+    private double[] chunkLongitudes;
+    private String[] chunkTitles;
+    private String[] chunkSubtitles;
+    private String[] chunkIds;
+    private int chunkPoints = 0;
+    private ArrayList<Shape> chunkShapes = new ArrayList<Shape>();
+
+    private final Progress progress = new Progress();
+    private long startTime;
+    private long lastProgress;
+
+    private Counter counter;
+
+    private GeoJSONLoader(String id, TiBaseFile file, String url, String string, HashMap dict) {
+
+        this.id = id;
+        this.file = file;
+        this.url = url;
+        this.string = string;
+
+        chunkSize = Math.max(1, TiConvert.toInt(dict.get(PROPERTY_CHUNK_SIZE), DEFAULT_CHUNK_SIZE));
+
+        titleProperty = dict.get(PROPERTY_TITLE_PROPERTY) != null ? TiConvert.toString(dict, PROPERTY_TITLE_PROPERTY) : "title";
+        subtitleProperty = dict.get(PROPERTY_SUBTITLE_PROPERTY) != null ? TiConvert.toString(dict, PROPERTY_SUBTITLE_PROPERTY) : "description";
+
+        icon = dict.get(AnnotationProxy.PROPERTY_ICON) != null ? TiConvert.toString(dict, AnnotationProxy.PROPERTY_ICON) : null;
+        pinColor = dict.get(AnnotationProxy.PROPERTY_PINCOLOR) != null ? TiConvert.toString(dict, AnnotationProxy.PROPERTY_PINCOLOR) : null;
+
+        strokeColor = dict.get(PROPERTY_STROKE_COLOR) != null ? TiConvert.toString(dict, PROPERTY_STROKE_COLOR) : DEFAULT_STROKE_COLOR;
+        strokeWidth = dict.get(PROPERTY_STROKE_WIDTH) != null ? TiConvert.toFloat(dict.get(PROPERTY_STROKE_WIDTH), DEFAULT_STROKE_WIDTH) : DEFAULT_STROKE_WIDTH;
+
+        newChunk();
+    }
+
+    /**
+     * Reads the source of the document, a file path resolved like other
+     * Titanium paths, an http(s) URL or the GeoJSON itself.
+     *
+     * @return null if the dictionary holds no source
+     */
+    public static GeoJSONLoader fromDictionary(HashMap dict, KrollProxy proxy) {
+
+        String id = dict.get(PROPERTY_ID) != null ? TiConvert.toString(dict, PROPERTY_ID) : null;
+
+        if (dict.get(PROPERTY_FILE) != null) {
+
+            String path = proxy.resolveUrl(null, TiConvert.toString(dict, PROPERTY_FILE));
+
+            TiBaseFile file = TiFileFactory.createTitaniumFile(new String[] { path }, false);
+
+            return file != null ? new GeoJSONLoader(id, file, null, null, dict) : null;
+        }
+
+        if (dict.get(PROPERTY_URL) != null) {
+
+            return new GeoJSONLoader(id, null, TiConvert.toString(dict, PROPERTY_URL), null, dict);
+        }
+
+        if (dict.get(PROPERTY_STRING) != null) {
+
+            return new GeoJSONLoader(id, null, null, TiConvert.toString(dict, PROPERTY_STRING), dict);
+        }
+
+        return null;
+    }
+
+    public void start(Listener listener) {
+
+        this.listener = listener;
+
+        startTime = SystemClock.uptimeMillis();
+
+        Thread thread = new Thread(this, "MapboxModule-GeoJSON");
+
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    /**
+     * Stops reading, chunks not yet handed over are dropped. Called on the UI
+     * thread.
+     */
+    public void cancel() {
+
+        cancelled = true;
+        listener = null;
+    }
+
+    public boolean isCancelled() {
+
+        return cancelled;
+    }
+
+    /**
+     * Returns the id given to loadGeoJSON(), or null.
+     */
+    public String getId() {
+
+        return id;
+    }
+
+    /**
+     * Returns the stroke color of shapes without a stroke property.
+     */
+    public String getStrokeColor() {
+
+        return strokeColor;
+    }
+
+    /**
+     * Returns the stroke width in dp of shapes without a stroke-width
+     * property.
+     */
+    public float getStrokeWidth() {
+
+        return strokeWidth;
+    }
+
+    /**
+     * Takes back a chunk slot, called on the UI thread once a chunk was
+     * applied.
+     */
+    public void chunkApplied() {
+
+        pendingChunks.release();
+    }
+
+    @Override
+    public void run() {
+
+        URLConnection connection = null;
+        Reader source = null;
+
+        try {
+
+            if (string != null) {
+
+                progress.total = string.length();
+
+                counter = new CountingReader(new StringReader(string));
+
+                source = (Reader) counter;
+
+            } else {
+
+                InputStream stream;
+
+                if (file != null) {
+
+                    if (file.getNativeFile() != null) {
+
+                        progress.total = file.getNativeFile().length();
+                    }
+
+                    stream = file.getInputStream();
+
+                } else {
+
+                    URL location = new URL(url);
+
+                    connection = location.getProtocol().startsWith("http") ? NetworkUtils.getHttpURLConnection(location) : location.openConnection();
+
+                    progress.total = connection.getContentLength();
+
+                    stream = connection.getInputStream();
+                }
+
+                counter = new CountingInputStream(stream);
+
+                source = new InputStreamReader((InputStream) counter, "UTF-8");
+            }
+
+            JsonReader reader = new JsonReader(source);
+
+            readRoot(reader);
+
+            if (cancelled) {
+
+                return;
+            }
+
+            postChunk();
+
+            final Progress result = snapshot();
+
+            TiMessenger.postOnMain(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Listener current = listener;
+
+                    if (current != null && !cancelled) {
+
+                        current.onGeoJSONComplete(GeoJSONLoader.this, result);
+                    }
+                }
+            });
+
+        } catch (Exception e) {
+
+            // IOException, and IllegalStateException or NumberFormatException for malformed documents
+            final String message = e.getMessage() != null ? e.getMessage() : e.toString();
+
+            Log.e(LCAT, "Unable to load GeoJSON " + describeSource() + ": " + message);
+
+            if (cancelled) {
+
+                return;
+            }
+
+            // what was read before the error is still shown
+            try {
+
+                postChunk();
+
+            } catch (InterruptedException interrupted) {
+
+                return;
+            }
+
+            final Progress result = snapshot();
+
+            TiMessenger.postOnMain(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Listener current = listener;
+
+                    if (current != null && !cancelled) {
+
+                        current.onGeoJSONError(GeoJSONLoader.this, message, result);
+                    }
+                }
+            });
+
+        } finally {
+
+            if (source != null) {
+
+                try {
+
+                    source.close();
+
+                } catch (IOException e) {
+
+                    // nothing left to read
+                }
+            }
+
+            if (connection instanceof HttpURLConnection) {
+
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    /**
+     * Reads a FeatureCollection feature by feature. A single Feature or a
+     * bare geometry is read as a whole.
+     */
+    private void readRoot(JsonReader reader) throws IOException, InterruptedException {
+
+        rootFeature.reset();
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+
+            if (cancelled) {
+
+                return;
+            }
+
+            String name = reader.nextName();
+
+            if (name.equals("features") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+
+                    if (cancelled) {
+
+                        return;
+                    }
+
+                    readFeature(reader);
+                }
+
+                reader.endArray();
+
+            } else {
+
+                readMember(reader, name, rootFeature);
+            }
+        }
+
+        reader.endObject();
+
+        if (!"FeatureCollection".equals(rootFeature.type)) {
+
+            if (!"Feature".equals(rootFeature.type)) {
+
+                // the root is a geometry, its coordinates were read into the root feature
+                rootFeature.resolve(0, rootFeature.type, progress);
+            }
+
+            emit(rootFeature);
+        }
+    }
+
+    private void readFeature(JsonReader reader) throws IOException, InterruptedException {
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+
+            reader.skipValue();
+
+            progress.skipped++;
+
+            return;
+        }
+
+        feature.reset();
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+
+            readMember(reader, reader.nextName(), feature);
+        }
+
+        reader.endObject();
+
+        emit(feature);
+    }
+
+    private void readMember(JsonReader reader, String name, Feature target) throws IOException {
+
+        JsonToken token = reader.peek();
+
+        if (name.equals("type") && token == JsonToken.STRING) {
+
+            target.type = reader.nextString();
+
+        } else if (name.equals("id")) {
+
+            target.id = readScalar(reader);
+
+        } else if (name.equals("properties") && token == JsonToken.BEGIN_OBJECT) {
+
+            readProperties(reader, target);
+
+        } else if (name.equals("geometry")) {
+
+            readGeometry(reader, target);
+
+        } else if (name.equals("coordinates") && token == JsonToken.BEGIN_ARRAY) {
+
+            reader.beginArray();
+
+            readArrayRest(reader, target);
+
+        } else if (name.equals("geometries") && token == JsonToken.BEGIN_ARRAY) {
+
+            readGeometries(reader, target);
+
+        } else {
+
+            reader.skipValue();
+        }
+    }
+
+    private void readProperties(JsonReader reader, Feature target) throws IOException {
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+
+            String name = reader.nextName();
+
+            if (name.equals(titleProperty)) {
+
+                target.title = readScalar(reader);
+
+            } else if (name.equals(subtitleProperty)) {
+
+                target.subtitle = readScalar(reader);
+
+            } else if (name.equals(STROKE)) {
+
+                target.stroke = readScalar(reader);
+
+            } else if (name.equals(STROKE_WIDTH)) {
+
+                String width = readScalar(reader);
+
+                try {
+
+                    target.strokeWidth = width != null ? Float.parseFloat(width) : Float.NaN;
+
+                } catch (NumberFormatException e) {
+
+                    target.strokeWidth = Float.NaN;
+                }
+
+            } else {
+
+                reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+    }
+
+    private void readGeometry(JsonReader reader, Feature target) throws IOException {
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+
+            // a feature without a location
+            reader.skipValue();
+
+            return;
+        }
+
+        int firstPart = target.parts;
+        String type = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+
+            if (name.equals("type") && token == JsonToken.STRING) {
+
+                type = reader.nextString();
+
+            } else if (name.equals("coordinates") && token == JsonToken.BEGIN_ARRAY) {
+
+                // the type may only follow the coordinates
+                reader.beginArray();
+
+                readArrayRest(reader, target);
+
+            } else if (name.equals("geometries") && token == JsonToken.BEGIN_ARRAY) {
+
+                readGeometries(reader, target);
+
+            } else {
+
+                reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+
+        target.resolve(firstPart, type, progress);
+    }
+
+    private void readGeometries(JsonReader reader, Feature target) throws IOException {
+
+        reader.beginArray();
+
+        while (reader.hasNext()) {
+
+            readGeometry(reader, target);
+        }
+
+        reader.endArray();
+    }
+
+    /**
+     * Reads the rest of a coordinates array after its BEGIN_ARRAY, whatever
+     * its nesting. Every array of positions becomes a part of the feature,
+     * and so does a single position.
+     */
+    private void readArrayRest(JsonReader reader, Feature target) throws IOException {
+
+        if (reader.hasNext() && reader.peek() == JsonToken.NUMBER) {
+
+            target.startPart();
+
+            readPositionRest(reader, target);
+
+            target.endPart();
+
+            return;
+        }
+
+        boolean positions = false;
+
+        while (reader.hasNext()) {
+
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+
+                reader.skipValue();
+
+                continue;
+            }
+
+            reader.beginArray();
+
+            if (reader.hasNext() && reader.peek() == JsonToken.NUMBER) {
+
+                if (!positions) {
+
+                    target.startPart();
+
+                    positions = true;
+                }
+
+                readPositionRest(reader, target);
+
+            } else {
+
+                readArrayRest(reader, target);
+            }
+        }
+
+        if (positions) {
+
+            target.endPart();
+        }
+
+        reader.endArray();
+    }
+
+    private void readPositionRest(JsonReader reader, Feature target) throws IOException {
+
+        double longitude = reader.nextDouble();
+        double latitude = reader.hasNext() && reader.peek() == JsonToken.NUMBER ? reader.nextDouble() : Double.NaN;
+
+        // altitude and anything after it
+        while (reader.hasNext()) {
+
+            reader.skipValue();
+        }
+
+        reader.endArray();
+
+        if (!Double.isNaN(latitude)) {
+
+            target.add(latitude, longitude);
+        }
+    }
+
+    private static String readScalar(JsonReader reader) throws IOException {
+
+        switch (reader.peek()) {
+
+            case STRING:
+            case NUMBER:
+
+                return reader.nextString();
+
+            case BOOLEAN:
+
+                return Boolean.toString(reader.nextBoolean());
+
+            default:
+
+                reader.skipValue();
+
+                return null;
+        }
+    }
+
+    /**
+     * Appends the points and shapes of a read feature to the chunk.
+     */
+    private void emit(Feature source) throws InterruptedException {
+
+        boolean located = false;
+
+        for (int part = 0; part < source.parts; part++) {
+
+            int kind = source.partKinds[part];
+            int start = source.partStarts[part];
+            int end = part + 1 < source.parts ? source.partStarts[part + 1] : source.size;
+
+            if (kind == PART_POINTS) {
+
+                for (int i = start; i < end; i++) {
+
+                    chunkLatitudes[chunkPoints] = source.latitudes[i];
+                    chunkLongitudes[chunkPoints] = source.longitudes[i];
+                    chunkTitles[chunkPoints] = source.title;
+                    chunkSubtitles[chunkPoints] = source.subtitle;
+                    chunkIds[chunkPoints] = source.id;
+
+                    chunkPoints++;
+
+                    progress.points++;
+
+                    if (chunkPoints + chunkShapes.size() >= chunkSize) {
+
+                        postChunk();
+                    }
+                }
+
+                located |= end > start;
+
+            } else if (kind != PART_NONE && end - start >= 2) {
+
+                double[] latitudes = new double[end - start];
+                double[] longitudes = new double[end - start];
+
+                System.arraycopy(source.latitudes, start, latitudes, 0, latitudes.length);
+                System.arraycopy(source.longitudes, start, longitudes, 0, longitudes.length);
+
+                ShapeGeometry geometry = new ShapeGeometry(latitudes, longitudes, latitudes.length, kind == PART_RING);
+
+                // this thread is in the background already
+                geometry.buildLevels();
+
+                Shape shape = new Shape(geometry);
+
+                shape.stroke = source.stroke;
+                shape.strokeWidth = source.strokeWidth;
+
+                chunkShapes.add(shape);
+
+                progress.shapes++;
+
+                located = true;
+
+                if (chunkPoints + chunkShapes.size() >= chunkSize) {
+
+                    postChunk();
+                }
+            }
+        }
+
+        if (located) {
+
+            progress.features++;
+
+        } else {
+
+            progress.skipped++;
+        }
+
+        long now = SystemClock.uptimeMillis();
+
+        if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+
+            lastProgress = now;
+
+            postProgress();
+        }
+    }
+
+    /**
+     * Hands the chunk to the UI thread, waiting while MAX_PENDING_CHUNKS are
+     * not applied yet.
+     */
+    private void postChunk() throws InterruptedException {
+
+        if (chunkPoints == 0 && chunkShapes.isEmpty()) {
+
+            return;
+        }
+
+        while (!pendingChunks.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+
+            if (cancelled) {
+
+                return;
+            }
+        }
+
+        final PointBatch points = new PointBatch(chunkLatitudes, chunkLongitudes, chunkPoints);
+
+        points.titles = chunkTitles;
+        points.subtitles = chunkSubtitles;
+        points.ids = chunkIds;
+        points.icon = icon;
+        points.pinColor = pinColor;
+
+        final ArrayList<Shape> shapes = chunkShapes;
+
+        newChunk();
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Listener current = listener;
+
+                if (current != null && !cancelled) {
+
+                    current.onGeoJSONChunk(GeoJSONLoader.this, points, shapes);
+
+                } else {
+
+                    chunkApplied();
+                }
+            }
+        });
+    }
+
+    private void postProgress() {
+
+        final Progress current = snapshot();
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Listener target = listener;
+
+                if (target != null && !cancelled) {
+
+                    target.onGeoJSONProgress(GeoJSONLoader.this, current);
+                }
+            }
+        });
+    }
+
+    private Progress snapshot() {
+
+        progress.read = counter != null ? counter.getCount() : 0;
+        progress.duration = SystemClock.uptimeMillis() - startTime;
+
+        return progress.copy();
+    }
+
+    private void newChunk() {
+
+        chunkLatitudes = new double[chunkSize];
+        chunkLongitudes = new double[chunkSize];
+        chunkTitles = new String[chunkSize];
+        chunkSubtitles = new String[chunkSize];
+        chunkIds = new String[chunkSize];
+        chunkPoints = 0;
+        chunkShapes = new ArrayList<Shape>();
+    }
+
+    private String describeSource() {
+
+        if (file != null) {
+
+            return file.nativePath();
+        }
+
+        return url != null ? url : "string";
+    }
+
+    /**
+     * A feature being read, reused for every feature of a collection. Its
+     * coordinates are split into parts, each a point list, a line or a
+     * polygon ring.
+     */
+    private static class Feature {
+
+        String type;
+        String id;
+        String title;
+        String subtitle;
+        String stroke;
+        float strokeWidth;
+
+        double[] latitudes = new double[64];
+        double[] longitudes = new double[64];
+        int size;
+
+        int[] partStarts = new int[8];
+        int[] partKinds = new int[8];
+        int parts;
+
+        void reset() {
+
+            type = null;
+            id = null;
+            title = null;
+            subtitle = null;
+            stroke = null;
+            strokeWidth = Float.NaN;
+
+            size = 0;
+            parts = 0;
+        }
+
+        void startPart() {
+
+            if (parts == partStarts.length) {
+
+                int[] starts = new int[parts * 2];
+                int[] kinds = new int[parts * 2];
+
+                System.arraycopy(partStarts, 0, starts, 0, parts);
+                System.arraycopy(partKinds, 0, kinds, 0, parts);
+
+                partStarts = starts;
+                partKinds = kinds;
+            }
+
+            partStarts[parts] = size;
+            partKinds[parts] = PART_NONE;
+
+            parts++;
+        }
+
+        void endPart() {
+
+            // an empty part is dropped
+            if (partStarts[parts - 1] == size) {
+
+                parts--;
+            }
+        }
+
+        void add(double latitude, double longitude) {
+
+            if (size == latitudes.length) {
+
+                double[] grownLatitudes = new double[size * 2];
+                double[] grownLongitudes = new double[size * 2];
+
+                System.arraycopy(latitudes, 0, grownLatitudes, 0, size);
+                System.arraycopy(longitudes, 0, grownLongitudes, 0, size);
+
+                latitudes = grownLatitudes;
+                longitudes = grownLongitudes;
+            }
+
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+
+            size++;
+        }
+
+        /**
+         * Sets the kind of the parts read for a geometry of the given type.
+         * Parts of nested geometries were resolved already, parts of unknown
+         * types stay PART_NONE and are dropped.
+         */
+        void resolve(int firstPart, String geometryType, Progress progress) {
+
+            int kind;
+
+            if ("Point".equals(geometryType) || "MultiPoint".equals(geometryType)) {
+
+                kind = PART_POINTS;
+
+            } else if ("LineString".equals(geometryType) || "MultiLineString".equals(geometryType)) {
+
+                kind = PART_LINE;
+
+            } else if ("Polygon".equals(geometryType) || "MultiPolygon".equals(geometryType)) {
+
+                kind = PART_RING;
+
+            } else {
+
+                return;
+            }
+
+            boolean resolved = false;
+
+            for (int part = firstPart; part < parts; part++) {
+
+                if (partKinds[part] == PART_NONE) {
+
+                    partKinds[part] = kind;
+
+                    resolved = true;
+                }
+            }
+
+            if (resolved && kind == PART_LINE) {
+
+                progress.lines++;
+
+            } else if (resolved && kind == PART_RING) {
+
+                progress.polygons++;
+            }
+        }
+    }
+
+    private interface Counter {
+
+        long getCount();
+    }
+
+    private static class CountingInputStream extends FilterInputStream implements Counter {
+
+        private volatile long count = 0;
+
+        CountingInputStream(InputStream in) {
+
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            int b = super.read();
+
+            if (b != -1) {
+
+                count++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+
+            int read = super.read(buffer, offset, length);
+
+            if (read > 0) {
+
+                count += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long getCount() {
+
+            return count;
+        }
+    }
+
+    private static class CountingReader extends FilterReader implements Counter {
+
+        private volatile long count = 0;
+
+        CountingReader(Reader in) {
+
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            int c = super.read();
+
+            if (c != -1) {
+
+                count++;
+            }
+
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+
+            int read = super.read(buffer, offset, length);
+
+            if (read > 0) {
+
+                count += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long getCount() {
+
+            return count;
+        }
+    }
+}
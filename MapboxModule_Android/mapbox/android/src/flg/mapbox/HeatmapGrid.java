@@ -0,0 +1,209 @@
+package flg.mapbox;
+
+import java.util.Arrays;
+
+/**
+ * The summed weights of the points in the cells of one zoom level of a
+ * heatmap, keyed by the packed cell column and row.
+ *
+ * An open addressing hash map of primitives, so that a cell costs twelve
+ * bytes rather than two boxed objects and an entry. Cells whose weight drops
+ * to zero are removed again.
+ *
+ * Not synchronized, used on the heatmap worker thread.
+ */
+public class HeatmapGrid {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final float MAX_LOAD = 0.6f;
+
+    // removed weights may not add up to exactly zero
+    private static final float EPSILON = 1e-6f;
+
+    private long[] keys;
+    private float[] values;
+    private int size = 0;
+
+    private float maxValue = 0;
+
+    public HeatmapGrid() {
+
+        allocate(64);
+    }
+
+    public static long key(int column, int row) {
+
+        return ((long) column << 32) | (row & 0xffffffffL);
+    }
+
+    public int size() {
+
+        return size;
+    }
+
+    /**
+     * Returns the largest weight a cell had since the grid was created or
+     * cleared.
+     */
+    public float getMaxValue() {
+
+        return maxValue;
+    }
+
+    public float get(int column, int row) {
+
+        long key = key(column, row);
+
+        int mask = keys.length - 1;
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+
+            long current = keys[slot];
+
+            if (current == key) {
+
+                return values[slot];
+            }
+
+            if (current == EMPTY) {
+
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Adds a weight, negative to remove it again, and returns the new weight
+     * of the cell.
+     */
+    public float add(int column, int row, float weight) {
+
+        if ((size + 1) > keys.length * MAX_LOAD) {
+
+            rehash(keys.length * 2);
+        }
+
+        long key = key(column, row);
+
+        int mask = keys.length - 1;
+
+        int slot = hash(key) & mask;
+
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+
+            slot = (slot + 1) & mask;
+        }
+
+        if (keys[slot] == EMPTY) {
+
+            if (weight <= 0) {
+
+                return 0;
+            }
+
+            keys[slot] = key;
+            values[slot] = weight;
+
+            size++;
+
+        } else {
+
+            values[slot] += weight;
+
+            if (values[slot] <= EPSILON) {
+
+                removeSlot(slot);
+
+                return 0;
+            }
+        }
+
+        maxValue = Math.max(maxValue, values[slot]);
+
+        return values[slot];
+    }
+
+    public void clear() {
+
+        allocate(64);
+
+        size = 0;
+        maxValue = 0;
+    }
+
+    private void removeSlot(int slot) {
+
+        int mask = keys.length - 1;
+
+        keys[slot] = EMPTY;
+
+        size--;
+
+        // shifts the following entries of the run back, so lookups still find them
+        int next = (slot + 1) & mask;
+
+        while (keys[next] != EMPTY) {
+
+            long key = keys[next];
+            float value = values[next];
+
+            keys[next] = EMPTY;
+
+            int target = hash(key) & mask;
+
+            while (keys[target] != EMPTY) {
+
+                target = (target + 1) & mask;
+            }
+
+            keys[target] = key;
+            values[target] = value;
+
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+
+        long[] oldKeys = keys;
+        float[] oldValues = values;
+
+        allocate(capacity);
+
+        int mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+
+            if (oldKeys[i] == EMPTY) {
+
+                continue;
+            }
+
+            int slot = hash(oldKeys[i]) & mask;
+
+            while (keys[slot] != EMPTY) {
+
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+
+        keys = new long[capacity];
+        values = new float[capacity];
+
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private static int hash(long key) {
+
+        long h = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,901 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.kroll.KrollDict;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+/**
+ * The data and rendered tiles of a heatmap.
+ *
+ * Points are binned into a grid of CELL_PX pixel cells for every zoom level
+ * up to MAX_GRID_ZOOM, deeper zoom levels use the deepest grid. Adding or
+ * removing points only changes the cells they fall into and marks the tiles
+ * within the radius around them as stale.
+ *
+ * Tiles are rendered on demand on a worker thread, which also owns the grids,
+ * so data changes and renders are applied in order: the cell weights of a
+ * tile are blurred with a separable gaussian kernel into a reused buffer at
+ * half resolution, mapped through a color gradient and written into a pooled
+ * bitmap. Rendered tiles are cached by zoom, column and row with the data
+ * version they were rendered at. Stale tiles are still drawn until their
+ * replacement arrives, requests for tiles that left the viewport in the
+ * meantime are dropped.
+ *
+ * The tile cache and requests are used on the UI thread, points are added
+ * from any thread.
+ */
+public class HeatmapLayer {
+
+    public interface Listener {
+
+        /**
+         * Called on the UI thread when tiles were rendered or became stale.
+         */
+        public void onHeatmapChanged(HeatmapLayer layer);
+    }
+
+    public static final int MAX_GRID_ZOOM = 16;
+    public static final int MAX_ZOOM = 22;
+
+    public static final int TILE_SIZE = 256;
+
+    // rendered at half resolution and drawn filtered, the heat is smooth anyway
+    public static final int BITMAP_SIZE = 128;
+
+    public static final float DEFAULT_RADIUS = 20;
+    public static final float DEFAULT_OPACITY = 0.8f;
+
+    private static final int CELL_PX = 4;
+
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_IDLE_BITMAPS = 8;
+
+    // more stale tiles in a zoom level than this mark the whole level stale
+    private static final int MAX_CHANGED_TILES = 256;
+
+    private static final long ALL_ZOOMS = (1L << (MAX_ZOOM + 1)) - 1;
+
+    // zoom levels drawn from the deepest grid
+    private static final long DEEP_ZOOMS = ALL_ZOOMS & ~((1L << (MAX_GRID_ZOOM + 1)) - 1);
+
+    private static final int[] GRADIENT = buildGradient();
+
+    // from the pixels of the deepest grid to those of each zoom level
+    private static final double[] ZOOM_SCALES = new double[MAX_ZOOM + 1];
+
+    static {
+
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+
+            ZOOM_SCALES[zoom] = Math.pow(2, zoom - MAX_GRID_ZOOM);
+        }
+    }
+
+    /**
+     * A rendered tile, without a bitmap if no heat falls into it.
+     */
+    static class Tile {
+
+        final Bitmap bitmap;
+        final int version;
+
+        boolean stale = false;
+
+        Tile(Bitmap bitmap, int version) {
+
+            this.bitmap = bitmap;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The tiles drawn in the last frame, read by the worker.
+     */
+    private static class Viewport {
+
+        final int zoom;
+        final int minX;
+        final int minY;
+        final int maxX;
+        final int maxY;
+
+        Viewport(int zoom, int minX, int minY, int maxX, int maxY) {
+
+            this.zoom = zoom;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        boolean contains(int zoom, int x, int y) {
+
+            // one tile of slack, the map may have scrolled a little
+            return zoom == this.zoom && x >= minX - 1 && x <= maxX + 1 && y >= minY - 1 && y <= maxY + 1;
+        }
+    }
+
+    private final float density;
+
+    private volatile float radius = DEFAULT_RADIUS;
+    private volatile float opacity = DEFAULT_OPACITY;
+    private volatile float maxIntensity = 0;
+
+    private volatile Viewport viewport;
+
+    // worker thread
+    private final HeatmapGrid[] grids = new HeatmapGrid[MAX_GRID_ZOOM + 1];
+    private final float[] normalizations = new float[MAX_GRID_ZOOM + 1];
+    private int version = 0;
+    private int kernelRadius = -1;
+    private float[] kernel;
+    private float[] intensity;
+    private float[] blurred;
+    private boolean[] rowsWithData;
+    private final int[] pixels = new int[BITMAP_SIZE * BITMAP_SIZE];
+
+    // UI thread
+    private final LruCache<Long, Tile> tiles;
+    private final HashSet<Long> requested = new HashSet<Long>();
+    private Listener listener;
+
+    // any thread
+    private final ArrayList<Bitmap> idleBitmaps = new ArrayList<Bitmap>();
+
+    private final Handler mainHandler;
+    private final ThreadPoolExecutor worker;
+
+    private volatile long points = 0;
+    private volatile int cells = 0;
+    private volatile int rendered = 0;
+    private volatile int dropped = 0;
+    private volatile long renderNanos = 0;
+    private volatile int bitmapsCreated = 0;
+
+    public HeatmapLayer(float density) {
+
+        this.density = density;
+
+        for (int zoom = 0; zoom <= MAX_GRID_ZOOM; zoom++) {
+
+            grids[zoom] = new HeatmapGrid();
+            normalizations[zoom] = 1;
+        }
+
+        tiles = new LruCache<Long, Tile>(MAX_CACHE_BYTES) {
+
+            @Override
+            protected int sizeOf(Long key, Tile tile) {
+
+                return tile.bitmap != null ? tile.bitmap.getRowBytes() * tile.bitmap.getHeight() : 64;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Tile oldValue, Tile newValue) {
+
+                // not drawn anymore, the cache is only changed between frames
+                if (oldValue.bitmap != null && (newValue == null || newValue.bitmap != oldValue.bitmap)) {
+
+                    recycleBitmap(oldValue.bitmap);
+                }
+            }
+        };
+
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        // the thread ends when the heatmap is idle for a while
+        worker = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "MapboxModule-Heatmap");
+
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+                return thread;
+            }
+        });
+
+        worker.allowCoreThreadTimeOut(true);
+    }
+
+    public static long tileKey(int zoom, int x, int y) {
+
+        return ((long) zoom << 50) | ((long) x << 25) | y;
+    }
+
+    private static int zoomOf(long key) {
+
+        return (int) (key >>> 50);
+    }
+
+    /**
+     * @param radius in density independent pixels
+     */
+    public void setRadius(float radius) {
+
+        if (radius <= 0 || radius == this.radius) {
+
+            return;
+        }
+
+        this.radius = radius;
+
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                version++;
+
+                postInvalidated(ALL_ZOOMS, null);
+            }
+        });
+    }
+
+    public void setOpacity(float opacity) {
+
+        this.opacity = Math.max(0, Math.min(1, opacity));
+
+        mainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                notifyChanged();
+            }
+        });
+    }
+
+    public float getOpacity() {
+
+        return opacity;
+    }
+
+    /**
+     * @param maxIntensity the cell weight drawn hottest, 0 to scale each zoom
+     *            level to its hottest cell
+     */
+    public void setMaxIntensity(float maxIntensity) {
+
+        this.maxIntensity = Math.max(0, maxIntensity);
+
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                long zooms = updateNormalizations();
+
+                if (zooms != 0) {
+
+                    version++;
+
+                    postInvalidated(zooms, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds points, with a weight of 1 where weights are missing.
+     */
+    public void addPoints(final double[] latitudes, final double[] longitudes, final double[] weights, final int count) {
+
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                update(latitudes, longitudes, weights, count, 1);
+            }
+        });
+    }
+
+    /**
+     * Removes points added before, given with the same coordinates and
+     * weights.
+     */
+    public void removePoints(final double[] latitudes, final double[] longitudes, final double[] weights, final int count) {
+
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                update(latitudes, longitudes, weights, count, -1);
+            }
+        });
+    }
+
+    public void removeAllPoints() {
+
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                for (int zoom = 0; zoom <= MAX_GRID_ZOOM; zoom++) {
+
+                    grids[zoom].clear();
+                    normalizations[zoom] = 1;
+                }
+
+                points = 0;
+                cells = 0;
+
+                version++;
+
+                postInvalidated(ALL_ZOOMS, null);
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+
+        this.listener = listener;
+    }
+
+    public Listener getListener() {
+
+        return listener;
+    }
+
+    /**
+     * Sets the tiles drawn, so that requests for others are dropped. Called on
+     * the UI thread.
+     */
+    public void setViewport(int zoom, int minX, int minY, int maxX, int maxY) {
+
+        Viewport current = viewport;
+
+        if (current == null || current.zoom != zoom || current.minX != minX || current.minY != minY || current.maxX != maxX || current.maxY != maxY) {
+
+            viewport = new Viewport(zoom, minX, minY, maxX, maxY);
+        }
+    }
+
+    /**
+     * Returns the tile to draw, which may be stale, or null. Missing and
+     * stale tiles are requested from the worker. Called on the UI thread.
+     */
+    Tile getTile(int zoom, int x, int y) {
+
+        Long key = tileKey(zoom, x, y);
+
+        Tile tile = tiles.get(key);
+
+        if ((tile == null || tile.stale) && requested.add(key)) {
+
+            requestTile(key, zoom, x, y);
+        }
+
+        return tile;
+    }
+
+    /**
+     * Returns a cached tile without requesting it. Called on the UI thread.
+     */
+    Tile peekTile(int zoom, int x, int y) {
+
+        return tiles.get(tileKey(zoom, x, y));
+    }
+
+    /**
+     * Drops the rendered tiles, when the heatmap is not shown anymore. Called
+     * on the UI thread.
+     */
+    public void clearTiles() {
+
+        tiles.evictAll();
+
+        viewport = null;
+
+        synchronized (idleBitmaps) {
+
+            for (int i = 0; i < idleBitmaps.size(); i++) {
+
+                idleBitmaps.get(i).recycle();
+            }
+
+            idleBitmaps.clear();
+        }
+    }
+
+    /**
+     * Returns the counters, times in milliseconds.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("points", points);
+        stats.put("cells", cells);
+        stats.put("cachedTiles", tiles.snapshot().size());
+        stats.put("cacheSize", tiles.size());
+        stats.put("renderedTiles", rendered);
+        stats.put("droppedTiles", dropped);
+        stats.put("bitmapsCreated", bitmapsCreated);
+        stats.put("averageRenderTime", rendered > 0 ? renderNanos / 1e6 / rendered : 0);
+        stats.put("pendingTasks", worker.getQueue().size());
+
+        return stats;
+    }
+
+    private void requestTile(final Long key, final int zoom, final int x, final int y) {
+
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Viewport current = viewport;
+
+                if (current != null && !current.contains(zoom, x, y)) {
+
+                    dropped++;
+
+                    postTile(key, null);
+
+                    return;
+                }
+
+                long start = System.nanoTime();
+
+                Tile tile = render(zoom, x, y);
+
+                renderNanos += System.nanoTime() - start;
+                rendered++;
+
+                postTile(key, tile);
+            }
+        });
+    }
+
+    private void postTile(final Long key, final Tile tile) {
+
+        mainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                requested.remove(key);
+
+                if (tile != null) {
+
+                    tiles.put(key, tile);
+
+                    notifyChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks cached tiles stale, all tiles of the zoom levels in the mask or
+     * single tiles by key. Posted by the worker after the change, so tiles
+     * rendered before arrive first and are marked as well.
+     */
+    private void postInvalidated(final long zooms, final long[] keys) {
+
+        mainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (keys != null) {
+
+                    for (int i = 0; i < keys.length; i++) {
+
+                        Tile tile = tiles.get(keys[i]);
+
+                        if (tile != null) {
+
+                            tile.stale = true;
+                        }
+                    }
+                }
+
+                if (zooms != 0) {
+
+                    Iterator<Map.Entry<Long, Tile>> iterator = tiles.snapshot().entrySet().iterator();
+
+                    while (iterator.hasNext()) {
+
+                        Map.Entry<Long, Tile> entry = iterator.next();
+
+                        if ((zooms & (1L << zoomOf(entry.getKey()))) != 0) {
+
+                            entry.getValue().stale = true;
+                        }
+                    }
+                }
+
+                notifyChanged();
+            }
+        });
+    }
+
+    private void notifyChanged() {
+
+        if (listener != null) {
+
+            listener.onHeatmapChanged(this);
+        }
+    }
+
+    private void update(double[] latitudes, double[] longitudes, double[] weights, int count, int sign) {
+
+        version++;
+
+        // tiles within this many pixels of a changed cell change
+        double margin = radius * density + CELL_PX;
+
+        double mapSize = (double) TILE_SIZE * (1 << MAX_GRID_ZOOM);
+
+        HashSet<Long> changed = new HashSet<Long>();
+        int[] changedPerZoom = new int[MAX_ZOOM + 1];
+        long zooms = 0;
+
+        int applied = 0;
+
+        for (int i = 0; i < count; i++) {
+
+            double latitude = latitudes[i];
+            double longitude = longitudes[i];
+
+            double weight = weights != null && i < weights.length ? weights[i] : 1;
+
+            if (Double.isNaN(latitude) || Double.isNaN(longitude) || !(weight > 0)) {
+
+                continue;
+            }
+
+            double x = ShapeGeometry.projectX(longitude, mapSize);
+            double y = ShapeGeometry.projectY(latitude, mapSize);
+
+            for (int zoom = MAX_ZOOM; zoom >= 0; zoom--) {
+
+                double zoomX = x * ZOOM_SCALES[zoom];
+                double zoomY = y * ZOOM_SCALES[zoom];
+
+                if (zoom <= MAX_GRID_ZOOM) {
+
+                    grids[zoom].add((int) (zoomX / CELL_PX), (int) (zoomY / CELL_PX), (float) (weight * sign));
+                }
+
+                if ((zooms & (1L << zoom)) != 0) {
+
+                    continue;
+                }
+
+                int minX = Math.max(0, (int) Math.floor((zoomX - margin) / TILE_SIZE));
+                int maxX = Math.min((1 << zoom) - 1, (int) Math.floor((zoomX + margin) / TILE_SIZE));
+                int minY = Math.max(0, (int) Math.floor((zoomY - margin) / TILE_SIZE));
+                int maxY = Math.min((1 << zoom) - 1, (int) Math.floor((zoomY + margin) / TILE_SIZE));
+
+                for (int tileY = minY; tileY <= maxY; tileY++) {
+
+                    for (int tileX = minX; tileX <= maxX; tileX++) {
+
+                        if (changed.add(tileKey(zoom, tileX, tileY)) && ++changedPerZoom[zoom] > MAX_CHANGED_TILES) {
+
+                            zooms |= 1L << zoom;
+                        }
+                    }
+                }
+            }
+
+            applied++;
+        }
+
+        if (applied == 0) {
+
+            return;
+        }
+
+        points += applied * sign;
+        cells = grids[MAX_GRID_ZOOM].size();
+
+        zooms |= updateNormalizations();
+
+        long[] keys = new long[changed.size()];
+
+        int k = 0;
+
+        for (Long key : changed) {
+
+            keys[k++] = key;
+        }
+
+        postInvalidated(zooms, keys);
+    }
+
+    /**
+     * Updates the weight drawn hottest per zoom level and returns the zoom
+     * levels whose weight changed. Without a maxIntensity the hottest cell is
+     * rounded up to a power of two, so that adding points rarely changes it.
+     */
+    private long updateNormalizations() {
+
+        long zooms = 0;
+
+        for (int zoom = 0; zoom <= MAX_GRID_ZOOM; zoom++) {
+
+            float normalization = maxIntensity;
+
+            if (normalization <= 0) {
+
+                float max = grids[zoom].getMaxValue();
+
+                normalization = max <= 1 ? 1 : (float) Math.pow(2, Math.ceil(Math.log(max) / Math.log(2)));
+            }
+
+            if (normalization != normalizations[zoom]) {
+
+                normalizations[zoom] = normalization;
+
+                zooms |= zoom == MAX_GRID_ZOOM ? DEEP_ZOOMS : 1L << zoom;
+            }
+        }
+
+        return zooms;
+    }
+
+    private Tile render(int zoom, int x, int y) {
+
+        int gridZoom = Math.min(zoom, MAX_GRID_ZOOM);
+
+        HeatmapGrid grid = grids[gridZoom];
+
+        if (grid.size() == 0) {
+
+            return new Tile(null, version);
+        }
+
+        ensureKernel();
+
+        int radius = kernelRadius;
+        int size = BITMAP_SIZE + 2 * radius;
+
+        // tile pixels per bitmap pixel and per cell
+        double pixelSize = (double) TILE_SIZE / BITMAP_SIZE;
+        double cellSize = (double) CELL_PX * (1 << (zoom - gridZoom));
+
+        double originX = (double) x * TILE_SIZE;
+        double originY = (double) y * TILE_SIZE;
+        double margin = radius * pixelSize;
+
+        int firstColumn = (int) Math.floor((originX - margin) / cellSize);
+        int lastColumn = (int) Math.floor((originX + TILE_SIZE + margin) / cellSize);
+        int firstRow = (int) Math.floor((originY - margin) / cellSize);
+        int lastRow = (int) Math.floor((originY + TILE_SIZE + margin) / cellSize);
+
+        Arrays.fill(intensity, 0, size * size, 0);
+        Arrays.fill(rowsWithData, 0, size, false);
+
+        boolean empty = true;
+
+        for (int row = firstRow; row <= lastRow; row++) {
+
+            int pixelY = (int) (((row + 0.5) * cellSize - originY) / pixelSize) + radius;
+
+            if (pixelY < 0 || pixelY >= size) {
+
+                continue;
+            }
+
+            for (int column = firstColumn; column <= lastColumn; column++) {
+
+                float weight = grid.get(column, row);
+
+                if (weight <= 0) {
+
+                    continue;
+                }
+
+                int pixelX = (int) (((column + 0.5) * cellSize - originX) / pixelSize) + radius;
+
+                if (pixelX < 0 || pixelX >= size) {
+
+                    continue;
+                }
+
+                intensity[pixelY * size + pixelX] += weight;
+                rowsWithData[pixelY] = true;
+
+                empty = false;
+            }
+        }
+
+        if (empty) {
+
+            return new Tile(null, version);
+        }
+
+        int taps = 2 * radius + 1;
+
+        // horizontally, only the columns of the tile
+        for (int row = 0; row < size; row++) {
+
+            if (!rowsWithData[row]) {
+
+                continue;
+            }
+
+            int rowStart = row * size;
+            int outStart = row * BITMAP_SIZE;
+
+            for (int column = 0; column < BITMAP_SIZE; column++) {
+
+                float sum = 0;
+
+                int in = rowStart + column;
+
+                for (int tap = 0; tap < taps; tap++) {
+
+                    sum += intensity[in + tap] * kernel[tap];
+                }
+
+                blurred[outStart + column] = sum;
+            }
+        }
+
+        // vertically, skipping rows without heat
+        float scale = 255f / normalizations[gridZoom];
+
+        boolean transparent = true;
+
+        for (int row = 0; row < BITMAP_SIZE; row++) {
+
+            int outStart = row * BITMAP_SIZE;
+
+            for (int column = 0; column < BITMAP_SIZE; column++) {
+
+                float sum = 0;
+
+                for (int tap = 0; tap < taps; tap++) {
+
+                    if (rowsWithData[row + tap]) {
+
+                        sum += blurred[(row + tap) * BITMAP_SIZE + column] * kernel[tap];
+                    }
+                }
+
+                int index = (int) (sum * scale);
+
+                pixels[outStart + column] = index <= 0 ? 0 : GRADIENT[Math.min(255, index)];
+
+                transparent &= index <= 0;
+            }
+        }
+
+        if (transparent) {
+
+            return new Tile(null, version);
+        }
+
+        Bitmap bitmap = obtainBitmap();
+
+        bitmap.setPixels(pixels, 0, BITMAP_SIZE, 0, 0, BITMAP_SIZE, BITMAP_SIZE);
+
+        return new Tile(bitmap, version);
+    }
+
+    /**
+     * Builds the gaussian kernel and the buffers for the current radius, in
+     * bitmap pixels. The kernel is 1 in its center, so that a single point of
+     * weight 1 reaches an intensity of 1.
+     */
+    private void ensureKernel() {
+
+        int radius = Math.max(1, Math.round(this.radius * density * BITMAP_SIZE / TILE_SIZE));
+
+        if (radius == kernelRadius) {
+
+            return;
+        }
+
+        kernelRadius = radius;
+
+        kernel = new float[2 * radius + 1];
+
+        double sigma = radius / 2.5;
+
+        for (int i = -radius; i <= radius; i++) {
+
+            kernel[i + radius] = (float) Math.exp(-(i * i) / (2 * sigma * sigma));
+        }
+
+        int size = BITMAP_SIZE + 2 * radius;
+
+        intensity = new float[size * size];
+        blurred = new float[size * BITMAP_SIZE];
+        rowsWithData = new boolean[size];
+    }
+
+    private Bitmap obtainBitmap() {
+
+        synchronized (idleBitmaps) {
+
+            if (!idleBitmaps.isEmpty()) {
+
+                return idleBitmaps.remove(idleBitmaps.size() - 1);
+            }
+        }
+
+        bitmapsCreated++;
+
+        return Bitmap.createBitmap(BITMAP_SIZE, BITMAP_SIZE, Bitmap.Config.ARGB_8888);
+    }
+
+    private void recycleBitmap(Bitmap bitmap) {
+
+        synchronized (idleBitmaps) {
+
+            if (idleBitmaps.size() < MAX_IDLE_BITMAPS) {
+
+                idleBitmaps.add(bitmap);
+
+                return;
+            }
+        }
+
+        bitmap.recycle();
+    }
+
+    /**
+     * Transparent through blue, cyan, lime and yellow to red, unpremultiplied
+     * as setPixels() expects.
+     */
+    private static int[] buildGradient() {
+
+        float[] stops = { 0, 0.25f, 0.45f, 0.65f, 0.85f, 1 };
+        int[] colors = { 0x0000ff, 0x0000ff, 0x00ffff, 0x00ff00, 0xffff00, 0xff0000 };
+
+        int[] gradient = new int[256];
+
+        for (int i = 0; i < 256; i++) {
+
+            float t = i / 255f;
+
+            int stop = 1;
+
+            while (stop < stops.length - 1 && t > stops[stop]) {
+
+                stop++;
+            }
+
+            float f = (t - stops[stop - 1]) / (stops[stop] - stops[stop - 1]);
+
+            int from = colors[stop - 1];
+            int to = colors[stop];
+
+            int red = Math.round(((from >> 16) & 0xff) * (1 - f) + ((to >> 16) & 0xff) * f);
+            int green = Math.round(((from >> 8) & 0xff) * (1 - f) + ((to >> 8) & 0xff) * f);
+            int blue = Math.round((from & 0xff) * (1 - f) + (to & 0xff) * f);
+
+            // fades in over the first stop
+            int alpha = Math.round(Math.min(1, t / stops[1]) * 255);
+
+            gradient[i] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+        }
+
+        return gradient;
+    }
+}
@@ -0,0 +1,138 @@
+package flg.mapbox;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.mapbox.mapboxsdk.overlay.Overlay;
+import com.mapbox.mapboxsdk.views.MapView;
+import com.mapbox.mapboxsdk.views.util.Projection;
+
+/**
+ * Draws the tiles of a heatmap layer covering the viewport, at the zoom level
+ * the map tiles are drawn at.
+ *
+ * Tiles not rendered yet are requested from the layer and drawn from the
+ * quarter of their parent tile in the meantime, if that is cached.
+ *
+ * Used on the UI thread.
+ */
+public class HeatmapOverlay extends Overlay {
+
+    // a projected x coordinate to measure the scale of the projection with
+    private static final double SCALE_PROBE = 1 << 24;
+
+    private final HeatmapLayer layer;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final RectF destination = new RectF();
+    private final Rect source = new Rect();
+
+    private final double[] probe = new double[2];
+    private final double[] translated = new double[2];
+
+    public HeatmapOverlay(HeatmapLayer layer) {
+
+        super();
+
+        this.layer = layer;
+
+        // below the markers, like the path overlays of the SDK
+        setOverlayIndex(PATHOVERLAY_INDEX);
+    }
+
+    public HeatmapLayer getLayer() {
+
+        return layer;
+    }
+
+    @Override
+    protected void draw(Canvas canvas, MapView mapView, boolean shadow) {
+
+        if (shadow) {
+
+            return;
+        }
+
+        Projection projection = mapView.getProjection();
+
+        int zoom = Math.max(0, Math.min(HeatmapLayer.MAX_ZOOM, (int) projection.getZoomLevel()));
+
+        // projected pixels map linearly to canvas pixels
+        probe[0] = 0;
+        probe[1] = 0;
+
+        projection.toMapPixelsTranslated(probe, translated);
+
+        double offsetX = translated[0];
+        double offsetY = translated[1];
+
+        probe[0] = SCALE_PROBE;
+
+        projection.toMapPixelsTranslated(probe, translated);
+
+        double scale = (translated[0] - offsetX) / SCALE_PROBE;
+
+        if (scale <= 0) {
+
+            return;
+        }
+
+        Rect screen = projection.fromPixelsToProjected(projection.getScreenRect());
+
+        // the size of a tile of this zoom level in projected pixels
+        double tileSize = (double) HeatmapLayer.TILE_SIZE * (1 << (ShapeGeometry.PROJECTED_ZOOM - zoom));
+
+        int maxTile = (1 << zoom) - 1;
+
+        int minX = Math.max(0, (int) Math.floor(Math.min(screen.left, screen.right) / tileSize));
+        int maxX = Math.min(maxTile, (int) Math.floor(Math.max(screen.left, screen.right) / tileSize));
+        int minY = Math.max(0, (int) Math.floor(Math.min(screen.top, screen.bottom) / tileSize));
+        int maxY = Math.min(maxTile, (int) Math.floor(Math.max(screen.top, screen.bottom) / tileSize));
+
+        layer.setViewport(zoom, minX, minY, maxX, maxY);
+
+        paint.setAlpha(Math.round(layer.getOpacity() * 255));
+
+        double drawnSize = tileSize * scale;
+
+        int half = HeatmapLayer.BITMAP_SIZE / 2;
+
+        for (int y = minY; y <= maxY; y++) {
+
+            for (int x = minX; x <= maxX; x++) {
+
+                HeatmapLayer.Tile tile = layer.getTile(zoom, x, y);
+
+                float left = (float) (x * tileSize * scale + offsetX);
+                float top = (float) (y * tileSize * scale + offsetY);
+
+                destination.set(left, top, (float) (left + drawnSize), (float) (top + drawnSize));
+
+                if (tile != null) {
+
+                    if (tile.bitmap != null) {
+
+                        canvas.drawBitmap(tile.bitmap, null, destination, paint);
+                    }
+
+                    continue;
+                }
+
+                HeatmapLayer.Tile parent = zoom > 0 ? layer.peekTile(zoom - 1, x >> 1, y >> 1) : null;
+
+                if (parent != null && parent.bitmap != null) {
+
+                    int sourceX = (x & 1) * half;
+                    int sourceY = (y & 1) * half;
+
+                    source.set(sourceX, sourceY, sourceX + half, sourceY + half);
+
+                    canvas.drawBitmap(parent.bitmap, source, destination, paint);
+                }
+            }
+        }
+    }
+}
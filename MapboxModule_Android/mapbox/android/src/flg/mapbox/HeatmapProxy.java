@@ -0,0 +1,142 @@
+package flg.mapbox;
+
+import java.util.HashMap;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.KrollProxy;
+import org.appcelerator.kroll.annotations.Kroll;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.titanium.TiApplication;
+import org.appcelerator.titanium.util.TiConvert;
+
+/**
+ * A heatmap of weighted points, added to a map view with addHeatmap().
+ *
+ * Created with mapbox.createHeatmap({radius, opacity, maxIntensity}). Points
+ * are added and removed in batches with addPoints() and removePoints(), given
+ * as coordinates, a flat array of alternating latitudes and longitudes, or as
+ * latitudes and longitudes arrays, with optional weights.
+ */
+@Kroll.proxy(creatableInModule = MapboxModule.class, propertyAccessors = {
+        HeatmapProxy.PROPERTY_RADIUS,
+        HeatmapProxy.PROPERTY_OPACITY,
+        HeatmapProxy.PROPERTY_MAX_INTENSITY
+})
+public class HeatmapProxy extends KrollProxy {
+
+    private static final String TAG = "HeatmapProxy";
+
+    public static final String PROPERTY_RADIUS = "radius";
+    public static final String PROPERTY_OPACITY = "opacity";
+    public static final String PROPERTY_MAX_INTENSITY = "maxIntensity";
+    public static final String PROPERTY_WEIGHTS = "weights";
+
+    private HeatmapLayer layer;
+
+    public HeatmapProxy() {
+
+        super();
+
+        defaultValues.put(PROPERTY_RADIUS, HeatmapLayer.DEFAULT_RADIUS);
+        defaultValues.put(PROPERTY_OPACITY, HeatmapLayer.DEFAULT_OPACITY);
+        defaultValues.put(PROPERTY_MAX_INTENSITY, 0);
+    }
+
+    /**
+     * Returns the layer, created with the current properties on first use.
+     */
+    public synchronized HeatmapLayer getLayer() {
+
+        if (layer == null) {
+
+            layer = new HeatmapLayer(TiApplication.getInstance().getResources().getDisplayMetrics().density);
+
+            layer.setRadius(TiConvert.toFloat(getProperty(PROPERTY_RADIUS), HeatmapLayer.DEFAULT_RADIUS));
+            layer.setOpacity(TiConvert.toFloat(getProperty(PROPERTY_OPACITY), HeatmapLayer.DEFAULT_OPACITY));
+            layer.setMaxIntensity(TiConvert.toFloat(getProperty(PROPERTY_MAX_INTENSITY), 0));
+        }
+
+        return layer;
+    }
+
+    @Override
+    public void onPropertyChanged(String name, Object value) {
+
+        super.onPropertyChanged(name, value);
+
+        synchronized (this) {
+
+            if (layer == null) {
+
+                return;
+            }
+        }
+
+        if (name.equals(PROPERTY_RADIUS)) {
+
+            layer.setRadius(TiConvert.toFloat(value, HeatmapLayer.DEFAULT_RADIUS));
+
+        } else if (name.equals(PROPERTY_OPACITY)) {
+
+            layer.setOpacity(TiConvert.toFloat(value, HeatmapLayer.DEFAULT_OPACITY));
+
+        } else if (name.equals(PROPERTY_MAX_INTENSITY)) {
+
+            layer.setMaxIntensity(TiConvert.toFloat(value, 0));
+        }
+    }
+
+    @Kroll.method
+    public void addPoints(Object points) {
+
+        PointBatch batch = toBatch(points, "addPoints");
+
+        if (batch != null) {
+
+            getLayer().addPoints(batch.latitudes, batch.longitudes, toWeights(points), batch.count);
+        }
+    }
+
+    /**
+     * Removes points added before, with the same coordinates and weights.
+     */
+    @Kroll.method
+    public void removePoints(Object points) {
+
+        PointBatch batch = toBatch(points, "removePoints");
+
+        if (batch != null) {
+
+            getLayer().removePoints(batch.latitudes, batch.longitudes, toWeights(points), batch.count);
+        }
+    }
+
+    @Kroll.method
+    public void removeAllPoints() {
+
+        getLayer().removeAllPoints();
+    }
+
+    @Kroll.method
+    public KrollDict getStats() {
+
+        return getLayer().getStats();
+    }
+
+    private static PointBatch toBatch(Object points, String method) {
+
+        PointBatch batch = points instanceof HashMap ? PointBatch.fromDictionary((HashMap) points) : null;
+
+        if (batch == null) {
+
+            Log.e(TAG, "Object parameter passed to " + method + " has no coordinates or latitudes and longitudes.");
+        }
+
+        return batch;
+    }
+
+    private static double[] toWeights(Object points) {
+
+        return PointBatch.toDoubleArray(((HashMap) points).get(PROPERTY_WEIGHTS));
+    }
+}
@@ -0,0 +1,423 @@
+package flg.mapbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.common.Log;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+import com.mapbox.mapboxsdk.overlay.Icon;
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.util.MapboxUtils;
+import com.mapbox.mapboxsdk.util.NetworkUtils;
+
+/**
+ * Process-wide LRU cache of marker icon bitmaps, keyed by size, symbol, color
+ * and screen density and shared by all map views.
+ *
+ * The SDK Icon fetches and decodes its bitmap for every marker and is bound to
+ * a single marker. Here each distinct icon is fetched once on a background
+ * thread; every marker then gets an Icon wrapping the shared bitmap. Markers
+ * asking for an icon that is still loading are queued and updated when it
+ * arrives, unless they asked for another icon in the meantime. Like the SDK
+ * Icon, fetched icons are also kept in a small disk cache, so they are not
+ * downloaded again after a restart. Must be called on the UI thread.
+ */
+public class IconCache {
+
+    private static final String LCAT = "MapboxModule";
+
+    private static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final String DISK_CACHE_DIR = "mapbox_module_icons";
+    private static final long DISK_CACHE_MAX_BYTES = 1024 * 1024;
+
+    private static IconCache instance;
+
+    private final LruCache<String, Bitmap> bitmaps;
+
+    private final HashMap<String, ArrayList<WeakReference<Marker>>> pending = new HashMap<String, ArrayList<WeakReference<Marker>>>();
+
+    // the icon each marker asked for last, a late icon for an earlier request is dropped
+    private final WeakHashMap<Marker, String> requested = new WeakHashMap<Marker, String>();
+
+    // opened on the first load, null if the cache directory is not usable
+    private DiskLruCache diskCache;
+    private boolean diskCacheOpened = false;
+
+    private final Handler mainHandler;
+    private final ExecutorService executor;
+
+    public static synchronized IconCache getInstance() {
+
+        if (instance == null) {
+
+            instance = new IconCache(DEFAULT_MAX_BYTES);
+        }
+
+        return instance;
+    }
+
+    private IconCache(int maxBytes) {
+
+        bitmaps = new LruCache<String, Bitmap>(maxBytes) {
+
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "MapboxModule-Icons");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the icon of a marker, fetching the bitmap only if no other marker
+     * used the same icon before.
+     */
+    public void setIcon(Context context, Marker marker, Icon.Size size, String symbol, String color) {
+
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+
+        final String key = size.name() + "|" + symbol + "|" + color + "|" + metrics.densityDpi;
+
+        ImagePool.getInstance().cancel(marker);
+
+        Bitmap bitmap = bitmaps.get(key);
+
+        if (bitmap != null) {
+
+            requested.remove(marker);
+
+            marker.setIcon(new Icon(new BitmapDrawable(context.getResources(), bitmap)));
+
+            return;
+        }
+
+        requested.put(marker, key);
+
+        ArrayList<WeakReference<Marker>> waiting = pending.get(key);
+
+        if (waiting != null) {
+
+            waiting.add(new WeakReference<Marker>(marker));
+
+            return;
+        }
+
+        waiting = new ArrayList<WeakReference<Marker>>();
+        waiting.add(new WeakReference<Marker>(marker));
+
+        pending.put(key, waiting);
+
+        final Context appContext = context.getApplicationContext();
+        final String url = MapboxUtils.markerIconURL(appContext, size.getApiString(), symbol, color);
+
+        final Icon.Size iconSize = size;
+        final String iconSymbol = symbol;
+        final String iconColor = color;
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                final Bitmap loaded = load(appContext, url, metrics);
+
+                mainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        deliver(appContext, key, loaded, iconSize, iconSymbol, iconColor);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forgets the icon a marker is waiting for, when it gets an image.
+     */
+    public void cancel(Marker marker) {
+
+        requested.remove(marker);
+    }
+
+    /**
+     * Returns the cache counters. LruCache is synchronized, so this may be
+     * called from the JS thread.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("hits", bitmaps.hitCount());
+        stats.put("misses", bitmaps.missCount());
+        stats.put("evictions", bitmaps.evictionCount());
+        stats.put("size", bitmaps.size());
+        stats.put("maxSize", bitmaps.maxSize());
+
+        return stats;
+    }
+
+    private void deliver(Context context, String key, Bitmap bitmap, Icon.Size size, String symbol, String color) {
+
+        ArrayList<WeakReference<Marker>> waiting = pending.remove(key);
+
+        if (bitmap != null) {
+
+            bitmaps.put(key, bitmap);
+        }
+
+        if (waiting == null) {
+
+            return;
+        }
+
+        for (int i = 0; i < waiting.size(); i++) {
+
+            Marker marker = waiting.get(i).get();
+
+            if (marker == null || !key.equals(requested.get(marker))) {
+
+                continue;
+            }
+
+            requested.remove(marker);
+
+            if (bitmap != null) {
+
+                marker.setIcon(new Icon(new BitmapDrawable(context.getResources(), bitmap)));
+
+            } else {
+
+                // let the SDK retry with its own loader
+                marker.setIcon(new Icon(context, size, symbol, color));
+            }
+
+            marker.invalidate();
+        }
+    }
+
+    private Bitmap load(Context context, String url, DisplayMetrics metrics) {
+
+        DiskLruCache disk = getDiskCache(context);
+
+        String diskKey = diskKeyOf(url);
+
+        byte[] data = disk != null && diskKey != null ? readFromDisk(disk, diskKey) : null;
+
+        if (data == null) {
+
+            data = download(url);
+
+            if (data == null) {
+
+                return null;
+            }
+
+            if (disk != null && diskKey != null) {
+
+                writeToDisk(disk, diskKey, data);
+            }
+        }
+
+        BitmapFactory.Options options = BitmapUtils.getBitmapOptions(metrics);
+
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private synchronized DiskLruCache getDiskCache(Context context) {
+
+        if (!diskCacheOpened) {
+
+            diskCacheOpened = true;
+
+            try {
+
+                diskCache = DiskLruCache.open(new File(context.getCacheDir(), DISK_CACHE_DIR), 1, 1, DISK_CACHE_MAX_BYTES);
+
+            } catch (IOException e) {
+
+                Log.w(LCAT, "Unable to open the marker icon disk cache: " + e.getMessage());
+            }
+        }
+
+        return diskCache;
+    }
+
+    private static byte[] readFromDisk(DiskLruCache disk, String diskKey) {
+
+        DiskLruCache.Snapshot snapshot = null;
+
+        try {
+
+            snapshot = disk.get(diskKey);
+
+            return snapshot != null ? readFully(snapshot.getInputStream(0)) : null;
+
+        } catch (IOException e) {
+
+            return null;
+
+        } finally {
+
+            if (snapshot != null) {
+
+                snapshot.close();
+            }
+        }
+    }
+
+    private static void writeToDisk(DiskLruCache disk, String diskKey, byte[] data) {
+
+        DiskLruCache.Editor editor = null;
+
+        try {
+
+            editor = disk.edit(diskKey);
+
+            if (editor == null) {
+
+                // written by another thread right now
+                return;
+            }
+
+            OutputStream stream = editor.newOutputStream(0);
+
+            try {
+
+                stream.write(data);
+
+            } finally {
+
+                stream.close();
+            }
+
+            editor.commit();
+
+            editor = null;
+
+        } catch (IOException e) {
+
+            Log.w(LCAT, "Unable to cache marker icon: " + e.getMessage());
+
+        } finally {
+
+            if (editor != null) {
+
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-1 of the URL in hex, a valid disk cache key, or null.
+     */
+    private static String diskKeyOf(String url) {
+
+        try {
+
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+
+            StringBuilder key = new StringBuilder(hash.length * 2);
+
+            for (int i = 0; i < hash.length; i++) {
+
+                key.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+                key.append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+
+            return key.toString();
+
+        } catch (Exception e) {
+
+            return null;
+        }
+    }
+
+    private static byte[] download(String url) {
+
+        HttpURLConnection connection = null;
+
+        try {
+
+            connection = NetworkUtils.getHttpURLConnection(new URL(url));
+
+            return readFully(connection.getInputStream());
+
+        } catch (Exception e) {
+
+            Log.w(LCAT, "Unable to load marker icon " + url + ": " + e.getMessage());
+
+            return null;
+
+        } finally {
+
+            if (connection != null) {
+
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+
+        try {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            byte[] buffer = new byte[8192];
+
+            int read;
+
+            while ((read = stream.read(buffer)) != -1) {
+
+                bytes.write(buffer, 0, read);
+            }
+
+            return bytes.toByteArray();
+
+        } finally {
+
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package flg.mapbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.titanium.TiBlob;
+import org.appcelerator.titanium.view.TiDrawableReference;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.util.NetworkUtils;
+
+/**
+ * Process-wide pool of decoded annotation images, keyed by the image source
+ * (the URL, or the content of a blob without one) and screen density and
+ * shared by all map views.
+ *
+ * Every distinct image is read and decoded once on a background thread,
+ * subsampled to the size it is drawn at. Decoded bitmaps live in a size
+ * bounded LRU cache; evicted bitmaps are kept as decode targets (inBitmap)
+ * for the next image, but only once no marker draws them anymore. Markers
+ * asking for an image that is still loading are queued and updated when it
+ * arrives, unless they asked for another image or an icon in the meantime.
+ * Must be called on the UI thread.
+ */
+public class ImagePool {
+
+    private static final String LCAT = "MapboxModule";
+
+    private static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_REUSABLE_BYTES = 2 * 1024 * 1024;
+
+    // images are subsampled until they fit in a square of this size
+    private static final int MAX_IMAGE_DP = 128;
+
+    private static ImagePool instance;
+
+    private final LruCache<String, Entry> entries;
+
+    // evicted entries, reusable once all drawables using them are gone
+    private final ArrayList<Entry> retired = new ArrayList<Entry>();
+
+    private final HashMap<String, ArrayList<WeakReference<Marker>>> pending = new HashMap<String, ArrayList<WeakReference<Marker>>>();
+
+    // the image each marker asked for last, a late image for an earlier request is dropped
+    private final WeakHashMap<Marker, String> requested = new WeakHashMap<Marker, String>();
+
+    private final Handler mainHandler;
+    private final ExecutorService executor;
+
+    private int decoded = 0;
+    private int reused = 0;
+
+    public static synchronized ImagePool getInstance() {
+
+        if (instance == null) {
+
+            instance = new ImagePool(DEFAULT_MAX_BYTES);
+        }
+
+        return instance;
+    }
+
+    private ImagePool(int maxBytes) {
+
+        entries = new LruCache<String, Entry>(maxBytes) {
+
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+
+                return entry.bitmap.getRowBytes() * entry.bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+
+                if (evicted) {
+
+                    retire(oldValue);
+                }
+            }
+        };
+
+        mainHandler = new Handler(Looper.getMainLooper());
+
+        executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "MapboxModule-Images");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the key an image is pooled under, or null if the image source is
+     * not supported.
+     */
+    public static String keyOf(Object source, TiDrawableReference image, Context context) {
+
+        if (image == null || image.isTypeNull()) {
+
+            return null;
+        }
+
+        String url = image.getUrl();
+
+        if (url == null) {
+
+            // blobs without a file are shared by their content
+            url = source instanceof TiBlob ? contentKeyOf((TiBlob) source) : null;
+
+            if (url == null) {
+
+                return null;
+            }
+        }
+
+        return url + "|" + context.getResources().getDisplayMetrics().densityDpi;
+    }
+
+    /**
+     * Returns a key of the length and SHA-1 digest of the data of a blob, or
+     * null if its data cannot be read.
+     */
+    private static String contentKeyOf(TiBlob blob) {
+
+        byte[] data = blob.getBytes();
+
+        if (data == null) {
+
+            return null;
+        }
+
+        MessageDigest digest;
+
+        try {
+
+            digest = MessageDigest.getInstance("SHA-1");
+
+        } catch (NoSuchAlgorithmException e) {
+
+            return null;
+        }
+
+        byte[] hash = digest.digest(data);
+
+        StringBuilder key = new StringBuilder(16 + hash.length * 2);
+
+        key.append("blob:").append(data.length).append(':');
+
+        for (int i = 0; i < hash.length; i++) {
+
+            key.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            key.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Sets the image of a marker, decoding it only if no other marker used the
+     * same image before.
+     */
+    public void setImage(Context context, Marker marker, String key, final TiDrawableReference image) {
+
+        IconCache.getInstance().cancel(marker);
+
+        Entry entry = entries.get(key);
+
+        if (entry != null) {
+
+            requested.remove(marker);
+
+            marker.setMarker(entry.newDrawable(context));
+
+            return;
+        }
+
+        requested.put(marker, key);
+
+        ArrayList<WeakReference<Marker>> waiting = pending.get(key);
+
+        if (waiting != null) {
+
+            waiting.add(new WeakReference<Marker>(marker));
+
+            return;
+        }
+
+        waiting = new ArrayList<WeakReference<Marker>>();
+        waiting.add(new WeakReference<Marker>(marker));
+
+        pending.put(key, waiting);
+
+        final Context appContext = context.getApplicationContext();
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        final String imageKey = key;
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                final Bitmap loaded = load(image, metrics);
+
+                mainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        deliver(appContext, imageKey, loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forgets the image a marker is waiting for, when it gets another icon.
+     */
+    public void cancel(Marker marker) {
+
+        requested.remove(marker);
+    }
+
+    /**
+     * Returns the pool counters. May be called from the JS thread.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("hits", entries.hitCount());
+        stats.put("misses", entries.missCount());
+        stats.put("evictions", entries.evictionCount());
+        stats.put("size", entries.size());
+        stats.put("maxSize", entries.maxSize());
+
+        synchronized (retired) {
+
+            stats.put("decoded", decoded);
+            stats.put("reused", reused);
+            stats.put("retired", retired.size());
+        }
+
+        return stats;
+    }
+
+    private void deliver(Context context, String key, Bitmap bitmap) {
+
+        ArrayList<WeakReference<Marker>> waiting = pending.remove(key);
+
+        if (bitmap == null) {
+
+            // markers keep their default pin
+            return;
+        }
+
+        Entry entry = new Entry(bitmap);
+
+        entries.put(key, entry);
+
+        if (waiting == null) {
+
+            return;
+        }
+
+        for (int i = 0; i < waiting.size(); i++) {
+
+            Marker marker = waiting.get(i).get();
+
+            if (marker == null || !key.equals(requested.get(marker))) {
+
+                continue;
+            }
+
+            requested.remove(marker);
+
+            marker.setMarker(entry.newDrawable(context));
+            marker.invalidate();
+        }
+    }
+
+    private void retire(Entry entry) {
+
+        synchronized (retired) {
+
+            if (!entry.bitmap.isMutable()) {
+
+                return;
+            }
+
+            retired.add(entry);
+
+            int bytes = 0;
+
+            for (int i = retired.size() - 1; i >= 0; i--) {
+
+                Entry old = retired.get(i);
+
+                bytes += old.bitmap.getRowBytes() * old.bitmap.getHeight();
+
+                // the oldest ones beyond the budget are left to the garbage collector
+                if (bytes > MAX_REUSABLE_BYTES) {
+
+                    retired.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a retired bitmap no marker draws anymore that can be decoded into,
+     * or returns null.
+     */
+    private Bitmap takeReusable(BitmapFactory.Options options) {
+
+        synchronized (retired) {
+
+            for (int i = 0; i < retired.size(); i++) {
+
+                Entry entry = retired.get(i);
+
+                if (entry.isUsed() || !canReuse(entry.bitmap, options)) {
+
+                    continue;
+                }
+
+                retired.remove(i);
+
+                reused++;
+
+                return entry.bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean canReuse(Bitmap bitmap, BitmapFactory.Options options) {
+
+        if (bitmap.isRecycled()) {
+
+            return false;
+        }
+
+        int width = options.outWidth / options.inSampleSize;
+        int height = options.outHeight / options.inSampleSize;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+
+            return bitmap.getAllocationByteCount() >= width * height * 4;
+        }
+
+        // older versions only decode into a bitmap of the same size, without subsampling
+        return options.inSampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+
+    private Bitmap load(TiDrawableReference image, DisplayMetrics metrics) {
+
+        byte[] data = read(image);
+
+        if (data == null) {
+
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        options.inJustDecodeBounds = true;
+
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+
+            Log.w(LCAT, "Unable to decode annotation image " + image.getUrl());
+
+            return null;
+        }
+
+        int maxSize = Math.round(MAX_IMAGE_DP * metrics.density);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+
+        while (options.outWidth / (options.inSampleSize * 2) >= maxSize || options.outHeight / (options.inSampleSize * 2) >= maxSize) {
+
+            options.inSampleSize *= 2;
+        }
+
+        options.inScaled = false;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+
+            options.inMutable = true;
+            options.inBitmap = takeReusable(options);
+        }
+
+        Bitmap bitmap = null;
+
+        try {
+
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        } catch (IllegalArgumentException e) {
+
+            // the reused bitmap did not fit after all
+            options.inBitmap = null;
+
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        if (bitmap != null) {
+
+            bitmap.setDensity(metrics.densityDpi);
+
+            synchronized (retired) {
+
+                decoded++;
+            }
+        }
+
+        return bitmap;
+    }
+
+    private static byte[] read(TiDrawableReference image) {
+
+        HttpURLConnection connection = null;
+
+        try {
+
+            InputStream stream;
+
+            if (image.isNetworkUrl()) {
+
+                connection = NetworkUtils.getHttpURLConnection(new URL(image.getUrl()));
+
+                stream = connection.getInputStream();
+
+            } else {
+
+                stream = image.getInputStream();
+            }
+
+            if (stream == null) {
+
+                Log.w(LCAT, "Unable to open annotation image " + image.getUrl());
+
+                return null;
+            }
+
+            try {
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                byte[] buffer = new byte[8192];
+
+                int read;
+
+                while ((read = stream.read(buffer)) != -1) {
+
+                    bytes.write(buffer, 0, read);
+                }
+
+                return bytes.toByteArray();
+
+            } finally {
+
+                stream.close();
+            }
+
+        } catch (Exception e) {
+
+            Log.w(LCAT, "Unable to load annotation image " + image.getUrl() + ": " + e.getMessage());
+
+            return null;
+
+        } finally {
+
+            if (connection != null) {
+
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * A decoded bitmap and the drawables handed out for it. A marker keeps its
+     * drawable, so the bitmap is in use as long as one of them is reachable.
+     */
+    private static class Entry {
+
+        final Bitmap bitmap;
+
+        private final ArrayList<WeakReference<BitmapDrawable>> drawables = new ArrayList<WeakReference<BitmapDrawable>>();
+
+        private int pruneAt = 64;
+
+        Entry(Bitmap bitmap) {
+
+            this.bitmap = bitmap;
+        }
+
+        synchronized BitmapDrawable newDrawable(Context context) {
+
+            BitmapDrawable drawable = new BitmapDrawable(context.getResources(), bitmap);
+
+            drawables.add(new WeakReference<BitmapDrawable>(drawable));
+
+            if (drawables.size() >= pruneAt) {
+
+                isUsed();
+
+                pruneAt = Math.max(64, drawables.size() * 2);
+            }
+
+            return drawable;
+        }
+
+        synchronized boolean isUsed() {
+
+            for (int i = drawables.size() - 1; i >= 0; i--) {
+
+                if (drawables.get(i).get() == null) {
+
+                    drawables.remove(i);
+                }
+            }
+
+            return !drawables.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,998 @@
+package flg.mapbox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.common.Log;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+
+/**
+ * Read-only access to the tiles of an MBTiles file.
+ *
+ * On the first read, an index from zoom/x/y to the row holding the tile data
+ * is built on a background thread with a single scan of the tile table and
+ * kept in two sorted primitive arrays; tiles are read by their coordinates
+ * until it is ready. Tiles are then looked up with a binary search, missing
+ * tiles without touching the database, and read by rowid. Statements are
+ * compiled once and pooled, tile data is read into reusable buffers. Read
+ * latency and throughput are counted. All methods are thread safe.
+ *
+ * Archives are shared by all map views through open(). Only the metadata is
+ * read up front; the database is opened on the first tile read and closed
+ * again once no tile was read for IDLE_TIMEOUT_MS, keeping its index.
+ */
+public class MBTilesArchive {
+
+    private static final String LCAT = "MapboxModule";
+
+    private static final int MAX_IDLE_STATEMENTS = 4;
+    private static final int MAX_IDLE_BUFFERS = 8;
+
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    private static final HashMap<String, MBTilesArchive> archives = new HashMap<String, MBTilesArchive>();
+    private static final ArrayList<MBTilesArchive> openArchives = new ArrayList<MBTilesArchive>();
+    private static final ArrayList<TileBuffer> idleBuffers = new ArrayList<TileBuffer>();
+
+    private static final String COORDINATE_READ_SQL = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static ScheduledExecutorService idleCloser;
+    private static boolean idleCheckScheduled = false;
+
+    private static ExecutorService indexer;
+
+    private final File file;
+    private final long fileLength;
+    private final long fileModified;
+
+    // open while tiles are read, guarded by this
+    private SQLiteDatabase database;
+    private int activeReads = 0;
+    private long lastRead = 0;
+
+    private final String name;
+    private final String description;
+    private final String attribution;
+    private final float minZoom;
+    private final float maxZoom;
+    private final BoundingBox bounds;
+    private final LatLng center;
+
+    // built in the background on the first read, null until then
+    private volatile TileIndex index;
+
+    private final Object indexLock = new Object();
+    private boolean indexing = false;
+
+    // statements reading by coordinates and by rowid, guarded by idleStatements
+    private final ArrayList<SQLiteStatement> idleStatements = new ArrayList<SQLiteStatement>();
+    private final ArrayList<SQLiteStatement> idleRowStatements = new ArrayList<SQLiteStatement>();
+
+    private final Object statsLock = new Object();
+
+    private long reads = 0;
+    private long found = 0;
+    private long skipped = 0;
+    private long bytesRead = 0;
+    private long readNanos = 0;
+    private long maxReadNanos = 0;
+    private long indexNanos = 0;
+    private long opens = 0;
+
+    /**
+     * Reads the metadata of an MBTiles file, without keeping it open.
+     *
+     * @throws SQLiteException if the file is not a readable MBTiles database
+     */
+    public MBTilesArchive(File file) {
+
+        this.file = file;
+
+        fileLength = file.length();
+        fileModified = file.lastModified();
+
+        SQLiteDatabase db = openDatabase(file);
+
+        try {
+
+            name = metadata(db, "name");
+            description = metadata(db, "description");
+            attribution = metadata(db, "attribution");
+
+            minZoom = parseFloat(metadata(db, "minzoom"), 0);
+            maxZoom = parseFloat(metadata(db, "maxzoom"), 22);
+
+            bounds = parseBounds(metadata(db, "bounds"));
+            center = parseCenter(metadata(db, "center"), bounds);
+
+        } finally {
+
+            db.close();
+        }
+    }
+
+    /**
+     * Returns the archive of a file shared by all map views, reading its
+     * metadata unless it was read before and the file did not change since.
+     *
+     * @throws SQLiteException if the file is not a readable MBTiles database
+     */
+    public static MBTilesArchive open(File file) {
+
+        String path = file.getAbsolutePath();
+
+        synchronized (archives) {
+
+            MBTilesArchive archive = archives.get(path);
+
+            if (archive != null && archive.fileLength == file.length() && archive.fileModified == file.lastModified()) {
+
+                return archive;
+            }
+
+            // a replaced archive still open for older layers closes when idle
+            archive = new MBTilesArchive(file);
+
+            archives.put(path, archive);
+
+            return archive;
+        }
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    public String getName() {
+
+        return name;
+    }
+
+    public String getDescription() {
+
+        return description;
+    }
+
+    public String getAttribution() {
+
+        return attribution;
+    }
+
+    public float getMinZoom() {
+
+        return minZoom;
+    }
+
+    public float getMaxZoom() {
+
+        return maxZoom;
+    }
+
+    public BoundingBox getBounds() {
+
+        return bounds;
+    }
+
+    public LatLng getCenter() {
+
+        return center;
+    }
+
+    /**
+     * Returns a buffer to read tiles of any archive into. Give it back with
+     * recycleBuffer() once its data is decoded.
+     */
+    public static TileBuffer obtainBuffer() {
+
+        synchronized (idleBuffers) {
+
+            if (!idleBuffers.isEmpty()) {
+
+                return idleBuffers.remove(idleBuffers.size() - 1);
+            }
+        }
+
+        return new TileBuffer();
+    }
+
+    public static void recycleBuffer(TileBuffer buffer) {
+
+        buffer.length = 0;
+
+        synchronized (idleBuffers) {
+
+            if (idleBuffers.size() < MAX_IDLE_BUFFERS) {
+
+                idleBuffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads the data of a tile, in XYZ (slippy map) coordinates.
+     *
+     * @return false if the archive has no such tile
+     */
+    public boolean readTile(int z, int x, int y, TileBuffer buffer) {
+
+        SQLiteDatabase db = beginRead();
+
+        if (db == null) {
+
+            return false;
+        }
+
+        try {
+
+            return readTile(db, z, x, y, buffer);
+
+        } finally {
+
+            endRead();
+        }
+    }
+
+    /**
+     * Returns whether tiles of the given zoom level and tile bounds may be in
+     * the archive, judged by its metadata only.
+     */
+    public boolean covers(int z, double north, double east, double south, double west) {
+
+        if (z < Math.floor(minZoom) || z > Math.ceil(maxZoom)) {
+
+            return false;
+        }
+
+        if (south >= bounds.getLatNorth() || north <= bounds.getLatSouth()) {
+
+            return false;
+        }
+
+        if (bounds.getLonWest() > bounds.getLonEast()) {
+
+            // bounds crossing the antimeridian
+            return east > bounds.getLonWest() || west < bounds.getLonEast();
+        }
+
+        return east > bounds.getLonWest() && west < bounds.getLonEast();
+    }
+
+    private boolean readTile(SQLiteDatabase db, int z, int x, int y, TileBuffer buffer) {
+
+        TileIndex current = index;
+
+        if (current == null) {
+
+            startIndexing();
+        }
+
+        boolean readByRow = current != null && current.keys != null;
+
+        long start = System.nanoTime();
+
+        // MBTiles rows are counted from the south (TMS)
+        int row = (1 << z) - 1 - y;
+
+        int position = -1;
+
+        if (readByRow) {
+
+            position = Arrays.binarySearch(current.keys, key(z, x, row));
+
+            if (position < 0) {
+
+                synchronized (statsLock) {
+
+                    skipped++;
+                }
+
+                return false;
+            }
+        }
+
+        ArrayList<SQLiteStatement> pool = readByRow ? idleRowStatements : idleStatements;
+
+        SQLiteStatement statement = obtainStatement(db, readByRow ? current.readSql : COORDINATE_READ_SQL, pool);
+
+        if (statement == null) {
+
+            return false;
+        }
+
+        boolean read;
+
+        try {
+
+            if (readByRow) {
+
+                statement.bindLong(1, current.rows[position]);
+
+            } else {
+
+                statement.bindLong(1, z);
+                statement.bindLong(2, x);
+                statement.bindLong(3, row);
+            }
+
+            read = read(statement, buffer);
+
+        } finally {
+
+            statement.clearBindings();
+
+            recycleStatement(statement, pool);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        synchronized (statsLock) {
+
+            reads++;
+            readNanos += elapsed;
+            maxReadNanos = Math.max(maxReadNanos, elapsed);
+
+            if (read) {
+
+                found++;
+                bytesRead += buffer.length;
+            }
+        }
+
+        return read;
+    }
+
+    /**
+     * Returns the read counters. Times are in milliseconds, throughput in
+     * bytes per second of read time.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        synchronized (statsLock) {
+
+            stats.put("reads", reads);
+            stats.put("tilesRead", found);
+            stats.put("tilesSkipped", skipped);
+            stats.put("bytesRead", bytesRead);
+            stats.put("averageReadTime", reads > 0 ? readNanos / 1e6 / reads : 0);
+            stats.put("maxReadTime", maxReadNanos / 1e6);
+            stats.put("throughput", readNanos > 0 ? bytesRead * 1e9 / readNanos : 0);
+            stats.put("readTime", readNanos / 1e6);
+            stats.put("indexTime", indexNanos / 1e6);
+            stats.put("opens", opens);
+        }
+
+        TileIndex current = index;
+
+        stats.put("indexedTiles", current != null && current.keys != null ? current.keys.length : 0);
+        stats.put("open", isOpen());
+
+        return stats;
+    }
+
+    public synchronized boolean isOpen() {
+
+        return database != null;
+    }
+
+    /**
+     * Closes the database unless tiles are being read. It is opened again on
+     * the next read.
+     *
+     * @return true if the database is closed
+     */
+    public boolean close() {
+
+        return closeIfIdle(0);
+    }
+
+    private boolean closeIfIdle(long idleMs) {
+
+        synchronized (this) {
+
+            if (database == null) {
+
+                return true;
+            }
+
+            if (activeReads > 0 || SystemClock.uptimeMillis() - lastRead < idleMs) {
+
+                return false;
+            }
+
+            // no statement is in use without an active read
+            synchronized (idleStatements) {
+
+                for (int i = 0; i < idleStatements.size(); i++) {
+
+                    idleStatements.get(i).close();
+                }
+
+                for (int i = 0; i < idleRowStatements.size(); i++) {
+
+                    idleRowStatements.get(i).close();
+                }
+
+                idleStatements.clear();
+                idleRowStatements.clear();
+            }
+
+            database.close();
+            database = null;
+        }
+
+        synchronized (archives) {
+
+            openArchives.remove(this);
+        }
+
+        return true;
+    }
+
+    private SQLiteDatabase beginRead() {
+
+        boolean opened = false;
+
+        SQLiteDatabase db;
+
+        synchronized (this) {
+
+            if (database == null) {
+
+                try {
+
+                    database = openDatabase(file);
+
+                } catch (SQLiteException e) {
+
+                    Log.w(LCAT, "Unable to open " + file.getName() + ": " + e.getMessage());
+
+                    return null;
+                }
+
+                opened = true;
+            }
+
+            activeReads++;
+            lastRead = SystemClock.uptimeMillis();
+
+            db = database;
+        }
+
+        if (opened) {
+
+            synchronized (statsLock) {
+
+                opens++;
+            }
+
+            synchronized (archives) {
+
+                openArchives.add(this);
+
+                scheduleIdleCheck();
+            }
+        }
+
+        return db;
+    }
+
+    private synchronized void endRead() {
+
+        activeReads--;
+        lastRead = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Checks the open archives for idle ones while any is open. Called with
+     * the archives lock held.
+     */
+    private static void scheduleIdleCheck() {
+
+        if (idleCheckScheduled) {
+
+            return;
+        }
+
+        if (idleCloser == null) {
+
+            idleCloser = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "MapboxModule-MBTiles");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        }
+
+        idleCheckScheduled = true;
+
+        idleCloser.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                MBTilesArchive[] open;
+
+                synchronized (archives) {
+
+                    idleCheckScheduled = false;
+
+                    open = openArchives.toArray(new MBTilesArchive[openArchives.size()]);
+                }
+
+                for (MBTilesArchive archive : open) {
+
+                    archive.closeIfIdle(IDLE_TIMEOUT_MS);
+                }
+
+                synchronized (archives) {
+
+                    if (!openArchives.isEmpty()) {
+
+                        scheduleIdleCheck();
+                    }
+                }
+            }
+
+        }, IDLE_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    private static SQLiteDatabase openDatabase(File file) {
+
+        return SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+    }
+
+    private boolean read(SQLiteStatement statement, TileBuffer buffer) {
+
+        ParcelFileDescriptor descriptor = null;
+
+        try {
+
+            // the blob is handed over in shared memory, without a cursor window
+            descriptor = statement.simpleQueryForBlobFileDescriptor();
+
+            if (descriptor == null) {
+
+                return false;
+            }
+
+            buffer.readFrom(descriptor);
+
+            return buffer.length > 0;
+
+        } catch (SQLiteDoneException e) {
+
+            // no such tile
+            return false;
+
+        } catch (Exception e) {
+
+            Log.w(LCAT, "Unable to read tile from " + file.getName() + ": " + e.getMessage());
+
+            return false;
+
+        } finally {
+
+            if (descriptor != null) {
+
+                try {
+
+                    descriptor.close();
+
+                } catch (IOException e) {
+
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private SQLiteStatement obtainStatement(SQLiteDatabase db, String sql, ArrayList<SQLiteStatement> pool) {
+
+        synchronized (idleStatements) {
+
+            if (!pool.isEmpty()) {
+
+                return pool.remove(pool.size() - 1);
+            }
+        }
+
+        try {
+
+            return db.compileStatement(sql);
+
+        } catch (SQLiteException e) {
+
+            Log.w(LCAT, "Unable to read tiles from " + file.getName() + ": " + e.getMessage());
+
+            return null;
+        }
+    }
+
+    private void recycleStatement(SQLiteStatement statement, ArrayList<SQLiteStatement> pool) {
+
+        synchronized (idleStatements) {
+
+            if (pool.size() < MAX_IDLE_STATEMENTS) {
+
+                pool.add(statement);
+
+                return;
+            }
+        }
+
+        statement.close();
+    }
+
+    /**
+     * Starts building the index on the index thread, unless it is built or
+     * being built. Reads do not wait for it.
+     */
+    private void startIndexing() {
+
+        synchronized (indexLock) {
+
+            if (indexing) {
+
+                return;
+            }
+
+            indexing = true;
+        }
+
+        getIndexer().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                // a read keeps the database open while it is scanned
+                SQLiteDatabase db = beginRead();
+
+                if (db == null) {
+
+                    // tried again on the next read
+                    synchronized (indexLock) {
+
+                        indexing = false;
+                    }
+
+                    return;
+                }
+
+                try {
+
+                    long start = System.nanoTime();
+
+                    index = createIndex(db);
+
+                    synchronized (statsLock) {
+
+                        indexNanos = System.nanoTime() - start;
+                    }
+
+                } finally {
+
+                    endRead();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the index of the tiles, without keys if the tiles cannot be
+     * read by rowid.
+     */
+    private TileIndex createIndex(SQLiteDatabase db) {
+
+        String scanSql = null;
+        String readSql = null;
+
+        if (isTable(db, "map") && isTable(db, "images")) {
+
+            // deduplicated layout, tiles is a view joining both tables
+            scanSql = "SELECT map.zoom_level, map.tile_column, map.tile_row, images.rowid FROM map JOIN images ON images.tile_id = map.tile_id ORDER BY map.zoom_level, map.tile_column, map.tile_row";
+            readSql = "SELECT tile_data FROM images WHERE rowid = ?";
+
+        } else if (isTable(db, "tiles")) {
+
+            scanSql = "SELECT zoom_level, tile_column, tile_row, rowid FROM tiles ORDER BY zoom_level, tile_column, tile_row";
+            readSql = "SELECT tile_data FROM tiles WHERE rowid = ?";
+        }
+
+        TileIndex built = scanSql != null ? scan(db, scanSql, readSql) : null;
+
+        return built != null ? built : new TileIndex(null, null, null);
+    }
+
+    private TileIndex scan(SQLiteDatabase db, String sql, String readSql) {
+
+        Cursor cursor = null;
+
+        try {
+
+            cursor = db.rawQuery(sql, null);
+
+            int count = cursor.getCount();
+
+            long[] keys = new long[count];
+            long[] rows = new long[count];
+
+            int i = 0;
+
+            while (cursor.moveToNext() && i < count) {
+
+                keys[i] = key(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2));
+                rows[i] = cursor.getLong(3);
+
+                if (i > 0 && keys[i] <= keys[i - 1]) {
+
+                    Log.w(LCAT, "Tiles of " + file.getName() + " are not unique, reading them without index");
+
+                    return null;
+                }
+
+                i++;
+            }
+
+            return i == count ? new TileIndex(keys, rows, readSql) : null;
+
+        } catch (SQLiteException e) {
+
+            Log.w(LCAT, "Unable to index tiles of " + file.getName() + ": " + e.getMessage());
+
+            return null;
+
+        } finally {
+
+            if (cursor != null) {
+
+                cursor.close();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getIndexer() {
+
+        if (indexer == null) {
+
+            indexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "MapboxModule-MBTilesIndex");
+
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+
+                    return thread;
+                }
+            });
+        }
+
+        return indexer;
+    }
+
+    private static boolean isTable(SQLiteDatabase db, String table) {
+
+        Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{table});
+
+        try {
+
+            return cursor.moveToFirst();
+
+        } finally {
+
+            cursor.close();
+        }
+    }
+
+    private static String metadata(SQLiteDatabase db, String key) {
+
+        Cursor cursor = null;
+
+        try {
+
+            cursor = db.rawQuery("SELECT value FROM metadata WHERE name = ?", new String[]{key});
+
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+
+        } catch (SQLiteException e) {
+
+            return null;
+
+        } finally {
+
+            if (cursor != null) {
+
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Orders tiles by zoom, column and row, zoom and coordinates below 2^28.
+     */
+    private static long key(int z, int x, int row) {
+
+        return ((long) z << 56) | ((long) x << 28) | row;
+    }
+
+    private static float parseFloat(String value, float fallback) {
+
+        try {
+
+            return value != null ? Float.parseFloat(value.trim()) : fallback;
+
+        } catch (NumberFormatException e) {
+
+            return fallback;
+        }
+    }
+
+    /**
+     * Parses the numbers of a comma separated metadata value, or returns null
+     * if there are fewer than count or one is not a number.
+     */
+    private static double[] parseNumbers(String value, int count) {
+
+        if (value == null) {
+
+            return null;
+        }
+
+        String[] parts = value.split(",");
+
+        if (parts.length < count) {
+
+            return null;
+        }
+
+        double[] numbers = new double[parts.length];
+
+        try {
+
+            for (int i = 0; i < parts.length; i++) {
+
+                numbers[i] = Double.parseDouble(parts[i].trim());
+
+                if (Double.isNaN(numbers[i]) || Double.isInfinite(numbers[i])) {
+
+                    return null;
+                }
+            }
+
+        } catch (NumberFormatException e) {
+
+            return null;
+        }
+
+        return numbers;
+    }
+
+    private BoundingBox parseBounds(String value) {
+
+        // west,south,east,north
+        double[] numbers = parseNumbers(value, 4);
+
+        if (numbers == null || numbers[1] >= numbers[3]) {
+
+            if (value != null) {
+
+                Log.w(LCAT, "Ignoring the invalid bounds " + value + " of " + file.getName());
+            }
+
+            return new BoundingBox(85.05112878, 180, -85.05112878, -180);
+        }
+
+        return new BoundingBox(numbers[3], numbers[2], numbers[1], numbers[0]);
+    }
+
+    private LatLng parseCenter(String value, BoundingBox bounds) {
+
+        // longitude,latitude[,zoom]
+        double[] numbers = parseNumbers(value, 2);
+
+        if (numbers == null) {
+
+            if (value != null) {
+
+                Log.w(LCAT, "Ignoring the invalid center " + value + " of " + file.getName());
+            }
+
+            return bounds.getCenter();
+        }
+
+        if (numbers.length > 2) {
+
+            return new LatLng(numbers[1], numbers[0], numbers[2]);
+        }
+
+        return new LatLng(numbers[1], numbers[0]);
+    }
+
+    /**
+     * The sorted tile keys, the rowids of their data and the query reading a
+     * tile by rowid. Without keys, tiles are read by their coordinates.
+     */
+    private static class TileIndex {
+
+        final long[] keys;
+        final long[] rows;
+        final String readSql;
+
+        TileIndex(long[] keys, long[] rows, String readSql) {
+
+            this.keys = keys;
+            this.rows = rows;
+            this.readSql = readSql;
+        }
+    }
+
+    /**
+     * Growable byte buffer reused for the data of many tiles.
+     */
+    public static class TileBuffer {
+
+        public byte[] data = new byte[INITIAL_BUFFER_SIZE];
+        public int length = 0;
+
+        void readFrom(ParcelFileDescriptor descriptor) throws IOException {
+
+            long size = descriptor.getStatSize();
+
+            if (size > data.length) {
+
+                data = new byte[(int) size];
+            }
+
+            FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor());
+
+            length = 0;
+
+            int read;
+
+            while ((read = stream.read(data, length, data.length - length)) != -1) {
+
+                length += read;
+
+                if (length == data.length) {
+
+                    byte[] grown = new byte[data.length * 2];
+                    System.arraycopy(data, 0, grown, 0, length);
+                    data = grown;
+                }
+            }
+        }
+    }
+}
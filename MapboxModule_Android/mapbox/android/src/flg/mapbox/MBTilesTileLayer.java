@@ -0,0 +1,514 @@
+package flg.mapbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.common.Log;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+
+/**
+ * Tile layer reading one or more MBTiles files through MBTilesArchives, used
+ * for the map property instead of the SDK MBTilesLayer, which runs an SQL query
+ * and allocates a cursor window for every tile.
+ *
+ * Files usually cover separate regions. A tile is only read from the files
+ * whose bounds and zoom levels cover it, so a file is opened once the map
+ * shows its region. Archives are shared with other map views and close
+ * themselves when idle, detaching the layer leaves them alone.
+ *
+ * A name is looked up as a file path first, then as an asset. Assets are
+ * copied to app storage once and only copied again when their size changed.
+ */
+public class MBTilesTileLayer extends TileLayer {
+
+    private static final String LCAT = "MapboxModule";
+
+    private final MBTilesArchive[] archives;
+
+    private volatile TileCache tileCache;
+
+    /**
+     * @throws SQLiteException if the file can not be opened
+     */
+    public MBTilesTileLayer(Context context, String name) {
+
+        this(new File[]{resolveFile(context, name)});
+    }
+
+    /**
+     * Combines the files of the given names, skipping those that can not be
+     * opened.
+     *
+     * @throws SQLiteException if none of the files can be opened
+     */
+    public MBTilesTileLayer(Context context, String[] names) {
+
+        this(resolveFiles(context, names));
+    }
+
+    public MBTilesTileLayer(File file) {
+
+        this(new File[]{file});
+    }
+
+    /**
+     * @throws SQLiteException if none of the files can be opened
+     */
+    public MBTilesTileLayer(File[] files) {
+
+        super(layerId(files), files.length > 0 ? files[0].getPath() : null);
+
+        archives = openArchives(files);
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder attributions = new StringBuilder();
+
+        float minZoom = Float.MAX_VALUE;
+        float maxZoom = 0;
+
+        double north = -90;
+        double east = -180;
+        double south = 90;
+        double west = 180;
+
+        for (MBTilesArchive archive : archives) {
+
+            append(names, archive.getName());
+
+            if (archive.getAttribution() != null && attributions.indexOf(archive.getAttribution()) < 0) {
+
+                append(attributions, archive.getAttribution());
+            }
+
+            minZoom = Math.min(minZoom, archive.getMinZoom());
+            maxZoom = Math.max(maxZoom, archive.getMaxZoom());
+
+            BoundingBox box = archive.getBounds();
+
+            north = Math.max(north, box.getLatNorth());
+            east = Math.max(east, box.getLonEast());
+            south = Math.min(south, box.getLatSouth());
+            west = Math.min(west, box.getLonWest());
+        }
+
+        mName = names.length() > 0 ? names.toString() : null;
+        mDescription = archives.length == 1 ? archives[0].getDescription() : null;
+        mAttribution = attributions.length() > 0 ? attributions.toString() : null;
+        mMinimumZoomLevel = minZoom;
+        mMaximumZoomLevel = maxZoom;
+
+        if (archives.length == 1) {
+
+            mBoundingBox = archives[0].getBounds();
+            mCenter = archives[0].getCenter();
+
+        } else {
+
+            mBoundingBox = new BoundingBox(north, east, south, west);
+            mCenter = mBoundingBox.getCenter();
+        }
+    }
+
+    public MBTilesArchive[] getArchives() {
+
+        return archives;
+    }
+
+    /**
+     * Sets the cache of decoded tiles checked before reading the file, or null.
+     */
+    public void setTileCache(TileCache tileCache) {
+
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Returns the read counters summed over the archives, with the counters of
+     * each archive in files.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        Object[] files = new Object[archives.length];
+
+        long reads = 0;
+        long tilesRead = 0;
+        long tilesSkipped = 0;
+        long bytesRead = 0;
+        long indexedTiles = 0;
+        long opens = 0;
+        int openFiles = 0;
+
+        double readTime = 0;
+        double maxReadTime = 0;
+        double indexTime = 0;
+
+        for (int i = 0; i < archives.length; i++) {
+
+            KrollDict archiveStats = archives[i].getStats();
+
+            archiveStats.put("file", archives[i].getFile().getName());
+
+            files[i] = archiveStats;
+
+            reads += number(archiveStats, "reads").longValue();
+            tilesRead += number(archiveStats, "tilesRead").longValue();
+            tilesSkipped += number(archiveStats, "tilesSkipped").longValue();
+            bytesRead += number(archiveStats, "bytesRead").longValue();
+            indexedTiles += number(archiveStats, "indexedTiles").longValue();
+            opens += number(archiveStats, "opens").longValue();
+
+            readTime += number(archiveStats, "readTime").doubleValue();
+            maxReadTime = Math.max(maxReadTime, number(archiveStats, "maxReadTime").doubleValue());
+            indexTime += number(archiveStats, "indexTime").doubleValue();
+
+            if (Boolean.TRUE.equals(archiveStats.get("open"))) {
+
+                openFiles++;
+            }
+        }
+
+        stats.put("reads", reads);
+        stats.put("tilesRead", tilesRead);
+        stats.put("tilesSkipped", tilesSkipped);
+        stats.put("bytesRead", bytesRead);
+        stats.put("averageReadTime", reads > 0 ? readTime / reads : 0);
+        stats.put("maxReadTime", maxReadTime);
+        stats.put("throughput", readTime > 0 ? bytesRead * 1e3 / readTime : 0);
+        stats.put("readTime", readTime);
+        stats.put("indexTime", indexTime);
+        stats.put("indexedTiles", indexedTiles);
+        stats.put("opens", opens);
+        stats.put("openFiles", openFiles);
+        stats.put("files", files);
+
+        return stats;
+    }
+
+    @Override
+    public Drawable getDrawableFromTile(MapTileDownloader downloader, MapTile tile, boolean hdpi) {
+
+        TileCache cache = tileCache;
+
+        if (cache == null) {
+
+            MBTilesArchive.TileBuffer buffer = MBTilesArchive.obtainBuffer();
+
+            try {
+
+                if (!readTile(tile.getZ(), tile.getX(), tile.getY(), buffer)) {
+
+                    return null;
+                }
+
+                // decoded synchronously, the buffer can be reused afterwards
+                return downloader.getCache().putTileStream(tile, new ByteArrayInputStream(buffer.data, 0, buffer.length), null);
+
+            } finally {
+
+                MBTilesArchive.recycleBuffer(buffer);
+            }
+        }
+
+        String key = TileCache.key(getCacheKey(), tile.getZ(), tile.getX(), tile.getY());
+
+        Bitmap bitmap = cache.get(key);
+
+        if (bitmap == null) {
+
+            bitmap = load(cache, key, tile.getZ(), tile.getX(), tile.getY());
+        }
+
+        return bitmap != null ? downloader.getCache().putTileBitmap(tile, copyForSdk(downloader.getCache(), bitmap)) : null;
+    }
+
+    /**
+     * Reads a tile into the tile cache ahead of being shown, unless it is
+     * cached already. Called from the prefetch threads.
+     *
+     * @return true if the tile was read
+     */
+    public boolean prefetchTile(int z, int x, int y) {
+
+        TileCache cache = tileCache;
+
+        if (cache == null) {
+
+            return false;
+        }
+
+        String key = TileCache.key(getCacheKey(), z, x, y);
+
+        if (cache.contains(key)) {
+
+            return false;
+        }
+
+        return load(cache, key, z, x, y) != null;
+    }
+
+    private Bitmap load(TileCache cache, String key, int z, int x, int y) {
+
+        MBTilesArchive.TileBuffer buffer = MBTilesArchive.obtainBuffer();
+
+        try {
+
+            if (!readTile(z, x, y, buffer)) {
+
+                return null;
+            }
+
+            Bitmap bitmap = BitmapFactory.decodeByteArray(buffer.data, 0, buffer.length);
+
+            if (bitmap != null) {
+
+                cache.put(key, bitmap, buffer.data, buffer.length);
+            }
+
+            return bitmap;
+
+        } finally {
+
+            MBTilesArchive.recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * Returns a copy of a cached tile for the SDK cache, which hands the
+     * bitmaps it evicts out again to draw other tiles into. The copy reuses
+     * such an evicted bitmap if one fits.
+     */
+    private static Bitmap copyForSdk(MapTileCache sdkCache, Bitmap bitmap) {
+
+        Bitmap copy = sdkCache.getBitmapFromRemoved(bitmap.getWidth(), bitmap.getHeight());
+
+        if (copy != null && copy.isMutable() && !copy.isRecycled()) {
+
+            copy.eraseColor(Color.TRANSPARENT);
+
+            new Canvas(copy).drawBitmap(bitmap, 0, 0, null);
+
+            return copy;
+        }
+
+        return bitmap.copy(bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888, true);
+    }
+
+    /**
+     * Reads a tile from the first archive covering it that has it.
+     */
+    private boolean readTile(int z, int x, int y, MBTilesArchive.TileBuffer buffer) {
+
+        if (archives.length == 1) {
+
+            return archives[0].readTile(z, x, y, buffer);
+        }
+
+        double north = TilePrefetcher.tileLatitude(y, z);
+        double south = TilePrefetcher.tileLatitude(y + 1, z);
+        double west = TilePrefetcher.tileLongitude(x, z);
+        double east = TilePrefetcher.tileLongitude(x + 1, z);
+
+        for (MBTilesArchive archive : archives) {
+
+            if (archive.covers(z, north, east, south, west) && archive.readTile(z, x, y, buffer)) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static MBTilesArchive[] openArchives(File[] files) {
+
+        ArrayList<MBTilesArchive> opened = new ArrayList<MBTilesArchive>();
+
+        SQLiteException error = null;
+
+        for (File file : files) {
+
+            try {
+
+                opened.add(MBTilesArchive.open(file));
+
+            } catch (SQLiteException e) {
+
+                Log.e(LCAT, "Unable to open MBTiles file " + file.getName() + ": " + e.getMessage());
+
+                error = e;
+            }
+        }
+
+        if (opened.isEmpty()) {
+
+            throw error != null ? error : new SQLiteException("No MBTiles file given");
+        }
+
+        return opened.toArray(new MBTilesArchive[opened.size()]);
+    }
+
+    private static String layerId(File[] files) {
+
+        StringBuilder id = new StringBuilder();
+
+        for (File file : files) {
+
+            if (id.length() > 0) {
+
+                id.append('+');
+            }
+
+            id.append(file.getName());
+        }
+
+        return id.toString();
+    }
+
+    private static Number number(KrollDict stats, String key) {
+
+        return (Number) stats.get(key);
+    }
+
+    private static void append(StringBuilder builder, String value) {
+
+        if (value == null) {
+
+            return;
+        }
+
+        if (builder.length() > 0) {
+
+            builder.append(", ");
+        }
+
+        builder.append(value);
+    }
+
+    private static File[] resolveFiles(Context context, String[] names) {
+
+        File[] files = new File[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+
+            files[i] = resolveFile(context, names[i]);
+        }
+
+        return files;
+    }
+
+    /**
+     * Returns the directory MBTiles files are copied to or built in.
+     */
+    public static File getStorageDirectory(Context context) {
+
+        File directory = context.getExternalFilesDir(null);
+
+        return directory != null ? directory : context.getFilesDir();
+    }
+
+    /**
+     * Returns the file of an MBTiles path or asset name.
+     */
+    public static File resolveFile(Context context, String name) {
+
+        File file = new File(name);
+
+        if (file.isAbsolute() && file.isFile()) {
+
+            return file;
+        }
+
+        File directory = getStorageDirectory(context);
+
+        File target = new File(directory, new File(name).getName());
+
+        long assetLength = -1;
+
+        try {
+
+            AssetFileDescriptor descriptor = context.getAssets().openFd(name);
+
+            assetLength = descriptor.getLength();
+
+            descriptor.close();
+
+        } catch (IOException e) {
+
+            // compressed assets have no file descriptor, their length is unknown
+        }
+
+        if (target.isFile() && (assetLength < 0 || target.length() == assetLength)) {
+
+            return target;
+        }
+
+        File partial = new File(directory, target.getName() + ".partial");
+
+        try {
+
+            InputStream input = context.getAssets().open(name);
+
+            try {
+
+                OutputStream output = new FileOutputStream(partial);
+
+                try {
+
+                    byte[] buffer = new byte[64 * 1024];
+
+                    int read;
+
+                    while ((read = input.read(buffer)) != -1) {
+
+                        output.write(buffer, 0, read);
+                    }
+
+                } finally {
+
+                    output.close();
+                }
+
+            } finally {
+
+                input.close();
+            }
+
+            // an interrupted copy is never mistaken for a complete file
+            if (!partial.renameTo(target)) {
+
+                target.delete();
+                partial.renameTo(target);
+            }
+
+        } catch (IOException e) {
+
+            Log.e(LCAT, "MBTiles file not found: " + name + ", " + e.getMessage());
+
+            partial.delete();
+        }
+
+        return target;
+    }
+}
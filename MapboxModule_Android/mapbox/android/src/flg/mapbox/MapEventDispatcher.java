@@ -0,0 +1,303 @@
+package flg.mapbox;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.KrollProxy;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Coalesces the scroll, zoom and rotate callbacks of the SDK, which come for
+ * every frame of a gesture, into at most one event of each kind per interval,
+ * carrying the latest values. Once the map did not move for the region
+ * changed delay, a regionChanged event with the settled center, zoom level
+ * and bounds is fired.
+ *
+ * Events are only built for listened to event names. Used on the UI thread.
+ */
+public class MapEventDispatcher {
+
+    public static final int DEFAULT_INTERVAL = 16;
+    public static final int DEFAULT_REGION_CHANGED_DELAY = 250;
+
+    private static final String EVENT_BEFORE_MAP_MOVE = "beforeMapMove";
+    private static final String EVENT_SCROLL = "scroll";
+    private static final String EVENT_ZOOM = "zoom";
+    private static final String EVENT_ROTATE = "rotate";
+    private static final String EVENT_REGION_CHANGED = "regionChanged";
+
+    private final KrollProxy proxy;
+    private final MapView map;
+
+    private final Handler mainHandler;
+
+    private int interval = DEFAULT_INTERVAL;
+    private int regionChangedDelay = DEFAULT_REGION_CHANGED_DELAY;
+
+    // callbacks since the last flush
+    private int scrolls = 0;
+    private boolean scrollUserAction = false;
+    private int zooms = 0;
+    private boolean zoomUserAction = false;
+    private float zoomLevel;
+    private int rotations = 0;
+    private boolean rotateUserAction = false;
+    private float angle;
+
+    // since the map started moving
+    private boolean moving = false;
+    private boolean movedByUser = false;
+
+    private long lastFlush = 0;
+    private boolean flushPending = false;
+
+    private boolean released = false;
+
+    private final Runnable flushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            flush();
+        }
+    };
+
+    private final Runnable settleRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            settle();
+        }
+    };
+
+    public MapEventDispatcher(KrollProxy proxy, MapView map) {
+
+        this.proxy = proxy;
+        this.map = map;
+
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Sets the minimum time between two events of a kind in milliseconds, 0
+     * fires an event for every callback.
+     */
+    public void setInterval(int interval) {
+
+        this.interval = Math.max(0, interval);
+    }
+
+    public int getInterval() {
+
+        return interval;
+    }
+
+    /**
+     * Sets the time in milliseconds the map must not move before
+     * regionChanged is fired.
+     */
+    public void setRegionChangedDelay(int delay) {
+
+        regionChangedDelay = Math.max(0, delay);
+    }
+
+    public int getRegionChangedDelay() {
+
+        return regionChangedDelay;
+    }
+
+    public void onScroll(boolean userAction) {
+
+        scrolls++;
+        scrollUserAction |= userAction;
+
+        moved(userAction);
+    }
+
+    public void onZoom(boolean userAction, float zoomLevel) {
+
+        zooms++;
+        zoomUserAction |= userAction;
+        this.zoomLevel = zoomLevel;
+
+        moved(userAction);
+    }
+
+    public void onRotate(boolean userAction, float angle) {
+
+        rotations++;
+        rotateUserAction |= userAction;
+        this.angle = angle;
+
+        moved(userAction);
+    }
+
+    /**
+     * Drops pending events, later callbacks are ignored.
+     */
+    public void release() {
+
+        released = true;
+
+        mainHandler.removeCallbacks(flushRunnable);
+        mainHandler.removeCallbacks(settleRunnable);
+
+        flushPending = false;
+        moving = false;
+
+        scrolls = 0;
+        zooms = 0;
+        rotations = 0;
+    }
+
+    private void moved(boolean userAction) {
+
+        if (released) {
+
+            return;
+        }
+
+        moving = true;
+        movedByUser |= userAction;
+
+        mainHandler.removeCallbacks(settleRunnable);
+        mainHandler.postDelayed(settleRunnable, regionChangedDelay);
+
+        if (interval == 0) {
+
+            flush();
+
+            return;
+        }
+
+        if (!flushPending) {
+
+            flushPending = true;
+
+            // the first movement after a pause is fired at once
+            long wait = lastFlush + interval - SystemClock.uptimeMillis();
+
+            mainHandler.postDelayed(flushRunnable, Math.max(0, wait));
+        }
+    }
+
+    private void flush() {
+
+        mainHandler.removeCallbacks(flushRunnable);
+
+        flushPending = false;
+        lastFlush = SystemClock.uptimeMillis();
+
+        if (scrolls > 0) {
+
+            boolean beforeMapMove = proxy.hasListeners(EVENT_BEFORE_MAP_MOVE);
+            boolean scroll = proxy.hasListeners(EVENT_SCROLL);
+
+            if (beforeMapMove || scroll) {
+
+                KrollDict event = new KrollDict();
+
+                event.put("wasUserAction", scrollUserAction);
+                event.put("coalesced", scrolls);
+
+                if (beforeMapMove) {
+
+                    proxy.fireEvent(EVENT_BEFORE_MAP_MOVE, event);
+                }
+
+                if (scroll) {
+
+                    proxy.fireEvent(EVENT_SCROLL, event);
+                }
+            }
+
+            scrolls = 0;
+            scrollUserAction = false;
+        }
+
+        if (zooms > 0) {
+
+            if (proxy.hasListeners(EVENT_ZOOM)) {
+
+                KrollDict event = new KrollDict();
+
+                event.put("wasUserAction", zoomUserAction);
+                event.put("zoomLevel", zoomLevel);
+                event.put("coalesced", zooms);
+
+                proxy.fireEvent(EVENT_ZOOM, event);
+            }
+
+            zooms = 0;
+            zoomUserAction = false;
+        }
+
+        if (rotations > 0) {
+
+            if (proxy.hasListeners(EVENT_ROTATE)) {
+
+                KrollDict event = new KrollDict();
+
+                event.put("wasUserAction", rotateUserAction);
+                event.put("angle", angle);
+                event.put("coalesced", rotations);
+
+                proxy.fireEvent(EVENT_ROTATE, event);
+            }
+
+            rotations = 0;
+            rotateUserAction = false;
+        }
+    }
+
+    private void settle() {
+
+        if (!moving) {
+
+            return;
+        }
+
+        // the last movement comes before the settled region
+        if (flushPending) {
+
+            flush();
+        }
+
+        boolean userAction = movedByUser;
+
+        moving = false;
+        movedByUser = false;
+
+        if (!proxy.hasListeners(EVENT_REGION_CHANGED)) {
+
+            return;
+        }
+
+        LatLng center = map.getCenter();
+        BoundingBox box = map.getBoundingBox();
+
+        KrollDict event = new KrollDict();
+
+        event.put("wasUserAction", userAction);
+        event.put("latitude", center.getLatitude());
+        event.put("longitude", center.getLongitude());
+        event.put("zoomLevel", map.getZoomLevel());
+        event.put("angle", map.getMapOrientation());
+
+        if (box != null) {
+
+            event.put("north", box.getLatNorth());
+            event.put("south", box.getLatSouth());
+            event.put("east", box.getLonEast());
+            event.put("west", box.getLonWest());
+        }
+
+        proxy.fireEvent(EVENT_REGION_CHANGED, event);
+    }
+}
@@ -0,0 +1,156 @@
+package flg.mapbox;
+
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.kroll.common.TiMessenger;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+/**
+ * Does the expensive part of creating a map view off the UI thread: opens the
+ * MBTiles files of the map property, copying assets on first use, and
+ * prepares the options of the initial annotations, resolving their images.
+ *
+ * The listener is called on the UI thread with the results, unless the load
+ * was cancelled.
+ */
+public class MapLoader implements Runnable {
+
+    private static final String LCAT = "MapboxModule";
+
+    public interface Listener {
+
+        void onMapLoaded(MapLoader loader);
+    }
+
+    private final Context context;
+    private final String[] mapNames;
+    private final AnnotationProxy[] annotations;
+
+    private Listener listener;
+
+    private volatile boolean cancelled = false;
+
+    private MBTilesTileLayer tileLayer;
+
+    private long startTime;
+    private long tileSourceTime;
+    private long annotationTime;
+
+    /**
+     * @param mapNames the MBTiles names of the map property, or null
+     * @param annotations the annotations to prepare, may be empty
+     */
+    public MapLoader(Context context, String[] mapNames, AnnotationProxy[] annotations, Listener listener) {
+
+        this.context = context.getApplicationContext();
+        this.mapNames = mapNames;
+        this.annotations = annotations;
+        this.listener = listener;
+    }
+
+    public void start() {
+
+        startTime = SystemClock.uptimeMillis();
+
+        Thread thread = new Thread(this, "MapboxModule-Init");
+
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    /**
+     * Drops the results, the listener is not called. Called on the UI thread.
+     */
+    public void cancel() {
+
+        cancelled = true;
+        listener = null;
+    }
+
+    public boolean isCancelled() {
+
+        return cancelled;
+    }
+
+    @Override
+    public void run() {
+
+        long start = SystemClock.uptimeMillis();
+
+        if (mapNames != null && !cancelled) {
+
+            try {
+
+                tileLayer = new MBTilesTileLayer(context, mapNames);
+
+            } catch (SQLiteException e) {
+
+                Log.e(LCAT, "Unable to open MBTiles file " + TextUtils.join(", ", mapNames) + ": " + e.getMessage());
+            }
+        }
+
+        long tilesDone = SystemClock.uptimeMillis();
+
+        for (int i = 0; i < annotations.length && !cancelled; i++) {
+
+            annotations[i].processOptions();
+        }
+
+        tileSourceTime = tilesDone - start;
+        annotationTime = SystemClock.uptimeMillis() - tilesDone;
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Listener current = listener;
+
+                if (current != null && !cancelled) {
+
+                    current.onMapLoaded(MapLoader.this);
+                }
+            }
+        });
+    }
+
+    public String[] getMapNames() {
+
+        return mapNames;
+    }
+
+    /**
+     * Returns the layer of the map property, or null if it was not given or
+     * could not be opened.
+     */
+    public MBTilesTileLayer getTileLayer() {
+
+        return tileLayer;
+    }
+
+    /**
+     * Returns the annotations, with their options processed.
+     */
+    public AnnotationProxy[] getAnnotations() {
+
+        return annotations;
+    }
+
+    public long getStartTime() {
+
+        return startTime;
+    }
+
+    public long getTileSourceTime() {
+
+        return tileSourceTime;
+    }
+
+    public long getAnnotationTime() {
+
+        return annotationTime;
+    }
+}
@@ -9,6 +9,7 @@ import org.appcelerator.kroll.annotations.Kroll;
 import org.appcelerator.kroll.common.AsyncResult;
 import org.appcelerator.kroll.common.TiMessenger;
 import org.appcelerator.titanium.TiApplication;
+import org.appcelerator.titanium.TiC;
 import org.appcelerator.titanium.TiContext;
 import org.appcelerator.kroll.common.Log;
 import org.appcelerator.titanium.util.TiConvert;
@@ -30,6 +31,17 @@ public class MapViewProxy extends TiViewProxy
 	private static final int MSG_SET_REGION = MSG_FIRST_ID + 500;
 	private static final int MSG_SET_ANNOTATIONS = MSG_FIRST_ID + 501;
 	private static final int MSG_SET_USER_LOCATION = MSG_FIRST_ID + 502;
+	private static final int MSG_UPDATE_ANNOTATIONS = MSG_FIRST_ID + 503;
+	private static final int MSG_ADD_POINTS = MSG_FIRST_ID + 504;
+	private static final int MSG_REMOVE_ALL_POINTS = MSG_FIRST_ID + 505;
+	private static final int MSG_LOAD_GEOJSON = MSG_FIRST_ID + 506;
+	private static final int MSG_REMOVE_ALL_SHAPES = MSG_FIRST_ID + 507;
+	private static final int MSG_ADD_SHAPE = MSG_FIRST_ID + 508;
+	private static final int MSG_REMOVE_SHAPE = MSG_FIRST_ID + 509;
+	private static final int MSG_ADD_HEATMAP = MSG_FIRST_ID + 510;
+	private static final int MSG_REMOVE_HEATMAP = MSG_FIRST_ID + 511;
+	private static final int MSG_ADD_TRAIL = MSG_FIRST_ID + 512;
+	private static final int MSG_REMOVE_TRAIL = MSG_FIRST_ID + 513;
 
 	public MapViewProxy() {
 		super();
@@ -40,7 +52,7 @@ public class MapViewProxy extends TiViewProxy
 	@Override
 	public TiUIView createView(Activity activity) 
 	{
-		MapView view = new MapView(this);
+		MapboxMapView view = new MapboxMapView(this);
 		view.getLayoutParams().autoFillsHeight = true;
 		view.getLayoutParams().autoFillsWidth = true;
 		
@@ -102,6 +114,50 @@ public class MapViewProxy extends TiViewProxy
 				result.setResult(null);
 				return true;
 			}
+			case MSG_UPDATE_ANNOTATIONS: {
+				handleUpdateAnnotations((ArrayList<AnnotationUpdate>)msg.obj);
+				return true;
+			}
+			case MSG_ADD_POINTS: {
+				handleAddPoints((PointBatch)msg.obj);
+				return true;
+			}
+			case MSG_REMOVE_ALL_POINTS: {
+				handleRemoveAllPoints();
+				return true;
+			}
+			case MSG_LOAD_GEOJSON: {
+				handleLoadGeoJSON((GeoJSONLoader)msg.obj);
+				return true;
+			}
+			case MSG_REMOVE_ALL_SHAPES: {
+				handleRemoveAllShapes();
+				return true;
+			}
+			case MSG_ADD_SHAPE: {
+				handleAddShape((ShapeProxy)msg.obj);
+				return true;
+			}
+			case MSG_REMOVE_SHAPE: {
+				handleRemoveShape((ShapeProxy)msg.obj);
+				return true;
+			}
+			case MSG_ADD_HEATMAP: {
+				handleAddHeatmap((HeatmapProxy)msg.obj);
+				return true;
+			}
+			case MSG_REMOVE_HEATMAP: {
+				handleRemoveHeatmap((HeatmapProxy)msg.obj);
+				return true;
+			}
+			case MSG_ADD_TRAIL: {
+				handleAddTrail((TrailProxy)msg.obj);
+				return true;
+			}
+			case MSG_REMOVE_TRAIL: {
+				handleRemoveTrail((TrailProxy)msg.obj);
+				return true;
+			}
 			default : {
 				return super.handleMessage(msg);
 			}
@@ -120,7 +176,7 @@ public class MapViewProxy extends TiViewProxy
 		}
 		
 		HashMap regionDict = (HashMap)region;
-		if (!regionDict.containsKey(MapView.PROPERTY_LATITUDE) || !regionDict.containsKey(MapView.PROPERTY_LONGITUDE)) {
+		if (!regionDict.containsKey(TiC.PROPERTY_LATITUDE) || !regionDict.containsKey(TiC.PROPERTY_LONGITUDE)) {
 			Log.e(LCAT,"setRegion was called with a parameter missing either the latitude or longitude key; Unable to set the region.");
 			return;
 		}
@@ -174,10 +230,203 @@ public class MapViewProxy extends TiViewProxy
 		setProperty("userLocation", flag, true);
 	}
 
+	// Collects the changes of a whole batch of annotations on the JS thread and
+	// applies them with a single, non-blocking message to the UI thread.
+	@Kroll.method
+	public void updateAnnotations(final Object updates)
+	{
+		if (!(updates instanceof Object[])) {
+			Log.e(LCAT, "Object parameter passed to updateAnnotations is not an array.");
+			return;
+		}
+
+		Object[] updatesArray = (Object[])updates;
+		ArrayList<AnnotationUpdate> batch = new ArrayList<AnnotationUpdate>(updatesArray.length);
+		for (int i = 0; i < updatesArray.length; i++) {
+			if (!(updatesArray[i] instanceof HashMap)) {
+				continue;
+			}
+			AnnotationUpdate update = AnnotationUpdate.fromDictionary((HashMap)updatesArray[i]);
+			if (update != null) {
+				batch.add(update);
+			}
+		}
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleUpdateAnnotations(batch);
+		} else {
+			getMainHandler().obtainMessage(MSG_UPDATE_ANNOTATIONS, batch).sendToTarget();
+		}
+	}
+
+	// Converts the packed coordinate arrays to primitive arrays on the JS thread;
+	// the points are stored without creating an annotation proxy for each one.
+	@Kroll.method
+	public void addPoints(final Object points)
+	{
+		if (!(points instanceof HashMap)) {
+			Log.e(LCAT, "Object parameter passed to addPoints is not a dictionary.");
+			return;
+		}
+
+		PointBatch batch = PointBatch.fromDictionary((HashMap)points);
+		if (batch == null) {
+			Log.e(LCAT, "addPoints was called without coordinates, or latitudes and longitudes; Unable to add points.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleAddPoints(batch);
+		} else {
+			getMainHandler().obtainMessage(MSG_ADD_POINTS, batch).sendToTarget();
+		}
+	}
+
+	@Kroll.method
+	public void removeAllPoints()
+	{
+		if (TiApplication.isUIThread()) {
+			handleRemoveAllPoints();
+		} else {
+			getMainHandler().obtainMessage(MSG_REMOVE_ALL_POINTS).sendToTarget();
+		}
+	}
+
+	// Only resolves the source on the JS thread; the document is read on a
+	// background thread and its features are added in chunks.
+	@Kroll.method
+	public void loadGeoJSON(final Object options)
+	{
+		if (!(options instanceof HashMap)) {
+			Log.e(LCAT, "Object parameter passed to loadGeoJSON is not a dictionary.");
+			return;
+		}
+
+		GeoJSONLoader loader = GeoJSONLoader.fromDictionary((HashMap)options, this);
+		if (loader == null) {
+			Log.e(LCAT, "loadGeoJSON was called without a file, url or string; Unable to load GeoJSON.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleLoadGeoJSON(loader);
+		} else {
+			getMainHandler().obtainMessage(MSG_LOAD_GEOJSON, loader).sendToTarget();
+		}
+	}
+
+	// Polylines and polygons, created with mapbox.createPolyline() and
+	// mapbox.createPolygon().
+	@Kroll.method
+	public void addShape(final Object shape)
+	{
+		if (!(shape instanceof ShapeProxy)) {
+			Log.e(LCAT, "Object parameter passed to addShape is not a polyline or polygon.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleAddShape((ShapeProxy)shape);
+		} else {
+			getMainHandler().obtainMessage(MSG_ADD_SHAPE, shape).sendToTarget();
+		}
+	}
+
+	// Heatmaps, created with mapbox.createHeatmap().
+	@Kroll.method
+	public void addHeatmap(final Object heatmap)
+	{
+		if (!(heatmap instanceof HeatmapProxy)) {
+			Log.e(LCAT, "Object parameter passed to addHeatmap is not a heatmap.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleAddHeatmap((HeatmapProxy)heatmap);
+		} else {
+			getMainHandler().obtainMessage(MSG_ADD_HEATMAP, heatmap).sendToTarget();
+		}
+	}
+
+	@Kroll.method
+	public void removeHeatmap(final Object heatmap)
+	{
+		if (!(heatmap instanceof HeatmapProxy)) {
+			Log.e(LCAT, "Object parameter passed to removeHeatmap is not a heatmap.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleRemoveHeatmap((HeatmapProxy)heatmap);
+		} else {
+			getMainHandler().obtainMessage(MSG_REMOVE_HEATMAP, heatmap).sendToTarget();
+		}
+	}
+
+	// Trails, created with mapbox.createTrail().
+	@Kroll.method
+	public void addTrail(final Object trail)
+	{
+		if (!(trail instanceof TrailProxy)) {
+			Log.e(LCAT, "Object parameter passed to addTrail is not a trail.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleAddTrail((TrailProxy)trail);
+		} else {
+			getMainHandler().obtainMessage(MSG_ADD_TRAIL, trail).sendToTarget();
+		}
+	}
+
+	@Kroll.method
+	public void removeTrail(final Object trail)
+	{
+		if (!(trail instanceof TrailProxy)) {
+			Log.e(LCAT, "Object parameter passed to removeTrail is not a trail.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleRemoveTrail((TrailProxy)trail);
+		} else {
+			getMainHandler().obtainMessage(MSG_REMOVE_TRAIL, trail).sendToTarget();
+		}
+	}
+
+	@Kroll.method
+	public void removeShape(final Object shape)
+	{
+		if (!(shape instanceof ShapeProxy)) {
+			Log.e(LCAT, "Object parameter passed to removeShape is not a polyline or polygon.");
+			return;
+		}
+
+		if (TiApplication.isUIThread()) {
+			handleRemoveShape((ShapeProxy)shape);
+		} else {
+			getMainHandler().obtainMessage(MSG_REMOVE_SHAPE, shape).sendToTarget();
+		}
+	}
+
+	@Kroll.method
+	public void removeAllShapes()
+	{
+		if (TiApplication.isUIThread()) {
+			handleRemoveAllShapes();
+		} else {
+			getMainHandler().obtainMessage(MSG_REMOVE_ALL_SHAPES).sendToTarget();
+		}
+	}
+
 	public void handleSetRegion(HashMap<String, Object> regionDict)
 	{
-		MapView mapView = (MapView)view;
-		if (!(mapView instanceof MapView)) {
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
 			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to set region.");
 			return;
 		}
@@ -186,24 +435,242 @@ public class MapViewProxy extends TiViewProxy
 	
 	public void handleSetAnnotations(Object[] annotations)
 	{
-		MapView mapView = (MapView)view;
-		if (!(mapView instanceof MapView)) {
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
 			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to set annotations.");
 			return;
 		}
-		mapView.setAnnotations(annotations);
+		mapView.updateAnnotations(annotations);
+	}
+
+	public void handleUpdateAnnotations(ArrayList<AnnotationUpdate> updates)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to update annotations.");
+			return;
+		}
+		mapView.applyAnnotationUpdates(updates);
 	}
 	
+	public void handleAddPoints(PointBatch batch)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to add points.");
+			return;
+		}
+		mapView.addPoints(batch);
+	}
+
+	public void handleRemoveAllPoints()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return;
+		}
+		mapView.removeAllPoints();
+	}
+
+	public void handleLoadGeoJSON(GeoJSONLoader loader)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to load GeoJSON.");
+			return;
+		}
+		mapView.loadGeoJSON(loader);
+	}
+
+	public void handleAddShape(ShapeProxy shape)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to add shape.");
+			return;
+		}
+		mapView.addShape(shape);
+	}
+
+	public void handleRemoveShape(ShapeProxy shape)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return;
+		}
+		mapView.removeShape(shape);
+	}
+
+	public void handleAddHeatmap(HeatmapProxy heatmap)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to add heatmap.");
+			return;
+		}
+		mapView.addHeatmap(heatmap);
+	}
+
+	public void handleRemoveHeatmap(HeatmapProxy heatmap)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return;
+		}
+		mapView.removeHeatmap(heatmap);
+	}
+
+	public void handleAddTrail(TrailProxy trail)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to add trail.");
+			return;
+		}
+		mapView.addTrail(trail);
+	}
+
+	public void handleRemoveTrail(TrailProxy trail)
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return;
+		}
+		mapView.removeTrail(trail);
+	}
+
+	public void handleRemoveAllShapes()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return;
+		}
+		mapView.removeAllShapes();
+	}
+
 	public void handleSetUserLocation(Boolean flag)
 	{
-		MapView mapView = (MapView)view;
-		if (!(mapView instanceof MapView)) {
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
 			Log.e(LCAT,"MapView View Object hasn't been instantiated yet; Unable to set user location.");
 			return;
 		}
 		mapView.setUserLocation(flag);
 	}
 	
+	@Kroll.method
+	public KrollDict getAnnotationDiffStats()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return new AnnotationDiffStats().toKrollDict();
+		}
+		return mapView.getAnnotationDiffStats().toKrollDict();
+	}
+
+	// Read counters of the MBTiles layer, kept by the layer itself and
+	// readable from any thread.
+	@Kroll.method
+	public KrollDict getTileStats()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		KrollDict stats = mapView instanceof MapboxMapView ? mapView.getTileStats() : null;
+		return stats != null ? stats : new KrollDict();
+	}
+
+	@Kroll.method
+	public KrollDict getTileCacheStats()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		return mapView instanceof MapboxMapView ? mapView.getTileCacheStats() : new KrollDict();
+	}
+
+	@Kroll.method
+	public KrollDict getShapeStats()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		return mapView instanceof MapboxMapView ? mapView.getShapeStats() : new KrollDict();
+	}
+
+	@Kroll.method
+	public KrollDict getAnimationStats()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		return mapView instanceof MapboxMapView ? mapView.getAnimationStats() : new KrollDict();
+	}
+
+	@Kroll.method
+	public KrollDict getAnnotationUpdateStats()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		return mapView instanceof MapboxMapView ? mapView.getAnnotationUpdateStats() : new KrollDict();
+	}
+
+	@Kroll.method
+	public KrollDict getUserLocationStats()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		return mapView instanceof MapboxMapView ? mapView.getUserLocationStats() : new KrollDict();
+	}
+
+	// Whether the ready event was fired, the tile source and initial annotations
+	// being applied.
+	@Kroll.method
+	public boolean isReady()
+	{
+		MapboxMapView mapView = (MapboxMapView)view;
+		return mapView instanceof MapboxMapView && mapView.isReady();
+	}
+
+	// Spatial queries read the synchronized annotation registry directly, so
+	// they are answered on the calling thread without a UI thread round trip.
+	@Kroll.method
+	public Object[] queryAnnotations(final Object query)
+	{
+		if (!(query instanceof HashMap) || !(((HashMap)query).get("boundingBox") instanceof HashMap)) {
+			Log.e(LCAT, "queryAnnotations was called without a boundingBox dictionary.");
+			return new Object[0];
+		}
+
+		HashMap box = (HashMap)((HashMap)query).get("boundingBox");
+		if (box.get("north") == null || box.get("south") == null || box.get("east") == null || box.get("west") == null) {
+			Log.e(LCAT, "queryAnnotations was called with a boundingBox missing north, south, east or west.");
+			return new Object[0];
+		}
+
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return new Object[0];
+		}
+
+		ArrayList<AnnotationProxy> found = mapView.getAnnotationRegistry().queryAnnotations(TiConvert.toDouble(box, "south"), TiConvert.toDouble(box, "west"), TiConvert.toDouble(box, "north"), TiConvert.toDouble(box, "east"));
+		return found.toArray();
+	}
+
+	@Kroll.method
+	public Object[] nearestAnnotations(final Object query)
+	{
+		if (!(query instanceof HashMap)) {
+			Log.e(LCAT, "Object parameter passed to nearestAnnotations is not a dictionary.");
+			return new Object[0];
+		}
+
+		HashMap queryDict = (HashMap)query;
+		if (queryDict.get(TiC.PROPERTY_LATITUDE) == null || queryDict.get(TiC.PROPERTY_LONGITUDE) == null) {
+			Log.e(LCAT, "nearestAnnotations was called with a parameter missing either the latitude or longitude key.");
+			return new Object[0];
+		}
+
+		MapboxMapView mapView = (MapboxMapView)view;
+		if (!(mapView instanceof MapboxMapView)) {
+			return new Object[0];
+		}
+
+		int count = queryDict.get("count") != null ? TiConvert.toInt(queryDict, "count") : 1;
+		ArrayList<AnnotationProxy> found = mapView.getAnnotationRegistry().nearestAnnotations(TiConvert.toDouble(queryDict, TiC.PROPERTY_LATITUDE), TiConvert.toDouble(queryDict, TiC.PROPERTY_LONGITUDE), count);
+		return found.toArray();
+	}
+
 	@Kroll.getProperty @Kroll.method
 	public HashMap getRegion() {
 		return (HashMap)getProperty("region");
@@ -2,20 +2,20 @@ package flg.mapbox;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 
 import org.appcelerator.kroll.KrollDict;
 import org.appcelerator.kroll.KrollProxy;
 import org.appcelerator.kroll.common.Log;
+import org.appcelerator.kroll.common.TiMessenger;
 
 import org.appcelerator.titanium.TiC;
 import org.appcelerator.titanium.view.TiCompositeLayout;
+import org.appcelerator.titanium.view.TiDrawableReference;
 import org.appcelerator.titanium.view.TiUIView;
 import org.appcelerator.titanium.proxy.TiViewProxy;
 import org.appcelerator.titanium.util.TiConvert;
-import org.appcelerator.titanium.util.TiRHelper;
-import org.appcelerator.titanium.util.TiRHelper.ResourceNotFoundException;
-import org.appcelerator.titanium.util.TiUIHelper;
 
 import android.app.Activity;
 import android.view.View;
@@ -25,12 +25,14 @@ import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.graphics.Color;
-import android.graphics.Bitmap;
+import android.database.sqlite.SQLiteException;
+import android.location.Location;
+import android.os.SystemClock;
+import android.text.TextUtils;
 
 import com.mapbox.mapboxsdk.api.ILatLng;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
-import com.mapbox.mapboxsdk.overlay.GpsLocationProvider;
 import com.mapbox.mapboxsdk.overlay.Icon;
 import com.mapbox.mapboxsdk.overlay.Marker;
 import com.mapbox.mapboxsdk.overlay.UserLocationOverlay;
@@ -43,7 +45,7 @@ import com.mapbox.mapboxsdk.events.*;
 import com.mapbox.mapboxsdk.views.util.Projection;
 
 
-public class MapboxMapView extends TiUIView implements MapViewListener, MapListener {
+public class MapboxMapView extends TiUIView implements MapViewListener, MapListener, AnnotationProxy.AnnotationDelegate, AnnotationVirtualizer.MarkerFactory, MapLoader.Listener, AnnotationUpdateQueue.Target, GeoJSONLoader.Listener, ShapeProxy.ShapeDelegate, HeatmapLayer.Listener, TrailRecorder.Listener, SmoothedLocationProvider.FixListener {
 
     // Standard Debugging variables
     private static final String LCAT = "MapboxModule";
@@ -56,20 +58,121 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
     public static final String PROPERTY_MIN_ZOOM_LEVEL = "minZoom";
     public static final String PROPERTY_MAX_ZOOM_LEVEL = "maxZoom";
     public static final String PROPERTY_ZOOM = "zoom";
+    public static final String PROPERTY_ANNOTATION_DIFFING = "annotationDiffing";
+    public static final String PROPERTY_CLUSTERING = "clustering";
+    public static final String PROPERTY_CLUSTER_RADIUS = "clusterRadius";
+    public static final String PROPERTY_CLUSTER_MAX_ZOOM = "clusterMaxZoom";
+    public static final String PROPERTY_VIRTUALIZE_ANNOTATIONS = "virtualizeAnnotations";
+    public static final String PROPERTY_VIRTUALIZATION_MARGIN = "virtualizationMargin";
+    public static final String PROPERTY_TILE_CACHE_SIZE = "tileCacheSize";
+    public static final String PROPERTY_COMPRESSED_TILE_CACHE_SIZE = "compressedTileCacheSize";
+    public static final String PROPERTY_TILE_PREFETCHING = "tilePrefetching";
+    public static final String PROPERTY_ASYNC_INIT = "asyncInit";
+    public static final String PROPERTY_MOVEMENT_EVENT_INTERVAL = "movementEventInterval";
+    public static final String PROPERTY_REGION_CHANGED_DELAY = "regionChangedDelay";
+    public static final String PROPERTY_USER_LOCATION_MIN_TIME = "userLocationMinTime";
+    public static final String PROPERTY_USER_LOCATION_MIN_DISTANCE = "userLocationMinDistance";
+    public static final String PROPERTY_USER_LOCATION_SMOOTHING = "userLocationSmoothing";
+    public static final String PROPERTY_ASYNC_ANNOTATION_UPDATES = "asyncAnnotationUpdates";
+
+    private static final String EVENT_READY = "ready";
+    private static final String EVENT_GEOJSON_PROGRESS = "geoJSONProgress";
+    private static final String EVENT_GEOJSON_COMPLETE = "geoJSONComplete";
+    private static final String EVENT_GEOJSON_ERROR = "geoJSONError";
+
+    // annotations added per UI message after an asynchronous initialization
+    private static final int INITIAL_ANNOTATIONS_SLICE = 200;
+
+    private static final int CLUSTER_EVENT_ANNOTATIONS_LIMIT = 100;
+
+    // read only, converted to a new JS array for every event
+    private static final ArrayList<MapboxMarker> NO_HITS = new ArrayList<MapboxMarker>(0);
+    private static final AnnotationProxy[] NO_PROXIES = new AnnotationProxy[0];
 
     private static final String PROPERTY_ANNOTATION_TITLE = "title";
     private static final String PROPERTY_ANNOTATION_SUBTITLE = "subtitle";
 
     private static final String PROPERTY_MAP = "map";
+
+    private static final String DEFAULT_MAP_ID = "examples.map-i87786ca";
+
+    // the pin the former MapView showed for plain annotation dictionaries
+    private static final String DEFAULT_DICT_ICON = "marker-stroked";
+    private static final String DEFAULT_DICT_PIN_COLOR = "FF0000";
+
+    private static final String EVENT_REGION_CHANGE = "regionChange";
+    private static final String EVENT_USER_LOCATION_CHANGE = "userLocationChange";
+    private static final String EVENT_ANNOTATIONS_CHANGE = "annotationsChange";
+
     private static final String PROPERTY_ACCESS_TOKEN = "accessToken";
     private static final String PROPERTY_DEBUG_MODE = "debugMode";
 
     private MapView map;
 
-    protected ArrayList<MapboxMarker> mapboxMarkers;
+    protected AnnotationRegistry annotationRegistry;
     protected AnnotationProxy selectedAnnotation;
 
-    private UserLocationOverlay userLocationOverlay;
+    private boolean annotationDiffing = false;
+    private AnnotationDiffStats annotationDiffStats = new AnnotationDiffStats();
+
+    private boolean clustering = false;
+    private AnnotationClusterer clusterer;
+    private float clusterRadius = AnnotationClusterer.DEFAULT_CLUSTER_RADIUS;
+    private int clusterMaxZoom = AnnotationClusterer.DEFAULT_CLUSTER_MAX_ZOOM;
+
+    private boolean virtualizeAnnotations = false;
+    private AnnotationVirtualizer virtualizer;
+    private float virtualizationMargin = AnnotationVirtualizer.DEFAULT_MARGIN;
+
+    private PointLayer pointLayer;
+
+    private final ArrayList<GeoJSONLoader> geoJSONLoaders = new ArrayList<GeoJSONLoader>();
+
+    private final ShapeOverlay shapeOverlay = new ShapeOverlay();
+    private boolean shapeOverlayAdded = false;
+    private final ArrayList<ShapeProxy> shapeProxies = new ArrayList<ShapeProxy>();
+
+    private final IdentityHashMap<HeatmapProxy, HeatmapOverlay> heatmaps = new IdentityHashMap<HeatmapProxy, HeatmapOverlay>();
+
+    // the shapes of each trail added to the shape overlay so far
+    private final IdentityHashMap<TrailRecorder, ArrayList<ShapeOverlay.Shape>> trails = new IdentityHashMap<TrailRecorder, ArrayList<ShapeOverlay.Shape>>();
+
+    private MBTilesTileLayer tileLayer;
+
+    private int tileCacheSize = TileCache.DEFAULT_MAX_BYTES;
+    private int compressedTileCacheSize = 0;
+    private final TileCache tileCache = new TileCache(tileCacheSize, compressedTileCacheSize);
+
+    private boolean tilePrefetching = true;
+    private TilePrefetcher prefetcher;
+
+    private AnnotationHitTester hitTester;
+
+    // annotations under the finger while a tap or long press is dispatched
+    private ArrayList<MapboxMarker> tapHits = NO_HITS;
+
+    private UserLocationMarkerOverlay userLocationOverlay;
+    private SmoothedLocationProvider locationProvider;
+    private boolean userLocationOverlayAdded = false;
+
+    private long userLocationMinTime = 0;
+    private float userLocationMinDistance = 0;
+    private boolean userLocationSmoothing = true;
+
+    private AnnotationAnimator annotationAnimator;
+
+    private volatile boolean asyncAnnotationUpdates = false;
+    private final AnnotationUpdateQueue annotationUpdateQueue = new AnnotationUpdateQueue(this);
+
+    private MapEventDispatcher eventDispatcher;
+
+    private MapLoader loader;
+    private KrollDict deferredZoomProperties;
+
+    private AnnotationProxy[] initialAnnotations;
+    private int initialAnnotationIndex;
+
+    private volatile boolean ready = false;
 
     public MapboxMapView(TiViewProxy proxy) {
 
@@ -77,7 +180,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         Log.d(LCAT, "[VIEW LIFECYCLE EVENT] view");
 
-        mapboxMarkers = new ArrayList<MapboxMarker>();
+        annotationRegistry = new AnnotationRegistry();
 
         LayoutParams lp = new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
         LinearLayout holder = new LinearLayout(proxy.getActivity());
@@ -91,6 +194,35 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
         map.setMapViewListener(this);
         map.addListener(this);
 
+        hitTester = new AnnotationHitTester(map, annotationRegistry, proxy.getActivity());
+
+        eventDispatcher = new MapEventDispatcher(proxy, map);
+
+        annotationAnimator = new AnnotationAnimator(map, new AnnotationAnimator.Listener() {
+
+            @Override
+            public void onAnnotationMoved(MapboxMarker mapboxMarker, boolean arrived) {
+
+                reindexAnnotation(mapboxMarker, arrived);
+            }
+        });
+
+        // taps are resolved through the spatial index instead of the marker scan of the SDK
+        map.addOverlay(new AnnotationTapOverlay(new AnnotationTapOverlay.Listener() {
+
+            @Override
+            public void onTap(float x, float y) {
+
+                dispatchTap(x, y, false);
+            }
+
+            @Override
+            public void onLongPress(float x, float y) {
+
+                dispatchTap(x, y, true);
+            }
+        }));
+
         this.setNativeView(holder);
     }
 
@@ -103,17 +235,51 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         super.processProperties(props);
 
-        Log.d(LCAT, "[VIEW LIFECYCLE EVENT] processProperties " + props);
+        if (Log.isDebugModeEnabled()) {
+
+            Log.d(LCAT, "[VIEW LIFECYCLE EVENT] processProperties " + props);
+        }
+
+        long start = SystemClock.uptimeMillis();
+
+        // the tile source and annotations are prepared off the UI thread
+        boolean asyncInit = TiConvert.toBoolean(props, PROPERTY_ASYNC_INIT, false);
+
+        String[] mapNames = null;
+        AnnotationProxy[] annotationProxies = null;
+
+        // time spent on the tile source and annotations without asyncInit
+        long tileSourceTime = 0;
+        long annotationTime = 0;
 
         if (props.containsKey(PROPERTY_ACCESS_TOKEN)) {
 
             map.setAccessToken(TiConvert.toString(props, PROPERTY_ACCESS_TOKEN));
         }
 
+        if (!props.containsKey(PROPERTY_MAP)) {
+
+            long tileSourceStart = SystemClock.uptimeMillis();
+
+            setDefaultTileSource();
+
+            tileSourceTime += SystemClock.uptimeMillis() - tileSourceStart;
+        }
+
         if (props.containsKey(TiC.PROPERTY_REGION)) {
 
             HashMap regionDict = (HashMap) props.get(TiC.PROPERTY_REGION);
             setRegion(regionDict);
+            notifyOfRegionChange(regionDict);
+        }
+
+        if (props.containsKey(PROPERTY_USER_LOCATION_MIN_TIME) || props.containsKey(PROPERTY_USER_LOCATION_MIN_DISTANCE) || props.containsKey(PROPERTY_USER_LOCATION_SMOOTHING)) {
+
+            userLocationMinTime = TiConvert.toInt(props.get(PROPERTY_USER_LOCATION_MIN_TIME), (int) userLocationMinTime);
+            userLocationMinDistance = TiConvert.toFloat(props.get(PROPERTY_USER_LOCATION_MIN_DISTANCE), userLocationMinDistance);
+            userLocationSmoothing = TiConvert.toBoolean(props.get(PROPERTY_USER_LOCATION_SMOOTHING), userLocationSmoothing);
+
+            updateLocationProvider();
         }
 
         if (props.containsKey(PROPERTY_USER_LOCATION)) {
@@ -121,29 +287,101 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
             Object userLocationFlag = props.get(PROPERTY_USER_LOCATION);
             Boolean show = TiConvert.toBoolean(userLocationFlag);
             setUserLocation(show);
+            notifyOfUserLocationChange(show);
+        }
+
+        if (props.containsKey(PROPERTY_ANNOTATION_DIFFING)) {
+
+            annotationDiffing = TiConvert.toBoolean(props, PROPERTY_ANNOTATION_DIFFING, false);
+        }
+
+        if (props.containsKey(PROPERTY_ASYNC_ANNOTATION_UPDATES)) {
+
+            asyncAnnotationUpdates = TiConvert.toBoolean(props, PROPERTY_ASYNC_ANNOTATION_UPDATES, false);
+        }
+
+        if (props.containsKey(PROPERTY_CLUSTER_RADIUS)) {
+
+            clusterRadius = TiConvert.toFloat(props, PROPERTY_CLUSTER_RADIUS, AnnotationClusterer.DEFAULT_CLUSTER_RADIUS);
+        }
+
+        if (props.containsKey(PROPERTY_CLUSTER_MAX_ZOOM)) {
+
+            clusterMaxZoom = TiConvert.toInt(props, PROPERTY_CLUSTER_MAX_ZOOM);
+        }
+
+        if (props.containsKey(PROPERTY_VIRTUALIZATION_MARGIN)) {
+
+            virtualizationMargin = TiConvert.toFloat(props, PROPERTY_VIRTUALIZATION_MARGIN, AnnotationVirtualizer.DEFAULT_MARGIN);
+        }
+
+        if (props.containsKey(PROPERTY_VIRTUALIZE_ANNOTATIONS)) {
+
+            setVirtualizeAnnotations(TiConvert.toBoolean(props, PROPERTY_VIRTUALIZE_ANNOTATIONS, false));
+        }
+
+        if (props.containsKey(PROPERTY_CLUSTERING)) {
+
+            setClustering(TiConvert.toBoolean(props, PROPERTY_CLUSTERING, false));
         }
 
         if (props.containsKey(TiC.PROPERTY_ANNOTATIONS)) {
 
             Object[] annotations = (Object[]) props.get(TiC.PROPERTY_ANNOTATIONS);
-            addAnnotations(annotations);
+
+            if (asyncInit) {
+
+                annotationProxies = toAnnotationProxies(annotations);
+
+            } else {
+
+                long annotationStart = SystemClock.uptimeMillis();
+
+                addAnnotations(annotations);
+
+                annotationTime = SystemClock.uptimeMillis() - annotationStart;
+            }
+
+            notifyOfAnnotationsChange(annotations);
+        }
+
+        if (props.containsKey(PROPERTY_TILE_CACHE_SIZE) || props.containsKey(PROPERTY_COMPRESSED_TILE_CACHE_SIZE)) {
+
+            tileCacheSize = TiConvert.toInt(props.get(PROPERTY_TILE_CACHE_SIZE), tileCacheSize);
+            compressedTileCacheSize = TiConvert.toInt(props.get(PROPERTY_COMPRESSED_TILE_CACHE_SIZE), compressedTileCacheSize);
+
+            tileCache.resize(tileCacheSize, compressedTileCacheSize);
+        }
+
+        if (props.containsKey(PROPERTY_TILE_PREFETCHING)) {
+
+            setTilePrefetching(TiConvert.toBoolean(props, PROPERTY_TILE_PREFETCHING, true));
+        }
+
+        if (props.containsKey(PROPERTY_MOVEMENT_EVENT_INTERVAL)) {
+
+            eventDispatcher.setInterval(TiConvert.toInt(props.get(PROPERTY_MOVEMENT_EVENT_INTERVAL), MapEventDispatcher.DEFAULT_INTERVAL));
+        }
+
+        if (props.containsKey(PROPERTY_REGION_CHANGED_DELAY)) {
+
+            eventDispatcher.setRegionChangedDelay(TiConvert.toInt(props.get(PROPERTY_REGION_CHANGED_DELAY), MapEventDispatcher.DEFAULT_REGION_CHANGED_DELAY));
         }
 
         if (props.containsKey(PROPERTY_MAP)) {
 
-            String mapName = TiConvert.toString(props, PROPERTY_MAP);
+            if (asyncInit) {
 
-            mapName += ".mbtiles";
+                mapNames = toMapNames(props.get(PROPERTY_MAP));
 
-            TileLayer mbTileLayer = new MBTilesLayer(proxy.getActivity(), mapName);
-            map.setTileSource(new ITileLayer[]{mbTileLayer});
+            } else {
 
-            map.setScrollableAreaLimit(mbTileLayer.getBoundingBox());
+                long tileSourceStart = SystemClock.uptimeMillis();
 
-            map.setMinZoomLevel(map.getTileProvider().getMinimumZoomLevel());
-            map.setMaxZoomLevel(map.getTileProvider().getMaximumZoomLevel());
+                setMap(props.get(PROPERTY_MAP));
 
-            map.setCenter(map.getTileProvider().getCenterCoordinate());
+                tileSourceTime += SystemClock.uptimeMillis() - tileSourceStart;
+            }
         }
 
         if (props.containsKey(PROPERTY_DEBUG_MODE)) {
@@ -151,6 +389,76 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
             map.setDebugMode(TiConvert.toBoolean(props, PROPERTY_DEBUG_MODE, false));
         }
 
+        if (asyncInit && (mapNames != null || annotationProxies != null)) {
+
+            // zoom levels default to those of the tile source, applied once it is open
+            deferredZoomProperties = props;
+
+            startLoader(mapNames, annotationProxies);
+
+        } else {
+
+            applyZoomProperties(props);
+
+            fireReady(start, tileSourceTime, annotationTime, annotationRegistry.size());
+        }
+    }
+
+    //
+    // Local helper methods to fire the somethingChange events
+    //
+    private void notifyOfRegionChange(HashMap newRegion) {
+
+        if (proxy.hasListeners(EVENT_REGION_CHANGE)) {
+
+            KrollDict event = new KrollDict();
+
+            event.put(TiC.PROPERTY_REGION, newRegion);
+
+            proxy.fireEvent(EVENT_REGION_CHANGE, event);
+        }
+    }
+
+    private void notifyOfUserLocationChange(Boolean flag) {
+
+        if (proxy.hasListeners(EVENT_USER_LOCATION_CHANGE)) {
+
+            KrollDict event = new KrollDict();
+
+            event.put(PROPERTY_USER_LOCATION, flag);
+
+            proxy.fireEvent(EVENT_USER_LOCATION_CHANGE, event);
+        }
+    }
+
+    private void notifyOfAnnotationsChange(Object[] annotations) {
+
+        if (proxy.hasListeners(EVENT_ANNOTATIONS_CHANGE)) {
+
+            KrollDict event = new KrollDict();
+
+            event.put(TiC.PROPERTY_ANNOTATIONS, annotations);
+
+            proxy.fireEvent(EVENT_ANNOTATIONS_CHANGE, event);
+        }
+    }
+
+    /**
+     * Shows the example map until a map is set, with the zoom levels and
+     * center of its TileJSON.
+     */
+    private void setDefaultTileSource() {
+
+        map.setTileSource(new MapboxTileLayer(DEFAULT_MAP_ID));
+
+        map.setMinZoomLevel(map.getTileProvider().getMinimumZoomLevel());
+        map.setMaxZoomLevel(map.getTileProvider().getMaximumZoomLevel());
+
+        map.setCenter(map.getTileProvider().getCenterCoordinate());
+    }
+
+    private void applyZoomProperties(KrollDict props) {
+
         if (props.containsKey(PROPERTY_MIN_ZOOM_LEVEL)) {
 
             map.setMinZoomLevel(TiConvert.toFloat(props, PROPERTY_MIN_ZOOM_LEVEL, map.getTileProvider().getMinimumZoomLevel()));
@@ -175,7 +483,10 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
         super.propertyChanged(key, oldValue, newValue, proxy);
 
 
-        Log.d(LCAT, "[VIEW LIFECYCLE EVENT] propertyChanged: " + key + ' ' + oldValue + ' ' + newValue);
+        if (Log.isDebugModeEnabled()) {
+
+            Log.d(LCAT, "[VIEW LIFECYCLE EVENT] propertyChanged: " + key + ' ' + oldValue + ' ' + newValue);
+        }
 
 
         if (map == null) {
@@ -208,6 +519,113 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
             map.setDebugMode(TiConvert.toBoolean(newValue, false));
         }
 
+        if (key.equals(PROPERTY_ANNOTATION_DIFFING)) {
+
+            annotationDiffing = TiConvert.toBoolean(newValue, false);
+        }
+
+        if (key.equals(PROPERTY_ASYNC_ANNOTATION_UPDATES)) {
+
+            asyncAnnotationUpdates = TiConvert.toBoolean(newValue, false);
+        }
+
+        if (key.equals(PROPERTY_CLUSTERING)) {
+
+            setClustering(TiConvert.toBoolean(newValue, false));
+        }
+
+        if (key.equals(PROPERTY_CLUSTER_RADIUS)) {
+
+            clusterRadius = TiConvert.toFloat(newValue, AnnotationClusterer.DEFAULT_CLUSTER_RADIUS);
+
+            if (clusterer != null) {
+
+                clusterer.setRadius(clusterRadius);
+            }
+        }
+
+        if (key.equals(PROPERTY_CLUSTER_MAX_ZOOM)) {
+
+            clusterMaxZoom = TiConvert.toInt(newValue, AnnotationClusterer.DEFAULT_CLUSTER_MAX_ZOOM);
+
+            if (clusterer != null) {
+
+                clusterer.setMaxZoom(clusterMaxZoom);
+            }
+        }
+
+        if (key.equals(PROPERTY_VIRTUALIZE_ANNOTATIONS)) {
+
+            setVirtualizeAnnotations(TiConvert.toBoolean(newValue, false));
+        }
+
+        if (key.equals(PROPERTY_VIRTUALIZATION_MARGIN)) {
+
+            virtualizationMargin = TiConvert.toFloat(newValue, AnnotationVirtualizer.DEFAULT_MARGIN);
+
+            if (virtualizer != null) {
+
+                virtualizer.setMargin(virtualizationMargin);
+                virtualizer.scheduleRefresh();
+            }
+
+            if (pointLayer != null) {
+
+                pointLayer.setMargin(virtualizationMargin);
+                pointLayer.scheduleRefresh();
+            }
+        }
+
+        if (key.equals(PROPERTY_TILE_CACHE_SIZE)) {
+
+            tileCacheSize = TiConvert.toInt(newValue, TileCache.DEFAULT_MAX_BYTES);
+
+            tileCache.resize(tileCacheSize, compressedTileCacheSize);
+        }
+
+        if (key.equals(PROPERTY_COMPRESSED_TILE_CACHE_SIZE)) {
+
+            compressedTileCacheSize = TiConvert.toInt(newValue, 0);
+
+            tileCache.resize(tileCacheSize, compressedTileCacheSize);
+        }
+
+        if (key.equals(PROPERTY_TILE_PREFETCHING)) {
+
+            setTilePrefetching(TiConvert.toBoolean(newValue, true));
+        }
+
+        if (key.equals(PROPERTY_MOVEMENT_EVENT_INTERVAL)) {
+
+            eventDispatcher.setInterval(TiConvert.toInt(newValue, MapEventDispatcher.DEFAULT_INTERVAL));
+        }
+
+        if (key.equals(PROPERTY_REGION_CHANGED_DELAY)) {
+
+            eventDispatcher.setRegionChangedDelay(TiConvert.toInt(newValue, MapEventDispatcher.DEFAULT_REGION_CHANGED_DELAY));
+        }
+
+        if (key.equals(PROPERTY_USER_LOCATION_MIN_TIME)) {
+
+            userLocationMinTime = TiConvert.toInt(newValue, 0);
+
+            updateLocationProvider();
+        }
+
+        if (key.equals(PROPERTY_USER_LOCATION_MIN_DISTANCE)) {
+
+            userLocationMinDistance = TiConvert.toFloat(newValue, 0);
+
+            updateLocationProvider();
+        }
+
+        if (key.equals(PROPERTY_USER_LOCATION_SMOOTHING)) {
+
+            userLocationSmoothing = TiConvert.toBoolean(newValue, true);
+
+            updateLocationProvider();
+        }
+
         if (key.equals(PROPERTY_MIN_ZOOM_LEVEL)) {
 
             map.setMinZoomLevel(TiConvert.toFloat(newValue, map.getTileProvider().getMinimumZoomLevel()));
@@ -241,6 +659,16 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
     protected void addAnnotation(AnnotationProxy annotation) {
 
+        annotation.processOptions();
+
+        addProcessedAnnotation(annotation);
+    }
+
+    /**
+     * Adds an annotation whose options were processed already.
+     */
+    private void addProcessedAnnotation(AnnotationProxy annotation) {
+
         // if annotation already on map, remove it first then re-add it
         MapboxMarker mapboxMarker = annotation.getMapboxMarker();
 
@@ -249,112 +677,1426 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
             removeAnnotation(mapboxMarker);
         }
 
-        annotation.processOptions();
-
         HashMap markerOptions = (HashMap) annotation.getMarkerOptions();
 
+        mapboxMarker = new MapboxMarker(null, annotation);
 
-        // add annotation to map view
-        Marker marker = new Marker(map, (String) markerOptions.get(TiC.PROPERTY_TITLE), (String) markerOptions.get(TiC.PROPERTY_SUBTITLE), new LatLng((Double) markerOptions.get(TiC.PROPERTY_LATITUDE), (Double) markerOptions.get(TiC.PROPERTY_LONGITUDE)));
-
-        if (markerOptions.get(AnnotationProxy.PROPERTY_ICON) != null && markerOptions.get(AnnotationProxy.PROPERTY_PINCOLOR) != null) {
+        mapboxMarker.setPosition((Double) markerOptions.get(TiC.PROPERTY_LATITUDE), (Double) markerOptions.get(TiC.PROPERTY_LONGITUDE));
 
-            marker.setIcon(new Icon(proxy.getActivity(), Icon.Size.MEDIUM, (String) markerOptions.get(AnnotationProxy.PROPERTY_ICON), (String) markerOptions.get(AnnotationProxy.PROPERTY_PINCOLOR)));
-        }
+        annotation.setMapboxMarker(mapboxMarker);
+        annotation.setDelegate(this);
 
+        if (virtualizer != null) {
 
-        Log.d(LCAT, "Created marker:" + marker);
+            // the marker is created once the annotation comes into view
+            applyIcon(mapboxMarker, markerOptions);
 
+            annotationRegistry.add(mapboxMarker);
 
-        map.addMarker(marker);
+            virtualizer.add(mapboxMarker);
 
-        mapboxMarker = new MapboxMarker(marker, annotation);
+            return;
+        }
 
-        annotation.setMapboxMarker(mapboxMarker);
+        // add annotation to map view
+        Marker marker = createAnnotationMarker(mapboxMarker);
 
-        mapboxMarkers.add(mapboxMarker);
-    }
+        if (Log.isDebugModeEnabled()) {
 
-    protected void addAnnotations(Object[] annotations) {
+            Log.d(LCAT, "Created marker:" + marker);
+        }
 
-        for (int i = 0; i < annotations.length; i++) {
+        annotationRegistry.add(mapboxMarker);
 
-            Object obj = annotations[i];
+        if (clusterer != null) {
 
-            if (obj instanceof AnnotationProxy) {
+            // shown by the clusterer once the index is rebuilt
+            clusterer.invalidateIndex();
 
-                AnnotationProxy annotation = (AnnotationProxy) obj;
+        } else {
 
-                addAnnotation(annotation);
-            }
+            map.addMarker(marker);
         }
     }
 
-    protected void updateAnnotations(Object[] annotations) {
+    /**
+     * Creates the native marker of an annotation from the options of its proxy
+     * and attaches it to the annotation.
+     */
+    @Override
+    public Marker createAnnotationMarker(MapboxMarker mapboxMarker) {
 
-        // First, remove old annotations from map
-        removeAllAnnotations();
+        AnnotationProxy annotation = mapboxMarker.getProxy();
 
-        // Then we add new annotations to the map
-        addAnnotations(annotations);
+        HashMap markerOptions = annotation != null ? (HashMap) annotation.getMarkerOptions() : new HashMap();
+
+        Marker marker = new AnnotationMarker(map, (String) markerOptions.get(TiC.PROPERTY_TITLE), (String) markerOptions.get(TiC.PROPERTY_SUBTITLE), new LatLng(mapboxMarker.getLatitude(), mapboxMarker.getLongitude()));
+
+        annotationRegistry.replaceMarker(mapboxMarker, marker);
+
+        applyIcon(mapboxMarker, markerOptions);
+
+        return marker;
     }
 
-    protected void removeAllAnnotations() {
+    /**
+     * Prepares a recycled marker, which already has the icon of the annotation,
+     * for showing the given annotation.
+     */
+    @Override
+    public void bindAnnotationMarker(Marker marker, MapboxMarker mapboxMarker) {
 
-        for (int i = 0; i < mapboxMarkers.size(); i++) {
+        AnnotationProxy annotation = mapboxMarker.getProxy();
 
-            MapboxMarker mapboxMarker = mapboxMarkers.get(i);
+        LatLng position = new LatLng(mapboxMarker.getLatitude(), mapboxMarker.getLongitude());
 
-            AnnotationProxy proxy = mapboxMarker.getProxy();
+        if (marker instanceof AnnotationMarker) {
 
-            if (proxy != null) {
+            ((AnnotationMarker) marker).setPointDeferred(position);
 
-                proxy.setMapboxMarker(null);
-            }
-        }
+        } else {
 
-        mapboxMarkers.clear();
+            marker.setPoint(position);
+        }
 
-        map.clear();
+        marker.setTitle(annotation != null ? annotation.getTitle() : "");
+        marker.setDescription(annotation != null ? annotation.getSubtitle() : null);
     }
 
-    public MapboxMarker findMarkerByTitle(String title) {
+    protected void addAnnotations(Object[] annotations) {
 
-        for (int i = 0; i < mapboxMarkers.size(); i++) {
+        for (int i = 0; i < annotations.length; i++) {
 
-            MapboxMarker mapboxMarker = mapboxMarkers.get(i);
+            Object obj = annotations[i];
 
-            AnnotationProxy annoProxy = mapboxMarker.getProxy();
+            AnnotationProxy annotation = toAnnotationProxy(annotations[i]);
 
-            if (annoProxy != null && annoProxy.getTitle().equals(title)) {
+            if (annotation != null) {
 
-                return mapboxMarker;
+                addAnnotation(annotation);
             }
         }
-
-        return null;
     }
 
-    protected void removeAnnotation(Object annotation) {
-
-        MapboxMarker mapboxMarker = null;
+    private AnnotationProxy[] toAnnotationProxies(Object[] annotations) {
 
-        if (annotation instanceof MapboxMarker) {
+        ArrayList<AnnotationProxy> proxies = new ArrayList<AnnotationProxy>(annotations.length);
 
-            mapboxMarker = (MapboxMarker) annotation;
+        for (int i = 0; i < annotations.length; i++) {
 
-        } else if (annotation instanceof AnnotationProxy) {
+            AnnotationProxy annotation = toAnnotationProxy(annotations[i]);
 
-            mapboxMarker = ((AnnotationProxy) annotation).getMapboxMarker();
+            if (annotation != null) {
+
+                proxies.add(annotation);
+            }
+        }
+
+        return proxies.toArray(new AnnotationProxy[proxies.size()]);
+    }
+
+    private AnnotationProxy toAnnotationProxy(Object obj) {
+
+        if (obj instanceof AnnotationProxy) {
+
+            return (AnnotationProxy) obj;
+        }
+
+        if (obj instanceof HashMap) {
+
+            // plain dictionaries, as accepted by the former MapView
+            KrollDict dict = new KrollDict((HashMap) obj);
+
+            if (!dict.containsKey(TiC.PROPERTY_IMAGE) && !dict.containsKey(AnnotationProxy.PROPERTY_ICON) && !dict.containsKey(AnnotationProxy.PROPERTY_PINCOLOR)) {
+
+                dict.put(AnnotationProxy.PROPERTY_ICON, DEFAULT_DICT_ICON);
+                dict.put(AnnotationProxy.PROPERTY_PINCOLOR, DEFAULT_DICT_PIN_COLOR);
+            }
+
+            AnnotationProxy annotation = new AnnotationProxy();
+
+            annotation.handleCreationDict(dict);
+
+            return annotation;
+        }
+
+        return null;
+    }
+
+    private void applyIcon(MapboxMarker mapboxMarker, HashMap markerOptions) {
+
+        String styleKey = styleKeyOf(markerOptions);
+
+        Marker marker = mapboxMarker.getMarker();
+
+        if (styleKey == null) {
+
+            if (mapboxMarker.getStyleKey() != null) {
+
+                // the image or icon was removed, back to the default pin
+                if (marker != null) {
+
+                    IconCache.getInstance().cancel(marker);
+                    ImagePool.getInstance().cancel(marker);
+
+                    marker.setMarker(marker.getDefaultPinDrawable());
+                    marker.invalidate();
+                }
+
+                mapboxMarker.setStyleKey(null);
+            }
+
+            return;
+        }
+
+        if (marker != null) {
+
+            String imageKey = (String) markerOptions.get(AnnotationProxy.PROPERTY_IMAGE_KEY);
+
+            if (imageKey != null) {
+
+                ImagePool.getInstance().setImage(proxy.getActivity(), marker, imageKey, (TiDrawableReference) markerOptions.get(TiC.PROPERTY_IMAGE));
+
+            } else {
+
+                IconCache.getInstance().setIcon(proxy.getActivity(), marker, Icon.Size.MEDIUM, (String) markerOptions.get(AnnotationProxy.PROPERTY_ICON), (String) markerOptions.get(AnnotationProxy.PROPERTY_PINCOLOR));
+            }
+        }
+
+        mapboxMarker.setStyleKey(styleKey);
+    }
+
+    /**
+     * Returns the key shared by annotations that look the same, or null for the
+     * default marker. An image takes precedence over icon and pinColor.
+     */
+    private static String styleKeyOf(HashMap markerOptions) {
+
+        String imageKey = (String) markerOptions.get(AnnotationProxy.PROPERTY_IMAGE_KEY);
+
+        if (imageKey != null) {
+
+            return "image|" + imageKey;
+        }
+
+        String icon = (String) markerOptions.get(AnnotationProxy.PROPERTY_ICON);
+        String pinColor = (String) markerOptions.get(AnnotationProxy.PROPERTY_PINCOLOR);
+
+        return (icon != null && pinColor != null) ? icon + "|" + pinColor : null;
+    }
+
+    protected void updateAnnotations(Object[] annotations) {
+
+        // the new annotations replace the initial ones not added yet
+        dropInitialAnnotations();
+
+        if (annotationDiffing) {
+
+            diffAnnotations(annotations);
+
+            return;
+        }
+
+        // First, remove old annotations from map
+        removeAllAnnotations();
+
+        // Then we add new annotations to the map
+        addAnnotations(annotations);
+    }
+
+    /**
+     * Replaces the annotations on the map with the given set, keyed by the
+     * annotation id. Markers of annotations whose id is already on the map are
+     * reused and only moved or restyled when their options changed; only the
+     * remaining annotations are added or removed.
+     */
+    protected void diffAnnotations(Object[] annotations) {
+
+        AnnotationDiffStats stats = new AnnotationDiffStats();
+
+        IdentityHashMap<MapboxMarker, Boolean> kept = new IdentityHashMap<MapboxMarker, Boolean>();
+        ArrayList<AnnotationProxy> added = new ArrayList<AnnotationProxy>();
+
+        boolean moved = false;
+
+        for (int i = 0; i < annotations.length; i++) {
+
+            AnnotationProxy annotation = toAnnotationProxy(annotations[i]);
+
+            if (annotation == null) {
+
+                continue;
+            }
+
+            String id = annotation.getAnnotationId();
+
+            MapboxMarker mapboxMarker = annotationRegistry.getById(id);
+
+            if (mapboxMarker == null || kept.containsKey(mapboxMarker)) {
+
+                added.add(annotation);
+
+                continue;
+            }
+
+            kept.put(mapboxMarker, Boolean.TRUE);
+
+            stats.reused++;
+
+            moved |= reuseMarker(mapboxMarker, annotation, stats);
+        }
+
+        ArrayList<MapboxMarker> entries = annotationRegistry.getEntries();
+        ArrayList<Marker> removedMarkers = new ArrayList<Marker>();
+
+        for (int i = 0; i < entries.size(); i++) {
+
+            MapboxMarker mapboxMarker = entries.get(i);
+
+            if (kept.containsKey(mapboxMarker)) {
+
+                continue;
+            }
+
+            annotationRegistry.remove(mapboxMarker);
+
+            AnnotationProxy annotation = mapboxMarker.getProxy();
+
+            if (annotation != null) {
+
+                if (annotation.equals(selectedAnnotation)) {
+
+                    selectedAnnotation = null;
+                }
+
+                annotation.setMapboxMarker(null);
+                annotation.setDelegate(null);
+            }
+
+            if (mapboxMarker.getMarker() != null) {
+
+                removedMarkers.add(mapboxMarker.getMarker());
+            }
+
+            if (clusterer != null) {
+
+                clusterer.forget(mapboxMarker);
+            }
+
+            if (virtualizer != null) {
+
+                virtualizer.remove(mapboxMarker);
+            }
+
+            stats.removed++;
+        }
+
+        if (!removedMarkers.isEmpty()) {
+
+            map.removeMarkers(removedMarkers);
+        }
+
+        for (int i = 0; i < added.size(); i++) {
+
+            addAnnotation(added.get(i));
+
+            stats.added++;
+        }
+
+        if (moved) {
+
+            map.invalidate();
+
+            if (clusterer != null) {
+
+                clusterer.invalidateIndex();
+            }
+        }
+
+        annotationDiffStats = stats;
+
+        if (Log.isDebugModeEnabled()) {
+
+            Log.d(LCAT, "Diffed annotations: " + stats.toKrollDict());
+        }
+    }
+
+    /**
+     * Updates the marker of an annotation that stays on the map from the
+     * options of the given proxy.
+     *
+     * @return true if the marker was moved and the map needs to be invalidated
+     */
+    private boolean reuseMarker(MapboxMarker mapboxMarker, AnnotationProxy annotation, AnnotationDiffStats stats) {
+
+        AnnotationProxy previous = mapboxMarker.getProxy();
+
+        annotation.processOptions();
+
+        if (previous != annotation) {
+
+            if (previous != null) {
+
+                previous.setMapboxMarker(null);
+                previous.setDelegate(null);
+            }
+
+            annotationRegistry.rebind(mapboxMarker, annotation);
+
+            annotation.setMapboxMarker(mapboxMarker);
+            annotation.setDelegate(this);
+
+            if (previous != null && previous.equals(selectedAnnotation)) {
+
+                selectedAnnotation = annotation;
+            }
+        }
+
+        HashMap markerOptions = (HashMap) annotation.getMarkerOptions();
+
+        Marker marker = mapboxMarker.getMarker();
+
+        boolean moved = false;
+        boolean restyled = false;
+
+        double latitude = (Double) markerOptions.get(TiC.PROPERTY_LATITUDE);
+        double longitude = (Double) markerOptions.get(TiC.PROPERTY_LONGITUDE);
+
+        boolean animated = annotationAnimator.isAnimatingTo(mapboxMarker, latitude, longitude);
+
+        if (!animated && (mapboxMarker.getLatitude() != latitude || mapboxMarker.getLongitude() != longitude)) {
+
+            annotationAnimator.cancel(mapboxMarker);
+
+            mapboxMarker.setPosition(latitude, longitude);
+
+            if (marker instanceof AnnotationMarker) {
+
+                ((AnnotationMarker) marker).setPointDeferred(new LatLng(latitude, longitude));
+
+            } else if (marker != null) {
+
+                marker.setPoint(new LatLng(latitude, longitude));
+            }
+
+            annotationRegistry.reindex(mapboxMarker);
+
+            if (virtualizer != null) {
+
+                virtualizer.move(mapboxMarker);
+            }
+
+            moved = true;
+        }
+
+        String title = (String) markerOptions.get(TiC.PROPERTY_TITLE);
+        String subtitle = (String) markerOptions.get(TiC.PROPERTY_SUBTITLE);
+
+        if (marker == null) {
+
+            // out of view, the title and subtitle are read when the marker is created
+            annotationRegistry.retitle(mapboxMarker);
+
+        } else {
+
+            if (!equalStrings(title, marker.getTitle())) {
+
+                marker.setTitle(title);
+
+                annotationRegistry.retitle(mapboxMarker);
+
+                restyled = true;
+            }
+
+            if (!equalStrings(subtitle, marker.getDescription())) {
+
+                marker.setDescription(subtitle);
+
+                restyled = true;
+            }
+        }
+
+        String styleKey = styleKeyOf(markerOptions);
+
+        if (!equalStrings(styleKey, mapboxMarker.getStyleKey())) {
+
+            applyIcon(mapboxMarker, markerOptions);
+
+            restyled = true;
+        }
+
+        if (moved) {
+
+            stats.moved++;
+        }
+
+        if (restyled) {
+
+            stats.restyled++;
+        }
+
+        return moved;
+    }
+
+    private static boolean equalStrings(String a, String b) {
+
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Replaces the tile source with the MBTiles file of the given name, or one
+     * layer combining the files of an array of names.
+     */
+    private void setMap(Object value) {
+
+        String[] mapNames = toMapNames(value);
+
+        if (mapNames == null) {
+
+            return;
+        }
+
+        MBTilesTileLayer mbTileLayer;
+
+        try {
+
+            mbTileLayer = new MBTilesTileLayer(proxy.getActivity(), mapNames);
+
+        } catch (SQLiteException e) {
+
+            Log.e(LCAT, "Unable to open MBTiles file " + TextUtils.join(", ", mapNames) + ": " + e.getMessage());
+
+            return;
+        }
+
+        setTileLayer(mbTileLayer);
+    }
+
+    private static String[] toMapNames(Object value) {
+
+        if (value instanceof Object[]) {
+
+            Object[] names = (Object[]) value;
+
+            String[] mapNames = new String[names.length];
+
+            for (int i = 0; i < names.length; i++) {
+
+                mapNames[i] = TiConvert.toString(names[i]) + ".mbtiles";
+            }
+
+            return mapNames;
+        }
+
+        return value != null ? new String[]{TiConvert.toString(value) + ".mbtiles"} : null;
+    }
+
+    private void setTileLayer(MBTilesTileLayer mbTileLayer) {
+
+        mbTileLayer.setTileCache(tileCache);
+
+        map.setTileSource(new ITileLayer[]{mbTileLayer});
+
+        if (tileLayer != null) {
+
+            tileLayer.detach();
+        }
+
+        // tiles of the former file must not be shown for the new one
+        tileCache.clear();
+
+        tileLayer = mbTileLayer;
+
+        setTilePrefetching(tilePrefetching);
+
+        map.setScrollableAreaLimit(mbTileLayer.getBoundingBox());
+
+        map.setMinZoomLevel(map.getTileProvider().getMinimumZoomLevel());
+        map.setMaxZoomLevel(map.getTileProvider().getMaximumZoomLevel());
+
+        map.setCenter(map.getTileProvider().getCenterCoordinate());
+    }
+
+    private void startLoader(String[] mapNames, AnnotationProxy[] annotationProxies) {
+
+        if (loader != null) {
+
+            loader.cancel();
+        }
+
+        loader = new MapLoader(proxy.getActivity(), mapNames, annotationProxies != null ? annotationProxies : new AnnotationProxy[0], this);
+        loader.start();
+    }
+
+    /**
+     * Applies what the loader prepared: the tile source at once, the
+     * annotations in slices, one per UI message, so frames keep being drawn
+     * in between. Fires the ready event once all are added.
+     */
+    @Override
+    public void onMapLoaded(final MapLoader loaded) {
+
+        if (loaded != loader || map == null) {
+
+            return;
+        }
+
+        loader = null;
+
+        if (loaded.getTileLayer() != null) {
+
+            setTileLayer(loaded.getTileLayer());
+        }
+
+        if (deferredZoomProperties != null) {
+
+            applyZoomProperties(deferredZoomProperties);
+
+            deferredZoomProperties = null;
+        }
+
+        initialAnnotations = loaded.getAnnotations();
+        initialAnnotationIndex = 0;
+
+        map.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (map == null || initialAnnotations == null) {
+
+                    return;
+                }
+
+                int end = Math.min(initialAnnotations.length, initialAnnotationIndex + INITIAL_ANNOTATIONS_SLICE);
+
+                for (int i = initialAnnotationIndex; i < end; i++) {
+
+                    addProcessedAnnotation(initialAnnotations[i]);
+                }
+
+                initialAnnotationIndex = end;
+
+                if (end < initialAnnotations.length) {
+
+                    map.post(this);
+
+                    return;
+                }
+
+                initialAnnotations = null;
+
+                fireReady(loaded.getStartTime(), loaded.getTileSourceTime(), loaded.getAnnotationTime(), annotationRegistry.size());
+            }
+        });
+    }
+
+    /**
+     * Stops adding the initial annotations, the view is ready nonetheless.
+     */
+    private void dropInitialAnnotations() {
+
+        if (initialAnnotations != null) {
+
+            initialAnnotations = null;
+
+            fireReady(SystemClock.uptimeMillis(), 0, 0, annotationRegistry.size());
+        }
+    }
+
+    /**
+     * Fires the ready event once, after the current UI message so listeners
+     * added right after creating the view get it as well.
+     */
+    private void fireReady(final long start, final long tileSourceTime, final long annotationTime, final int annotationCount) {
+
+        if (ready) {
+
+            return;
+        }
+
+        ready = true;
+
+        final long duration = SystemClock.uptimeMillis() - start;
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (map == null) {
+
+                    return;
+                }
+
+                KrollDict event = new KrollDict();
+
+                event.put("duration", duration);
+                event.put("tileSourceTime", tileSourceTime);
+                event.put("annotationTime", annotationTime);
+                event.put("annotations", annotationCount);
+
+                proxy.fireEvent(EVENT_READY, event);
+            }
+        });
+    }
+
+    public boolean isReady() {
+
+        return ready;
+    }
+
+    /**
+     * Starts prefetching tiles once an MBTiles layer is shown.
+     */
+    private void setTilePrefetching(boolean enabled) {
+
+        tilePrefetching = enabled;
+
+        if (enabled && tileLayer != null) {
+
+            if (prefetcher == null) {
+
+                prefetcher = new TilePrefetcher(map);
+            }
+
+            prefetcher.setLayer(tileLayer);
+
+        } else if (!enabled && prefetcher != null) {
+
+            prefetcher.release();
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Returns the read counters of the MBTiles layer set with the map
+     * property, or null.
+     */
+    public KrollDict getTileStats() {
+
+        MBTilesTileLayer layer = tileLayer;
+
+        return layer != null ? layer.getStats() : null;
+    }
+
+    public KrollDict getTileCacheStats() {
+
+        KrollDict stats = tileCache.getStats();
+
+        TilePrefetcher current = prefetcher;
+
+        if (current != null) {
+
+            stats.putAll(current.getStats());
+        }
+
+        return stats;
+    }
+
+    public AnnotationDiffStats getAnnotationDiffStats() {
+
+        return annotationDiffStats;
+    }
+
+    protected void removeAllAnnotations() {
+
+        dropInitialAnnotations();
+
+        annotationAnimator.cancelAll();
+
+        ArrayList<MapboxMarker> entries = annotationRegistry.getEntries();
+
+        for (int i = 0; i < entries.size(); i++) {
+
+            AnnotationProxy proxy = entries.get(i).getProxy();
+
+            if (proxy != null) {
+
+                proxy.setMapboxMarker(null);
+                proxy.setDelegate(null);
+            }
+        }
+
+        annotationRegistry.clear();
+
+        selectedAnnotation = null;
+
+        map.clear();
+
+        if (clusterer != null) {
+
+            clusterer.clearShown();
+            clusterer.invalidateIndex();
+        }
+
+        if (virtualizer != null) {
+
+            virtualizer.clear();
+        }
+
+        if (pointLayer != null) {
+
+            // map.clear() also removed the markers of the points
+            pointLayer.clearShown();
+            pointLayer.scheduleRefresh();
+        }
+    }
+
+    /**
+     * Appends a batch of points to the columnar point store. Points do not get
+     * an annotation proxy until one is needed for an event.
+     */
+    public void addPoints(PointBatch batch) {
+
+        if (pointLayer == null) {
+
+            pointLayer = new PointLayer(map, proxy.getActivity());
+            pointLayer.setMargin(virtualizationMargin);
+        }
+
+        pointLayer.addPoints(batch);
+
+        if (Log.isDebugModeEnabled()) {
+
+            Log.d(LCAT, "Added " + batch.count + " points, " + pointLayer.getStore().size() + " in total");
+        }
+    }
+
+    public void removeAllPoints() {
+
+        if (pointLayer == null) {
+
+            return;
+        }
+
+        if (selectedAnnotation != null && pointLayer.getStore().getPoint(selectedAnnotation) >= 0) {
+
+            selectedAnnotation = null;
+        }
+
+        pointLayer.clear();
+    }
+
+    /**
+     * Starts loading a GeoJSON document in the background. Its points are
+     * added to the point store and its lines and polygon rings as shapes, a
+     * chunk at a time while it is read.
+     */
+    public void loadGeoJSON(GeoJSONLoader loader) {
+
+        geoJSONLoaders.add(loader);
+
+        loader.start(this);
+    }
+
+    /**
+     * Shows a polyline or polygon. A shape is shown by one map view at a
+     * time.
+     */
+    public void addShape(ShapeProxy shape) {
+
+        if (shapeProxies.contains(shape)) {
+
+            return;
+        }
+
+        shapeProxies.add(shape);
+
+        shape.setDelegate(this);
+
+        addShapeToOverlay(shape.getShape());
+
+        map.invalidate();
+    }
+
+    public void removeShape(ShapeProxy shape) {
+
+        if (!shapeProxies.remove(shape)) {
+
+            return;
+        }
+
+        if (shape.getDelegate() == this) {
+
+            shape.setDelegate(null);
+        }
+
+        shapeOverlay.removeShape(shape.getShape());
+
+        map.invalidate();
+    }
+
+    /**
+     * Removes the polylines and polygons, and the shapes of all GeoJSON
+     * documents loaded so far.
+     */
+    public void removeAllShapes() {
+
+        for (int i = 0; i < shapeProxies.size(); i++) {
+
+            if (shapeProxies.get(i).getDelegate() == this) {
+
+                shapeProxies.get(i).setDelegate(null);
+            }
+        }
+
+        shapeProxies.clear();
+
+        if (shapeOverlay.isEmpty()) {
+
+            return;
+        }
+
+        shapeOverlay.removeAllShapes();
+
+        // trails are not shapes of their own, they are drawn again
+        for (TrailRecorder trail : trails.keySet()) {
+
+            trails.get(trail).clear();
+
+            onTrailChanged(trail);
+        }
+
+        map.invalidate();
+    }
+
+    @Override
+    public void shapeChanged(ShapeProxy shape) {
+
+        MapView current = map;
+
+        if (current != null) {
+
+            current.postInvalidate();
+        }
+    }
+
+    /**
+     * Returns the counters of the shape overlay.
+     */
+    public KrollDict getShapeStats() {
+
+        return shapeOverlay.getStats();
+    }
+
+    public void addHeatmap(HeatmapProxy heatmap) {
+
+        if (heatmaps.containsKey(heatmap)) {
+
+            return;
+        }
+
+        HeatmapOverlay overlay = new HeatmapOverlay(heatmap.getLayer());
+
+        overlay.getLayer().setListener(this);
+
+        heatmaps.put(heatmap, overlay);
+
+        map.getOverlays().add(overlay);
+
+        map.invalidate();
+    }
+
+    public void removeHeatmap(HeatmapProxy heatmap) {
+
+        HeatmapOverlay overlay = heatmaps.remove(heatmap);
+
+        if (overlay == null) {
+
+            return;
+        }
+
+        map.getOverlays().remove(overlay);
+
+        detachHeatmap(overlay);
+
+        map.invalidate();
+    }
+
+    @Override
+    public void onHeatmapChanged(HeatmapLayer layer) {
+
+        if (map != null) {
+
+            map.invalidate();
+        }
+    }
+
+    public void addTrail(TrailProxy trail) {
+
+        TrailRecorder recorder = trail.getRecorder();
+
+        if (recorder == null || trails.containsKey(recorder)) {
+
+            return;
+        }
+
+        trails.put(recorder, new ArrayList<ShapeOverlay.Shape>());
+
+        recorder.setListener(this);
+
+        onTrailChanged(recorder);
+    }
+
+    public void removeTrail(TrailProxy trail) {
+
+        TrailRecorder recorder = trail.getRecorder();
+
+        ArrayList<ShapeOverlay.Shape> added = recorder != null ? trails.remove(recorder) : null;
+
+        if (added == null) {
+
+            return;
+        }
+
+        if (recorder.getListener() == this) {
+
+            recorder.setListener(null);
+        }
+
+        for (int i = 0; i < added.size(); i++) {
+
+            shapeOverlay.removeShape(added.get(i));
+        }
+
+        map.invalidate();
+    }
+
+    /**
+     * Adds the shapes the trail gained to the shape overlay, or all of them
+     * again if it was cleared.
+     */
+    @Override
+    public void onTrailChanged(TrailRecorder trail) {
+
+        ArrayList<ShapeOverlay.Shape> added = trails.get(trail);
+
+        if (added == null || map == null) {
+
+            return;
+        }
+
+        ArrayList<ShapeOverlay.Shape> shapes = trail.getShapes();
+
+        boolean replaced = added.size() > shapes.size();
+
+        for (int i = 0; i < added.size() && !replaced; i++) {
+
+            replaced = added.get(i) != shapes.get(i);
+        }
+
+        if (replaced) {
+
+            for (int i = 0; i < added.size(); i++) {
+
+                shapeOverlay.removeShape(added.get(i));
+            }
+
+            added.clear();
+        }
+
+        for (int i = added.size(); i < shapes.size(); i++) {
+
+            addShapeToOverlay(shapes.get(i));
+
+            added.add(shapes.get(i));
+        }
+
+        map.invalidate();
+    }
+
+    @Override
+    public void onFix(Location location) {
+
+        for (TrailRecorder trail : trails.keySet()) {
+
+            trail.onFix(location);
+        }
+    }
+
+    private void detachHeatmap(HeatmapOverlay overlay) {
+
+        if (overlay.getLayer().getListener() == this) {
+
+            overlay.getLayer().setListener(null);
+        }
+
+        overlay.getLayer().clearTiles();
+    }
+
+    private void addShapeToOverlay(ShapeOverlay.Shape shape) {
+
+        if (!shapeOverlayAdded) {
+
+            // added without invalidating the map, the caller does
+            map.getOverlays().add(shapeOverlay);
+
+            shapeOverlayAdded = true;
+        }
+
+        shapeOverlay.addShape(shape);
+    }
+
+    @Override
+    public void onGeoJSONChunk(GeoJSONLoader loader, PointBatch points, ArrayList<GeoJSONLoader.Shape> shapes) {
+
+        if (map == null) {
+
+            loader.chunkApplied();
+
+            return;
+        }
+
+        if (points.count > 0) {
+
+            addPoints(points);
+        }
+
+        if (!shapes.isEmpty()) {
+
+            float density = map.getContext().getResources().getDisplayMetrics().density;
+
+            int defaultColor = TiConvert.toColor(loader.getStrokeColor());
+
+            for (int i = 0; i < shapes.size(); i++) {
+
+                GeoJSONLoader.Shape loaded = shapes.get(i);
+
+                int color = loaded.stroke != null ? TiConvert.toColor(loaded.stroke) : defaultColor;
+                float width = Float.isNaN(loaded.strokeWidth) ? loader.getStrokeWidth() : loaded.strokeWidth;
+
+                ShapeOverlay.Shape shape = new ShapeOverlay.Shape(loaded.geometry);
+
+                shape.setStroke(color, width * density);
+
+                addShapeToOverlay(shape);
+            }
+
+            map.invalidate();
+        }
+
+        loader.chunkApplied();
+    }
+
+    @Override
+    public void onGeoJSONProgress(GeoJSONLoader loader, GeoJSONLoader.Progress progress) {
+
+        if (proxy.hasListeners(EVENT_GEOJSON_PROGRESS)) {
+
+            KrollDict event = new KrollDict();
+
+            putGeoJSONProgress(event, loader, progress);
+
+            proxy.fireEvent(EVENT_GEOJSON_PROGRESS, event);
+        }
+    }
+
+    @Override
+    public void onGeoJSONComplete(GeoJSONLoader loader, GeoJSONLoader.Progress progress) {
+
+        geoJSONLoaders.remove(loader);
+
+        if (Log.isDebugModeEnabled()) {
+
+            Log.d(LCAT, "Loaded GeoJSON with " + progress.features + " features in " + progress.duration + " ms");
+        }
+
+        KrollDict event = new KrollDict();
+
+        putGeoJSONProgress(event, loader, progress);
+
+        proxy.fireEvent(EVENT_GEOJSON_COMPLETE, event);
+    }
+
+    @Override
+    public void onGeoJSONError(GeoJSONLoader loader, String message, GeoJSONLoader.Progress progress) {
+
+        geoJSONLoaders.remove(loader);
+
+        KrollDict event = new KrollDict();
+
+        putGeoJSONProgress(event, loader, progress);
+
+        event.put("message", message);
+
+        proxy.fireEvent(EVENT_GEOJSON_ERROR, event);
+    }
+
+    private static void putGeoJSONProgress(KrollDict event, GeoJSONLoader loader, GeoJSONLoader.Progress progress) {
+
+        if (loader.getId() != null) {
+
+            event.put("id", loader.getId());
+        }
+
+        event.put("features", progress.features);
+        event.put("points", progress.points);
+        event.put("lines", progress.lines);
+        event.put("polygons", progress.polygons);
+        event.put("shapes", progress.shapes);
+        event.put("skipped", progress.skipped);
+        event.put("read", progress.read);
+        event.put("total", progress.total);
+        event.put("progress", progress.total > 0 ? Math.min(1, (double) progress.read / progress.total) : -1);
+        event.put("duration", progress.duration);
+    }
+
+    /**
+     * Switches between showing every annotation marker and showing clusters of
+     * annotations for the current zoom level. Clustering takes precedence over
+     * virtualization.
+     */
+    public void setClustering(boolean enabled) {
+
+        clustering = enabled;
+
+        applyAnnotationMode();
+    }
+
+    /**
+     * Switches between creating a marker for every annotation and creating
+     * markers only for the annotations within the visible region.
+     */
+    public void setVirtualizeAnnotations(boolean enabled) {
+
+        virtualizeAnnotations = enabled;
+
+        applyAnnotationMode();
+    }
+
+    private void applyAnnotationMode() {
+
+        boolean virtualize = virtualizeAnnotations && !clustering;
+
+        if (clustering == (clusterer != null) && virtualize == (virtualizer != null)) {
+
+            return;
+        }
+
+        // take every marker off the map first
+        if (clusterer != null) {
+
+            clusterer.detach();
+            clusterer.release();
+            clusterer = null;
+
+        } else if (virtualizer != null) {
+
+            virtualizer.detach();
+            virtualizer.release();
+            virtualizer = null;
+
+        } else {
+
+            ArrayList<Marker> markers = getAnnotationMarkers();
+
+            if (!markers.isEmpty()) {
+
+                map.removeMarkers(markers);
+            }
+        }
+
+        ArrayList<MapboxMarker> entries = annotationRegistry.getEntries();
+
+        if (virtualize) {
+
+            virtualizer = new AnnotationVirtualizer(map, annotationRegistry, this);
+            virtualizer.setMargin(virtualizationMargin);
+
+            for (int i = 0; i < entries.size(); i++) {
+
+                virtualizer.add(entries.get(i));
+            }
+
+            return;
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+
+            if (entries.get(i).getMarker() == null) {
+
+                createAnnotationMarker(entries.get(i));
+            }
+        }
+
+        if (clustering) {
+
+            clusterer = new AnnotationClusterer(map, annotationRegistry, proxy.getActivity());
+            clusterer.setRadius(clusterRadius);
+            clusterer.setMaxZoom(clusterMaxZoom);
+            clusterer.invalidateIndex();
+
+        } else {
+
+            ArrayList<Marker> markers = getAnnotationMarkers();
+
+            if (!markers.isEmpty()) {
+
+                map.addMarkers(markers);
+            }
+        }
+    }
+
+    private ArrayList<Marker> getAnnotationMarkers() {
+
+        ArrayList<MapboxMarker> entries = annotationRegistry.getEntries();
+        ArrayList<Marker> markers = new ArrayList<Marker>(entries.size());
+
+        for (int i = 0; i < entries.size(); i++) {
+
+            if (entries.get(i).getMarker() != null) {
+
+                markers.add(entries.get(i).getMarker());
+            }
+        }
+
+        return markers;
+    }
+
+    /**
+     * Applies a batch of annotation changes collected on the JS thread and
+     * invalidates the map once at the end.
+     *
+     * @return the number of annotations that were updated
+     */
+    protected int applyAnnotationUpdates(ArrayList<AnnotationUpdate> updates) {
+
+        int applied = 0;
+
+        for (int i = 0; i < updates.size(); i++) {
+
+            AnnotationUpdate update = updates.get(i);
+
+            MapboxMarker mapboxMarker = annotationRegistry.getById(update.id);
+
+            if (mapboxMarker == null || mapboxMarker.getProxy() == null) {
+
+                continue;
+            }
+
+            applyAnnotationUpdate(mapboxMarker, update);
+
+            applied++;
+        }
+
+        if (applied > 0) {
+
+            map.invalidate();
+        }
+
+        return applied;
+    }
+
+    /**
+     * Queues a property change of an annotation when asyncAnnotationUpdates
+     * is set. Called on the JS thread.
+     *
+     * @return false if the change must be applied right away
+     */
+    @Override
+    public boolean queueAnnotationUpdate(AnnotationProxy annotation, String name, Object value) {
+
+        return asyncAnnotationUpdates && annotationUpdateQueue.enqueue(annotation, name, value);
+    }
+
+    /**
+     * Applies the merged property changes of a frame.
+     */
+    @Override
+    public void applyQueuedUpdates(ArrayList<AnnotationProxy> annotations, ArrayList<AnnotationUpdate> updates) {
+
+        if (map == null) {
+
+            return;
+        }
+
+        int applied = 0;
+
+        for (int i = 0; i < annotations.size(); i++) {
+
+            MapboxMarker mapboxMarker = annotationRegistry.getByProxy(annotations.get(i));
+
+            // removed since the change was queued
+            if (mapboxMarker == null) {
+
+                continue;
+            }
+
+            applyAnnotationUpdate(mapboxMarker, updates.get(i));
+
+            applied++;
+        }
+
+        if (applied > 0) {
+
+            map.invalidate();
+        }
+    }
+
+    public KrollDict getAnnotationUpdateStats() {
+
+        return annotationUpdateQueue.getStats();
+    }
+
+    private void applyAnnotationUpdate(MapboxMarker mapboxMarker, AnnotationUpdate update) {
+
+        mapboxMarker.getProxy().applyUpdate(update);
+
+        if (update.title != null) {
+
+            annotationRegistry.retitle(mapboxMarker);
+        }
+    }
+
+    /**
+     * The registry is synchronized, so this may be used from the JS thread.
+     */
+    public AnnotationRegistry getAnnotationRegistry() {
+
+        return annotationRegistry;
+    }
+
+    public MapboxMarker findMarkerByTitle(String title) {
+
+        return annotationRegistry.findByTitle(title);
+    }
+
+    protected void removeAnnotation(Object annotation) {
+
+        MapboxMarker mapboxMarker = null;
+
+        if (annotation instanceof MapboxMarker) {
+
+            mapboxMarker = (MapboxMarker) annotation;
+
+        } else if (annotation instanceof AnnotationProxy) {
+
+            mapboxMarker = ((AnnotationProxy) annotation).getMapboxMarker();
 
         } else if (annotation instanceof String) {
 
-            mapboxMarker = findMarkerByTitle((String) annotation);
-        }
+            mapboxMarker = findMarkerByTitle((String) annotation);
+        }
+
+        if (mapboxMarker != null && annotationRegistry.remove(mapboxMarker)) {
+
+            annotationAnimator.cancel(mapboxMarker);
+
+            if (mapboxMarker.getMarker() != null) {
+
+                map.removeMarker(mapboxMarker.getMarker());
+            }
+
+            if (clusterer != null) {
+
+                clusterer.forget(mapboxMarker);
+            }
 
-        if (mapboxMarker != null && mapboxMarkers.remove(mapboxMarker)) {
+            if (virtualizer != null) {
 
-            map.removeMarker(mapboxMarker.getMarker());
+                virtualizer.remove(mapboxMarker);
+            }
 
             AnnotationProxy proxy = mapboxMarker.getProxy();
 
@@ -366,6 +2108,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
                 }
 
                 proxy.setMapboxMarker(null);
+                proxy.setDelegate(null);
             }
         }
     }
@@ -380,9 +2123,12 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
             if (mapboxMarker != null) {
 
-                Marker marker = mapboxMarker.getMarker();
+                Marker marker = pinMarker(mapboxMarker);
 
-                map.selectMarker(marker);
+                if (marker != null) {
+
+                    map.selectMarker(marker);
+                }
 
                 selectedAnnotation = proxy;
             }
@@ -395,9 +2141,12 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
             if (mapboxMarker != null) {
 
-                Marker marker = mapboxMarker.getMarker();
+                Marker marker = pinMarker(mapboxMarker);
 
-                map.selectMarker(marker);
+                if (marker != null) {
+
+                    map.selectMarker(marker);
+                }
 
                 selectedAnnotation = mapboxMarker.getProxy();
             }
@@ -410,7 +2159,9 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
             AnnotationProxy proxy = (AnnotationProxy) annotation;
 
-            if (proxy.getMapboxMarker() != null) {
+            Marker marker = getMarkerByProxy(proxy);
+
+            if (proxy.getMapboxMarker() != null || marker != null) {
 
                 map.clearMarkerFocus();
 
@@ -419,7 +2170,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
                     selectedAnnotation = null;
                 }
 
-                fireDeselectAnnotationEvent(map, proxy.getMapboxMarker().getMarker());
+                fireDeselectAnnotationEvent(map, marker);
             }
 
         } else if (annotation instanceof String) {
@@ -442,24 +2193,147 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
         }
 
         selectedAnnotation = null;
+
+        if (virtualizer != null) {
+
+            virtualizer.pin(null);
+        }
+    }
+
+    /**
+     * Makes sure a virtualized annotation has a marker on the map and keeps it
+     * there while it is selected.
+     */
+    private Marker pinMarker(MapboxMarker mapboxMarker) {
+
+        if (mapboxMarker == null) {
+
+            return null;
+        }
+
+        if (virtualizer != null) {
+
+            virtualizer.pin(mapboxMarker);
+        }
+
+        return mapboxMarker.getMarker();
     }
 
     private AnnotationProxy getProxyByMarker(Marker m) {
 
-        if (m != null) {
+        MapboxMarker mapboxMarker = annotationRegistry.getByMarker(m);
+
+        if (mapboxMarker != null) {
+
+            return mapboxMarker.getProxy();
+        }
+
+        if (pointLayer != null && m != null) {
+
+            return pointLayer.getProxy(m);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the marker currently showing an annotation or a point, or null.
+     */
+    private Marker getMarkerByProxy(AnnotationProxy annotation) {
 
-            for (int i = 0; i < mapboxMarkers.size(); i++) {
+        if (annotation.getMapboxMarker() != null) {
 
-                MapboxMarker mapboxMarker = mapboxMarkers.get(i);
+            return annotation.getMapboxMarker().getMarker();
+        }
+
+        if (pointLayer != null) {
+
+            return pointLayer.getMarker(annotation);
+        }
+
+        return null;
+    }
+
+    @Override
+    public void refreshAnnotation(final AnnotationProxy annotation) {
+
+        TiMessenger.postOnMain(new Runnable() {
 
-                if (m.equals(mapboxMarker.getMarker())) {
+            @Override
+            public void run() {
 
-                    return mapboxMarker.getProxy();
+                if (map != null && annotationRegistry.getByProxy(annotation) != null) {
+
+                    addAnnotation(annotation);
                 }
             }
+        });
+    }
+
+    @Override
+    public void annotationTitleChanged(AnnotationProxy annotation) {
+
+        annotationRegistry.retitle(annotationRegistry.getByProxy(annotation));
+    }
+
+    @Override
+    public void annotationMoved(AnnotationProxy annotation) {
+
+        MapboxMarker mapboxMarker = annotationRegistry.getByProxy(annotation);
+
+        if (mapboxMarker == null) {
+
+            return;
         }
 
-        return null;
+        // a position set directly wins over a running animation
+        annotationAnimator.cancel(mapboxMarker);
+
+        reindexAnnotation(mapboxMarker, true);
+    }
+
+    @Override
+    public void animateAnnotation(final AnnotationProxy annotation, final double latitude, final double longitude, final long duration) {
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                MapboxMarker mapboxMarker = map != null ? annotationRegistry.getByProxy(annotation) : null;
+
+                if (mapboxMarker != null) {
+
+                    annotationAnimator.animate(mapboxMarker, latitude, longitude, duration);
+                }
+            }
+        });
+    }
+
+    public KrollDict getAnimationStats() {
+
+        return annotationAnimator.getStats();
+    }
+
+    /**
+     * Updates the indices after an annotation moved.
+     *
+     * @param settled false while the annotation is still being animated, the
+     *                clusters are only rebuilt once it arrived
+     */
+    private void reindexAnnotation(MapboxMarker mapboxMarker, boolean settled) {
+
+        annotationRegistry.reindex(mapboxMarker);
+
+        if (virtualizer != null) {
+
+            virtualizer.move(mapboxMarker);
+        }
+
+        if (settled && clusterer != null) {
+
+            clusterer.invalidateIndex();
+        }
     }
 
     // TODO: implement this one here
@@ -474,6 +2348,90 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         selectedAnnotation = null;
 
+        if (loader != null) {
+
+            loader.cancel();
+            loader = null;
+        }
+
+        initialAnnotations = null;
+
+        for (int i = 0; i < geoJSONLoaders.size(); i++) {
+
+            geoJSONLoaders.get(i).cancel();
+        }
+
+        geoJSONLoaders.clear();
+
+        for (int i = 0; i < shapeProxies.size(); i++) {
+
+            if (shapeProxies.get(i).getDelegate() == this) {
+
+                shapeProxies.get(i).setDelegate(null);
+            }
+        }
+
+        shapeProxies.clear();
+        shapeOverlay.removeAllShapes();
+
+        for (HeatmapOverlay overlay : heatmaps.values()) {
+
+            detachHeatmap(overlay);
+        }
+
+        heatmaps.clear();
+
+        for (TrailRecorder trail : trails.keySet()) {
+
+            if (trail.getListener() == this) {
+
+                trail.setListener(null);
+            }
+        }
+
+        trails.clear();
+
+        // stops the location updates
+        removeLocationOverlay();
+
+        eventDispatcher.release();
+
+        annotationAnimator.release();
+
+        annotationUpdateQueue.release();
+
+        if (clusterer != null) {
+
+            clusterer.release();
+            clusterer = null;
+        }
+
+        if (virtualizer != null) {
+
+            virtualizer.release();
+            virtualizer = null;
+        }
+
+        if (pointLayer != null) {
+
+            pointLayer.release();
+            pointLayer = null;
+        }
+
+        if (prefetcher != null) {
+
+            prefetcher.release();
+            prefetcher = null;
+        }
+
+        if (tileLayer != null) {
+
+            tileLayer.detach();
+            tileLayer = null;
+        }
+
+        tileCache.clear();
+
         if (map != null) {
 
             map.clear();
@@ -481,7 +2439,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         map = null;
 
-        mapboxMarkers.clear();
+        annotationRegistry.clear();
 
         super.release();
     }
@@ -493,7 +2451,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         float latitude = 0;
         float longitude = 0;
-        boolean animated = true;
+        boolean animated = false;
 
         if (regionDict.containsKey(TiC.PROPERTY_LATITUDE)) {
 
@@ -512,6 +2470,8 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         ILatLng latlong = new LatLng(latitude, longitude);
 
+        setZoom(regionDict);
+
         if (animated) {
 
             map.getController().animateTo(latlong);
@@ -578,62 +2538,77 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
         }
     }
 
-    private void addLocationOverlay() {
+    /**
+     * Returns the counters of the location provider and the overlay.
+     */
+    public KrollDict getUserLocationStats() {
 
-        removeLocationOverlay();
+        KrollDict stats = locationProvider != null ? locationProvider.getStats() : new KrollDict();
+
+        if (userLocationOverlay != null) {
 
-        userLocationOverlay = new UserLocationOverlay(new GpsLocationProvider(proxy.getActivity()), map);
+            stats.putAll(userLocationOverlay.getStats());
+        }
 
-        userLocationOverlay.setDrawAccuracyEnabled(true);
+        stats.put("enabled", userLocationOverlayAdded);
 
-        int personId = 0;
+        return stats;
+    }
 
-        try {
+    private void addLocationOverlay() {
 
-            personId = TiRHelper.getApplicationResource("drawable.location_marker");
+        if (userLocationOverlay == null) {
 
-        } catch (ResourceNotFoundException e) {
+            // kept while hidden, showing the location again reuses them
+            locationProvider = new SmoothedLocationProvider(proxy.getActivity());
 
-            Log.d(LCAT, "addLocationOverlay - person - RESOURCE NOT FOUND! Exception:" + e);
+            locationProvider.setMinTime(userLocationMinTime);
+            locationProvider.setMinDistance(userLocationMinDistance);
+            locationProvider.setSmoothing(userLocationSmoothing);
+            locationProvider.setFixListener(this);
+
+            userLocationOverlay = new UserLocationMarkerOverlay(locationProvider, map);
         }
 
-        if (personId != 0) {
+        if (!userLocationOverlayAdded) {
 
-            Bitmap personBitmap = TiUIHelper.getResourceBitmap(personId);
+            map.addOverlay(userLocationOverlay);
 
-            userLocationOverlay.setPersonBitmap(personBitmap);
+            userLocationOverlayAdded = true;
         }
+    }
 
-        int arrowId = 0;
+    private void removeLocationOverlay() {
 
-        try {
+        if (userLocationOverlayAdded) {
 
-            arrowId = TiRHelper.getApplicationResource("drawable.direction_arrow");
+            userLocationOverlay.disableMyLocation();
 
-        } catch (ResourceNotFoundException e) {
+            map.removeOverlay(userLocationOverlay);
 
-            Log.d(LCAT, "addLocationOverlay - direction arrow - RESOURCE NOT FOUND! Exception:" + e);
+            userLocationOverlayAdded = false;
         }
+    }
 
-        if (arrowId != 0) {
+    /**
+     * Applies the minimum time and distance between location updates, by
+     * restarting the provider if it is running.
+     */
+    private void updateLocationProvider() {
 
-            Bitmap arrowBitmap = TiUIHelper.getResourceBitmap(arrowId);
+        if (locationProvider == null) {
 
-            userLocationOverlay.setDirectionArrowBitmap(arrowBitmap);
+            return;
         }
 
-        map.addOverlay(userLocationOverlay);
-    }
-
-    private void removeLocationOverlay() {
+        locationProvider.setMinTime(userLocationMinTime);
+        locationProvider.setMinDistance(userLocationMinDistance);
+        locationProvider.setSmoothing(userLocationSmoothing);
 
-        if (userLocationOverlay != null) {
+        if (userLocationOverlayAdded && userLocationOverlay.isMyLocationEnabled()) {
 
             userLocationOverlay.disableMyLocation();
-
-            map.removeOverlay(userLocationOverlay);
-
-            userLocationOverlay = null;
+            userLocationOverlay.enableMyLocation();
         }
     }
 
@@ -740,7 +2715,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
     public void goToUserLocation() {
 
-        if (userLocationOverlay != null) {
+        if (userLocationOverlayAdded) {
 
             userLocationOverlay.goToMyPosition(true);
         }
@@ -827,6 +2802,11 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
             AnnotationProxy annotation = getProxyByMarker(marker);
 
+            if (annotation == null) {
+
+                return;
+            }
+
             LatLng markerPosition = marker.getPosition();
 
             KrollDict event = new KrollDict();
@@ -846,6 +2826,11 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
             AnnotationProxy annotation = getProxyByMarker(marker);
 
+            if (annotation == null) {
+
+                return;
+            }
+
             LatLng markerPosition = marker.getPosition();
 
             KrollDict event = new KrollDict();
@@ -859,6 +2844,122 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
         }
     }
 
+    private void fireClickOnClusterEvent(ClusterIndex.Cluster cluster) {
+
+        if (proxy.hasListeners("clickOnCluster")) {
+
+            ArrayList<AnnotationProxy> annotations = clusterer.getClusterAnnotations(cluster, CLUSTER_EVENT_ANNOTATIONS_LIMIT);
+
+            KrollDict event = new KrollDict();
+
+            event.put("count", cluster.count);
+            event.put("latitude", cluster.latitude);
+            event.put("longitude", cluster.longitude);
+            event.put("expansionZoom", clusterer.getExpansionZoom(cluster));
+            event.put("annotations", annotations.toArray(new AnnotationProxy[annotations.size()]));
+
+            proxy.fireEvent("clickOnCluster", event);
+        }
+    }
+
+    /**
+     * Hit-tests a tap or long press once and hands it to the listener methods
+     * the SDK would call: the marker nearest to the finger is selected or long
+     * pressed, a tap beside all markers goes to the map.
+     */
+    private void dispatchTap(float screenX, float screenY, boolean longPress) {
+
+        // markers are projected without the rotation of the map
+        float[] point = {screenX, screenY};
+
+        hitTester.unrotate(point);
+
+        float x = point[0];
+        float y = point[1];
+
+        tapHits = hitTester.hitTest(x, y, clusterer);
+
+        try {
+
+            Marker marker = null;
+
+            if (!tapHits.isEmpty()) {
+
+                marker = tapHits.get(0).getMarker();
+            }
+
+            if (marker == null && clusterer != null) {
+
+                marker = hitTester.hitTestMarkers(x, y, clusterer.getClusterMarkers());
+            }
+
+            if (marker == null && pointLayer != null) {
+
+                marker = hitTester.hitTestMarkers(x, y, pointLayer.getPointMarkers());
+            }
+
+            if (marker != null) {
+
+                if (longPress) {
+
+                    onLongPressMarker(map, marker);
+
+                } else {
+
+                    // shows the tooltip and calls onTapMarker, like a tap the SDK handled
+                    map.selectMarker(marker);
+                }
+
+                return;
+            }
+
+            ILatLng position = map.getProjection().fromPixels(x, y);
+
+            if (longPress) {
+
+                map.longPressHelper(position);
+
+            } else {
+
+                map.singleTapUpHelper(position);
+            }
+
+        } finally {
+
+            tapHits = NO_HITS;
+        }
+    }
+
+    private static AnnotationProxy[] toProxyArray(ArrayList<MapboxMarker> entries) {
+
+        int count = 0;
+
+        for (int i = 0; i < entries.size(); i++) {
+
+            if (entries.get(i).getProxy() != null) {
+
+                count++;
+            }
+        }
+
+        if (count == 0) {
+
+            return NO_PROXIES;
+        }
+
+        AnnotationProxy[] proxies = new AnnotationProxy[count];
+
+        for (int i = 0, j = 0; i < entries.size(); i++) {
+
+            if (entries.get(i).getProxy() != null) {
+
+                proxies[j++] = entries.get(i).getProxy();
+            }
+        }
+
+        return proxies;
+    }
+
     @Override
     public void onShowMarker(MapView pMapView, Marker pMarker) {
 
@@ -874,8 +2975,22 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
     @Override
     public void onTapMarker(MapView pMapView, Marker pMarker) {
 
+        if (clusterer != null && clusterer.isClusterMarker(pMarker)) {
+
+            fireClickOnClusterEvent(clusterer.getCluster(pMarker));
+
+            return;
+        }
+
+        ArrayList<MapboxMarker> hits = tapHits;
+
         AnnotationProxy annotation = getProxyByMarker(pMarker);
 
+        if (annotation == null) {
+
+            return;
+        }
+
         if (proxy.hasListeners("tapOnAnnotation")) {
 
             LatLng markerPosition = pMarker.getPosition();
@@ -883,6 +2998,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
             KrollDict event = new KrollDict();
 
             event.put("annotation", annotation);
+            event.put("annotations", toProxyArray(hits));
             event.put("userInfo", annotation.getUserInfo());
             event.put("latitude", markerPosition.getLatitude());
             event.put("longitude", markerPosition.getLongitude());
@@ -894,17 +3010,21 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
             if (!selectedAnnotation.equals(annotation)) {
 
-                fireDeselectAnnotationEvent(pMapView, selectedAnnotation.getMapboxMarker().getMarker());
+                fireDeselectAnnotationEvent(pMapView, getMarkerByProxy(selectedAnnotation));
 
                 selectedAnnotation = annotation;
 
-                fireSelectAnnotationEvent(pMapView, annotation.getMapboxMarker().getMarker());
+                pinMarker(annotation.getMapboxMarker());
+
+                fireSelectAnnotationEvent(pMapView, pMarker);
             }
         } else {
 
             selectedAnnotation = annotation;
 
-            fireSelectAnnotationEvent(pMapView, annotation.getMapboxMarker().getMarker());
+            pinMarker(annotation.getMapboxMarker());
+
+            fireSelectAnnotationEvent(pMapView, pMarker);
         }
 
 //        map.getController().animateTo(pMarker.getPoint());
@@ -918,6 +3038,7 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
             KrollDict event = new KrollDict();
 
             event.put("annoation", null);
+            event.put("annotations", toProxyArray(tapHits));
             event.put("latitude", pPosition.getLatitude());
             event.put("longitude", pPosition.getLongitude());
 
@@ -930,8 +3051,6 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         if (proxy.hasListeners("longPressOnMap")) {
 
-            String coords = String.format("Original Lat = %f, Lon = %f", pPosition.getLatitude(), pPosition.getLongitude());
-
             float[] rc = {(float) pPosition.getLatitude(), (float) pPosition.getLongitude()};
 
             Projection p = pMapView.getProjection();
@@ -940,13 +3059,15 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
             ILatLng rotLatLon = p.fromPixels(rc[0], rc[1]);
 
-            String rotCoords = String.format("Rotated Lat = %f, Lon = %f", rotLatLon.getLatitude(), rotLatLon.getLongitude());
+            if (Log.isDebugModeEnabled()) {
 
-            Log.i("TapForUTFGridTestFragment", String.format("coords = '%s', rotated coords = '%s'", coords, rotCoords));
+                Log.d(LCAT, "Long press at " + pPosition.getLatitude() + ", " + pPosition.getLongitude() + ", rotated " + rotLatLon.getLatitude() + ", " + rotLatLon.getLongitude());
+            }
 
             KrollDict event = new KrollDict();
 
             event.put("annoation", null);
+            event.put("annotations", toProxyArray(tapHits));
             event.put("latitude", rotLatLon.getLatitude());
             event.put("longitude", rotLatLon.getLongitude());
 
@@ -959,12 +3080,20 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
 
         if (proxy.hasListeners("longPressOnAnnotation")) {
 
+            ArrayList<MapboxMarker> hits = tapHits;
+
             AnnotationProxy annotation = getProxyByMarker(pMarker);
+
+            if (annotation == null) {
+
+                return;
+            }
             LatLng markerPosition = pMarker.getPosition();
 
             KrollDict event = new KrollDict();
 
             event.put("annotation", annotation);
+            event.put("annotations", toProxyArray(hits));
             event.put("userInfo", annotation.getUserInfo());
             event.put("latitude", markerPosition.getLatitude());
             event.put("longitude", markerPosition.getLongitude());
@@ -976,42 +3105,63 @@ public class MapboxMapView extends TiUIView implements MapViewListener, MapListe
     @Override
     public void onScroll(ScrollEvent event) {
 
-        if (proxy.hasListeners("beforeMapMove") || proxy.hasListeners("scroll")) {
+        if (prefetcher != null) {
+
+            prefetcher.update();
+        }
+
+        if (clusterer != null) {
+
+            clusterer.scheduleRefresh();
+        }
+
+        if (virtualizer != null) {
 
-            KrollDict tiEvent = new KrollDict();
+            virtualizer.scheduleRefresh();
+        }
 
-            tiEvent.put("wasUserAction", event.getUserAction());
+        if (pointLayer != null) {
 
-            proxy.fireEvent("beforeMapMove", tiEvent);
-            proxy.fireEvent("scroll", tiEvent);
+            pointLayer.scheduleRefresh();
         }
+
+        eventDispatcher.onScroll(event.getUserAction());
     }
 
     @Override
     public void onRotate(RotateEvent event) {
 
-        if (proxy.hasListeners("rotate")) {
+        eventDispatcher.onRotate(event.getUserAction(), event.getAngle());
+    }
 
-            KrollDict tiEvent = new KrollDict();
+    @Override
+    public void onZoom(ZoomEvent event) {
 
-            tiEvent.put("wasUserAction", event.getUserAction());
-            tiEvent.put("angle", event.getAngle());
+        if (prefetcher != null) {
 
-            proxy.fireEvent("rotate", tiEvent);
+            prefetcher.update();
         }
-    }
 
-    @Override
-    public void onZoom(ZoomEvent event) {
+        if (clusterer != null) {
+
+            clusterer.scheduleRefresh();
+        }
+
+        if (virtualizer != null) {
 
-        if (proxy.hasListeners("zoom")) {
+            virtualizer.scheduleRefresh();
+        }
+
+        if (pointLayer != null) {
+
+            pointLayer.scheduleRefresh();
+        }
 
-            KrollDict tiEvent = new KrollDict();
+        eventDispatcher.onZoom(event.getUserAction(), event.getZoomLevel());
 
-            tiEvent.put("wasUserAction", event.getUserAction());
-            tiEvent.put("zoomLevel", event.getZoomLevel());
+        if (userLocationOverlayAdded) {
 
-            proxy.fireEvent("zoom", tiEvent);
+            userLocationOverlay.onZoom();
         }
     }
 }
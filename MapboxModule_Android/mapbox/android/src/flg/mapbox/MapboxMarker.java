@@ -6,6 +6,10 @@ public class MapboxMarker {
 
     private Marker marker;
     private AnnotationProxy proxy;
+    private String indexedTitle;
+    private String styleKey;
+    private double latitude;
+    private double longitude;
 
     public MapboxMarker(Marker m, AnnotationProxy p) {
         marker = m;
@@ -23,4 +27,37 @@ public class MapboxMarker {
     public AnnotationProxy getProxy() {
         return proxy;
     }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public void setPosition(double lat, double lon) {
+        latitude = lat;
+        longitude = lon;
+    }
+
+    void setProxy(AnnotationProxy p) {
+        proxy = p;
+    }
+
+    String getStyleKey() {
+        return styleKey;
+    }
+
+    void setStyleKey(String key) {
+        styleKey = key;
+    }
+
+    String getIndexedTitle() {
+        return indexedTitle;
+    }
+
+    void setIndexedTitle(String title) {
+        indexedTitle = title;
+    }
 }
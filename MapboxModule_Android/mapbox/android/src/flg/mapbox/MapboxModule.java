@@ -8,6 +8,7 @@
  */
 package flg.mapbox;
 
+import org.appcelerator.kroll.KrollDict;
 import org.appcelerator.kroll.KrollModule;
 import org.appcelerator.kroll.annotations.Kroll;
 
@@ -32,6 +33,20 @@ public class MapboxModule extends KrollModule
 		super();
 	}
 
+	// Counters of the marker icon cache shared by all map views
+	@Kroll.method
+	public KrollDict getIconCacheStats()
+	{
+		return IconCache.getInstance().getStats();
+	}
+
+	// Counters of the annotation image pool shared by all map views
+	@Kroll.method
+	public KrollDict getImagePoolStats()
+	{
+		return ImagePool.getInstance().getStats();
+	}
+
 	@Kroll.onAppCreate
 	public static void onAppCreate(TiApplication app)
 	{
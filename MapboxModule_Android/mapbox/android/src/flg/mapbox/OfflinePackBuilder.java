@@ -0,0 +1,729 @@
+package flg.mapbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.kroll.common.Log;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.mapbox.mapboxsdk.util.NetworkUtils;
+
+/**
+ * Builds an MBTiles file with the tiles of a region, fetched from a tile URL
+ * template such as http://localhost:8080/{z}/{x}/{y}.png.
+ *
+ * Tiles are fetched by a bounded number of threads and written by a single
+ * thread in batched transactions. Tiles the server does not have are recorded
+ * in a missing_tiles table next to the tiles. Tiles already in the file or
+ * recorded as missing are skipped, so a cancelled or interrupted build resumes
+ * where it stopped when started again with the same file. Only one build at a
+ * time writes to a file in the process. Any URL supported by java.net.URL can
+ * be used, including file: URLs and a local test server.
+ */
+public class OfflinePackBuilder {
+
+    private static final String LCAT = "MapboxModule";
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 500;
+
+    private static final int WRITE_BATCH_SIZE = 64;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    // the builder writing each file, by absolute path
+    private static final HashMap<String, OfflinePackBuilder> building = new HashMap<String, OfflinePackBuilder>();
+
+    public interface Listener {
+
+        public void onProgress(Progress progress);
+
+        public void onComplete(Progress progress);
+
+        public void onError(String message);
+    }
+
+    /**
+     * Counters of a build. Completed tiles are the ones downloaded, already in
+     * the file, not available from the server (missing) or failed.
+     */
+    public static class Progress {
+
+        public long total;
+        public long completed;
+        public long downloaded;
+        public long skipped;
+        public long missing;
+        public long failed;
+        public long bytes;
+        public boolean cancelled;
+
+        Progress copy() {
+
+            Progress copy = new Progress();
+
+            copy.total = total;
+            copy.completed = completed;
+            copy.downloaded = downloaded;
+            copy.skipped = skipped;
+            copy.missing = missing;
+            copy.failed = failed;
+            copy.bytes = bytes;
+            copy.cancelled = cancelled;
+
+            return copy;
+        }
+    }
+
+    private final File file;
+    private final String urlTemplate;
+    private final double north;
+    private final double south;
+    private final double east;
+    private final double west;
+    private final int minZoom;
+    private final int maxZoom;
+    private final int concurrency;
+    private final String name;
+
+    private final Listener listener;
+
+    private volatile boolean cancelled = false;
+    private Thread thread;
+
+    private final Progress progress = new Progress();
+
+    public OfflinePackBuilder(File file, String urlTemplate, double north, double south, double east, double west, int minZoom, int maxZoom, int concurrency, String name, Listener listener) {
+
+        this.file = file;
+        this.urlTemplate = urlTemplate;
+        this.north = north;
+        this.south = south;
+        this.east = east;
+        this.west = west;
+        this.minZoom = Math.max(0, minZoom);
+        this.maxZoom = Math.min(22, Math.max(this.minZoom, maxZoom));
+        this.concurrency = Math.max(1, concurrency);
+        this.name = name;
+        this.listener = listener;
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    /**
+     * Starts the build on a background thread.
+     */
+    public synchronized void start() {
+
+        if (thread != null) {
+
+            return;
+        }
+
+        if (!claimFile()) {
+
+            listener.onError("Offline pack " + file.getName() + " is already being built");
+
+            return;
+        }
+
+        cancelled = false;
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                build();
+            }
+        }, "MapboxModule-OfflinePack");
+
+        thread.start();
+    }
+
+    /**
+     * Stops the build; tiles written so far are kept.
+     */
+    public void cancel() {
+
+        cancelled = true;
+    }
+
+    private boolean claimFile() {
+
+        synchronized (building) {
+
+            String path = file.getAbsolutePath();
+
+            OfflinePackBuilder owner = building.get(path);
+
+            if (owner != null && owner != this) {
+
+                return false;
+            }
+
+            building.put(path, this);
+
+            return true;
+        }
+    }
+
+    private void releaseFile() {
+
+        synchronized (building) {
+
+            String path = file.getAbsolutePath();
+
+            if (building.get(path) == this) {
+
+                building.remove(path);
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+
+        return thread != null;
+    }
+
+    /**
+     * Returns the number of tiles of the region, the same as progress.total.
+     */
+    public long countTiles() {
+
+        long total = 0;
+
+        for (int z = minZoom; z <= maxZoom; z++) {
+
+            total += (long) columns(z) * (rowMax(z) - rowMin(z) + 1);
+        }
+
+        return total;
+    }
+
+    private void build() {
+
+        SQLiteDatabase database = null;
+
+        try {
+
+            File directory = file.getParentFile();
+
+            if (directory != null) {
+
+                directory.mkdirs();
+            }
+
+            database = SQLiteDatabase.openOrCreateDatabase(file, null);
+
+            createSchema(database);
+
+            HashSet<Long> existing = readExisting(database, "tiles");
+
+            // not on the server in an earlier build
+            existing.addAll(readExisting(database, "missing_tiles"));
+
+            synchronized (progress) {
+
+                progress.total = countTiles();
+                progress.completed = 0;
+                progress.downloaded = 0;
+                progress.skipped = 0;
+                progress.missing = 0;
+                progress.failed = 0;
+                progress.bytes = 0;
+                progress.cancelled = false;
+            }
+
+            download(database, existing);
+
+        } catch (Exception e) {
+
+            Log.e(LCAT, "Offline pack " + file.getName() + " failed: " + e.getMessage());
+
+            cancelled = true;
+
+            listener.onError(e.getMessage() != null ? e.getMessage() : e.toString());
+
+            return;
+
+        } finally {
+
+            if (database != null) {
+
+                database.close();
+            }
+
+            // before the build stops counting as running, so a restart can claim the file
+            releaseFile();
+
+            synchronized (this) {
+
+                thread = null;
+            }
+        }
+
+        Progress result;
+
+        synchronized (progress) {
+
+            progress.cancelled = cancelled;
+
+            result = progress.copy();
+        }
+
+        listener.onComplete(result);
+    }
+
+    private void download(SQLiteDatabase database, HashSet<Long> existing) throws InterruptedException {
+
+        final BlockingQueue<Tile> fetched = new ArrayBlockingQueue<Tile>(concurrency * 4);
+        final Semaphore slots = new Semaphore(concurrency);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread worker = new Thread(runnable, "MapboxModule-OfflinePack");
+                worker.setDaemon(true);
+                return worker;
+            }
+        });
+
+        SQLiteStatement insert = database.compileStatement("INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+        SQLiteStatement insertMissing = database.compileStatement("INSERT OR REPLACE INTO missing_tiles (zoom_level, tile_column, tile_row) VALUES (?, ?, ?)");
+
+        ArrayList<Tile> batch = new ArrayList<Tile>();
+
+        long lastProgress = 0;
+
+        try {
+
+            for (int z = minZoom; z <= maxZoom && !cancelled; z++) {
+
+                int count = 1 << z;
+                int firstColumn = (int) Math.floor(TilePrefetcher.tileX(west, z));
+                int columns = columns(z);
+
+                for (int c = 0; c < columns && !cancelled; c++) {
+
+                    int x = (firstColumn + c) % count;
+
+                    for (int y = rowMin(z); y <= rowMax(z) && !cancelled; y++) {
+
+                        final Tile tile = new Tile(z, x, y);
+
+                        if (existing.contains(tile.key())) {
+
+                            synchronized (progress) {
+
+                                progress.skipped++;
+                                progress.completed++;
+                            }
+
+                            continue;
+                        }
+
+                        // wait for a free fetch slot, writing the tiles fetched meanwhile
+                        while (!slots.tryAcquire(50, TimeUnit.MILLISECONDS)) {
+
+                            lastProgress = drain(database, insert, insertMissing, fetched, batch, lastProgress);
+                        }
+
+                        executor.execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+
+                                try {
+
+                                    if (cancelled) {
+
+                                        tile.abandoned = true;
+
+                                    } else {
+
+                                        tile.data = fetch(tile);
+
+                                        if (tile.data == null && !tile.missing && cancelled) {
+
+                                            // given up on because of the cancel, not failed
+                                            tile.abandoned = true;
+                                        }
+                                    }
+
+                                    fetched.put(tile);
+
+                                } catch (InterruptedException e) {
+
+                                    // cancelled
+
+                                } finally {
+
+                                    slots.release();
+                                }
+                            }
+                        });
+
+                        lastProgress = drain(database, insert, insertMissing, fetched, batch, lastProgress);
+                    }
+                }
+            }
+
+            executor.shutdown();
+
+            while (!executor.awaitTermination(50, TimeUnit.MILLISECONDS) || !fetched.isEmpty()) {
+
+                lastProgress = drain(database, insert, insertMissing, fetched, batch, lastProgress);
+            }
+
+            write(database, insert, insertMissing, batch);
+
+        } finally {
+
+            executor.shutdownNow();
+
+            insert.close();
+            insertMissing.close();
+        }
+    }
+
+    /**
+     * Collects fetched tiles and writes them once a batch is full.
+     */
+    private long drain(SQLiteDatabase database, SQLiteStatement insert, SQLiteStatement insertMissing, BlockingQueue<Tile> fetched, ArrayList<Tile> batch, long lastProgress) {
+
+        fetched.drainTo(batch);
+
+        if (batch.size() >= WRITE_BATCH_SIZE) {
+
+            write(database, insert, insertMissing, batch);
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (now - lastProgress < PROGRESS_INTERVAL_MS) {
+
+            return lastProgress;
+        }
+
+        Progress current;
+
+        synchronized (progress) {
+
+            current = progress.copy();
+        }
+
+        listener.onProgress(current);
+
+        return now;
+    }
+
+    private void write(SQLiteDatabase database, SQLiteStatement insert, SQLiteStatement insertMissing, ArrayList<Tile> batch) {
+
+        if (batch.isEmpty()) {
+
+            return;
+        }
+
+        long downloaded = 0;
+        long missing = 0;
+        long failed = 0;
+        long bytes = 0;
+
+        database.beginTransaction();
+
+        try {
+
+            for (int i = 0; i < batch.size(); i++) {
+
+                Tile tile = batch.get(i);
+
+                if (tile.abandoned) {
+
+                    // fetched again when the build is resumed
+                    continue;
+                }
+
+                if (tile.missing) {
+
+                    // remembered, so that resuming does not ask for it again
+                    insertMissing.bindLong(1, tile.z);
+                    insertMissing.bindLong(2, tile.x);
+                    insertMissing.bindLong(3, tile.row());
+                    insertMissing.executeInsert();
+
+                    missing++;
+
+                    continue;
+                }
+
+                if (tile.data == null) {
+
+                    failed++;
+
+                    continue;
+                }
+
+                insert.bindLong(1, tile.z);
+                insert.bindLong(2, tile.x);
+                insert.bindLong(3, tile.row());
+                insert.bindBlob(4, tile.data);
+                insert.executeInsert();
+
+                downloaded++;
+                bytes += tile.data.length;
+            }
+
+            database.setTransactionSuccessful();
+
+        } finally {
+
+            database.endTransaction();
+        }
+
+        synchronized (progress) {
+
+            progress.downloaded += downloaded;
+            progress.missing += missing;
+            progress.failed += failed;
+            progress.bytes += bytes;
+            progress.completed += downloaded + missing + failed;
+        }
+
+        batch.clear();
+    }
+
+    private byte[] fetch(Tile tile) throws InterruptedException {
+
+        String url = urlTemplate.replace("{z}", Integer.toString(tile.z)).replace("{x}", Integer.toString(tile.x)).replace("{y}", Integer.toString(tile.y)).replace("{-y}", Integer.toString(tile.row()));
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !cancelled; attempt++) {
+
+            URLConnection connection = null;
+
+            try {
+
+                URL location = new URL(url);
+
+                connection = location.getProtocol().startsWith("http") ? NetworkUtils.getHttpURLConnection(location) : location.openConnection();
+
+                if (connection instanceof HttpURLConnection) {
+
+                    int status = ((HttpURLConnection) connection).getResponseCode();
+
+                    if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_NO_CONTENT) {
+
+                        // no tile here, do not retry
+                        tile.missing = true;
+
+                        return null;
+                    }
+                }
+
+                InputStream stream = connection.getInputStream();
+
+                try {
+
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                    byte[] buffer = new byte[16 * 1024];
+
+                    int read;
+
+                    while ((read = stream.read(buffer)) != -1) {
+
+                        bytes.write(buffer, 0, read);
+                    }
+
+                    if (bytes.size() == 0) {
+
+                        tile.missing = true;
+
+                        return null;
+                    }
+
+                    return bytes.toByteArray();
+
+                } finally {
+
+                    stream.close();
+                }
+
+            } catch (Exception e) {
+
+                if (attempt == MAX_ATTEMPTS) {
+
+                    Log.w(LCAT, "Unable to fetch tile " + url + ": " + e.getMessage());
+
+                } else {
+
+                    Thread.sleep(RETRY_DELAY_MS * attempt);
+                }
+
+            } finally {
+
+                if (connection instanceof HttpURLConnection) {
+
+                    ((HttpURLConnection) connection).disconnect();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private void createSchema(SQLiteDatabase database) {
+
+        database.execSQL("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+        database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS metadata_name ON metadata (name)");
+        database.execSQL("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+        database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+        database.execSQL("CREATE TABLE IF NOT EXISTS missing_tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER)");
+        database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS missing_tile_index ON missing_tiles (zoom_level, tile_column, tile_row)");
+
+        String format = urlTemplate.toLowerCase().contains(".jp") ? "jpg" : "png";
+
+        putMetadata(database, "name", name != null ? name : file.getName());
+        putMetadata(database, "type", "baselayer");
+        putMetadata(database, "version", "1");
+        putMetadata(database, "description", "");
+        putMetadata(database, "format", format);
+        putMetadata(database, "minzoom", Integer.toString(minZoom));
+        putMetadata(database, "maxzoom", Integer.toString(maxZoom));
+        putMetadata(database, "bounds", west + "," + south + "," + east + "," + north);
+
+        double centerLongitude = west <= east ? (west + east) / 2 : (west + east + 360) / 2;
+
+        if (centerLongitude > 180) {
+
+            centerLongitude -= 360;
+        }
+
+        putMetadata(database, "center", centerLongitude + "," + (north + south) / 2 + "," + minZoom);
+    }
+
+    private static void putMetadata(SQLiteDatabase database, String key, String value) {
+
+        database.execSQL("INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)", new Object[]{key, value});
+    }
+
+    /**
+     * Returns the keys of the tiles of the region in a table with the columns
+     * of the tiles table.
+     */
+    private HashSet<Long> readExisting(SQLiteDatabase database, String table) {
+
+        HashSet<Long> existing = new HashSet<Long>();
+
+        Cursor cursor = database.rawQuery("SELECT zoom_level, tile_column, tile_row FROM " + table + " WHERE zoom_level BETWEEN ? AND ?", new String[]{Integer.toString(minZoom), Integer.toString(maxZoom)});
+
+        try {
+
+            while (cursor.moveToNext()) {
+
+                int z = cursor.getInt(0);
+
+                existing.add(Tile.key(z, cursor.getInt(1), (1 << z) - 1 - cursor.getInt(2)));
+            }
+
+        } catch (SQLiteException e) {
+
+            Log.w(LCAT, "Unable to read the " + table + " of " + file.getName() + ", fetching all: " + e.getMessage());
+
+            existing.clear();
+
+        } finally {
+
+            cursor.close();
+        }
+
+        return existing;
+    }
+
+    private int columns(int z) {
+
+        int count = 1 << z;
+
+        int first = (int) Math.floor(TilePrefetcher.tileX(west, z));
+        int last = (int) Math.floor(TilePrefetcher.tileX(east, z));
+
+        if (last >= count) {
+
+            last = count - 1;
+        }
+
+        if (west > east) {
+
+            // the region crosses the antimeridian
+            last += count;
+        }
+
+        return Math.min(count, last - first + 1);
+    }
+
+    private int rowMin(int z) {
+
+        return Math.max(0, (int) Math.floor(TilePrefetcher.tileY(north, z)));
+    }
+
+    private int rowMax(int z) {
+
+        return Math.min((1 << z) - 1, (int) Math.floor(TilePrefetcher.tileY(south, z)));
+    }
+
+    private static class Tile {
+
+        final int z;
+        final int x;
+        final int y;
+
+        volatile byte[] data;
+        volatile boolean missing;
+        volatile boolean abandoned;
+
+        Tile(int z, int x, int y) {
+
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+
+        // MBTiles rows are counted from the south (TMS)
+        int row() {
+
+            return (1 << z) - 1 - y;
+        }
+
+        long key() {
+
+            return key(z, x, y);
+        }
+
+        static long key(int z, int x, int y) {
+
+            return ((long) z << 56) | ((long) x << 28) | y;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package flg.mapbox;
+
+import java.io.File;
+import java.util.HashMap;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.KrollProxy;
+import org.appcelerator.kroll.annotations.Kroll;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.titanium.TiApplication;
+import org.appcelerator.titanium.util.TiConvert;
+
+/**
+ * An offline region, built into an MBTiles file in app storage that can be
+ * shown with the map property of a map view using the same name.
+ *
+ * Created with mapbox.createOfflinePack({name, url, region, minZoom, maxZoom,
+ * concurrency}). Fires progress, complete and error events.
+ */
+@Kroll.proxy(creatableInModule = MapboxModule.class, propertyAccessors = {
+        "name",
+        "url",
+        "region",
+        "minZoom",
+        "maxZoom",
+        "concurrency"
+})
+public class OfflinePackProxy extends KrollProxy implements OfflinePackBuilder.Listener {
+
+    private static final String TAG = "OfflinePackProxy";
+
+    private static final int DEFAULT_CONCURRENCY = 4;
+
+    public static final String PROPERTY_NAME = "name";
+    public static final String PROPERTY_URL = "url";
+    public static final String PROPERTY_REGION = "region";
+    public static final String PROPERTY_MIN_ZOOM = "minZoom";
+    public static final String PROPERTY_MAX_ZOOM = "maxZoom";
+    public static final String PROPERTY_CONCURRENCY = "concurrency";
+
+    private static final String EVENT_PROGRESS = "progress";
+    private static final String EVENT_COMPLETE = "complete";
+    private static final String EVENT_ERROR = "error";
+
+    private OfflinePackBuilder builder;
+
+    public OfflinePackProxy() {
+
+        super();
+
+        defaultValues.put(PROPERTY_MIN_ZOOM, 0);
+        defaultValues.put(PROPERTY_MAX_ZOOM, 16);
+        defaultValues.put(PROPERTY_CONCURRENCY, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Starts or resumes building the pack. Tiles already in the file are not
+     * fetched again.
+     */
+    @Kroll.method
+    public void start() {
+
+        if (builder != null && builder.isRunning()) {
+
+            return;
+        }
+
+        builder = createBuilder();
+
+        if (builder != null) {
+
+            builder.start();
+        }
+    }
+
+    /**
+     * Stops building the pack. The tiles fetched so far are kept, start()
+     * resumes.
+     */
+    @Kroll.method
+    public void cancel() {
+
+        if (builder != null) {
+
+            builder.cancel();
+        }
+    }
+
+    @Kroll.method
+    public boolean isRunning() {
+
+        return builder != null && builder.isRunning();
+    }
+
+    /**
+     * Returns the number of tiles of the region.
+     */
+    @Kroll.method
+    public double getTileCount() {
+
+        OfflinePackBuilder counter = builder != null ? builder : createBuilder();
+
+        return counter != null ? counter.countTiles() : 0;
+    }
+
+    /**
+     * Returns the path of the MBTiles file.
+     */
+    @Kroll.method
+    public String getPath() {
+
+        String name = TiConvert.toString(getProperty(PROPERTY_NAME));
+
+        return name != null ? getFile(name).getAbsolutePath() : null;
+    }
+
+    @Override
+    public void onProgress(OfflinePackBuilder.Progress progress) {
+
+        if (hasListeners(EVENT_PROGRESS)) {
+
+            fireEvent(EVENT_PROGRESS, toDict(progress));
+        }
+    }
+
+    @Override
+    public void onComplete(OfflinePackBuilder.Progress progress) {
+
+        fireEvent(EVENT_COMPLETE, toDict(progress));
+    }
+
+    @Override
+    public void onError(String message) {
+
+        KrollDict event = new KrollDict();
+
+        event.put("message", message);
+
+        fireEvent(EVENT_ERROR, event);
+    }
+
+    private OfflinePackBuilder createBuilder() {
+
+        String name = TiConvert.toString(getProperty(PROPERTY_NAME));
+        String url = TiConvert.toString(getProperty(PROPERTY_URL));
+
+        Object region = getProperty(PROPERTY_REGION);
+
+        if (name == null || url == null || !(region instanceof HashMap)) {
+
+            Log.e(TAG, "An offline pack needs a name, a url and a region.");
+
+            return null;
+        }
+
+        HashMap bounds = (HashMap) region;
+
+        if (bounds.get("north") == null || bounds.get("south") == null || bounds.get("east") == null || bounds.get("west") == null) {
+
+            Log.e(TAG, "The region of an offline pack needs north, south, east and west.");
+
+            return null;
+        }
+
+        return new OfflinePackBuilder(getFile(name), url,
+                TiConvert.toDouble(bounds, "north"), TiConvert.toDouble(bounds, "south"),
+                TiConvert.toDouble(bounds, "east"), TiConvert.toDouble(bounds, "west"),
+                TiConvert.toInt(getProperty(PROPERTY_MIN_ZOOM), 0), TiConvert.toInt(getProperty(PROPERTY_MAX_ZOOM), 16),
+                TiConvert.toInt(getProperty(PROPERTY_CONCURRENCY), DEFAULT_CONCURRENCY), name, this);
+    }
+
+    private static File getFile(String name) {
+
+        return new File(MBTilesTileLayer.getStorageDirectory(TiApplication.getInstance()), name + ".mbtiles");
+    }
+
+    private static KrollDict toDict(OfflinePackBuilder.Progress progress) {
+
+        KrollDict event = new KrollDict();
+
+        event.put("total", progress.total);
+        event.put("completed", progress.completed);
+        event.put("downloaded", progress.downloaded);
+        event.put("skipped", progress.skipped);
+        event.put("missing", progress.missing);
+        event.put("failed", progress.failed);
+        event.put("bytes", progress.bytes);
+        event.put("progress", progress.total > 0 ? (double) progress.completed / progress.total : 1);
+        event.put("cancelled", progress.cancelled);
+
+        return event;
+    }
+}
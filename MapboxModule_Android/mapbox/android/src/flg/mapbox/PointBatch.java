@@ -0,0 +1,154 @@
+package flg.mapbox;
+
+import java.util.HashMap;
+
+import org.appcelerator.titanium.util.TiConvert;
+
+/**
+ * Packed coordinates and labels of a batch of points, converted from the
+ * arguments of MapViewProxy.addPoints() on the JS thread and appended to the
+ * PointStore of the map view on the UI thread.
+ */
+public class PointBatch {
+
+    public static final String PROPERTY_COORDINATES = "coordinates";
+    public static final String PROPERTY_LATITUDES = "latitudes";
+    public static final String PROPERTY_LONGITUDES = "longitudes";
+    public static final String PROPERTY_TITLES = "titles";
+    public static final String PROPERTY_SUBTITLES = "subtitles";
+    public static final String PROPERTY_IDS = "ids";
+
+    public final int count;
+
+    public final double[] latitudes;
+    public final double[] longitudes;
+
+    public String[] titles;
+    public String[] subtitles;
+    public String[] ids;
+
+    public String icon;
+    public String pinColor;
+
+    public PointBatch(double[] latitudes, double[] longitudes, int count) {
+
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.count = count;
+    }
+
+    /**
+     * Reads either a flat coordinates array of alternating latitudes and
+     * longitudes or separate latitudes and longitudes arrays.
+     *
+     * @return null if the dictionary holds no coordinates
+     */
+    public static PointBatch fromDictionary(HashMap dict) {
+
+        double[] latitudes;
+        double[] longitudes;
+
+        if (dict.get(PROPERTY_COORDINATES) != null) {
+
+            double[] coordinates = toDoubleArray(dict.get(PROPERTY_COORDINATES));
+
+            if (coordinates == null) {
+
+                return null;
+            }
+
+            int count = coordinates.length / 2;
+
+            latitudes = new double[count];
+            longitudes = new double[count];
+
+            for (int i = 0; i < count; i++) {
+
+                latitudes[i] = coordinates[2 * i];
+                longitudes[i] = coordinates[2 * i + 1];
+            }
+
+        } else {
+
+            latitudes = toDoubleArray(dict.get(PROPERTY_LATITUDES));
+            longitudes = toDoubleArray(dict.get(PROPERTY_LONGITUDES));
+        }
+
+        if (latitudes == null || longitudes == null) {
+
+            return null;
+        }
+
+        PointBatch batch = new PointBatch(latitudes, longitudes, Math.min(latitudes.length, longitudes.length));
+
+        batch.titles = toStringArray(dict.get(PROPERTY_TITLES));
+        batch.subtitles = toStringArray(dict.get(PROPERTY_SUBTITLES));
+        batch.ids = toStringArray(dict.get(PROPERTY_IDS));
+
+        if (dict.get(AnnotationProxy.PROPERTY_ICON) != null) {
+
+            batch.icon = TiConvert.toString(dict, AnnotationProxy.PROPERTY_ICON);
+        }
+
+        if (dict.get(AnnotationProxy.PROPERTY_PINCOLOR) != null) {
+
+            batch.pinColor = TiConvert.toString(dict, AnnotationProxy.PROPERTY_PINCOLOR);
+        }
+
+        return batch;
+    }
+
+    static double[] toDoubleArray(Object value) {
+
+        if (value instanceof double[]) {
+
+            return (double[]) value;
+        }
+
+        if (value instanceof float[]) {
+
+            float[] floats = (float[]) value;
+            double[] doubles = new double[floats.length];
+
+            for (int i = 0; i < floats.length; i++) {
+
+                doubles[i] = floats[i];
+            }
+
+            return doubles;
+        }
+
+        if (value instanceof Object[]) {
+
+            Object[] objects = (Object[]) value;
+            double[] doubles = new double[objects.length];
+
+            for (int i = 0; i < objects.length; i++) {
+
+                doubles[i] = objects[i] != null ? TiConvert.toDouble(objects[i]) : 0;
+            }
+
+            return doubles;
+        }
+
+        return null;
+    }
+
+    private static String[] toStringArray(Object value) {
+
+        if (!(value instanceof Object[])) {
+
+            return null;
+        }
+
+        Object[] objects = (Object[]) value;
+        String[] strings = new String[objects.length];
+
+        for (int i = 0; i < objects.length; i++) {
+
+            strings[i] = objects[i] != null ? TiConvert.toString(objects[i]) : null;
+        }
+
+        return strings;
+    }
+}
@@ -0,0 +1,436 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.overlay.Icon;
+import com.mapbox.mapboxsdk.overlay.Marker;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Shows the points of a PointStore on the map.
+ *
+ * Points are indexed by their number in the same grid of cells as used by the
+ * AnnotationVirtualizer, and only the points within the visible bounds plus a
+ * margin get a native marker. At most MAX_SHOWN_POINTS markers are shown;
+ * beyond that, a stable sample of the points in view is shown, so that
+ * zooming in reveals more of them without the shown ones changing. Markers of
+ * points that leave the viewport are pooled per icon style and reused. All
+ * methods must be called on the UI thread.
+ */
+public class PointLayer {
+
+    private static final int MAX_POOLED_MARKERS_PER_STYLE = 128;
+
+    // markers are slow to draw and hit-test, the rest of the points in view is left out
+    private static final int MAX_SHOWN_POINTS = 500;
+
+    private final MapView map;
+    private final Context context;
+
+    private final PointStore store = new PointStore();
+
+    private final Handler mainHandler;
+
+    private float margin = AnnotationVirtualizer.DEFAULT_MARGIN;
+
+    private final HashMap<Integer, ClusterIndex.IntList> cells = new HashMap<Integer, ClusterIndex.IntList>();
+
+    private final HashMap<Integer, Marker> shownMarkers = new HashMap<Integer, Marker>();
+    private final IdentityHashMap<Marker, Integer> pointsByMarker = new IdentityHashMap<Marker, Integer>();
+    private final HashMap<Integer, ArrayList<Marker>> pool = new HashMap<Integer, ArrayList<Marker>>();
+
+    // reused by every refresh, zoomed out views have many points in view
+    private final ClusterIndex.IntList visible = new ClusterIndex.IntList(256);
+    private long[] ranked = new long[0];
+
+    private boolean refreshPending = false;
+
+    private final Runnable refreshRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            refreshPending = false;
+
+            refresh();
+        }
+    };
+
+    public PointLayer(MapView map, Context context) {
+
+        this.map = map;
+        this.context = context;
+
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public void setMargin(float margin) {
+
+        this.margin = Math.max(0, margin);
+    }
+
+    public PointStore getStore() {
+
+        return store;
+    }
+
+    public void addPoints(PointBatch batch) {
+
+        int first = store.append(batch);
+
+        for (int point = first; point < store.size(); point++) {
+
+            Integer key = AnnotationVirtualizer.cellKey(store.getLatitude(point), store.getLongitude(point));
+
+            ClusterIndex.IntList cell = cells.get(key);
+
+            if (cell == null) {
+
+                cell = new ClusterIndex.IntList(8);
+                cells.put(key, cell);
+            }
+
+            cell.add(point);
+        }
+
+        scheduleRefresh();
+    }
+
+    public boolean isPointMarker(Marker marker) {
+
+        return pointsByMarker.containsKey(marker);
+    }
+
+    /**
+     * Returns the markers of the points currently on the map.
+     */
+    public Collection<Marker> getPointMarkers() {
+
+        return shownMarkers.values();
+    }
+
+    /**
+     * Returns the proxy of the point shown by the given marker, or null.
+     */
+    public AnnotationProxy getProxy(Marker marker) {
+
+        Integer point = pointsByMarker.get(marker);
+
+        return point != null ? store.getProxy(point) : null;
+    }
+
+    /**
+     * Returns the marker currently showing the point of the given proxy, or null
+     * if the point is out of view.
+     */
+    public Marker getMarker(AnnotationProxy proxy) {
+
+        int point = store.getPoint(proxy);
+
+        return point >= 0 ? shownMarkers.get(point) : null;
+    }
+
+    /**
+     * Removes all points and their markers from the map.
+     */
+    public void clear() {
+
+        if (!shownMarkers.isEmpty()) {
+
+            map.removeMarkers(new ArrayList<Marker>(shownMarkers.values()));
+            map.invalidate();
+        }
+
+        store.clear();
+
+        cells.clear();
+        clearShown();
+
+        visible.clear();
+        ranked = new long[0];
+    }
+
+    /**
+     * Called after the map view cleared all markers from the map. The markers
+     * of the visible points are added again on the next refresh.
+     */
+    public void clearShown() {
+
+        shownMarkers.clear();
+        pointsByMarker.clear();
+        pool.clear();
+    }
+
+    public void release() {
+
+        mainHandler.removeCallbacks(refreshRunnable);
+
+        store.clear();
+
+        cells.clear();
+        clearShown();
+
+        visible.clear();
+        ranked = new long[0];
+    }
+
+    public void scheduleRefresh() {
+
+        if (!refreshPending) {
+
+            refreshPending = true;
+
+            mainHandler.post(refreshRunnable);
+        }
+    }
+
+    private void refresh() {
+
+        BoundingBox box = map.getBoundingBox();
+
+        if (box == null) {
+
+            return;
+        }
+
+        double latMargin = box.getLatitudeSpan() * margin;
+        double lonMargin = box.getLongitudeSpan() * margin;
+
+        double south = Math.max(-90, box.getLatSouth() - latMargin);
+        double north = Math.min(90, box.getLatNorth() + latMargin);
+        double west = box.getLonWest() - lonMargin;
+        double east = box.getLonEast() + lonMargin;
+
+        if (east - west >= 360) {
+
+            west = -180;
+            east = 180;
+        }
+
+        visible.clear();
+
+        int minRow = AnnotationVirtualizer.row(south);
+        int maxRow = AnnotationVirtualizer.row(north);
+
+        int minColumn = AnnotationVirtualizer.column(west);
+        int maxColumn = AnnotationVirtualizer.column(east);
+
+        long cellsInView = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+
+        if (cellsInView > cells.size()) {
+
+            for (ClusterIndex.IntList cell : cells.values()) {
+
+                collect(cell, south, north, west, east);
+            }
+
+        } else {
+
+            for (int r = minRow; r <= maxRow; r++) {
+
+                for (int c = minColumn; c <= maxColumn; c++) {
+
+                    ClusterIndex.IntList cell = cells.get(r * AnnotationVirtualizer.CELLS_PER_ROW + AnnotationVirtualizer.wrapColumn(c));
+
+                    if (cell != null) {
+
+                        collect(cell, south, north, west, east);
+                    }
+                }
+            }
+        }
+
+        if (visible.size() > MAX_SHOWN_POINTS) {
+
+            sample(MAX_SHOWN_POINTS);
+        }
+
+        // at most MAX_SHOWN_POINTS, sorted to look the shown ones up
+        int[] kept = visible.toArray();
+
+        Arrays.sort(kept);
+
+        ArrayList<Marker> removed = new ArrayList<Marker>();
+        ArrayList<Marker> added = new ArrayList<Marker>();
+
+        ArrayList<Integer> hidden = new ArrayList<Integer>();
+
+        for (Integer point : shownMarkers.keySet()) {
+
+            if (Arrays.binarySearch(kept, point) < 0) {
+
+                hidden.add(point);
+            }
+        }
+
+        for (int i = 0; i < hidden.size(); i++) {
+
+            Integer point = hidden.get(i);
+
+            Marker marker = shownMarkers.remove(point);
+
+            pointsByMarker.remove(marker);
+
+            removed.add(marker);
+
+            recycle(store.getStyle(point), marker);
+        }
+
+        if (!removed.isEmpty()) {
+
+            map.removeMarkers(removed);
+        }
+
+        for (int i = 0; i < kept.length; i++) {
+
+            int point = kept[i];
+
+            if (shownMarkers.containsKey(point)) {
+
+                continue;
+            }
+
+            Marker marker = obtainMarker(point);
+
+            shownMarkers.put(point, marker);
+            pointsByMarker.put(marker, point);
+
+            added.add(marker);
+        }
+
+        if (!added.isEmpty()) {
+
+            map.addMarkers(added);
+        }
+
+        if (!removed.isEmpty() || !added.isEmpty()) {
+
+            map.invalidate();
+        }
+    }
+
+    private void collect(ClusterIndex.IntList cell, double south, double north, double west, double east) {
+
+        for (int i = 0; i < cell.size(); i++) {
+
+            int point = cell.get(i);
+
+            double latitude = store.getLatitude(point);
+            double longitude = store.getLongitude(point);
+
+            if (latitude < south || latitude > north) {
+
+                continue;
+            }
+
+            if ((longitude >= west && longitude <= east) || (longitude + 360 >= west && longitude + 360 <= east) || (longitude - 360 >= west && longitude - 360 <= east)) {
+
+                visible.add(point);
+            }
+        }
+    }
+
+    /**
+     * Reduces the visible points to the limit ones with the lowest rank. The
+     * rank only depends on the point, so a point in the sample of a region
+     * stays in the sample of every smaller region around it.
+     */
+    private void sample(int limit) {
+
+        int count = visible.size();
+
+        if (ranked.length < count) {
+
+            ranked = new long[Math.max(count, ranked.length * 2)];
+        }
+
+        for (int i = 0; i < count; i++) {
+
+            int point = visible.get(i);
+
+            ranked[i] = ((long) rank(point) << 32) | point;
+        }
+
+        Arrays.sort(ranked, 0, count);
+
+        visible.clear();
+
+        for (int i = 0; i < limit; i++) {
+
+            visible.add((int) ranked[i]);
+        }
+    }
+
+    /**
+     * Scrambles the number of a point into a non-negative rank, so that points
+     * added together are spread over the sample.
+     */
+    private static int rank(int point) {
+
+        int hash = point * 0x9e3779b9;
+
+        hash ^= hash >>> 16;
+
+        return hash & 0x7fffffff;
+    }
+
+    private Marker obtainMarker(int point) {
+
+        LatLng position = new LatLng(store.getLatitude(point), store.getLongitude(point));
+
+        String title = store.getTitle(point);
+        String subtitle = store.getSubtitle(point);
+
+        int style = store.getStyle(point);
+
+        ArrayList<Marker> pooled = pool.get(style);
+
+        if (pooled != null && !pooled.isEmpty()) {
+
+            AnnotationMarker marker = (AnnotationMarker) pooled.remove(pooled.size() - 1);
+
+            marker.setPointDeferred(position);
+            marker.setTitle(title != null ? title : "");
+            marker.setDescription(subtitle);
+
+            return marker;
+        }
+
+        Marker marker = new AnnotationMarker(map, title != null ? title : "", subtitle, position);
+
+        if (style >= 0) {
+
+            IconCache.getInstance().setIcon(context, marker, Icon.Size.MEDIUM, store.getStyleIcon(style), store.getStylePinColor(style));
+        }
+
+        return marker;
+    }
+
+    private void recycle(int style, Marker marker) {
+
+        marker.closeToolTip();
+
+        ArrayList<Marker> pooled = pool.get(style);
+
+        if (pooled == null) {
+
+            pooled = new ArrayList<Marker>();
+            pool.put(style, pooled);
+        }
+
+        if (pooled.size() < MAX_POOLED_MARKERS_PER_STYLE) {
+
+            pooled.add(marker);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package flg.mapbox;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.appcelerator.titanium.TiC;
+
+/**
+ * Columnar store for large sets of points added with addPoints().
+ *
+ * Every point is a row in primitive columns: its position, and indices into a
+ * pool of strings for its id, title and subtitle and into a pool of icon
+ * styles. Repeated titles and styles are stored once. An AnnotationProxy is
+ * only created for a point when it is needed, for example in a tap event, and
+ * is read-only: changing its properties does not change the point. Proxies
+ * are only held weakly, a point gets the same proxy again as long as its last
+ * one is still referenced.
+ */
+public class PointStore {
+
+    private static final int NONE = -1;
+
+    private double[] latitudes = new double[0];
+    private double[] longitudes = new double[0];
+
+    private int[] ids = new int[0];
+    private int[] titles = new int[0];
+    private int[] subtitles = new int[0];
+    private int[] styles = new int[0];
+
+    private int count = 0;
+
+    private final StringPool strings = new StringPool();
+    private final StringPool styleKeys = new StringPool();
+
+    private final ArrayList<String> styleIcons = new ArrayList<String>();
+    private final ArrayList<String> stylePinColors = new ArrayList<String>();
+
+    private final HashMap<Integer, WeakReference<AnnotationProxy>> proxies = new HashMap<Integer, WeakReference<AnnotationProxy>>();
+    private final WeakHashMap<AnnotationProxy, Integer> pointsByProxy = new WeakHashMap<AnnotationProxy, Integer>();
+
+    private int pruneAt = 64;
+
+    /**
+     * Appends a batch of points.
+     *
+     * @return the index of the first appended point
+     */
+    public int append(PointBatch batch) {
+
+        int first = count;
+
+        ensureCapacity(count + batch.count);
+
+        int style = NONE;
+
+        if (batch.icon != null && batch.pinColor != null) {
+
+            int size = styleKeys.size();
+
+            style = styleKeys.intern(batch.icon + "|" + batch.pinColor);
+
+            if (style == size) {
+
+                styleIcons.add(batch.icon);
+                stylePinColors.add(batch.pinColor);
+            }
+        }
+
+        for (int i = 0; i < batch.count; i++) {
+
+            int point = count++;
+
+            latitudes[point] = batch.latitudes[i];
+            longitudes[point] = batch.longitudes[i];
+
+            ids[point] = internAt(batch.ids, i);
+            titles[point] = internAt(batch.titles, i);
+            subtitles[point] = internAt(batch.subtitles, i);
+
+            styles[point] = style;
+        }
+
+        return first;
+    }
+
+    public int size() {
+
+        return count;
+    }
+
+    public double getLatitude(int point) {
+
+        return latitudes[point];
+    }
+
+    public double getLongitude(int point) {
+
+        return longitudes[point];
+    }
+
+    public String getId(int point) {
+
+        return strings.get(ids[point]);
+    }
+
+    public String getTitle(int point) {
+
+        return strings.get(titles[point]);
+    }
+
+    public String getSubtitle(int point) {
+
+        return strings.get(subtitles[point]);
+    }
+
+    /**
+     * Returns the index of the icon style of a point, or -1 for the default
+     * marker icon. Points with the same style can share recycled markers.
+     */
+    public int getStyle(int point) {
+
+        return styles[point];
+    }
+
+    public String getStyleIcon(int style) {
+
+        return style != NONE ? styleIcons.get(style) : null;
+    }
+
+    public String getStylePinColor(int style) {
+
+        return style != NONE ? stylePinColors.get(style) : null;
+    }
+
+    /**
+     * Returns the proxy of a point, creating it on first use.
+     */
+    public AnnotationProxy getProxy(int point) {
+
+        WeakReference<AnnotationProxy> reference = proxies.get(point);
+
+        AnnotationProxy proxy = reference != null ? reference.get() : null;
+
+        if (proxy == null) {
+
+            proxy = new AnnotationProxy();
+
+            String id = getId(point);
+
+            if (id != null) {
+
+                proxy.setProperty(TiC.PROPERTY_ID, id);
+            }
+
+            proxy.setProperty(TiC.PROPERTY_TITLE, getTitle(point));
+            proxy.setProperty(TiC.PROPERTY_SUBTITLE, getSubtitle(point));
+            proxy.setProperty(TiC.PROPERTY_LATITUDE, latitudes[point]);
+            proxy.setProperty(TiC.PROPERTY_LONGITUDE, longitudes[point]);
+
+            int style = styles[point];
+
+            if (style != NONE) {
+
+                proxy.setProperty(AnnotationProxy.PROPERTY_ICON, styleIcons.get(style));
+                proxy.setProperty(AnnotationProxy.PROPERTY_PINCOLOR, stylePinColors.get(style));
+            }
+
+            proxy.processOptions();
+
+            proxies.put(point, new WeakReference<AnnotationProxy>(proxy));
+            pointsByProxy.put(proxy, point);
+
+            if (proxies.size() >= pruneAt) {
+
+                prune();
+
+                pruneAt = Math.max(64, proxies.size() * 2);
+            }
+        }
+
+        return proxy;
+    }
+
+    /**
+     * Returns the point of a proxy created by getProxy(), or -1.
+     */
+    public int getPoint(AnnotationProxy proxy) {
+
+        Integer point = pointsByProxy.get(proxy);
+
+        return point != null ? point : NONE;
+    }
+
+    public void clear() {
+
+        latitudes = new double[0];
+        longitudes = new double[0];
+        ids = new int[0];
+        titles = new int[0];
+        subtitles = new int[0];
+        styles = new int[0];
+
+        count = 0;
+
+        strings.clear();
+        styleKeys.clear();
+        styleIcons.clear();
+        stylePinColors.clear();
+
+        proxies.clear();
+        pointsByProxy.clear();
+
+        pruneAt = 64;
+    }
+
+    /**
+     * Drops the references of proxies that were garbage collected.
+     */
+    private void prune() {
+
+        Iterator<Map.Entry<Integer, WeakReference<AnnotationProxy>>> iterator = proxies.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+
+            if (iterator.next().getValue().get() == null) {
+
+                iterator.remove();
+            }
+        }
+    }
+
+    private int internAt(String[] values, int i) {
+
+        if (values == null || i >= values.length || values[i] == null) {
+
+            return NONE;
+        }
+
+        return strings.intern(values[i]);
+    }
+
+    private void ensureCapacity(int capacity) {
+
+        if (capacity <= latitudes.length) {
+
+            return;
+        }
+
+        int grown = Math.max(capacity, latitudes.length + (latitudes.length >> 1));
+
+        latitudes = copyOf(latitudes, grown);
+        longitudes = copyOf(longitudes, grown);
+        ids = copyOf(ids, grown);
+        titles = copyOf(titles, grown);
+        subtitles = copyOf(subtitles, grown);
+        styles = copyOf(styles, grown);
+    }
+
+    private static double[] copyOf(double[] values, int length) {
+
+        double[] copy = new double[length];
+        System.arraycopy(values, 0, copy, 0, Math.min(values.length, length));
+        return copy;
+    }
+
+    private static int[] copyOf(int[] values, int length) {
+
+        int[] copy = new int[length];
+        System.arraycopy(values, 0, copy, 0, Math.min(values.length, length));
+        return copy;
+    }
+
+    /**
+     * Stores every distinct string once and refers to it by index.
+     */
+    private static class StringPool {
+
+        private final ArrayList<String> values = new ArrayList<String>();
+        private final HashMap<String, Integer> indices = new HashMap<String, Integer>();
+
+        int intern(String value) {
+
+            Integer index = indices.get(value);
+
+            if (index == null) {
+
+                index = values.size();
+
+                values.add(value);
+                indices.put(value, index);
+            }
+
+            return index;
+        }
+
+        String get(int index) {
+
+            return index != NONE ? values.get(index) : null;
+        }
+
+        int size() {
+
+            return values.size();
+        }
+
+        void clear() {
+
+            values.clear();
+            indices.clear();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package flg.mapbox;
+
+import org.appcelerator.kroll.annotations.Kroll;
+import org.appcelerator.titanium.util.TiConvert;
+
+/**
+ * An area within its points, which are closed into a ring. Without a
+ * fillColor only the outline is drawn.
+ *
+ * Created with mapbox.createPolygon({points, strokeColor, strokeWidth,
+ * fillColor}).
+ */
+@Kroll.proxy(creatableInModule = MapboxModule.class, propertyAccessors = {
+        ShapeProxy.PROPERTY_FILL_COLOR
+})
+public class PolygonProxy extends ShapeProxy {
+
+    public PolygonProxy() {
+
+        super();
+    }
+
+    @Override
+    public boolean isClosed() {
+
+        return true;
+    }
+
+    @Override
+    protected void applyStyle() {
+
+        super.applyStyle();
+
+        Object fillColor = getProperty(PROPERTY_FILL_COLOR);
+
+        if (fillColor != null) {
+
+            getCurrentShape().setFill(TiConvert.toColor(TiConvert.toString(fillColor)));
+
+        } else {
+
+            getCurrentShape().removeFill();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package flg.mapbox;
+
+import org.appcelerator.kroll.annotations.Kroll;
+
+/**
+ * A line through its points, for example a route or a recorded track.
+ *
+ * Created with mapbox.createPolyline({points, strokeColor, strokeWidth}).
+ */
+@Kroll.proxy(creatableInModule = MapboxModule.class)
+public class PolylineProxy extends ShapeProxy {
+
+    public PolylineProxy() {
+
+        super();
+    }
+}
@@ -0,0 +1,362 @@
+package flg.mapbox;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.mapbox.mapboxsdk.views.util.Projection;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+/**
+ * The vertices of a polyline or polygon ring, projected once to the pixels of
+ * the deepest zoom level the map projects to, in primitive arrays.
+ *
+ * For every zoom level up to MAX_LOD_ZOOM a Douglas-Peucker simplification is
+ * kept whose error stays below TOLERANCE_PX screen pixels at that zoom. Each
+ * level is simplified from the full geometry, so errors do not add up from
+ * level to level, and levels are shared with the full geometry where
+ * simplifying saves little. Until they are built, the full geometry is
+ * drawn.
+ *
+ * Vertices are grouped into blocks of BLOCK_SIZE with their bounds, so that
+ * blocks outside the viewport can be skipped without looking at their
+ * vertices.
+ */
+public class ShapeGeometry {
+
+    public static final int MAX_LOD_ZOOM = 18;
+
+    static final int BLOCK_SIZE = 64;
+
+    // Projection.toMapPixelsProjected() projects to this zoom level
+    static final int PROJECTED_ZOOM = 22;
+
+    private static final double TOLERANCE_PX = 0.5;
+
+    // a level keeping more of the vertices than this is not worth its memory
+    private static final double MIN_REDUCTION = 0.8;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private static ExecutorService executor;
+
+    private final boolean closed;
+
+    private final Level full;
+
+    // by zoom level, null until built
+    private volatile Level[] levels;
+
+    private long buildTime = -1;
+
+    /**
+     * @param closed whether the vertices form a polygon ring, the closing
+     *            vertex may be omitted
+     */
+    public ShapeGeometry(double[] latitudes, double[] longitudes, int count, boolean closed) {
+
+        this.closed = closed;
+
+        boolean addClosing = closed && count > 2 && (latitudes[0] != latitudes[count - 1] || longitudes[0] != longitudes[count - 1]);
+
+        int size = addClosing ? count + 1 : count;
+
+        double[] x = new double[size];
+        double[] y = new double[size];
+
+        double mapSize = (double) Projection.getTileSize() * (1 << PROJECTED_ZOOM);
+
+        for (int i = 0; i < count; i++) {
+
+            x[i] = projectX(longitudes[i], mapSize);
+            y[i] = projectY(latitudes[i], mapSize);
+        }
+
+        if (addClosing) {
+
+            x[count] = x[0];
+            y[count] = y[0];
+        }
+
+        full = new Level(x, y, size);
+    }
+
+    /**
+     * Builds the simplified levels. Takes long for large geometries, called
+     * off the UI thread.
+     */
+    public void buildLevels() {
+
+        if (levels != null) {
+
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        Level[] built = new Level[MAX_LOD_ZOOM + 1];
+
+        if (full.count <= BLOCK_SIZE) {
+
+            // too small to gain anything
+            for (int zoom = 0; zoom <= MAX_LOD_ZOOM; zoom++) {
+
+                built[zoom] = full;
+            }
+
+        } else {
+
+            GeometryFactory factory = new GeometryFactory();
+
+            Coordinate[] coordinates = new Coordinate[full.count];
+
+            for (int i = 0; i < full.count; i++) {
+
+                coordinates[i] = new Coordinate(full.x[i], full.y[i]);
+            }
+
+            Geometry line = factory.createLineString(coordinates);
+
+            for (int zoom = MAX_LOD_ZOOM; zoom >= 0; zoom--) {
+
+                double tolerance = TOLERANCE_PX * Math.pow(2, PROJECTED_ZOOM - zoom);
+
+                Coordinate[] simplified = DouglasPeuckerSimplifier.simplify(line, tolerance).getCoordinates();
+
+                if (simplified.length >= full.count * MIN_REDUCTION) {
+
+                    built[zoom] = full;
+
+                } else if (zoom < MAX_LOD_ZOOM && built[zoom + 1] != full && built[zoom + 1].count == simplified.length) {
+
+                    // a coarser tolerance only drops vertices, so the same count means the same ones
+                    built[zoom] = built[zoom + 1];
+
+                } else {
+
+                    built[zoom] = toLevel(simplified);
+                }
+            }
+        }
+
+        buildTime = (System.nanoTime() - start) / 1000000;
+
+        levels = built;
+    }
+
+    /**
+     * Builds the levels on a shared background thread and runs the callback
+     * there afterwards.
+     */
+    public void buildLevelsAsync(final Runnable callback) {
+
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                buildLevels();
+
+                if (callback != null) {
+
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the vertices to draw at a zoom level.
+     */
+    public Level getLevel(float zoom) {
+
+        Level[] current = levels;
+
+        int level = (int) zoom;
+
+        if (current == null || level > MAX_LOD_ZOOM) {
+
+            return full;
+        }
+
+        return current[Math.max(0, level)];
+    }
+
+    public boolean isClosed() {
+
+        return closed;
+    }
+
+    public boolean hasLevels() {
+
+        return levels != null;
+    }
+
+    public int getVertexCount() {
+
+        return full.count;
+    }
+
+    /**
+     * Returns the vertices kept by the simplified levels, without the full
+     * geometry and counting shared levels once.
+     */
+    public int getLevelVertexCount() {
+
+        Level[] current = levels;
+
+        if (current == null) {
+
+            return 0;
+        }
+
+        int vertices = 0;
+
+        for (int zoom = 0; zoom < current.length; zoom++) {
+
+            if (current[zoom] != full && (zoom == 0 || current[zoom] != current[zoom - 1])) {
+
+                vertices += current[zoom].count;
+            }
+        }
+
+        return vertices;
+    }
+
+    /**
+     * Returns the time the levels took to build in milliseconds, -1 before.
+     */
+    public long getBuildTime() {
+
+        return buildTime;
+    }
+
+    private static Level toLevel(Coordinate[] coordinates) {
+
+        double[] x = new double[coordinates.length];
+        double[] y = new double[coordinates.length];
+
+        for (int i = 0; i < coordinates.length; i++) {
+
+            x[i] = coordinates[i].x;
+            y[i] = coordinates[i].y;
+        }
+
+        return new Level(x, y, coordinates.length);
+    }
+
+    /**
+     * The same spherical mercator as Projection.latLongToPixelXY(), in double
+     * precision.
+     */
+    static double projectX(double longitude, double mapSize) {
+
+        return (longitude + 180) / 360 * mapSize;
+    }
+
+    static double projectY(double latitude, double mapSize) {
+
+        double sin = Math.sin(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)) * Math.PI / 180);
+
+        return (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * mapSize;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+
+        if (executor == null) {
+
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "MapboxModule-Shapes");
+
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+    /**
+     * Projected vertices with the bounds of each block. A block covers the
+     * segments from its first vertex to the first vertex of the next block.
+     */
+    public static class Level {
+
+        final double[] x;
+        final double[] y;
+        final int count;
+
+        // minX, minY, maxX, maxY per block
+        final double[] blockBounds;
+        final int blocks;
+
+        final double minX;
+        final double minY;
+        final double maxX;
+        final double maxY;
+
+        Level(double[] x, double[] y, int count) {
+
+            this.x = x;
+            this.y = y;
+            this.count = count;
+
+            blocks = count > 1 ? (count - 2) / BLOCK_SIZE + 1 : count;
+            blockBounds = new double[blocks * 4];
+
+            double allMinX = Double.MAX_VALUE;
+            double allMinY = Double.MAX_VALUE;
+            double allMaxX = -Double.MAX_VALUE;
+            double allMaxY = -Double.MAX_VALUE;
+
+            for (int block = 0; block < blocks; block++) {
+
+                int start = block * BLOCK_SIZE;
+                int end = Math.min(count - 1, start + BLOCK_SIZE);
+
+                double blockMinX = x[start];
+                double blockMinY = y[start];
+                double blockMaxX = x[start];
+                double blockMaxY = y[start];
+
+                for (int i = start + 1; i <= end; i++) {
+
+                    blockMinX = Math.min(blockMinX, x[i]);
+                    blockMinY = Math.min(blockMinY, y[i]);
+                    blockMaxX = Math.max(blockMaxX, x[i]);
+                    blockMaxY = Math.max(blockMaxY, y[i]);
+                }
+
+                blockBounds[block * 4] = blockMinX;
+                blockBounds[block * 4 + 1] = blockMinY;
+                blockBounds[block * 4 + 2] = blockMaxX;
+                blockBounds[block * 4 + 3] = blockMaxY;
+
+                allMinX = Math.min(allMinX, blockMinX);
+                allMinY = Math.min(allMinY, blockMinY);
+                allMaxX = Math.max(allMaxX, blockMaxX);
+                allMaxY = Math.max(allMaxY, blockMaxY);
+            }
+
+            minX = allMinX;
+            minY = allMinY;
+            maxX = allMaxX;
+            maxY = allMaxY;
+        }
+
+        public int getVertexCount() {
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+
+import org.appcelerator.kroll.KrollDict;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import com.mapbox.mapboxsdk.overlay.Overlay;
+import com.mapbox.mapboxsdk.views.MapView;
+import com.mapbox.mapboxsdk.views.util.Projection;
+
+/**
+ * Draws the polylines and polygons of a map view, in the order they were
+ * added.
+ *
+ * Each frame, the level of detail of every shape is picked for the current
+ * zoom and its vertices are clipped to the viewport in projected pixels,
+ * before anything is converted to screen coordinates: polyline blocks
+ * outside the viewport are skipped, polygons are clipped with
+ * Sutherland-Hodgman so that their fill stays right.
+ *
+ * Used on the UI thread.
+ */
+public class ShapeOverlay extends Overlay {
+
+    // drawn around the viewport, so clipped edges and wide strokes stay off screen
+    private static final int CLIP_MARGIN_PX = 64;
+
+    // a projected x coordinate to measure the scale of the projection with
+    private static final double SCALE_PROBE = 1 << 24;
+
+    /**
+     * A shape as drawn, with a fill paint for polygons that have a fill
+     * color.
+     */
+    public static class Shape {
+
+        volatile ShapeGeometry geometry;
+
+        final Paint strokePaint;
+        Paint fillPaint;
+
+        public Shape(ShapeGeometry geometry) {
+
+            this.geometry = geometry;
+
+            strokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            strokePaint.setStyle(Paint.Style.STROKE);
+            strokePaint.setStrokeJoin(Paint.Join.ROUND);
+            strokePaint.setStrokeCap(Paint.Cap.ROUND);
+        }
+
+        public void setGeometry(ShapeGeometry geometry) {
+
+            this.geometry = geometry;
+        }
+
+        public ShapeGeometry getGeometry() {
+
+            return geometry;
+        }
+
+        /**
+         * @param width in pixels, 0 draws no outline
+         */
+        public void setStroke(int color, float width) {
+
+            strokePaint.setColor(color);
+            strokePaint.setStrokeWidth(width);
+        }
+
+        public void setFill(int color) {
+
+            if (fillPaint == null) {
+
+                fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                fillPaint.setStyle(Paint.Style.FILL);
+            }
+
+            fillPaint.setColor(color);
+        }
+
+        public void removeFill() {
+
+            fillPaint = null;
+        }
+    }
+
+    private final ArrayList<Shape> shapes = new ArrayList<Shape>();
+
+    private final Path path = new Path();
+
+    private final double[] probe = new double[2];
+    private final double[] translated = new double[2];
+
+    // Sutherland-Hodgman buffers, grown as needed
+    private double[] clipX = new double[256];
+    private double[] clipY = new double[256];
+    private double[] clipOutX = new double[256];
+    private double[] clipOutY = new double[256];
+    private int clipCount;
+
+    private long frames = 0;
+    private long frameNanos = 0;
+    private int drawnVertices = 0;
+    private int drawnShapes = 0;
+
+    public ShapeOverlay() {
+
+        super();
+
+        // below the markers, like the path overlays of the SDK
+        setOverlayIndex(PATHOVERLAY_INDEX);
+    }
+
+    public void addShape(Shape shape) {
+
+        if (!shapes.contains(shape)) {
+
+            shapes.add(shape);
+        }
+    }
+
+    public void removeShape(Shape shape) {
+
+        shapes.remove(shape);
+    }
+
+    public void removeAllShapes() {
+
+        shapes.clear();
+    }
+
+    public boolean isEmpty() {
+
+        return shapes.isEmpty();
+    }
+
+    /**
+     * Returns the counters, of the last frame for drawn shapes and vertices,
+     * times in milliseconds.
+     */
+    public KrollDict getStats() {
+
+        int vertices = 0;
+        int levelVertices = 0;
+        int pendingLevels = 0;
+
+        for (int i = 0; i < shapes.size(); i++) {
+
+            ShapeGeometry geometry = shapes.get(i).geometry;
+
+            vertices += geometry.getVertexCount();
+            levelVertices += geometry.getLevelVertexCount();
+
+            if (!geometry.hasLevels()) {
+
+                pendingLevels++;
+            }
+        }
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("shapes", shapes.size());
+        stats.put("vertices", vertices);
+        stats.put("levelVertices", levelVertices);
+        stats.put("pendingLevels", pendingLevels);
+        stats.put("drawnShapes", drawnShapes);
+        stats.put("drawnVertices", drawnVertices);
+        stats.put("frames", frames);
+        stats.put("averageDrawTime", frames > 0 ? frameNanos / 1e6 / frames : 0);
+
+        return stats;
+    }
+
+    @Override
+    protected void draw(Canvas canvas, MapView mapView, boolean shadow) {
+
+        if (shadow || shapes.isEmpty()) {
+
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        Projection projection = mapView.getProjection();
+
+        float zoom = projection.getZoomLevel();
+
+        // projected pixels map linearly to canvas pixels
+        probe[0] = 0;
+        probe[1] = 0;
+
+        projection.toMapPixelsTranslated(probe, translated);
+
+        double offsetX = translated[0];
+        double offsetY = translated[1];
+
+        probe[0] = SCALE_PROBE;
+
+        projection.toMapPixelsTranslated(probe, translated);
+
+        double scale = (translated[0] - offsetX) / SCALE_PROBE;
+
+        if (scale <= 0) {
+
+            return;
+        }
+
+        Rect screen = projection.fromPixelsToProjected(projection.getScreenRect());
+
+        double margin = CLIP_MARGIN_PX / scale;
+
+        double minX = Math.min(screen.left, screen.right) - margin;
+        double maxX = Math.max(screen.left, screen.right) + margin;
+        double minY = Math.min(screen.top, screen.bottom) - margin;
+        double maxY = Math.max(screen.top, screen.bottom) + margin;
+
+        // the canvas is scaled while pinching, strokes keep their width
+        float strokeScale = 1 / mapView.getScale();
+
+        drawnShapes = 0;
+        drawnVertices = 0;
+
+        for (int i = 0; i < shapes.size(); i++) {
+
+            Shape shape = shapes.get(i);
+
+            // replaced from the JS thread
+            ShapeGeometry geometry = shape.geometry;
+
+            ShapeGeometry.Level level = geometry.getLevel(zoom);
+
+            if (level.count < 2 || level.maxX < minX || level.minX > maxX || level.maxY < minY || level.minY > maxY) {
+
+                continue;
+            }
+
+            path.rewind();
+
+            boolean drawn;
+
+            if (geometry.isClosed()) {
+
+                drawn = buildPolygonPath(level, minX, minY, maxX, maxY, scale, offsetX, offsetY);
+
+            } else {
+
+                drawn = buildPolylinePath(level, minX, minY, maxX, maxY, scale, offsetX, offsetY);
+            }
+
+            if (!drawn) {
+
+                continue;
+            }
+
+            drawnShapes++;
+
+            if (shape.fillPaint != null && geometry.isClosed()) {
+
+                canvas.drawPath(path, shape.fillPaint);
+            }
+
+            float width = shape.strokePaint.getStrokeWidth();
+
+            if (width > 0) {
+
+                shape.strokePaint.setStrokeWidth(width * strokeScale);
+
+                canvas.drawPath(path, shape.strokePaint);
+
+                shape.strokePaint.setStrokeWidth(width);
+            }
+        }
+
+        frames++;
+        frameNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Adds the segments of the blocks within the clip bounds to the path,
+     * starting a new subpath after every skipped block.
+     */
+    private boolean buildPolylinePath(ShapeGeometry.Level level, double minX, double minY, double maxX, double maxY, double scale, double offsetX, double offsetY) {
+
+        double[] x = level.x;
+        double[] y = level.y;
+        double[] bounds = level.blockBounds;
+
+        boolean drawing = false;
+        boolean drawn = false;
+
+        for (int block = 0; block < level.blocks; block++) {
+
+            int b = block * 4;
+
+            if (bounds[b + 2] < minX || bounds[b] > maxX || bounds[b + 3] < minY || bounds[b + 1] > maxY) {
+
+                drawing = false;
+
+                continue;
+            }
+
+            int start = block * ShapeGeometry.BLOCK_SIZE;
+            int end = Math.min(level.count - 1, start + ShapeGeometry.BLOCK_SIZE);
+
+            // the first vertex was drawn as the last one of the previous block
+            int first = drawing ? start + 1 : start;
+
+            if (!drawing) {
+
+                path.moveTo((float) (x[first] * scale + offsetX), (float) (y[first] * scale + offsetY));
+
+                first++;
+
+                drawing = true;
+            }
+
+            for (int i = first; i <= end; i++) {
+
+                path.lineTo((float) (x[i] * scale + offsetX), (float) (y[i] * scale + offsetY));
+            }
+
+            drawnVertices += end - start + 1;
+            drawn = true;
+        }
+
+        return drawn;
+    }
+
+    /**
+     * Clips the ring to the clip bounds and adds it to the path as a closed
+     * subpath. Rings within the bounds are not clipped.
+     */
+    private boolean buildPolygonPath(ShapeGeometry.Level level, double minX, double minY, double maxX, double maxY, double scale, double offsetX, double offsetY) {
+
+        double[] x;
+        double[] y;
+        int count;
+
+        if (level.minX >= minX && level.maxX <= maxX && level.minY >= minY && level.maxY <= maxY) {
+
+            x = level.x;
+            y = level.y;
+            count = level.count;
+
+        } else {
+
+            clipRing(level, minX, minY, maxX, maxY);
+
+            x = clipX;
+            y = clipY;
+            count = clipCount;
+        }
+
+        if (count < 3) {
+
+            return false;
+        }
+
+        path.moveTo((float) (x[0] * scale + offsetX), (float) (y[0] * scale + offsetY));
+
+        for (int i = 1; i < count; i++) {
+
+            path.lineTo((float) (x[i] * scale + offsetX), (float) (y[i] * scale + offsetY));
+        }
+
+        path.close();
+
+        drawnVertices += count;
+
+        return true;
+    }
+
+    /**
+     * Clips a ring against the four edges of the bounds in turn, into clipX
+     * and clipY.
+     */
+    private void clipRing(ShapeGeometry.Level level, double minX, double minY, double maxX, double maxY) {
+
+        ensureClipCapacity(level.count);
+
+        System.arraycopy(level.x, 0, clipX, 0, level.count);
+        System.arraycopy(level.y, 0, clipY, 0, level.count);
+
+        clipCount = level.count;
+
+        // edges: x >= minX, x <= maxX, y >= minY, y <= maxY
+        for (int edge = 0; edge < 4 && clipCount > 0; edge++) {
+
+            // every vertex adds at most itself and an intersection
+            if (clipOutX.length < clipCount * 2) {
+
+                clipOutX = new double[clipCount * 2];
+                clipOutY = new double[clipCount * 2];
+            }
+
+            int out = 0;
+
+            double previousX = clipX[clipCount - 1];
+            double previousY = clipY[clipCount - 1];
+            boolean previousInside = inside(edge, previousX, previousY, minX, minY, maxX, maxY);
+
+            for (int i = 0; i < clipCount; i++) {
+
+                double currentX = clipX[i];
+                double currentY = clipY[i];
+                boolean currentInside = inside(edge, currentX, currentY, minX, minY, maxX, maxY);
+
+                if (currentInside != previousInside) {
+
+                    double bound = edge == 0 ? minX : edge == 1 ? maxX : edge == 2 ? minY : maxY;
+
+                    double t;
+
+                    if (edge < 2) {
+
+                        t = (bound - previousX) / (currentX - previousX);
+
+                        clipOutX[out] = bound;
+                        clipOutY[out] = previousY + (currentY - previousY) * t;
+
+                    } else {
+
+                        t = (bound - previousY) / (currentY - previousY);
+
+                        clipOutX[out] = previousX + (currentX - previousX) * t;
+                        clipOutY[out] = bound;
+                    }
+
+                    out++;
+                }
+
+                if (currentInside) {
+
+                    clipOutX[out] = currentX;
+                    clipOutY[out] = currentY;
+
+                    out++;
+                }
+
+                previousX = currentX;
+                previousY = currentY;
+                previousInside = currentInside;
+            }
+
+            double[] swapX = clipX;
+            double[] swapY = clipY;
+
+            clipX = clipOutX;
+            clipY = clipOutY;
+            clipOutX = swapX;
+            clipOutY = swapY;
+
+            clipCount = out;
+        }
+    }
+
+    private static boolean inside(int edge, double x, double y, double minX, double minY, double maxX, double maxY) {
+
+        switch (edge) {
+
+            case 0:
+
+                return x >= minX;
+
+            case 1:
+
+                return x <= maxX;
+
+            case 2:
+
+                return y >= minY;
+
+            default:
+
+                return y <= maxY;
+        }
+    }
+
+    private void ensureClipCapacity(int capacity) {
+
+        if (clipX.length >= capacity) {
+
+            return;
+        }
+
+        clipX = new double[capacity];
+        clipY = new double[capacity];
+    }
+}
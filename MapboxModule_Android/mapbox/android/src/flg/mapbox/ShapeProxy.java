@@ -0,0 +1,260 @@
+package flg.mapbox;
+
+import java.util.HashMap;
+
+import org.appcelerator.kroll.KrollProxy;
+import org.appcelerator.kroll.annotations.Kroll;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.kroll.common.TiMessenger;
+import org.appcelerator.titanium.TiApplication;
+import org.appcelerator.titanium.TiC;
+import org.appcelerator.titanium.util.TiConvert;
+
+/**
+ * The common part of polylines and polygons, added to a map view with
+ * addShape().
+ *
+ * The vertices are given as points, an array of {latitude, longitude}
+ * dictionaries or [latitude, longitude] arrays, or as coordinates, a flat
+ * array of alternating latitudes and longitudes. They are projected into a
+ * ShapeGeometry when set, its levels of detail are built in the background.
+ */
+@Kroll.proxy(propertyAccessors = {
+        ShapeProxy.PROPERTY_POINTS,
+        ShapeProxy.PROPERTY_COORDINATES,
+        ShapeProxy.PROPERTY_STROKE_COLOR,
+        ShapeProxy.PROPERTY_STROKE_WIDTH
+})
+public class ShapeProxy extends KrollProxy {
+
+    public interface ShapeDelegate {
+
+        /**
+         * Called from any thread when the shape needs to be drawn again.
+         */
+        public void shapeChanged(ShapeProxy shape);
+    }
+
+    private static final String TAG = "ShapeProxy";
+
+    public static final String PROPERTY_POINTS = "points";
+    public static final String PROPERTY_COORDINATES = "coordinates";
+    public static final String PROPERTY_STROKE_COLOR = "strokeColor";
+    public static final String PROPERTY_STROKE_WIDTH = "strokeWidth";
+    public static final String PROPERTY_FILL_COLOR = "fillColor";
+
+    public static final String DEFAULT_STROKE_COLOR = "#555555";
+    public static final float DEFAULT_STROKE_WIDTH = 2;
+
+    private static final double[] NO_COORDINATES = new double[0];
+
+    private ShapeOverlay.Shape shape;
+
+    private volatile ShapeDelegate delegate;
+
+    private final Runnable styleRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            applyStyle();
+
+            notifyChanged();
+        }
+    };
+
+    public ShapeProxy() {
+
+        super();
+
+        defaultValues.put(PROPERTY_STROKE_COLOR, DEFAULT_STROKE_COLOR);
+        defaultValues.put(PROPERTY_STROKE_WIDTH, DEFAULT_STROKE_WIDTH);
+    }
+
+    /**
+     * Returns whether the points form a polygon ring.
+     */
+    public boolean isClosed() {
+
+        return false;
+    }
+
+    public void setDelegate(ShapeDelegate delegate) {
+
+        this.delegate = delegate;
+    }
+
+    public ShapeDelegate getDelegate() {
+
+        return delegate;
+    }
+
+    /**
+     * Returns the shape to draw, created with the current properties on first
+     * use. Called on the UI thread.
+     */
+    public synchronized ShapeOverlay.Shape getShape() {
+
+        if (shape == null) {
+
+            shape = new ShapeOverlay.Shape(buildGeometry());
+
+            applyStyle();
+        }
+
+        return shape;
+    }
+
+    @Override
+    public void onPropertyChanged(String name, Object value) {
+
+        super.onPropertyChanged(name, value);
+
+        synchronized (this) {
+
+            if (shape == null) {
+
+                return;
+            }
+        }
+
+        if (name.equals(PROPERTY_POINTS) || name.equals(PROPERTY_COORDINATES)) {
+
+            // projected on this thread, drawn at once with the full detail
+            ShapeGeometry geometry = buildGeometry();
+
+            shape.setGeometry(geometry);
+
+            notifyChanged();
+
+        } else if (name.equals(PROPERTY_STROKE_COLOR) || name.equals(PROPERTY_STROKE_WIDTH) || name.equals(PROPERTY_FILL_COLOR)) {
+
+            // paints are only changed between frames
+            TiMessenger.postOnMain(styleRunnable);
+        }
+    }
+
+    /**
+     * Sets the paints of the shape from the properties. Called on the UI
+     * thread.
+     */
+    protected void applyStyle() {
+
+        float density = TiApplication.getInstance().getResources().getDisplayMetrics().density;
+
+        int color = TiConvert.toColor(TiConvert.toString(getProperty(PROPERTY_STROKE_COLOR)));
+        float width = TiConvert.toFloat(getProperty(PROPERTY_STROKE_WIDTH), DEFAULT_STROKE_WIDTH);
+
+        shape.setStroke(color, width * density);
+    }
+
+    protected ShapeOverlay.Shape getCurrentShape() {
+
+        return shape;
+    }
+
+    private ShapeGeometry buildGeometry() {
+
+        double[] latitudes;
+        double[] longitudes;
+
+        Object coordinates = getProperty(PROPERTY_COORDINATES);
+
+        if (coordinates != null) {
+
+            double[] flat = PointBatch.toDoubleArray(coordinates);
+
+            if (flat == null) {
+
+                flat = NO_COORDINATES;
+            }
+
+            latitudes = new double[flat.length / 2];
+            longitudes = new double[flat.length / 2];
+
+            for (int i = 0; i < latitudes.length; i++) {
+
+                latitudes[i] = flat[2 * i];
+                longitudes[i] = flat[2 * i + 1];
+            }
+
+        } else {
+
+            Object[] points = getProperty(PROPERTY_POINTS) instanceof Object[] ? (Object[]) getProperty(PROPERTY_POINTS) : new Object[0];
+
+            latitudes = new double[points.length];
+            longitudes = new double[points.length];
+
+            int count = 0;
+
+            for (int i = 0; i < points.length; i++) {
+
+                Object point = points[i];
+
+                if (point instanceof HashMap) {
+
+                    HashMap dict = (HashMap) point;
+
+                    if (dict.get(TiC.PROPERTY_LATITUDE) == null || dict.get(TiC.PROPERTY_LONGITUDE) == null) {
+
+                        continue;
+                    }
+
+                    latitudes[count] = TiConvert.toDouble(dict, TiC.PROPERTY_LATITUDE);
+                    longitudes[count] = TiConvert.toDouble(dict, TiC.PROPERTY_LONGITUDE);
+
+                    count++;
+
+                } else {
+
+                    double[] pair = PointBatch.toDoubleArray(point);
+
+                    if (pair == null || pair.length < 2) {
+
+                        continue;
+                    }
+
+                    latitudes[count] = pair[0];
+                    longitudes[count] = pair[1];
+
+                    count++;
+                }
+            }
+
+            if (count < points.length) {
+
+                Log.w(TAG, "Skipped " + (points.length - count) + " points without latitude and longitude.");
+            }
+
+            return buildGeometry(latitudes, longitudes, count);
+        }
+
+        return buildGeometry(latitudes, longitudes, latitudes.length);
+    }
+
+    private ShapeGeometry buildGeometry(double[] latitudes, double[] longitudes, int count) {
+
+        ShapeGeometry geometry = new ShapeGeometry(latitudes, longitudes, count, isClosed());
+
+        geometry.buildLevelsAsync(new Runnable() {
+
+            @Override
+            public void run() {
+
+                notifyChanged();
+            }
+        });
+
+        return geometry;
+    }
+
+    private void notifyChanged() {
+
+        ShapeDelegate current = delegate;
+
+        if (current != null) {
+
+            current.shapeChanged(this);
+        }
+    }
+}
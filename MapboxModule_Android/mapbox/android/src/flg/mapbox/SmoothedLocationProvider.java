@@ -0,0 +1,201 @@
+package flg.mapbox;
+
+import org.appcelerator.kroll.KrollDict;
+
+import android.content.Context;
+import android.location.Location;
+
+import com.mapbox.mapboxsdk.overlay.GpsLocationProvider;
+import com.mapbox.mapboxsdk.overlay.UserLocationOverlay;
+
+/**
+ * The location provider of the user location overlay, kept by the map view
+ * while the user location is hidden.
+ *
+ * Fixes are smoothed with a Kalman filter that weighs each fix by its
+ * accuracy against the distance the user may have covered since the last
+ * one. Fixes closer to the last one passed on than the minimum distance, or
+ * sooner than the minimum time, are dropped; both minimums are also passed to
+ * the location manager, so the receivers can save battery.
+ *
+ * Fixes arrive on the UI thread.
+ */
+public class SmoothedLocationProvider extends GpsLocationProvider {
+
+    public interface FixListener {
+
+        /**
+         * Called on the UI thread with every fix passed on to the overlay.
+         */
+        public void onFix(Location location);
+    }
+
+    // the speed assumed between fixes without one, in meters per second
+    private static final float MIN_SPEED = 3;
+
+    // assumed for fixes without an accuracy, in meters
+    private static final float DEFAULT_ACCURACY = 50;
+
+    private long minTime = 0;
+    private float minDistance = 0;
+    private boolean smoothing = true;
+
+    // the filter state, variance in square meters, negative before the first fix
+    private double latitude;
+    private double longitude;
+    private double variance = -1;
+    private long time = 0;
+
+    private Location delivered;
+
+    private FixListener fixListener;
+
+    private int received = 0;
+    private int dropped = 0;
+    private int passedOn = 0;
+
+    public SmoothedLocationProvider(Context context) {
+
+        super(context);
+    }
+
+    /**
+     * Takes effect when the provider is started the next time.
+     *
+     * @param minTime in milliseconds
+     */
+    public void setMinTime(long minTime) {
+
+        this.minTime = Math.max(0, minTime);
+
+        setLocationUpdateMinTime(this.minTime);
+    }
+
+    /**
+     * @param minDistance in meters
+     */
+    public void setMinDistance(float minDistance) {
+
+        this.minDistance = Math.max(0, minDistance);
+
+        setLocationUpdateMinDistance(this.minDistance);
+    }
+
+    public void setFixListener(FixListener fixListener) {
+
+        this.fixListener = fixListener;
+    }
+
+    public void setSmoothing(boolean smoothing) {
+
+        this.smoothing = smoothing;
+
+        variance = -1;
+    }
+
+    @Override
+    public boolean startLocationProvider(UserLocationOverlay consumer) {
+
+        // fixes from before the provider was stopped say nothing about now
+        variance = -1;
+        time = 0;
+        delivered = null;
+
+        return super.startLocationProvider(consumer);
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+
+        received++;
+
+        if (location.getTime() < time) {
+
+            // delivered out of order by another provider
+            dropped++;
+
+            return;
+        }
+
+        Location smoothed = smoothing ? smooth(location) : location;
+
+        time = location.getTime();
+
+        if (delivered != null && (smoothed.getTime() - delivered.getTime() < minTime || (minDistance > 0 && smoothed.distanceTo(delivered) < minDistance))) {
+
+            dropped++;
+
+            return;
+        }
+
+        delivered = smoothed;
+
+        passedOn++;
+
+        super.onLocationChanged(smoothed);
+
+        if (fixListener != null) {
+
+            fixListener.onFix(smoothed);
+        }
+    }
+
+    /**
+     * Returns the counters of fixes received, dropped and passed on to the
+     * overlay.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("received", received);
+        stats.put("dropped", dropped);
+        stats.put("passedOn", passedOn);
+        stats.put("smoothing", smoothing);
+        stats.put("minTime", minTime);
+        stats.put("minDistance", minDistance);
+
+        return stats;
+    }
+
+    private Location smooth(Location location) {
+
+        float accuracy = location.hasAccuracy() ? Math.max(1, location.getAccuracy()) : DEFAULT_ACCURACY;
+
+        double measurementVariance = accuracy * accuracy;
+
+        // a jump across the antimeridian starts over
+        if (variance < 0 || Math.abs(location.getLongitude() - longitude) > 180) {
+
+            latitude = location.getLatitude();
+            longitude = location.getLongitude();
+            variance = measurementVariance;
+
+        } else {
+
+            double elapsed = (location.getTime() - time) / 1000.0;
+
+            if (elapsed > 0) {
+
+                float speed = location.hasSpeed() ? Math.max(MIN_SPEED, location.getSpeed()) : MIN_SPEED;
+
+                variance += elapsed * speed * speed;
+            }
+
+            double gain = variance / (variance + measurementVariance);
+
+            latitude += gain * (location.getLatitude() - latitude);
+            longitude += gain * (location.getLongitude() - longitude);
+
+            variance = (1 - gain) * variance;
+        }
+
+        Location smoothed = new Location(location);
+
+        smoothed.setLatitude(latitude);
+        smoothed.setLongitude(longitude);
+        smoothed.setAccuracy((float) Math.sqrt(variance));
+
+        return smoothed;
+    }
+}
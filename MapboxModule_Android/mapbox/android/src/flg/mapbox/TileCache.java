@@ -0,0 +1,238 @@
+package flg.mapbox;
+
+import java.util.Map;
+
+import org.appcelerator.kroll.KrollDict;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+/**
+ * Byte-bounded LRU cache of decoded tiles of the offline tile layers of a map
+ * view, so panning back over seen areas neither reads nor decodes the tiles
+ * again.
+ *
+ * An optional second tier keeps the compressed tile data, which is a fraction
+ * of the size of a decoded tile: a tile evicted from the first tier is decoded
+ * again from memory instead of being read from the file. Keys are the cache
+ * key of the layer plus the tile coordinates. The bitmaps must not be handed
+ * to the SDK tile cache, which reuses the bitmaps it evicts for other tiles.
+ * All methods are thread safe.
+ */
+public class TileCache {
+
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private volatile LruCache<String, Bitmap> decoded;
+    private volatile LruCache<String, byte[]> compressed;
+
+    private final Object statsLock = new Object();
+
+    private long hits = 0;
+    private long compressedHits = 0;
+    private long misses = 0;
+
+    public TileCache(int maxBytes, int compressedMaxBytes) {
+
+        decoded = createDecoded(Math.max(1, maxBytes));
+        compressed = compressedMaxBytes > 0 ? createCompressed(compressedMaxBytes) : null;
+    }
+
+    public static String key(String layer, int z, int x, int y) {
+
+        return layer + "/" + z + "/" + x + "/" + y;
+    }
+
+    /**
+     * Returns the decoded tile, decoding it from the second tier if needed, or
+     * null.
+     */
+    public Bitmap get(String key) {
+
+        Bitmap bitmap = decoded.get(key);
+
+        // the SDK only gets copies, this guards against a layer recycling a tile
+        if (bitmap != null && !bitmap.isRecycled()) {
+
+            count(true, false);
+
+            return bitmap;
+        }
+
+        LruCache<String, byte[]> second = compressed;
+
+        byte[] data = second != null ? second.get(key) : null;
+
+        if (data != null) {
+
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+
+            if (bitmap != null) {
+
+                decoded.put(key, bitmap);
+
+                count(false, true);
+
+                return bitmap;
+            }
+        }
+
+        count(false, false);
+
+        return null;
+    }
+
+    /**
+     * Returns whether a tile is decoded, without counting a lookup.
+     */
+    public boolean contains(String key) {
+
+        Bitmap bitmap = decoded.get(key);
+
+        return bitmap != null && !bitmap.isRecycled();
+    }
+
+    /**
+     * Adds a tile read from a file.
+     *
+     * @param data the compressed tile, only copied when the second tier is enabled
+     */
+    public void put(String key, Bitmap bitmap, byte[] data, int length) {
+
+        decoded.put(key, bitmap);
+
+        LruCache<String, byte[]> second = compressed;
+
+        if (second != null && data != null) {
+
+            byte[] copy = new byte[length];
+            System.arraycopy(data, 0, copy, 0, length);
+
+            second.put(key, copy);
+        }
+    }
+
+    /**
+     * Changes the size of the tiers, keeping the most recently used tiles that
+     * fit. A compressed size of 0 disables the second tier.
+     */
+    public synchronized void resize(int maxBytes, int compressedMaxBytes) {
+
+        maxBytes = Math.max(1, maxBytes);
+
+        if (maxBytes != decoded.maxSize()) {
+
+            LruCache<String, Bitmap> resized = createDecoded(maxBytes);
+
+            // the snapshot is ordered from least to most recently used
+            for (Map.Entry<String, Bitmap> entry : decoded.snapshot().entrySet()) {
+
+                resized.put(entry.getKey(), entry.getValue());
+            }
+
+            decoded = resized;
+        }
+
+        int currentCompressed = compressed != null ? compressed.maxSize() : 0;
+
+        if (compressedMaxBytes != currentCompressed) {
+
+            LruCache<String, byte[]> resized = compressedMaxBytes > 0 ? createCompressed(compressedMaxBytes) : null;
+
+            if (resized != null && compressed != null) {
+
+                for (Map.Entry<String, byte[]> entry : compressed.snapshot().entrySet()) {
+
+                    resized.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            compressed = resized;
+        }
+    }
+
+    public void clear() {
+
+        decoded.evictAll();
+
+        LruCache<String, byte[]> second = compressed;
+
+        if (second != null) {
+
+            second.evictAll();
+        }
+    }
+
+    /**
+     * Returns the cache counters, sizes in bytes.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        synchronized (statsLock) {
+
+            long lookups = hits + compressedHits + misses;
+
+            stats.put("hits", hits);
+            stats.put("compressedHits", compressedHits);
+            stats.put("misses", misses);
+            stats.put("hitRate", lookups > 0 ? (double) (hits + compressedHits) / lookups : 0);
+        }
+
+        LruCache<String, Bitmap> first = decoded;
+        LruCache<String, byte[]> second = compressed;
+
+        stats.put("size", first.size());
+        stats.put("maxSize", first.maxSize());
+        stats.put("evictions", first.evictionCount());
+        stats.put("compressedSize", second != null ? second.size() : 0);
+        stats.put("compressedMaxSize", second != null ? second.maxSize() : 0);
+
+        return stats;
+    }
+
+    private void count(boolean hit, boolean compressedHit) {
+
+        synchronized (statsLock) {
+
+            if (hit) {
+
+                hits++;
+
+            } else if (compressedHit) {
+
+                compressedHits++;
+
+            } else {
+
+                misses++;
+            }
+        }
+    }
+
+    private static LruCache<String, Bitmap> createDecoded(int maxBytes) {
+
+        return new LruCache<String, Bitmap>(maxBytes) {
+
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    private static LruCache<String, byte[]> createCompressed(int maxBytes) {
+
+        return new LruCache<String, byte[]>(maxBytes) {
+
+            @Override
+            protected int sizeOf(String key, byte[] data) {
+
+                return data.length;
+            }
+        };
+    }
+}
@@ -0,0 +1,490 @@
+package flg.mapbox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.appcelerator.kroll.KrollDict;
+
+import android.os.SystemClock;
+
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * Warms the tile cache of an MBTilesTileLayer with the tiles the map is about
+ * to show.
+ *
+ * The pan velocity, in tiles per second, and the zoom velocity are estimated
+ * from the scroll and zoom events. Tiles of the ring beyond the viewport in
+ * the direction of the pan, and of the next zoom level while zooming, are read
+ * and decoded on low priority background threads. A cap on the number of
+ * queued and running loads keeps prefetching from competing with the tiles
+ * being shown; when the pan or zoom direction changes, queued loads are
+ * cancelled. update() must be called on the UI thread.
+ */
+public class TilePrefetcher {
+
+    private static final int MAX_IN_FLIGHT = 8;
+
+    // minimum time between two samples
+    private static final long SAMPLE_INTERVAL_MS = 100;
+
+    // samples further apart start a new gesture
+    private static final long GESTURE_TIMEOUT_MS = 500;
+
+    private static final double LOOKAHEAD_SECONDS = 0.5;
+    private static final double SMOOTHING = 0.5;
+
+    private static final double MIN_PAN_SPEED = 0.5;
+    private static final double MIN_ZOOM_SPEED = 0.2;
+
+    // a heading change of more than 45 degrees cancels queued loads
+    private static final double MIN_HEADING_COSINE = Math.cos(Math.PI / 4);
+
+    private final MapView map;
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile MBTilesTileLayer layer;
+
+    private final HashSet<String> pending = new HashSet<String>();
+
+    private volatile int generation = 0;
+
+    private long lastTime = 0;
+    private int lastZ;
+    private double lastX;
+    private double lastY;
+    private float lastZoom;
+
+    private double velocityX = 0;
+    private double velocityY = 0;
+    private double velocityZoom = 0;
+
+    private final Object statsLock = new Object();
+
+    private long requested = 0;
+    private long loaded = 0;
+    private long cancelled = 0;
+
+    public TilePrefetcher(MapView map) {
+
+        this.map = map;
+
+        executor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "MapboxModule-Prefetch");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the layer to prefetch tiles for, or null to stop prefetching.
+     */
+    public void setLayer(MBTilesTileLayer layer) {
+
+        this.layer = layer;
+
+        cancel();
+
+        lastTime = 0;
+    }
+
+    /**
+     * Takes a sample of the map position and queues the tiles expected next.
+     */
+    public void update() {
+
+        MBTilesTileLayer current = layer;
+
+        if (current == null) {
+
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+
+        if (lastTime != 0 && now - lastTime < SAMPLE_INTERVAL_MS) {
+
+            return;
+        }
+
+        LatLng center = map.getCenter();
+        BoundingBox box = map.getBoundingBox();
+
+        if (center == null || box == null) {
+
+            return;
+        }
+
+        float zoom = map.getZoomLevel();
+
+        int z = (int) Math.floor(Math.max(current.getMinimumZoomLevel(), Math.min(current.getMaximumZoomLevel(), zoom)));
+
+        double x = tileX(center.getLongitude(), z);
+        double y = tileY(center.getLatitude(), z);
+
+        if (lastTime == 0 || now - lastTime > GESTURE_TIMEOUT_MS) {
+
+            velocityX = 0;
+            velocityY = 0;
+            velocityZoom = 0;
+
+        } else {
+
+            double seconds = (now - lastTime) / 1000.0;
+
+            // the last position in tiles of the current zoom level
+            double scale = Math.pow(2, z - lastZ);
+
+            double dx = wrapDelta(x - lastX * scale, 1 << z);
+            double dy = y - lastY * scale;
+
+            double vx = dx / seconds;
+            double vy = dy / seconds;
+            double vz = (zoom - lastZoom) / seconds;
+
+            if (headingChanged(vx, vy) || Math.signum(vz) * Math.signum(velocityZoom) < 0) {
+
+                cancel();
+
+                velocityX = vx;
+                velocityY = vy;
+                velocityZoom = vz;
+
+            } else {
+
+                velocityX = SMOOTHING * vx + (1 - SMOOTHING) * velocityX;
+                velocityY = SMOOTHING * vy + (1 - SMOOTHING) * velocityY;
+                velocityZoom = SMOOTHING * vz + (1 - SMOOTHING) * velocityZoom;
+            }
+        }
+
+        lastTime = now;
+        lastZ = z;
+        lastX = x;
+        lastY = y;
+        lastZoom = zoom;
+
+        int minX = (int) Math.floor(tileX(box.getLonWest(), z));
+        int maxX = (int) Math.floor(tileX(box.getLonEast(), z));
+        int minY = (int) Math.floor(tileY(box.getLatNorth(), z));
+        int maxY = (int) Math.floor(tileY(box.getLatSouth(), z));
+
+        if (maxX < minX) {
+
+            // the viewport crosses the antimeridian
+            maxX += 1 << z;
+        }
+
+        if (Math.hypot(velocityX, velocityY) >= MIN_PAN_SPEED) {
+
+            queueAhead(current, z, minX, maxX, minY, maxY);
+        }
+
+        if (velocityZoom >= MIN_ZOOM_SPEED && z + 1 <= current.getMaximumZoomLevel()) {
+
+            // the next level shows the middle half of the viewport
+            double halfWidth = (maxX - minX + 1) / 4.0;
+            double halfHeight = (maxY - minY + 1) / 4.0;
+
+            queueRange(current, z + 1, (int) Math.floor(2 * (x - halfWidth)), (int) Math.floor(2 * (x + halfWidth)), (int) Math.floor(2 * (y - halfHeight)), (int) Math.floor(2 * (y + halfHeight)), 2 * x, 2 * y);
+
+        } else if (velocityZoom <= -MIN_ZOOM_SPEED && z - 1 >= current.getMinimumZoomLevel()) {
+
+            queueRange(current, z - 1, (minX - 1) / 2, (maxX + 1) / 2, (minY - 1) / 2, (maxY + 1) / 2, x / 2, y / 2);
+        }
+    }
+
+    /**
+     * Cancels the queued loads.
+     */
+    public void cancel() {
+
+        generation++;
+
+        ArrayList<Runnable> drained = new ArrayList<Runnable>();
+
+        executor.getQueue().drainTo(drained);
+
+        for (int i = 0; i < drained.size(); i++) {
+
+            finish((PrefetchTask) drained.get(i), false, true);
+        }
+    }
+
+    public void release() {
+
+        layer = null;
+
+        cancel();
+
+        executor.shutdown();
+    }
+
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        synchronized (statsLock) {
+
+            stats.put("prefetchRequested", requested);
+            stats.put("prefetched", loaded);
+            stats.put("prefetchCancelled", cancelled);
+        }
+
+        return stats;
+    }
+
+    private boolean headingChanged(double vx, double vy) {
+
+        double speed = Math.hypot(vx, vy);
+        double lastSpeed = Math.hypot(velocityX, velocityY);
+
+        if (speed < MIN_PAN_SPEED || lastSpeed < MIN_PAN_SPEED) {
+
+            return false;
+        }
+
+        return (vx * velocityX + vy * velocityY) / (speed * lastSpeed) < MIN_HEADING_COSINE;
+    }
+
+    /**
+     * Queues the tiles the viewport moves over within the lookahead time, at
+     * least the next ring of tiles in the direction of the pan.
+     */
+    private void queueAhead(MBTilesTileLayer current, int z, int minX, int maxX, int minY, int maxY) {
+
+        int width = maxX - minX + 1;
+        int height = maxY - minY + 1;
+
+        int leadX = lead(velocityX, width);
+        int leadY = lead(velocityY, height);
+
+        int aheadMinX = Math.min(minX, minX + leadX);
+        int aheadMaxX = Math.max(maxX, maxX + leadX);
+        int aheadMinY = Math.min(minY, minY + leadY);
+        int aheadMaxY = Math.max(maxY, maxY + leadY);
+
+        double centerX = (minX + maxX + 1) / 2.0 + leadX;
+        double centerY = (minY + maxY + 1) / 2.0 + leadY;
+
+        ArrayList<int[]> tiles = new ArrayList<int[]>();
+
+        for (int x = aheadMinX; x <= aheadMaxX; x++) {
+
+            for (int y = aheadMinY; y <= aheadMaxY; y++) {
+
+                // visible tiles are loaded by the map itself
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+
+                    continue;
+                }
+
+                tiles.add(new int[]{x, y});
+            }
+        }
+
+        queue(current, z, tiles, centerX, centerY);
+    }
+
+    private void queueRange(MBTilesTileLayer current, int z, int minX, int maxX, int minY, int maxY, double centerX, double centerY) {
+
+        ArrayList<int[]> tiles = new ArrayList<int[]>();
+
+        for (int x = minX; x <= maxX; x++) {
+
+            for (int y = minY; y <= maxY; y++) {
+
+                tiles.add(new int[]{x, y});
+            }
+        }
+
+        queue(current, z, tiles, centerX, centerY);
+    }
+
+    /**
+     * Queues the given tiles nearest to the center first, as long as the cap
+     * on loads in flight allows.
+     */
+    private void queue(MBTilesTileLayer current, int z, ArrayList<int[]> tiles, final double centerX, final double centerY) {
+
+        int count = 1 << z;
+
+        while (!tiles.isEmpty()) {
+
+            int nearest = 0;
+            double nearestDistance = Double.MAX_VALUE;
+
+            for (int i = 0; i < tiles.size(); i++) {
+
+                double dx = tiles.get(i)[0] + 0.5 - centerX;
+                double dy = tiles.get(i)[1] + 0.5 - centerY;
+
+                double distance = dx * dx + dy * dy;
+
+                if (distance < nearestDistance) {
+
+                    nearest = i;
+                    nearestDistance = distance;
+                }
+            }
+
+            int[] tile = tiles.remove(nearest);
+
+            int x = ((tile[0] % count) + count) % count;
+            int y = tile[1];
+
+            if (y < 0 || y >= count) {
+
+                continue;
+            }
+
+            PrefetchTask task = new PrefetchTask(current, z, x, y, generation);
+
+            synchronized (pending) {
+
+                if (pending.size() >= MAX_IN_FLIGHT) {
+
+                    return;
+                }
+
+                if (!pending.add(task.key)) {
+
+                    continue;
+                }
+            }
+
+            synchronized (statsLock) {
+
+                requested++;
+            }
+
+            executor.execute(task);
+        }
+    }
+
+    private void finish(PrefetchTask task, boolean read, boolean wasCancelled) {
+
+        synchronized (pending) {
+
+            pending.remove(task.key);
+        }
+
+        synchronized (statsLock) {
+
+            if (read) {
+
+                loaded++;
+            }
+
+            if (wasCancelled) {
+
+                cancelled++;
+            }
+        }
+    }
+
+    private static int lead(double velocity, int size) {
+
+        if (Math.abs(velocity) < MIN_PAN_SPEED / 2) {
+
+            return 0;
+        }
+
+        int tiles = (int) Math.ceil(Math.abs(velocity) * LOOKAHEAD_SECONDS);
+
+        return (int) Math.signum(velocity) * Math.max(1, Math.min(size, tiles));
+    }
+
+    private static double wrapDelta(double delta, int count) {
+
+        if (delta > count / 2.0) {
+
+            return delta - count;
+        }
+
+        if (delta < -count / 2.0) {
+
+            return delta + count;
+        }
+
+        return delta;
+    }
+
+    static double tileX(double longitude, int z) {
+
+        return (longitude + 180) / 360 * (1 << z);
+    }
+
+    static double tileY(double latitude, int z) {
+
+        double lat = Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, latitude)));
+
+        return (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * (1 << z);
+    }
+
+    static double tileLongitude(int x, int z) {
+
+        return (double) x / (1 << z) * 360 - 180;
+    }
+
+    static double tileLatitude(int y, int z) {
+
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2.0 * y / (1 << z)))));
+    }
+
+    private class PrefetchTask implements Runnable {
+
+        final MBTilesTileLayer layer;
+        final int z;
+        final int x;
+        final int y;
+        final int generation;
+        final String key;
+
+        PrefetchTask(MBTilesTileLayer layer, int z, int x, int y, int generation) {
+
+            this.layer = layer;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.generation = generation;
+
+            key = z + "/" + x + "/" + y;
+        }
+
+        @Override
+        public void run() {
+
+            if (generation != TilePrefetcher.this.generation) {
+
+                finish(this, false, true);
+
+                return;
+            }
+
+            boolean read = false;
+
+            try {
+
+                read = layer.prefetchTile(z, x, y);
+
+            } finally {
+
+                finish(this, read, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package flg.mapbox;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of location fixes.
+ *
+ * After a HEADER_SIZE byte header with the magic, the format version and the
+ * start time, every fix is one record of varints: the zigzag encoded
+ * differences of latitude and longitude to the previous fix in millionths of
+ * a degree, the milliseconds since the previous fix and the accuracy in
+ * meters, followed by the low two bytes of the CRC32 of the record. A fix
+ * taken every second while walking takes seven bytes.
+ *
+ * Opening a file reads it once and truncates it after the last complete
+ * record, so that a record torn by a crash is dropped and appending
+ * continues from the last fix.
+ *
+ * Not synchronized, used on the trail thread.
+ */
+public class TrailFile {
+
+    public static final double SCALE = 1e6;
+
+    private static final int MAGIC = 0x4d425452; // MBTR
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // the largest record: four varints of five bytes and the checksum
+    private static final int MAX_RECORD_SIZE = 4 * 5 + 2;
+
+    private static final int MAX_ACCURACY = 0xffff;
+
+    /**
+     * Receives the fixes read when the file is opened.
+     */
+    public interface Reader {
+
+        public void onFix(double latitude, double longitude, long time, int accuracy);
+    }
+
+    private final File file;
+
+    private FileOutputStream out;
+
+    private final byte[] record = new byte[MAX_RECORD_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    // the previous fix, fixed point
+    private int latitude = 0;
+    private int longitude = 0;
+    private long time;
+
+    private int records = 0;
+    private long length = 0;
+    private long truncated = 0;
+
+    public TrailFile(File file) {
+
+        this.file = file;
+    }
+
+    /**
+     * Reads the fixes in the file, drops a torn last record and opens the
+     * file for appending. Creates the file if it does not exist.
+     *
+     * @throws IOException if the file cannot be read or written or is not a
+     *             trail file
+     */
+    public void open(Reader reader) throws IOException {
+
+        long fileLength = file.length();
+
+        if (!file.exists() || fileLength < HEADER_SIZE) {
+
+            // a new file, or one that crashed while writing its header
+            time = System.currentTimeMillis();
+
+            writeHeader();
+
+            out = new FileOutputStream(file, true);
+
+            return;
+        }
+
+        long valid = read(reader);
+
+        if (valid < fileLength) {
+
+            truncated = fileLength - valid;
+
+            RandomAccessFile truncating = new RandomAccessFile(file, "rw");
+
+            try {
+
+                truncating.setLength(valid);
+
+            } finally {
+
+                truncating.close();
+            }
+        }
+
+        length = valid;
+
+        out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Appends a fix. The record is handed to the operating system at once,
+     * so it survives a crash of the app; sync() also survives the device
+     * losing power.
+     */
+    public void append(double latitude, double longitude, long time, float accuracy) throws IOException {
+
+        int fixedLatitude = (int) Math.round(latitude * SCALE);
+        int fixedLongitude = (int) Math.round(longitude * SCALE);
+
+        int size = 0;
+
+        size = writeVarint(zigzag(fixedLatitude - this.latitude), size);
+        size = writeVarint(zigzag(fixedLongitude - this.longitude), size);
+        size = writeVarint((int) Math.max(0, Math.min(Integer.MAX_VALUE, time - this.time)), size);
+        size = writeVarint(Math.max(0, Math.min(MAX_ACCURACY, Math.round(accuracy))), size);
+
+        crc.reset();
+        crc.update(record, 0, size);
+
+        int checksum = (int) crc.getValue();
+
+        record[size++] = (byte) checksum;
+        record[size++] = (byte) (checksum >> 8);
+
+        out.write(record, 0, size);
+
+        this.latitude = fixedLatitude;
+        this.longitude = fixedLongitude;
+        this.time = Math.max(this.time, time);
+
+        records++;
+        length += size;
+    }
+
+    public void sync() throws IOException {
+
+        if (out != null) {
+
+            out.getFD().sync();
+        }
+    }
+
+    public void close() throws IOException {
+
+        if (out != null) {
+
+            try {
+
+                sync();
+
+            } finally {
+
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * Closes the file and starts it over without fixes.
+     */
+    public void clear() throws IOException {
+
+        close();
+
+        latitude = 0;
+        longitude = 0;
+        time = System.currentTimeMillis();
+        records = 0;
+
+        writeHeader();
+
+        out = new FileOutputStream(file, true);
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    public int getRecordCount() {
+
+        return records;
+    }
+
+    public long getLength() {
+
+        return length;
+    }
+
+    /**
+     * Returns the bytes dropped after the last complete record when the file
+     * was opened.
+     */
+    public long getTruncatedLength() {
+
+        return truncated;
+    }
+
+    /**
+     * Reads the header and the records and returns the length up to the end
+     * of the last valid record.
+     */
+    private long read(Reader reader) throws IOException {
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 16 * 1024);
+
+        try {
+
+            int magic = readInt(in);
+            int version = readInt(in);
+
+            if (magic != MAGIC || version != VERSION) {
+
+                throw new IOException(file + " is not a trail file.");
+            }
+
+            time = ((long) readInt(in) << 32) | (readInt(in) & 0xffffffffL);
+
+            long valid = HEADER_SIZE;
+
+            int[] values = new int[4];
+
+            while (true) {
+
+                int size = readRecord(in, values);
+
+                if (size < 0) {
+
+                    return valid;
+                }
+
+                latitude += unzigzag(values[0]);
+                longitude += unzigzag(values[1]);
+                time += values[2];
+
+                records++;
+                valid += size;
+
+                if (reader != null) {
+
+                    reader.onFix(latitude / SCALE, longitude / SCALE, time, values[3]);
+                }
+            }
+
+        } finally {
+
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a record into values and returns its size, or -1 at the end of
+     * the file or a torn or corrupt record.
+     */
+    private int readRecord(InputStream in, int[] values) throws IOException {
+
+        int size = 0;
+
+        for (int i = 0; i < values.length; i++) {
+
+            int value = 0;
+
+            for (int shift = 0; ; shift += 7) {
+
+                int b = in.read();
+
+                if (b < 0 || shift > 28) {
+
+                    return -1;
+                }
+
+                record[size++] = (byte) b;
+
+                value |= (b & 0x7f) << shift;
+
+                if ((b & 0x80) == 0) {
+
+                    break;
+                }
+            }
+
+            values[i] = value;
+        }
+
+        int low = in.read();
+        int high = in.read();
+
+        if (low < 0 || high < 0) {
+
+            return -1;
+        }
+
+        crc.reset();
+        crc.update(record, 0, size);
+
+        int checksum = (int) crc.getValue();
+
+        if ((checksum & 0xffff) != (low | (high << 8))) {
+
+            return -1;
+        }
+
+        return size + 2;
+    }
+
+    private void writeHeader() throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE];
+
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, VERSION);
+        putInt(header, 8, (int) (time >>> 32));
+        putInt(header, 12, (int) time);
+
+        FileOutputStream headerOut = new FileOutputStream(file, false);
+
+        try {
+
+            headerOut.write(header);
+            headerOut.getFD().sync();
+
+        } finally {
+
+            headerOut.close();
+        }
+
+        length = HEADER_SIZE;
+    }
+
+    private int writeVarint(int value, int offset) {
+
+        while ((value & ~0x7f) != 0) {
+
+            record[offset++] = (byte) ((value & 0x7f) | 0x80);
+
+            value >>>= 7;
+        }
+
+        record[offset++] = (byte) value;
+
+        return offset;
+    }
+
+    private static int zigzag(int value) {
+
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+
+        int value = 0;
+
+        for (int i = 0; i < 4; i++) {
+
+            int b = in.read();
+
+            if (b < 0) {
+
+                throw new IOException("The trail file header is truncated.");
+            }
+
+            value = (value << 8) | b;
+        }
+
+        return value;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,206 @@
+package flg.mapbox;
+
+import java.io.File;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.KrollProxy;
+import org.appcelerator.kroll.annotations.Kroll;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.kroll.common.TiMessenger;
+import org.appcelerator.titanium.TiApplication;
+import org.appcelerator.titanium.io.TiBaseFile;
+import org.appcelerator.titanium.io.TiFileFactory;
+import org.appcelerator.titanium.util.TiConvert;
+
+/**
+ * A trail of the user location, recorded into a file and drawn on the map
+ * views it was added to with addTrail().
+ *
+ * Created with mapbox.createTrail({file, strokeColor, strokeWidth,
+ * minDistance}). The trail in the file is drawn when it is added to a map
+ * view, start() appends the fixes of the user location of that map view.
+ */
+@Kroll.proxy(creatableInModule = MapboxModule.class, propertyAccessors = {
+        ShapeProxy.PROPERTY_STROKE_COLOR,
+        ShapeProxy.PROPERTY_STROKE_WIDTH,
+        TrailProxy.PROPERTY_MIN_DISTANCE
+})
+public class TrailProxy extends KrollProxy {
+
+    private static final String TAG = "TrailProxy";
+
+    public static final String PROPERTY_FILE = "file";
+    public static final String PROPERTY_MIN_DISTANCE = "minDistance";
+
+    private TrailRecorder recorder;
+
+    private final Runnable styleRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            applyStyle();
+        }
+    };
+
+    public TrailProxy() {
+
+        super();
+
+        defaultValues.put(ShapeProxy.PROPERTY_STROKE_COLOR, ShapeProxy.DEFAULT_STROKE_COLOR);
+        defaultValues.put(ShapeProxy.PROPERTY_STROKE_WIDTH, ShapeProxy.DEFAULT_STROKE_WIDTH);
+        defaultValues.put(PROPERTY_MIN_DISTANCE, 0);
+    }
+
+    /**
+     * Returns the recorder, which opens the file on first use, or null if the
+     * file cannot be written. Called on the UI thread.
+     */
+    public synchronized TrailRecorder getRecorder() {
+
+        if (recorder == null) {
+
+            File file = resolveFile();
+
+            if (file == null) {
+
+                return null;
+            }
+
+            recorder = new TrailRecorder(file, 0, 0);
+
+            applyStyle();
+
+            recorder.open();
+        }
+
+        return recorder;
+    }
+
+    @Override
+    public void onPropertyChanged(String name, Object value) {
+
+        super.onPropertyChanged(name, value);
+
+        synchronized (this) {
+
+            if (recorder == null) {
+
+                return;
+            }
+        }
+
+        if (name.equals(ShapeProxy.PROPERTY_STROKE_COLOR) || name.equals(ShapeProxy.PROPERTY_STROKE_WIDTH) || name.equals(PROPERTY_MIN_DISTANCE)) {
+
+            TiMessenger.postOnMain(styleRunnable);
+        }
+    }
+
+    @Kroll.method
+    public void start() {
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                TrailRecorder current = getRecorder();
+
+                if (current != null) {
+
+                    current.start();
+                }
+            }
+        });
+    }
+
+    @Kroll.method
+    public void stop() {
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                TrailRecorder current = getRecorder();
+
+                if (current != null) {
+
+                    current.stop();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all fixes from the trail and its file.
+     */
+    @Kroll.method
+    public void clear() {
+
+        TiMessenger.postOnMain(new Runnable() {
+
+            @Override
+            public void run() {
+
+                TrailRecorder current = getRecorder();
+
+                if (current != null) {
+
+                    current.clear();
+                }
+            }
+        });
+    }
+
+    @Kroll.method
+    public KrollDict getStats() {
+
+        TrailRecorder current;
+
+        synchronized (this) {
+
+            current = recorder;
+        }
+
+        return current != null ? current.getStats() : new KrollDict();
+    }
+
+    /**
+     * Sets the paints and the minimum distance from the properties. Called
+     * on the UI thread.
+     */
+    private void applyStyle() {
+
+        float density = TiApplication.getInstance().getResources().getDisplayMetrics().density;
+
+        int color = TiConvert.toColor(TiConvert.toString(getProperty(ShapeProxy.PROPERTY_STROKE_COLOR)));
+        float width = TiConvert.toFloat(getProperty(ShapeProxy.PROPERTY_STROKE_WIDTH), ShapeProxy.DEFAULT_STROKE_WIDTH);
+
+        recorder.setStroke(color, width * density);
+        recorder.setMinDistance(TiConvert.toFloat(getProperty(PROPERTY_MIN_DISTANCE), 0));
+    }
+
+    private File resolveFile() {
+
+        Object path = getProperty(PROPERTY_FILE);
+
+        if (path == null) {
+
+            Log.e(TAG, "A trail needs a file to record into.");
+
+            return null;
+        }
+
+        TiBaseFile file = TiFileFactory.createTitaniumFile(new String[] { resolveUrl(null, TiConvert.toString(path)) }, false);
+
+        File nativeFile = file != null ? file.getNativeFile() : null;
+
+        if (nativeFile == null) {
+
+            Log.e(TAG, "The trail file " + path + " is not writable, use a path in the application data directory.");
+        }
+
+        return nativeFile;
+    }
+}
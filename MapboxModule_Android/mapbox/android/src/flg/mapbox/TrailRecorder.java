@@ -0,0 +1,506 @@
+package flg.mapbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.kroll.common.TiMessenger;
+
+import android.location.Location;
+
+/**
+ * Records the fixes of the user location into a trail file and draws them as
+ * a polyline.
+ *
+ * The polyline is split into shapes of CHUNK_SIZE vertices, each starting at
+ * the last vertex of the one before. A full shape is sealed and its levels of
+ * detail are built in the background; a new fix only projects the vertices of
+ * the last shape again, so the trail grows without reading the file or the
+ * earlier shapes again. The file is only read once, when it is opened.
+ *
+ * File access runs on a shared trail thread in the order of the fixes. The
+ * shapes are used on the UI thread.
+ */
+public class TrailRecorder implements SmoothedLocationProvider.FixListener {
+
+    private static final String LCAT = "MapboxModule";
+
+    public interface Listener {
+
+        /**
+         * Called on the UI thread when shapes were added, extended or removed.
+         */
+        public void onTrailChanged(TrailRecorder trail);
+    }
+
+    public static final int CHUNK_SIZE = 1024;
+
+    // the fixes appended before are synced to the storage after this interval
+    private static final long SYNC_INTERVAL_MS = 30000;
+
+    private static ExecutorService executor;
+
+    private final TrailFile file;
+
+    // UI thread
+    private final ArrayList<ShapeOverlay.Shape> shapes = new ArrayList<ShapeOverlay.Shape>();
+    private final double[] tailLatitudes = new double[CHUNK_SIZE];
+    private final double[] tailLongitudes = new double[CHUNK_SIZE];
+    private int tailCount = 0;
+    private ShapeOverlay.Shape tail;
+
+    // fixes recorded while the file is read, drawn after the trail read
+    private final ArrayList<Location> pending = new ArrayList<Location>();
+
+    private boolean loaded = false;
+
+    // cleared before the file was read, the trail read is dropped
+    private boolean clearedBeforeLoad = false;
+
+    private boolean recording = false;
+    private float minDistance = 0;
+    private Location last;
+
+    private int strokeColor;
+    private float strokeWidth;
+
+    private Listener listener;
+
+    private int points = 0;
+    private int skipped = 0;
+
+    // trail thread
+    private long lastSync = 0;
+
+    private volatile int recovered = 0;
+    private volatile int written = 0;
+    private volatile String error;
+
+    public TrailRecorder(File file, int strokeColor, float strokeWidth) {
+
+        this.file = new TrailFile(file);
+        this.strokeColor = strokeColor;
+        this.strokeWidth = strokeWidth;
+
+        tail = createShape(new ShapeGeometry(tailLatitudes, tailLongitudes, 0, false));
+
+        shapes.add(tail);
+    }
+
+    /**
+     * Reads the trail in the file on the trail thread, and draws it once
+     * read. Called once.
+     */
+    public void open() {
+
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                final ArrayList<ShapeGeometry> chunks = new ArrayList<ShapeGeometry>();
+
+                final double[] latitudes = new double[CHUNK_SIZE];
+                final double[] longitudes = new double[CHUNK_SIZE];
+                final int[] count = new int[1];
+
+                try {
+
+                    file.open(new TrailFile.Reader() {
+
+                        @Override
+                        public void onFix(double latitude, double longitude, long time, int accuracy) {
+
+                            if (count[0] == CHUNK_SIZE) {
+
+                                ShapeGeometry chunk = new ShapeGeometry(latitudes, longitudes, CHUNK_SIZE, false);
+
+                                chunk.buildLevels();
+
+                                chunks.add(chunk);
+
+                                latitudes[0] = latitudes[CHUNK_SIZE - 1];
+                                longitudes[0] = longitudes[CHUNK_SIZE - 1];
+                                count[0] = 1;
+                            }
+
+                            latitudes[count[0]] = latitude;
+                            longitudes[count[0]] = longitude;
+                            count[0]++;
+                        }
+                    });
+
+                    recovered = file.getRecordCount();
+
+                    if (file.getTruncatedLength() > 0) {
+
+                        Log.w(LCAT, "Dropped " + file.getTruncatedLength() + " bytes of an incomplete fix at the end of " + file.getFile());
+                    }
+
+                } catch (IOException e) {
+
+                    error = e.getMessage();
+
+                    Log.e(LCAT, "Unable to open the trail file " + file.getFile() + ": " + e.getMessage());
+                }
+
+                TiMessenger.postOnMain(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        applyLoaded(chunks, latitudes, longitudes, count[0]);
+                    }
+                });
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+
+        this.listener = listener;
+    }
+
+    public Listener getListener() {
+
+        return listener;
+    }
+
+    /**
+     * Returns the shapes of the trail, in order. Called on the UI thread.
+     */
+    public ArrayList<ShapeOverlay.Shape> getShapes() {
+
+        return shapes;
+    }
+
+    public void setStroke(int color, float width) {
+
+        strokeColor = color;
+        strokeWidth = width;
+
+        for (int i = 0; i < shapes.size(); i++) {
+
+            shapes.get(i).setStroke(color, width);
+        }
+
+        notifyChanged();
+    }
+
+    /**
+     * @param minDistance in meters to the last fix recorded
+     */
+    public void setMinDistance(float minDistance) {
+
+        this.minDistance = Math.max(0, minDistance);
+    }
+
+    public void start() {
+
+        recording = true;
+    }
+
+    /**
+     * Stops recording and syncs the fixes recorded to the storage.
+     */
+    public void stop() {
+
+        recording = false;
+
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                sync();
+            }
+        });
+    }
+
+    public boolean isRecording() {
+
+        return recording;
+    }
+
+    /**
+     * Removes all fixes from the trail and its file.
+     */
+    public void clear() {
+
+        if (!loaded) {
+
+            clearedBeforeLoad = true;
+        }
+
+        shapes.clear();
+        pending.clear();
+
+        tailCount = 0;
+        tail = createShape(new ShapeGeometry(tailLatitudes, tailLongitudes, 0, false));
+
+        shapes.add(tail);
+
+        points = 0;
+        last = null;
+
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (error != null) {
+
+                    return;
+                }
+
+                try {
+
+                    file.clear();
+
+                    recovered = 0;
+                    written = 0;
+
+                } catch (IOException e) {
+
+                    error = e.getMessage();
+
+                    Log.e(LCAT, "Unable to clear the trail file " + file.getFile() + ": " + e.getMessage());
+                }
+            }
+        });
+
+        notifyChanged();
+    }
+
+    @Override
+    public void onFix(final Location location) {
+
+        if (!recording) {
+
+            return;
+        }
+
+        if (last != null && location.distanceTo(last) < minDistance) {
+
+            skipped++;
+
+            return;
+        }
+
+        last = location;
+
+        final double latitude = location.getLatitude();
+        final double longitude = location.getLongitude();
+        final long time = location.getTime();
+        final float accuracy = location.getAccuracy();
+
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (error != null) {
+
+                    return;
+                }
+
+                try {
+
+                    file.append(latitude, longitude, time, accuracy);
+
+                    written++;
+
+                    if (System.currentTimeMillis() - lastSync > SYNC_INTERVAL_MS) {
+
+                        sync();
+                    }
+
+                } catch (IOException e) {
+
+                    error = e.getMessage();
+
+                    Log.e(LCAT, "Unable to append to the trail file " + file.getFile() + ": " + e.getMessage());
+                }
+            }
+        });
+
+        if (!loaded) {
+
+            pending.add(location);
+
+            return;
+        }
+
+        appendVertex(latitude, longitude);
+
+        notifyChanged();
+    }
+
+    /**
+     * Returns the counters, the file length in bytes.
+     */
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("points", points);
+        stats.put("shapes", shapes.size());
+        stats.put("recovered", recovered);
+        stats.put("written", written);
+        stats.put("skipped", skipped);
+        stats.put("fileSize", file.getFile().length());
+        stats.put("recording", recording);
+
+        if (error != null) {
+
+            stats.put("error", error);
+        }
+
+        return stats;
+    }
+
+    private void applyLoaded(ArrayList<ShapeGeometry> chunks, double[] latitudes, double[] longitudes, int count) {
+
+        if (clearedBeforeLoad) {
+
+            chunks.clear();
+            count = 0;
+        }
+
+        // the read trail goes before the fixes recorded meanwhile
+        shapes.remove(tail);
+
+        for (int i = 0; i < chunks.size(); i++) {
+
+            shapes.add(createShape(chunks.get(i)));
+
+            points += CHUNK_SIZE - (i > 0 ? 1 : 0);
+        }
+
+        System.arraycopy(latitudes, 0, tailLatitudes, 0, count);
+        System.arraycopy(longitudes, 0, tailLongitudes, 0, count);
+
+        points += chunks.isEmpty() ? count : count - 1;
+
+        tailCount = count;
+        tail = createShape(new ShapeGeometry(tailLatitudes, tailLongitudes, tailCount, false));
+
+        shapes.add(tail);
+
+        loaded = true;
+
+        for (int i = 0; i < pending.size(); i++) {
+
+            appendVertex(pending.get(i).getLatitude(), pending.get(i).getLongitude());
+        }
+
+        pending.clear();
+
+        notifyChanged();
+    }
+
+    private void appendVertex(double latitude, double longitude) {
+
+        if (tailCount == CHUNK_SIZE) {
+
+            seal();
+        }
+
+        tailLatitudes[tailCount] = latitude;
+        tailLongitudes[tailCount] = longitude;
+
+        tailCount++;
+
+        tail.setGeometry(new ShapeGeometry(tailLatitudes, tailLongitudes, tailCount, false));
+
+        points++;
+    }
+
+    /**
+     * Keeps the full last shape and starts a new one at its last vertex.
+     */
+    private void seal() {
+
+        tail.getGeometry().buildLevelsAsync(new Runnable() {
+
+            @Override
+            public void run() {
+
+                TiMessenger.postOnMain(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        notifyChanged();
+                    }
+                });
+            }
+        });
+
+        tailLatitudes[0] = tailLatitudes[CHUNK_SIZE - 1];
+        tailLongitudes[0] = tailLongitudes[CHUNK_SIZE - 1];
+
+        tailCount = 1;
+
+        tail = createShape(new ShapeGeometry(tailLatitudes, tailLongitudes, tailCount, false));
+
+        shapes.add(tail);
+    }
+
+    private ShapeOverlay.Shape createShape(ShapeGeometry geometry) {
+
+        ShapeOverlay.Shape shape = new ShapeOverlay.Shape(geometry);
+
+        shape.setStroke(strokeColor, strokeWidth);
+
+        return shape;
+    }
+
+    private void sync() {
+
+        try {
+
+            file.sync();
+
+            lastSync = System.currentTimeMillis();
+
+        } catch (IOException e) {
+
+            Log.w(LCAT, "Unable to sync the trail file " + file.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    private void notifyChanged() {
+
+        if (listener != null) {
+
+            listener.onTrailChanged(this);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+
+        if (executor == null) {
+
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "MapboxModule-Trail");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
+    }
+}
@@ -0,0 +1,167 @@
+package flg.mapbox;
+
+import java.util.HashMap;
+
+import org.appcelerator.kroll.KrollDict;
+import org.appcelerator.kroll.common.Log;
+import org.appcelerator.titanium.util.TiRHelper;
+import org.appcelerator.titanium.util.TiRHelper.ResourceNotFoundException;
+import org.appcelerator.titanium.util.TiUIHelper;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+
+import com.mapbox.mapboxsdk.overlay.GpsLocationProvider;
+import com.mapbox.mapboxsdk.overlay.UserLocationOverlay;
+import com.mapbox.mapboxsdk.views.MapView;
+
+/**
+ * The user location overlay of a map view, kept while the user location is
+ * hidden so that showing it again reuses the provider and bitmaps.
+ *
+ * A fix is only drawn if the dot, its accuracy circle or its direction moved
+ * by at least a pixel at the current zoom level. A fix held back is drawn
+ * when the map zooms in far enough to tell the difference.
+ *
+ * Used on the UI thread.
+ */
+public class UserLocationMarkerOverlay extends UserLocationOverlay {
+
+    private static final String LCAT = "MapboxModule";
+
+    private static final float MIN_MOVE_PX = 1;
+    private static final float MIN_BEARING_CHANGE = 2;
+
+    // meters per pixel at zoom level 0 on the equator
+    private static final double METERS_PER_PIXEL = 156543.03392;
+
+    // decoded once per process, by resource name
+    private static final HashMap<String, Bitmap> bitmaps = new HashMap<String, Bitmap>();
+
+    private Location drawn;
+    private Location pending;
+
+    private int redraws = 0;
+    private int skipped = 0;
+
+    public UserLocationMarkerOverlay(GpsLocationProvider provider, MapView mapView) {
+
+        super(provider, mapView);
+
+        setDrawAccuracyEnabled(true);
+
+        Bitmap personBitmap = getResourceBitmap("drawable.location_marker");
+
+        if (personBitmap != null) {
+
+            setPersonBitmap(personBitmap);
+        }
+
+        Bitmap arrowBitmap = getResourceBitmap("drawable.direction_arrow");
+
+        if (arrowBitmap != null) {
+
+            setDirectionArrowBitmap(arrowBitmap);
+        }
+    }
+
+    @Override
+    public void onLocationChanged(Location location, GpsLocationProvider provider) {
+
+        if (drawn != null && !movedVisibly(drawn, location)) {
+
+            pending = location;
+
+            skipped++;
+
+            return;
+        }
+
+        draw(location, provider);
+    }
+
+    @Override
+    public void disableMyLocation() {
+
+        super.disableMyLocation();
+
+        drawn = null;
+        pending = null;
+    }
+
+    /**
+     * Draws the fix held back last, if it moved visibly at the new zoom level.
+     */
+    public void onZoom() {
+
+        if (pending != null && drawn != null && movedVisibly(drawn, pending)) {
+
+            draw(pending, getMyLocationProvider());
+        }
+    }
+
+    public KrollDict getStats() {
+
+        KrollDict stats = new KrollDict();
+
+        stats.put("redraws", redraws);
+        stats.put("skippedRedraws", skipped);
+
+        return stats;
+    }
+
+    private void draw(Location location, GpsLocationProvider provider) {
+
+        drawn = location;
+        pending = null;
+
+        redraws++;
+
+        super.onLocationChanged(location, provider);
+    }
+
+    private boolean movedVisibly(Location from, Location to) {
+
+        double metersPerPixel = METERS_PER_PIXEL * Math.cos(Math.toRadians(to.getLatitude())) / Math.pow(2, mMapView.getZoomLevel());
+
+        double minMeters = MIN_MOVE_PX * metersPerPixel;
+
+        if (from.distanceTo(to) >= minMeters || Math.abs(from.getAccuracy() - to.getAccuracy()) >= minMeters) {
+
+            return true;
+        }
+
+        if (from.hasBearing() != to.hasBearing()) {
+
+            return true;
+        }
+
+        float bearingChange = Math.abs(from.getBearing() - to.getBearing()) % 360;
+
+        return Math.min(bearingChange, 360 - bearingChange) >= MIN_BEARING_CHANGE;
+    }
+
+    private static Bitmap getResourceBitmap(String name) {
+
+        if (bitmaps.containsKey(name)) {
+
+            return bitmaps.get(name);
+        }
+
+        Bitmap bitmap = null;
+
+        try {
+
+            bitmap = TiUIHelper.getResourceBitmap(TiRHelper.getApplicationResource(name));
+
+        } catch (ResourceNotFoundException e) {
+
+            Log.d(LCAT, "UserLocationMarkerOverlay - " + name + " - RESOURCE NOT FOUND! Exception:" + e);
+        }
+
+        // missing resources are not looked up again either
+        bitmaps.put(name, bitmap);
+
+        return bitmap;
+    }
+}